@@ -55,6 +55,9 @@ then
 elif [[ $1 = "--reprocess" ]]
 then
     RUN_DESCRIPTOR="reprocessing"
+elif [[ $1 = "--migrateStores" ]]
+then
+    RUN_DESCRIPTOR="store migration"
 fi
 
 if [[ -z $HARVEST_ORIGIN ]]
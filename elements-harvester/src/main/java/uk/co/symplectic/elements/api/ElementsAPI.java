@@ -10,27 +10,39 @@
  */
 package uk.co.symplectic.elements.api;
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.NullArgumentException;
 import org.apache.commons.lang.StringUtils;
+import org.apache.http.HttpHeaders;
 import org.apache.http.HttpStatus;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+import uk.co.symplectic.utils.PipelineStage;
+import uk.co.symplectic.utils.http.AdaptiveConcurrencyController;
 import uk.co.symplectic.utils.http.HttpClient;
 import uk.co.symplectic.utils.http.ValidatedUrl;
 import uk.co.symplectic.utils.xml.StAXUtils;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
+import uk.co.symplectic.utils.xml.XMLSourceCapture;
 import javax.xml.namespace.QName;
-import javax.xml.stream.XMLEventReader;
 import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.net.URISyntaxException;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Main Elements API Client class.
@@ -134,11 +146,159 @@ public class ElementsAPI {
     public static final String atomNS = "http://www.w3.org/2005/Atom";
 
     //timing utility functions and fields- very basic - not very realistic results.
-    private static long timeSpentInNetwork = 0;
-    private static long timeSpentInProcessing = 0;
+    //atomic as queries may be executed on several threads at once.
+    private static final AtomicLong timeSpentInNetwork = new AtomicLong(0);
+    private static final AtomicLong timeSpentInProcessing = new AtomicLong(0);
+    //bytes received over the wire vs. after decompression (to measure the saving from compressed transfer)
+    private static final AtomicLong bytesTransferred = new AtomicLong(0);
+    private static final AtomicLong bytesDecoded = new AtomicLong(0);
     private static void resetTimers(){
-        timeSpentInNetwork = 0;
-        timeSpentInProcessing = 0;
+        timeSpentInNetwork.set(0);
+        timeSpentInProcessing.set(0);
+        bytesTransferred.set(0);
+        bytesDecoded.set(0);
+    }
+
+    /**
+     * Simple counter of the bytes received by the pages of a single feed query.
+     * Thread safe, as the independent queries of a feed query may be downloaded concurrently.
+     */
+    private static class TransferCounter{
+        private long transferred = 0;
+        private long decoded = 0;
+
+        synchronized void add(long transferredBytes, long decodedBytes){
+            transferred += transferredBytes;
+            decoded += decodedBytes;
+        }
+    }
+
+    //the most page data (as received, i.e. possibly compressed) of a query that can be held waiting to be parsed, or being parsed, at once.
+    private static final long PAGE_BYTES_AWAITING_PARSING = 16L * 1024 * 1024;
+
+    /**
+     * Limits how much downloaded page data a query holds in memory between download and parse by bytes rather than by
+     * a count of pages, as the size of a page varies a great deal (e.g. with the level of detail requested).
+     * A page is always let through if no other page is being held, however large it is.
+     */
+    private static class PageBudget{
+        private final long capacity;
+        private long used = 0;
+
+        PageBudget(long capacity){
+            this.capacity = capacity;
+        }
+
+        /**
+         * Wait until there is room for a page of the given size.
+         * @param parseStage the stage the page is for (checked for failure, as it may never free any room).
+         */
+        synchronized void acquire(long bytes, PipelineStage<DownloadedPage> parseStage){
+            while(used > 0 && used + bytes > capacity){
+                parseStage.checkForFailure();
+                try {
+                    wait(1000);
+                }
+                catch(InterruptedException e){
+                    throw new IllegalStateException("Interrupted whilst waiting for downloaded pages to be parsed", e);
+                }
+            }
+            used += bytes;
+        }
+
+        synchronized void release(long bytes){
+            used -= bytes;
+            notifyAll();
+        }
+    }
+
+    /**
+     * A page of a feed query that has been downloaded and is waiting to be parsed.
+     * The page is held as it was received (i.e. still compressed if the server compressed it) and is only decompressed
+     * as it is parsed.
+     * The thread downloading pages needs the page's pagination to work out which page to fetch next, so the pagination
+     * is handed over as soon as it has been parsed (it comes at the start of the page) rather than once the whole page
+     * has been processed.
+     */
+    private static class DownloadedPage{
+        private final String baseQuery;
+        private final byte[] data;
+        private final String contentEncoding;
+        //counter to be updated with the bytes the page decompresses to (may be null).
+        private final TransferCounter transferCounter;
+        private final CountDownLatch paginationParsed = new CountDownLatch(1);
+        private volatile ElementsFeedPagination pagination = null;
+
+        DownloadedPage(String baseQuery, byte[] data, String contentEncoding, TransferCounter transferCounter){
+            if(data == null) throw new NullArgumentException("data");
+            this.baseQuery = baseQuery;
+            this.data = data;
+            this.contentEncoding = contentEncoding;
+            this.transferCounter = transferCounter;
+        }
+
+        String getBaseQuery(){ return baseQuery; }
+
+        /**
+         * @return the length of the page as received.
+         */
+        int getLength(){ return data.length; }
+
+        /**
+         * @return a stream of the page's (decompressed) content.
+         */
+        InputStream openStream() throws IOException{
+            return HttpClient.decodeContent(new ByteArrayInputStream(data), contentEncoding);
+        }
+
+        void decoded(long decodedBytes){
+            bytesDecoded.addAndGet(decodedBytes);
+            if(transferCounter != null) transferCounter.add(0, decodedBytes);
+        }
+
+        //only the first call has any effect - only ever called by the (single) thread parsing pages.
+        void setPagination(ElementsFeedPagination pagination){
+            if(paginationParsed.getCount() > 0) {
+                this.pagination = pagination;
+                paginationParsed.countDown();
+            }
+        }
+
+        ElementsFeedPagination awaitPagination(PipelineStage<DownloadedPage> parseStage){
+            try {
+                //if the stage parsing pages fails this page may never be parsed.
+                while (!paginationParsed.await(1, TimeUnit.SECONDS)) parseStage.checkForFailure();
+            }
+            catch(InterruptedException e){
+                throw new IllegalStateException("Interrupted whilst waiting for a page to be parsed", e);
+            }
+            return pagination;
+        }
+    }
+
+    /**
+     * Filter that passes the pagination extracted by the wrapped filter on to the page being parsed as soon as it is available.
+     */
+    private static class PaginationPublishingFilter extends XMLEventProcessor.EventFilterWrapper<ElementsAPIVersion.PaginationExtractingFilter>{
+        private final DownloadedPage page;
+
+        PaginationPublishingFilter(ElementsAPIVersion.PaginationExtractingFilter innerFilter, DownloadedPage page){
+            super(innerFilter);
+            this.page = page;
+        }
+
+        @Override
+        protected void postInnerItemEnd(XMLEventProcessor.WrappedXmlEvent finalEvent) throws XMLStreamException {
+            page.setPagination(innerFilter.getExtractedItem());
+        }
+    }
+
+    /**
+     * Helper to describe how much compression saved for a given number of bytes transferred and decoded.
+     */
+    private static String describeTransfer(long transferred, long decoded){
+        int saving = decoded == 0 ? 0 : (int) Math.round(100.0 * (decoded - transferred) / decoded);
+        return MessageFormat.format("{0} bytes transferred, {1} bytes uncompressed ({2}% saving)", transferred, decoded, saving);
     }
 
     /**
@@ -184,10 +344,17 @@ public class ElementsAPI {
     private int maxRetries = 5;
     @SuppressWarnings("FieldCanBeLocal")
     private int retryDelayMillis = 500;
+    //overload responses (429/503) are expected when the server is busy, so are given a more generous retry budget.
+    @SuppressWarnings("FieldCanBeLocal")
+    private int maxOverloadRetries = 20;
+
+    //default upper bound on the number of requests this object will have in flight at once (see AdaptiveConcurrencyController)
+    public static final int DEFAULT_MAX_CONCURRENCY = 8;
+    private final AdaptiveConcurrencyController concurrencyController;
 
     private final ProcessingDefaults defaults;
 
-    private boolean issuedWarningAboutMismatchedFetchUrls = false;
+    private volatile boolean issuedWarningAboutMismatchedFetchUrls = false;
 
     /**
      * Chained constructor - to ease creation of a default ElementsAPI
@@ -234,6 +401,7 @@ public class ElementsAPI {
 
         this.rewriteMismatchedURLs = rewriteMismatchedURLs;
         this.defaults = defaults == null ? ProcessingDefaults.DEFAULTS : defaults;
+        this.concurrencyController = new AdaptiveConcurrencyController(DEFAULT_MAX_CONCURRENCY, retryDelayMillis);
 
         ElementsAPIVersion extractedVersion = tryToExtractVersion();
 
@@ -255,12 +423,28 @@ public class ElementsAPI {
 
     public ElementsAPIVersion getVersion(){ return this.version; }
 
+    /**
+     * The controller limiting how many requests this object has in flight against the Elements server at once.
+     * Its limit adapts to server load - it is exposed so that the upper bound can be configured and its state reported.
+     * @return the AdaptiveConcurrencyController in use.
+     */
+    public AdaptiveConcurrencyController getConcurrencyController(){ return concurrencyController; }
+
     //Should call at end of construction to ensure client is as set up as can be without the version.
     private ElementsAPIVersion tryToExtractVersion(){
         ElementsAPIVersion.VersionExtractingFilter filter = new ElementsAPIVersion.VersionExtractingFilter();
         List<XMLEventProcessor.EventFilter> filters = new ArrayList<XMLEventProcessor.EventFilter>();
         filters.add(filter);
-        executeInternalQuery(getValidatedUrl(this.url + "my-account", new MessageFormat("Constructed my-account URL was invalid: {0}")), filters);
+        DownloadedPage page = downloadPage(null, getValidatedUrl(this.url + "my-account", new MessageFormat("Constructed my-account URL was invalid: {0}")), null);
+        try {
+            parseEventResponse(page, filters);
+        }
+        catch(XMLStreamException e){
+            throw new IllegalStateException("XML Stream Error handling API request", e);
+        }
+        catch(IOException e){
+            throw new IllegalStateException("IO Error handling API request", e);
+        }
         return filter.getExtractedItem();
     }
 
@@ -309,6 +493,131 @@ public class ElementsAPI {
      */
 
     public void executeQuery(ElementsFeedQuery feedQuery, ProcessingOptions overrideOptions, APIResponseFilter... filters) {
+        executeQuery(feedQuery, null, null, overrideOptions, filters);
+    }
+
+    /**
+     * Method to execute the requested feedQuery, resuming from (and updating) the supplied checkpoint, and parse the
+     * resulting XML responses using the specified filters.
+     * Any base queries the checkpoint records as completed are skipped, and if the checkpoint records the next page of
+     * a partially processed base query, processing starts from that page.
+     * The checkpoint is updated, and the listener notified, after each page has been processed by the filters.
+     * Pages are processed by the filters on a separate thread to the one downloading them (so that the next page can be
+     * downloaded whilst the current one is processed), so the filters and listener will not be called on the calling thread.
+     * @param feedQuery an ElementsFeedQuery to be run against the Elements API
+     * @param checkpoint the ElementsFeedCheckpoint to resume from and update (may be null).
+     * @param listener a listener to be notified each time the checkpoint is updated (may be null).
+     * @param overrideOptions the specific options that should be used to run the query.
+     *                        the appropriate ProcessingDefaults will be used if @overrideOptions is null.
+     * @param filters a set of APIResponseFilters that will be used to parse the XML responses from the API.
+     */
+    public void executeQuery(ElementsFeedQuery feedQuery, final ElementsFeedCheckpoint checkpoint, final ElementsFeedCheckpoint.Listener listener,
+                             ProcessingOptions overrideOptions, APIResponseFilter... filters) {
+        List<XMLEventProcessor.EventFilter> eventFilters = getEventFilters(filters);
+
+        //get and add int the entry counter to work out how many items we have processed
+        XMLEventProcessor.ItemCountingFilter itemCounter = getEntryCounter();
+        eventFilters.add(itemCounter);
+
+        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, overrideOptions);
+        ElementsFeedQuery.QueryIterator iterator = feedQuery.getQueryIterator(url, version.getUrlBuilder(), processingOptions, checkpoint);
+        TransferCounter transferCounter = new TransferCounter();
+
+        //Pages are downloaded on this thread and parsed (i.e. handed to the filters) strictly in order on a thread of
+        //their own, so the next page can be downloaded whilst the current one is being processed.
+        PipelineStage.Metrics downloadMetrics = new PipelineStage.Metrics("FeedDownload", 0);
+        PageBudget budget = new PageBudget(PAGE_BYTES_AWAITING_PARSING);
+        PipelineStage<DownloadedPage> parseStage = createParseStage(eventFilters, itemCounter, iterator, checkpoint, listener, budget, 1);
+        try {
+            downloadPages(iterator, parseStage, budget, downloadMetrics, transferCounter);
+            parseStage.close();
+        }
+        finally {
+            parseStage.abort();
+        }
+        if(checkpoint != null) {
+            checkpoint.markComplete();
+            if(listener != null) listener.checkpointUpdated(checkpoint);
+        }
+        log.info(MessageFormat.format("Query completed {0} items processed in total - {1}", itemCounter.getItemCount(),
+                describeTransfer(transferCounter.transferred, transferCounter.decoded)));
+        log.info(MessageFormat.format("Query pipeline - {0}; {1}", downloadMetrics, parseStage.getMetrics()));
+    }
+
+    /**
+     * Method to execute a feedQuery made up of independent queries (see ElementsFeedQuery.IndependentQueries), such as
+     * a list of ids fetched in batches, downloading up to maxConcurrentQueries of those queries at once, and parse the
+     * resulting XML responses using the specified filters.
+     * Each query's pages are downloaded in order, and every response is handed to the filters on a single thread, but
+     * the order in which the responses to different queries reach the filters is not defined.
+     * Every request is still subject to the limit imposed by this object's AdaptiveConcurrencyController.
+     * @param feedQuery an ElementsFeedQuery made up of independent queries to be run against the Elements API
+     * @param maxConcurrentQueries the maximum number of the queries to download at once (values below 1 are treated as 1).
+     * @param overrideOptions the specific options that should be used to run the query.
+     *                        the appropriate ProcessingDefaults will be used if @overrideOptions is null.
+     * @param filters a set of APIResponseFilters that will be used to parse the XML responses from the API.
+     */
+    public void executeQueryConcurrently(ElementsFeedQuery feedQuery, int maxConcurrentQueries, ProcessingOptions overrideOptions, APIResponseFilter... filters) {
+        if(!(feedQuery instanceof ElementsFeedQuery.IndependentQueries))
+            throw new IllegalArgumentException("feedQuery must be made up of independent queries to be executed concurrently");
+        List<XMLEventProcessor.EventFilter> eventFilters = getEventFilters(filters);
+
+        XMLEventProcessor.ItemCountingFilter itemCounter = getEntryCounter();
+        eventFilters.add(itemCounter);
+
+        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, overrideOptions);
+        List<ElementsFeedQuery.QueryIterator> iterators = feedQuery.getIndependentQueryIterators(url, version.getUrlBuilder(), processingOptions);
+        final TransferCounter transferCounter = new TransferCounter();
+        int poolSize = Math.max(1, Math.min(maxConcurrentQueries, iterators.size()));
+
+        final PipelineStage.Metrics downloadMetrics = new PipelineStage.Metrics("FeedDownload", 0);
+        final PageBudget budget = new PageBudget(PAGE_BYTES_AWAITING_PARSING);
+        final PipelineStage<DownloadedPage> parseStage = createParseStage(eventFilters, itemCounter, null, null, null, budget, poolSize);
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> downloaders = ExecutorServiceUtils.newIOBoundThreadPool("FeedDownload", poolSize);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        try {
+            for (final ElementsFeedQuery.QueryIterator iterator : iterators) {
+                results.add(downloaders.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        if (failed.get()) return false;
+                        try {
+                            downloadPages(iterator, parseStage, budget, downloadMetrics, transferCounter);
+                            return true;
+                        } catch (RuntimeException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                }, false));
+            }
+
+            //wait for each query in turn, marshalling any errors back onto this thread.
+            for (Future<Boolean> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IllegalStateException("Error executing concurrent query", cause);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Interrupted whilst executing concurrent queries", e);
+                }
+            }
+            parseStage.close();
+        }
+        finally {
+            failed.set(true);
+            downloaders.awaitShutdown();
+            parseStage.abort();
+        }
+        log.info(MessageFormat.format("Query completed {0} items processed in total from {1} queries ({2} at once) - {3}", itemCounter.getItemCount(),
+                iterators.size(), poolSize, describeTransfer(transferCounter.transferred, transferCounter.decoded)));
+        log.info(MessageFormat.format("Query pipeline - {0}; {1}", downloadMetrics, parseStage.getMetrics()));
+    }
+
+    private List<XMLEventProcessor.EventFilter> getEventFilters(APIResponseFilter... filters){
         List<XMLEventProcessor.EventFilter> eventFilters = new ArrayList<XMLEventProcessor.EventFilter>();
         for(APIResponseFilter filter : filters){
             if(!filter.supports(version)){
@@ -317,43 +626,97 @@ public class ElementsAPI {
             }
             eventFilters.add(filter.getEventFilter());
         }
+        return eventFilters;
+    }
 
-        //get and add int the entry counter to work out how many items we have processed
-        XMLEventProcessor.ItemCountingFilter itemCounter = getEntryCounter();
-        eventFilters.add(itemCounter);
+    /**
+     * Create the (single threaded) stage that hands downloaded pages to the filters, updating the checkpoint (if there
+     * is one) once each page has been processed.
+     * @param iterator the iterator generating the pages (only needed if there is a checkpoint).
+     * @param checkpoint the ElementsFeedCheckpoint to update (may be null).
+     * @param listener a listener to be notified each time the checkpoint is updated (may be null).
+     * @param budget the budget that each page's data is released back to once it has been parsed.
+     * @param downloaders the number of threads downloading pages. Each waits for its last page's pagination to have been
+     *                    parsed before fetching another, so has at most one page queued - the budget is what limits the
+     *                    memory held by the queue, rather than its capacity.
+     */
+    private PipelineStage<DownloadedPage> createParseStage(final List<XMLEventProcessor.EventFilter> eventFilters, final XMLEventProcessor.ItemCountingFilter itemCounter,
+                                                           final ElementsFeedQuery.QueryIterator iterator, final ElementsFeedCheckpoint checkpoint,
+                                                           final ElementsFeedCheckpoint.Listener listener, final PageBudget budget, int downloaders){
+        return new PipelineStage<DownloadedPage>("FeedParse", 1, downloaders,
+                new PipelineStage.Handler<DownloadedPage>() {
+                    @Override
+                    public void handle(DownloadedPage page) throws XMLStreamException, IOException {
+                        int itemsBeforePage = itemCounter.getItemCount();
+                        ElementsFeedPagination pagination = null;
+                        try {
+                            pagination = parseEventResponse(page, eventFilters);
+                        }
+                        finally {
+                            //make sure the downloading thread is never left waiting, even if the page could not be parsed.
+                            page.setPagination(pagination);
+                            budget.release(page.getLength());
+                        }
+                        //every item on the page has now been handed to the filters, so it is safe to move the checkpoint on.
+                        if(checkpoint != null) {
+                            checkpoint.pageCompleted(page.getBaseQuery(), iterator.getNextPageUrl(pagination), itemCounter.getItemCount() - itemsBeforePage);
+                            if(listener != null) listener.checkpointUpdated(checkpoint);
+                        }
+                    }
+                });
+    }
 
-        ProcessingOptions processingOptions = defaults.getProcessingOptions(feedQuery, overrideOptions);
-        ElementsFeedQuery.QueryIterator iterator = feedQuery.getQueryIterator(url, version.getUrlBuilder(), processingOptions);
+    /**
+     * Download every page generated by the iterator, handing each to the parseStage in turn (once there is room for it
+     * in the budget).
+     * Which page comes next depends on the pagination of the previous one, so this waits for each page's pagination
+     * to have been parsed before moving on.
+     */
+    private void downloadPages(ElementsFeedQuery.QueryIterator iterator, PipelineStage<DownloadedPage> parseStage, PageBudget budget,
+                               PipelineStage.Metrics downloadMetrics, TransferCounter transferCounter){
         ElementsFeedPagination pagination = null;
         ValidatedUrl previousQuery = null;
         int queryCounter = 0;
-        while(iterator.hasNext(pagination)){
+        while (iterator.hasNext(pagination)) {
             String previousUrl = previousQuery == null ? null : previousQuery.getUrl();
             ValidatedUrl currentQuery = getValidatedUrl(iterator.next(pagination), previousUrl, new MessageFormat("Invalid API query detected : {0}"));
-            if(previousQuery != null) {
+            if (previousQuery != null) {
                 if (currentQuery.isMismatched()) {
                     if (queryCounter == 1) {
                         log.warn(MessageFormat.format("Next URL in a feed \"{0}\" has a different host to the previous URL: {1}", currentQuery.getUrl(), previousQuery.getUrl()));
                         log.warn("There is probably a mismatch between the configured API URL in this program and the API baseURI configured in Elements");
                     }
                     //if we want to rewrite any mismatched urls to use the original base url from our query
-                    if(rewriteMismatchedURLs) currentQuery.useRewrittenVersion(true);
+                    if (rewriteMismatchedURLs) currentQuery.useRewrittenVersion(true);
                 }
                 if (currentQuery.getUrl().equals(previousQuery.getUrl())) {
                     throw new IllegalStateException("Error detected in the pagination response from Elements - unable to continue processing. Note that this can often indicate a corrupt or missing Search Index in Elements");
                 }
             }
-            pagination = executeInternalQuery(currentQuery, eventFilters);
+            long startTime = System.nanoTime();
+            DownloadedPage page = downloadPage(iterator.getCurrentQuery(), currentQuery, transferCounter);
+            downloadMetrics.itemHandled(System.nanoTime() - startTime);
+            startTime = System.nanoTime();
+            budget.acquire(page.getLength(), parseStage);
+            downloadMetrics.waited(System.nanoTime() - startTime);
+            parseStage.put(page);
+
+            //which page comes next depends on this page's pagination.
+            startTime = System.nanoTime();
+            pagination = page.awaitPagination(parseStage);
+            downloadMetrics.waited(System.nanoTime() - startTime);
 
             queryCounter++;
             if (queryCounter % 40 == 0) {
-                log.trace(MessageFormat.format("{0} queries processed: network-time: {1}, processing-time: {2}", queryCounter, ElementsAPI.timeSpentInNetwork, ElementsAPI.timeSpentInProcessing));
+                log.trace(MessageFormat.format("{0} queries processed: network-time: {1}, processing-time: {2}, connection-pool: {3}, concurrency: {4}, transfer: {5}",
+                        queryCounter, ElementsAPI.timeSpentInNetwork.get(), ElementsAPI.timeSpentInProcessing.get(), HttpClient.getPoolStats(), concurrencyController,
+                        describeTransfer(ElementsAPI.bytesTransferred.get(), ElementsAPI.bytesDecoded.get())));
+                log.trace(MessageFormat.format("{0}; {1}", downloadMetrics, parseStage.getMetrics()));
                 ElementsAPI.resetTimers();
             }
 
             previousQuery = currentQuery;
         }
-        log.info(MessageFormat.format("Query completed {0} items processed in total", itemCounter.getItemCount()));
     }
 
 
@@ -363,10 +726,49 @@ public class ElementsAPI {
      * @param outputStream the output stream to be populated with the fetched data.
      * @return boolean indicating if the fetch was successful (actually will return true or will error out..)
      */
-    //TODO : rationalise with main query call to have common usage of the underlying client with nice retry behaviour etc.
     @SuppressWarnings("SameReturnValue")
     public boolean fetchResource(String resourceURL, OutputStream outputStream) {
+        fetchResource(resourceURL, outputStream, null, null);
+        return true;
+    }
+
+    /**
+     * Class representing the outcome of a (possibly conditional) resource fetch, including the validators (ETag and
+     * Last-Modified) returned by the server, which can be used to make a conditional request for the resource next time.
+     */
+    public static class ResourceFetchResult{
+        private final boolean notModified;
+        private final String eTag;
+        private final String lastModified;
+
+        ResourceFetchResult(boolean notModified, String eTag, String lastModified){
+            this.notModified = notModified;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * @return whether the server indicated that the copy of the resource already held is still current (nothing will have been written to the output stream).
+         */
+        public boolean isNotModified(){ return notModified; }
+        public String getETag(){ return eTag; }
+        public String getLastModified(){ return lastModified; }
+    }
+
+    /**
+     * Method to conditionally fetch a specific resource from the Elements API and store it in the Output stream provided.
+     * If validators are supplied and the server indicates the resource has not changed nothing is written to the stream.
+     * @param resourceURL the url of the resource to be fetched.
+     * @param outputStream the output stream to be populated with the fetched data.
+     * @param eTag the ETag returned when the copy of the resource already held was fetched (may be null).
+     * @param lastModified the Last-Modified value returned when the copy of the resource already held was fetched (may be null).
+     * @return a ResourceFetchResult describing the outcome, or null if the fetch failed.
+     */
+    //TODO : rationalise with main query call to have common usage of the underlying client with nice retry behaviour etc.
+    public ResourceFetchResult fetchResource(String resourceURL, OutputStream outputStream, String eTag, String lastModified) {
         HttpClient.ApiResponse apiResponse = null;
+        boolean acquired = false;
+        ResourceFetchResult result = null;
         try {
             ValidatedUrl validatedUrl = new ValidatedUrl(resourceURL, url);
             if(validatedUrl.isMismatched()){
@@ -377,12 +779,32 @@ public class ElementsAPI {
                 }
                 if(rewriteMismatchedURLs) validatedUrl.useRewrittenVersion(true);
             }
+            concurrencyController.acquire();
+            acquired = true;
+            long startTime = System.currentTimeMillis();
             HttpClient apiClient = new HttpClient(validatedUrl, username, password);
-            apiResponse = apiClient.executeGetRequest();
-            IOUtils.copy(apiResponse.getResponseStream(), outputStream);
+            apiResponse = apiClient.executeGetRequest(eTag, lastModified);
+            concurrencyController.onSuccess(System.currentTimeMillis() - startTime);
+            if(apiResponse.isNotModified()) {
+                //a 304 need not repeat the validators, so fall back to those we already have.
+                String newETag = apiResponse.getHeaderValue(HttpHeaders.ETAG);
+                String newLastModified = apiResponse.getHeaderValue(HttpHeaders.LAST_MODIFIED);
+                result = new ResourceFetchResult(true, newETag == null ? eTag : newETag, newLastModified == null ? lastModified : newLastModified);
+            }
+            else {
+                IOUtils.copy(apiResponse.getResponseStream(), outputStream);
+                result = new ResourceFetchResult(false, apiResponse.getHeaderValue(HttpHeaders.ETAG), apiResponse.getHeaderValue(HttpHeaders.LAST_MODIFIED));
+            }
+        }
+        catch (HttpClient.InvalidResponseException e) {
+            //no retry here, but let the controller know if the server is struggling.
+            if(e.isOverloaded()) concurrencyController.onOverload(e.getRetryAfterMillis());
         }
         catch (IOException ignored) { }
         catch (URISyntaxException ignored){ }
+        catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         finally {
             if (apiResponse != null) {
                 try {
@@ -390,37 +812,66 @@ public class ElementsAPI {
                 }
                 catch (IOException ignored) { }
             }
+            if(acquired) concurrencyController.release();
         }
-        return true;
+        return result;
     }
 
     /**
-     * Internal helper method to perform the processing of a particular URL as part of executing a query
-     * @param url the url to be processed.
-     * @param eventFilters the filters to be run against the returned XML.
-     * @return an ElementsFeedPagination object representing the position of the current URL in a query of multiple pages.
+     * Internal helper method to download a particular URL as part of executing a query.
+     * The whole response is read (retrying as necessary) before returning, so the request is finished with before the
+     * response is parsed and network errors part way through a response can be retried. The response is held as it was
+     * received (i.e. compressed, if the server compressed it), and is only decompressed as it is parsed (see
+     * DownloadedPage). How many such pages a query holds at once is limited by a PageBudget.
+     * @param baseQuery the query the url is a page of (may be null).
+     * @param url the url to be downloaded.
+     * @param transferCounter counter to be updated with the bytes received for this url (may be null).
+     * @return the downloaded page.
      * @throws IllegalStateException if errors
      */
-    private ElementsFeedPagination executeInternalQuery(ValidatedUrl url, Collection<XMLEventProcessor.EventFilter> eventFilters) throws IllegalStateException {
+    private DownloadedPage downloadPage(String baseQuery, ValidatedUrl url, TransferCounter transferCounter) throws IllegalStateException {
         int retryCount = 0;
+        int overloadCount = 0;
         do {
             HttpClient.ApiResponse apiResponse = null;
             IOException responseDisposeError = null;
+            long retryDelay;
+            try {
+                //wait until the server can take another request (the limit adapts to how the server is responding)
+                concurrencyController.acquire();
+            } catch (InterruptedException e) {
+                throw new IllegalStateException("Interrupted whilst waiting to issue query");
+            }
             try {
                 long startTime = System.currentTimeMillis();
                 HttpClient apiClient = new HttpClient(url, username, password);
                 apiResponse = apiClient.executeGetRequest();
-                long endTime = System.currentTimeMillis();
-                timeSpentInNetwork += (endTime - startTime);
-                return parseEventResponse(apiResponse.getResponseStream(), eventFilters);
+                concurrencyController.onSuccess(System.currentTimeMillis() - startTime);
+                byte[] data = IOUtils.toByteArray(apiResponse.getEncodedResponseStream());
+                timeSpentInNetwork.addAndGet(System.currentTimeMillis() - startTime);
+                long transferred = apiResponse.getTransferredBytes();
+                bytesTransferred.addAndGet(transferred);
+                if(transferCounter != null) transferCounter.add(transferred, 0);
+                log.debug(MessageFormat.format("{0} : {1} bytes transferred", url.getUrl(), transferred));
+                return new DownloadedPage(baseQuery, data, apiResponse.getContentEncoding(), transferCounter);
             }
             catch (IOException e) {
                 if(e instanceof HttpClient.InvalidResponseException){
-                    int statusCode = ((HttpClient.InvalidResponseException) e).getResponseCode();
+                    HttpClient.InvalidResponseException responseException = (HttpClient.InvalidResponseException) e;
+                    int statusCode = responseException.getResponseCode();
                     //if forbidden then just jump out here..
                     if(statusCode == HttpStatus.SC_FORBIDDEN || statusCode == HttpStatus.SC_UNAUTHORIZED) {
                         throw new IllegalStateException(e.getMessage(), e);
                     }
+                    //if the server is overloaded back off (as requested by the server if possible) and try again.
+                    if(responseException.isOverloaded()) {
+                        retryDelay = concurrencyController.onOverload(responseException.getRetryAfterMillis());
+                        log.warn(MessageFormat.format("{0} - backing off for {1}ms ({2})", e.getMessage(), retryDelay, concurrencyController));
+                        if (++overloadCount >= maxOverloadRetries) {
+                            throw new IllegalStateException("Elements API remained overloaded whilst handling API request", e);
+                        }
+                        continue;
+                    }
                     log.error(e.getMessage(), e);
                 }
                 else log.error("IO Error handling API request", e);
@@ -428,11 +879,7 @@ public class ElementsAPI {
                 if (++retryCount >= maxRetries) {
                     throw new IllegalStateException("IO Error handling API request", e);
                 }
-            } catch (XMLStreamException e) {
-                log.error("XML Stream Error handling API request", e);
-                if (++retryCount >= maxRetries) {
-                    throw new IllegalStateException("XML Stream Error handling API request", e);
-                }
+                retryDelay = concurrencyController.onFailure(retryCount);
             } finally {
                 if (apiResponse != null) {
                     try {
@@ -441,6 +888,7 @@ public class ElementsAPI {
                         responseDisposeError = e;
                     }
                 }
+                concurrencyController.release();
             }
 
             if(responseDisposeError != null){
@@ -448,7 +896,7 @@ public class ElementsAPI {
             }
 
             try {
-                Thread.sleep(retryDelayMillis);
+                Thread.sleep(retryDelay);
             } catch (InterruptedException e) {
                 throw new IllegalStateException("Interrupted whilst retrying query");
             }
@@ -457,29 +905,37 @@ public class ElementsAPI {
     }
 
     /**
-     * helper method to process the provided API XML response (represented by the inputStream) using the supplied filters.
+     * helper method to process the provided API XML response (a downloaded page) using the supplied filters.
      * Note, eventFilters does not need to contain a filter to extract pagination info as one is automatically added
-     * by this method and the result is returned in the return parameter.
-     * @param response the API XML response being processed.
+     * by this method and the result is returned in the return parameter (it is also passed to the page as soon as it
+     * has been parsed, see DownloadedPage).
+     * @param page the API XML response being processed.
      * @param eventFilters the filters to be run against the XML.
      * @return an ElementsFeedPagination object representing the position of the current URL in a query of multiple pages.
      * @throws XMLStreamException if XML structure is invalid.
+     * @throws IOException if the page could not be decompressed.
      */
-    private ElementsFeedPagination parseEventResponse(InputStream response, Collection<XMLEventProcessor.EventFilter> eventFilters) throws XMLStreamException {
+    private ElementsFeedPagination parseEventResponse(DownloadedPage page, Collection<XMLEventProcessor.EventFilter> eventFilters) throws XMLStreamException, IOException {
         final long startTime = System.currentTimeMillis();
         //set up the xml reader
         XMLInputFactory xmlInputFactory = StAXUtils.getXMLInputFactory();
-        XMLEventReader atomReader = xmlInputFactory.createXMLEventReader(response);
+        //the page is decompressed as it is parsed, and the raw text is captured as it is parsed so that filters can take
+        //entries straight from it (the API always responds in utf-8).
+        CountingInputStream decodedCounter = new CountingInputStream(page.openStream());
+        XMLSourceCapture sourceCapture = new XMLSourceCapture(new InputStreamReader(decodedCounter, Charset.forName("utf-8")));
+        //processed with a cursor (rather than as events) to avoid creating an object for every event in the response.
+        XMLStreamReader atomReader = xmlInputFactory.createXMLStreamReader(sourceCapture);
 
         XMLEventProcessor processor = new XMLEventProcessor(eventFilters.toArray(new XMLEventProcessor.EventFilter[eventFilters.size()]));
         ElementsAPIVersion.PaginationExtractingFilter paginationFilter = null;
         if(version != null) {
             paginationFilter = version.getPaginationExtractor();
-            processor.addFilter(paginationFilter);
+            processor.addFilter(new PaginationPublishingFilter(paginationFilter, page));
         }
-        processor.process(atomReader);
+        processor.process(atomReader, sourceCapture);
+        page.decoded(decodedCounter.getByteCount());
         final long endTime = System.currentTimeMillis();
-        timeSpentInProcessing += (endTime - startTime);
+        timeSpentInProcessing.addAndGet(endTime - startTime);
         return paginationFilter == null ? null : paginationFilter.getExtractedItem();
     }
 }
@@ -24,6 +24,8 @@ import java.util.Set;
  */
 @SuppressWarnings("unused")
 public interface ElementsAPIURLBuilder {
+    String buildObjectFeedQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, Set<Integer> objectIds);
+
     String buildObjectFeedQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, int perPage);
 
     String buildRelationshipFeedQuery(String endpointUrl, ElementsAPIFeedRelationshipQuery feedQuery, Set<Integer> relationshipIds);
@@ -34,11 +36,23 @@ public interface ElementsAPIURLBuilder {
 
     String buildRelationshipTypesQuery(String endpointUrl, ElementsAPIFeedRelationshipTypesQuery feedQuery);
 
+    /**
+     * Whether relationship queries asking to include affected relationships (see ElementsAPIFeedRelationshipQuery)
+     * will return relationships whose linked objects have changed (e.g. visibility or username), not only those that
+     * have themselves been modified.
+     * @return boolean
+     */
+    boolean supportsAffectedRelationshipDeltas();
+
     /**
      * An abstract intermediate class providing a useful helper method to convert integer arrays into an
      * API friendly comma delimited string.
      */
     abstract class GenericBase implements ElementsAPIURLBuilder {
+        //by default relationship deltas only contain relationships that have themselves been modified
+        @Override
+        public boolean supportsAffectedRelationshipDeltas(){ return false; }
+
         protected String convertIntegerArrayToQueryString(Collection<Integer> integers){
             //StringUtils.join(integers, ","); simpler? - could potentially remove GenericBase then
             StringBuilder builder = new StringBuilder();
@@ -188,6 +188,13 @@ public class ElementsAPIVersion {
         return(this.versionNumber <= versionToCompare.versionNumber);
     }
 
+    /**
+     * Whether delta relationship queries against this version of the API can be asked to return relationships
+     * "affected" by changes to their linked objects (server side), rather than just those that have been modified.
+     * @return boolean
+     */
+    public boolean supportsAffectedRelationshipDeltas(){ return urlBuilder.supportsAffectedRelationshipDeltas(); }
+
     /**
      * Method to return an ElementsAPIVersion from the known list based on the passed in string
      * Throws an IllegalStateException if the string does not correspond to a known version.
@@ -0,0 +1,120 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.elements.api;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Class representing how far through an ElementsFeedQuery the ElementsAPI has got, so that processing of the query
+ * can be resumed (rather than restarted) if it is interrupted.
+ *
+ * A feed query is made up of one or more base query urls, each of which may have many pages. The checkpoint records
+ * which base queries have been completely processed, the "next" url of the base query currently being processed and
+ * running counts of the pages and items processed so far.
+ *
+ * The checkpoint is updated by ElementsAPI.executeQuery after each page has been processed (i.e. after every item on
+ * the page has been passed to the filters) and the supplied Listener is then notified so that it can be persisted.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ElementsFeedCheckpoint {
+
+    /**
+     * Interface for objects that want to be told (e.g. to persist the checkpoint) each time it is updated.
+     */
+    public interface Listener{
+        void checkpointUpdated(ElementsFeedCheckpoint checkpoint);
+    }
+
+    private final Set<String> completedQueries = new LinkedHashSet<String>();
+    private String currentQuery = null;
+    private String nextPageUrl = null;
+    private int pageCount = 0;
+    private long itemCount = 0;
+    private boolean complete = false;
+
+    /**
+     * Create an empty checkpoint (i.e. one representing a feed query that has not been started).
+     */
+    public ElementsFeedCheckpoint(){}
+
+    /**
+     * Recreate a previously persisted checkpoint
+     * @param completedQueries the base query urls that have been completely processed.
+     * @param currentQuery the base query url that was being processed (may be null).
+     * @param nextPageUrl the url of the next page of the currentQuery to be processed (may be null).
+     * @param pageCount the number of pages processed so far.
+     * @param itemCount the number of items processed so far.
+     * @param complete whether the whole feed query has been completed.
+     */
+    public ElementsFeedCheckpoint(Collection<String> completedQueries, String currentQuery, String nextPageUrl, int pageCount, long itemCount, boolean complete){
+        if(completedQueries != null) this.completedQueries.addAll(completedQueries);
+        //a current query is only meaningful if we know where to pick it up from.
+        if(currentQuery != null && nextPageUrl != null) {
+            this.currentQuery = currentQuery;
+            this.nextPageUrl = nextPageUrl;
+        }
+        this.pageCount = pageCount;
+        this.itemCount = itemCount;
+        this.complete = complete;
+    }
+
+    public synchronized Set<String> getCompletedQueries(){ return Collections.unmodifiableSet(new LinkedHashSet<String>(completedQueries)); }
+    public synchronized String getCurrentQuery(){ return currentQuery; }
+    public synchronized String getNextPageUrl(){ return nextPageUrl; }
+    public synchronized int getPageCount(){ return pageCount; }
+    public synchronized long getItemCount(){ return itemCount; }
+    public synchronized boolean isComplete(){ return complete; }
+
+    /**
+     * @return a copy of the checkpoint as it currently stands (e.g. to be persisted later, whilst this one moves on).
+     */
+    public synchronized ElementsFeedCheckpoint copy(){
+        return new ElementsFeedCheckpoint(completedQueries, currentQuery, nextPageUrl, pageCount, itemCount, complete);
+    }
+
+    /**
+     * @return whether the checkpoint records any progress through the feed query that can be built upon.
+     */
+    public synchronized boolean isResumable(){ return !complete && (!completedQueries.isEmpty() || nextPageUrl != null); }
+
+    /**
+     * Record that a page of a base query has been processed.
+     * @param query the base query url the page belongs to.
+     * @param nextPageUrl the url of the following page of the base query, or null if this was the last page.
+     * @param items the number of items on the page.
+     */
+    synchronized void pageCompleted(String query, String nextPageUrl, int items){
+        pageCount++;
+        itemCount += items;
+        if(nextPageUrl == null){
+            if(query != null) completedQueries.add(query);
+            this.currentQuery = null;
+            this.nextPageUrl = null;
+        }
+        else {
+            this.currentQuery = query;
+            this.nextPageUrl = nextPageUrl;
+        }
+    }
+
+    /**
+     * Record that the whole feed query has been processed.
+     */
+    synchronized void markComplete(){
+        currentQuery = null;
+        nextPageUrl = null;
+        complete = true;
+    }
+}
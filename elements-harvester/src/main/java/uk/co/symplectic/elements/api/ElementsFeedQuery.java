@@ -63,8 +63,19 @@ abstract public class ElementsFeedQuery {
      * @return : a QueryIterator that will loop through all the queries that are need to be made to the API to process this FeedQuery
      */
     QueryIterator getQueryIterator(String apiBaseUrl, ElementsAPIURLBuilder builder, ElementsAPI.ProcessingOptions options) {
+        return getQueryIterator(apiBaseUrl, builder, options, null);
+    }
+
+    /**
+     * As getQueryIterator above, but resuming from the progress recorded in an ElementsFeedCheckpoint.
+     * @param apiBaseUrl the base url of the api you want to query
+     * @param builder an api version specific builder that knows how to construct different types of query URL.
+     * @param checkpoint the checkpoint to resume from (may be null, in which case all queries are processed).
+     * @return : a QueryIterator that will loop through the remaining queries that need to be made to process this FeedQuery
+     */
+    QueryIterator getQueryIterator(String apiBaseUrl, ElementsAPIURLBuilder builder, ElementsAPI.ProcessingOptions options, ElementsFeedCheckpoint checkpoint) {
         Set<String> urls = getUrlStrings(apiBaseUrl, builder, options.getPerPage());
-        return new QueryIterator(options, urls);
+        return new QueryIterator(options, urls, checkpoint);
     }
 
     /**
@@ -79,6 +90,27 @@ abstract public class ElementsFeedQuery {
      */
     protected abstract Set<String> getUrlStrings(String apiBaseUrl, ElementsAPIURLBuilder builder, int perPage);
 
+    /**
+     * As getQueryIterator, but with a separate QueryIterator for each of the distinct queries (see getUrlStrings) that
+     * make up this FeedQuery, so that they can be processed independently of each other (see IndependentQueries).
+     * @param apiBaseUrl the base url of the api you want to query
+     * @param builder an api version specific builder that knows how to construct different types of query URL.
+     * @return : a list of QueryIterators, one per distinct query.
+     */
+    List<QueryIterator> getIndependentQueryIterators(String apiBaseUrl, ElementsAPIURLBuilder builder, ElementsAPI.ProcessingOptions options) {
+        List<QueryIterator> iterators = new ArrayList<QueryIterator>();
+        for(String url : getUrlStrings(apiBaseUrl, builder, options.getPerPage())){
+            iterators.add(new QueryIterator(options, Collections.singleton(url), null));
+        }
+        return iterators;
+    }
+
+    /**
+     * Marker interface for FeedQueries whose distinct queries (see getUrlStrings) do not depend on each other in any way
+     * (e.g. batches of a list of ids), so that they may be fetched concurrently and their results processed in any order.
+     */
+    public interface IndependentQueries{}
+
 
     /**
      * Intermediate abstract class representing the concept of a query against a resource that supports the ability
@@ -105,13 +137,28 @@ abstract public class ElementsFeedQuery {
 
         private final Iterator<String> queryIterator;
         private final ElementsAPI.ProcessingOptions processingOptions;
+        //the base query currently being processed
+        private String currentQuery = null;
+        //the page to start from when resuming from a checkpoint
+        private String resumeUrl = null;
 
         //public QueryIterator(String... queries){ this(new HashSet<String>(Arrays.asList(queries))); }
 
-        private QueryIterator(ElementsAPI.ProcessingOptions processingOptions, Set<String> queries){
+        private QueryIterator(ElementsAPI.ProcessingOptions processingOptions, Set<String> queries, ElementsFeedCheckpoint checkpoint){
             if(processingOptions == null) throw new NullArgumentException("processingOptions");
             if(queries == null || queries.isEmpty()) throw new IllegalArgumentException("queries must not be null or empty");
-            this.queryIterator = queries.iterator();
+            Set<String> remainingQueries = new LinkedHashSet<String>(queries);
+            //skip anything already done - any checkpointed queries that do not match the current queries (e.g. because the
+            //configuration has changed) are simply ignored.
+            if(checkpoint != null){
+                remainingQueries.removeAll(checkpoint.getCompletedQueries());
+                String checkpointedQuery = checkpoint.getCurrentQuery();
+                if(checkpointedQuery != null && checkpoint.getNextPageUrl() != null && remainingQueries.remove(checkpointedQuery)){
+                    currentQuery = checkpointedQuery;
+                    resumeUrl = checkpoint.getNextPageUrl();
+                }
+            }
+            this.queryIterator = remainingQueries.iterator();
             this.processingOptions = processingOptions;
         }
 
@@ -120,15 +167,35 @@ abstract public class ElementsFeedQuery {
         }
 
         boolean hasNext(ElementsFeedPagination pagination) {
-            return hasNextPage(pagination) || queryIterator.hasNext();
+            return resumeUrl != null || hasNextPage(pagination) || queryIterator.hasNext();
         }
 
         String next(ElementsFeedPagination pagination){
-            if(hasNextPage(pagination))
+            if(resumeUrl != null){
+                String url = resumeUrl;
+                resumeUrl = null;
+                return url;
+            }
+            else if(hasNextPage(pagination))
                 return pagination.getNextURL();
-            else if(queryIterator.hasNext())
-                return queryIterator.next();
+            else if(queryIterator.hasNext()) {
+                currentQuery = queryIterator.next();
+                return currentQuery;
+            }
             throw new IllegalStateException("invalid use of QueryIterator");
         }
+
+        /**
+         * @return the base query that the most recent url returned by next belongs to.
+         */
+        String getCurrentQuery(){ return currentQuery; }
+
+        /**
+         * @param pagination the pagination extracted from the most recently processed url.
+         * @return the url of the next page of the current base query that will be processed, or null if there is none.
+         */
+        String getNextPageUrl(ElementsFeedPagination pagination){
+            return hasNextPage(pagination) ? pagination.getNextURL() : null;
+        }
     }
 }
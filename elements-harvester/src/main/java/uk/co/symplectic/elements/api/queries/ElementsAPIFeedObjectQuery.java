@@ -98,6 +98,43 @@ public class ElementsAPIFeedObjectQuery extends ElementsFeedQuery.DeltaCapable {
         public boolean queryRepresentsDeletedItems(){ return true;}
     }
 
+    /**
+     * Subclass of the ElementsAPIFeedObjectQuery representing one "partition" of a larger category query.
+     * Only items related to users in the specified group (including any sub groups) are returned.
+     * Note that partitions based on different groups are not guaranteed to be disjoint (or to cover the whole category)
+     * so callers must be prepared to handle duplicate or missing items.
+     */
+    public static class GroupPartition extends ElementsAPIFeedObjectQuery{
+        public GroupPartition(ElementsObjectCategory category, boolean fullDetails, int groupID){
+            super(category, fullDetails, null, Collections.singletonList(groupID), false);
+        }
+    }
+
+    /**
+     * Subclass of the ElementsAPIFeedObjectQuery representing querying a specific known list of objects (by id) within
+     * a category. The ids are requested in batches (see IdListBatcher), which are independent of each other so may be
+     * fetched concurrently.
+     */
+    public static class IdList extends ElementsAPIFeedObjectQuery implements ElementsFeedQuery.IndependentQueries{
+        private final List<Integer> objectIds = new ArrayList<Integer>();
+
+        public IdList(ElementsObjectCategory category, boolean fullDetails, Collection<Integer> ids){
+            super(category, fullDetails, null);
+            if(ids == null || ids.isEmpty()) throw new IllegalArgumentException("ids must not be null or empty");
+            objectIds.addAll(new LinkedHashSet<Integer>(ids));
+        }
+
+        @Override
+        protected Set<String> getUrlStrings(final String apiBaseUrl, final ElementsAPIURLBuilder builder, int perPage){
+            return new IdListBatcher() {
+                @Override
+                protected String buildQuery(Set<Integer> batch) {
+                    return builder.buildObjectFeedQuery(apiBaseUrl, IdList.this, batch);
+                }
+            }.getQueries(objectIds, perPage);
+        }
+    }
+
     /**
      * Subclass of the ElementsAPIFeedObjectQuery querying users that are explicit members of
      * the specified user group within Elements.
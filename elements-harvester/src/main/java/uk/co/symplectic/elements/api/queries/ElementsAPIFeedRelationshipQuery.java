@@ -20,13 +20,21 @@ import java.util.*;
 /**
  * FeedQuery representing retrieving data about relationships (links between objects) from Elements
  * optionally fetching only items modified since a particular datetime.
+ * A delta query can also ask for relationships "affected" since that datetime (i.e. including those whose linked objects
+ * have changed), which is honoured if the API version supports it (see ElementsAPIURLBuilder.supportsAffectedRelationshipDeltas).
  */
 public class ElementsAPIFeedRelationshipQuery extends ElementsFeedQuery.DeltaCapable {
 
     private List<Integer> relationshipTypeIds = new ArrayList<Integer>();
+    private final boolean includeAffected;
 
     public ElementsAPIFeedRelationshipQuery(boolean fullDetails, Date modifiedSince, Set<ElementsItemId.RelationshipTypeId> relTypeIds) {
+        this(fullDetails, modifiedSince, false, relTypeIds);
+    }
+
+    public ElementsAPIFeedRelationshipQuery(boolean fullDetails, Date modifiedSince, boolean includeAffected, Set<ElementsItemId.RelationshipTypeId> relTypeIds) {
         super(ElementsItemType.RELATIONSHIP, fullDetails, modifiedSince);
+        this.includeAffected = includeAffected;
         if(relTypeIds != null) {
             for (ElementsItemId.RelationshipTypeId id : relTypeIds) {
                 relationshipTypeIds.add(id.getId());
@@ -36,6 +44,8 @@ public class ElementsAPIFeedRelationshipQuery extends ElementsFeedQuery.DeltaCap
 
     public List<Integer> getRelationshipTypeIds(){ return relationshipTypeIds;}
 
+    public boolean getIncludeAffected(){ return includeAffected; }
+
     @Override
     protected Set<String> getUrlStrings(String apiBaseUrl, ElementsAPIURLBuilder builder, int perPage){
         return Collections.singleton(builder.buildRelationshipFeedQuery(apiBaseUrl, this, perPage));
@@ -55,8 +65,9 @@ public class ElementsAPIFeedRelationshipQuery extends ElementsFeedQuery.DeltaCap
 
     /**
      * Subclass of ElementsAPIFeedRelationshipQuery to represent querying a specific known list of relationships (by id)
+     * The ids are requested in batches (see IdListBatcher), which are independent of each other so may be fetched concurrently.
      */
-    public static class IdList extends ElementsAPIFeedRelationshipQuery{
+    public static class IdList extends ElementsAPIFeedRelationshipQuery implements ElementsFeedQuery.IndependentQueries{
         List<Integer> relationshipIds = new ArrayList<Integer>();
 
         public IdList(Set<ElementsItemId.RelationshipId> ids){
@@ -67,19 +78,16 @@ public class ElementsAPIFeedRelationshipQuery extends ElementsFeedQuery.DeltaCap
             }
         }
 
+        public int getRequestedCount(){ return relationshipIds.size(); }
+
         @Override
-        public Set<String> getUrlStrings(String apiBaseUrl, ElementsAPIURLBuilder builder, int perPage){
-            Set<String> queries = new HashSet<String>();
-            int counter = 0;
-            int maxIndex;
-            do{
-                //do batches in the amount set in per page..
-                maxIndex = Math.min((counter+1)*perPage, relationshipIds.size());
-                List<Integer> batch = relationshipIds.subList(counter*perPage, maxIndex);
-                queries.add(builder.buildRelationshipFeedQuery(apiBaseUrl, this, new HashSet<Integer>(batch)));
-                counter++;
-            } while (maxIndex != relationshipIds.size());
-            return queries;
+        public Set<String> getUrlStrings(final String apiBaseUrl, final ElementsAPIURLBuilder builder, int perPage){
+            return new IdListBatcher() {
+                @Override
+                protected String buildQuery(Set<Integer> batch) {
+                    return builder.buildRelationshipFeedQuery(apiBaseUrl, IdList.this, batch);
+                }
+            }.getQueries(relationshipIds, perPage);
         }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.elements.api.queries;
+
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Helper for FeedQueries that request a specific known list of items by id.
+ * The ids are cut into batches, each no bigger than a page and small enough to keep the query url within
+ * MAX_URL_LENGTH (long urls are liable to be rejected by servers or proxies along the way).
+ */
+abstract class IdListBatcher {
+
+    //the longest query url that will be generated.
+    static final int MAX_URL_LENGTH = 2000;
+
+    /**
+     * @param batch the ids to be requested.
+     * @return the url of a query requesting the items in the batch.
+     */
+    protected abstract String buildQuery(Set<Integer> batch);
+
+    Set<String> getQueries(List<Integer> ids, int perPage){
+        Set<String> queries = new LinkedHashSet<String>();
+        int counter = 0;
+        int maxIndex;
+        do{
+            //do batches in the amount set in per page..
+            maxIndex = Math.min((counter+1)*perPage, ids.size());
+            addBatchQueries(queries, ids.subList(counter*perPage, maxIndex));
+            counter++;
+        } while (maxIndex != ids.size());
+        return queries;
+    }
+
+    //adds the query for a batch of ids, halving the batch (repeatedly if necessary) if its url would be too long.
+    private void addBatchQueries(Set<String> queries, List<Integer> batch){
+        String query = buildQuery(new HashSet<Integer>(batch));
+        if(query.length() <= MAX_URL_LENGTH || batch.size() == 1){
+            queries.add(query);
+        }
+        else {
+            int middle = batch.size() / 2;
+            addBatchQueries(queries, batch.subList(0, middle));
+            addBatchQueries(queries, batch.subList(middle, batch.size()));
+        }
+    }
+}
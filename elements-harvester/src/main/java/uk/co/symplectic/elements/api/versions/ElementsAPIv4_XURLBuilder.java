@@ -29,8 +29,19 @@ import java.util.Set;
 @SuppressWarnings("unused")
 public class ElementsAPIv4_XURLBuilder extends ElementsAPIURLBuilder.GenericBase {
     @Override
+    public String buildObjectFeedQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, Set<Integer> objectIds) {
+        if(objectIds == null || objectIds.size() == 0) throw new IllegalArgumentException("objectIds must not be null or empty");
+        URLBuilder queryUrl = buildGenericObjectQuery(endpointUrl, feedQuery, objectIds.size());
+        queryUrl.addParam("ids", convertIntegerArrayToQueryString(objectIds));
+        return queryUrl.toString();
+    }
 
+    @Override
     public String buildObjectFeedQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, int perPage) {
+        return buildGenericObjectQuery(endpointUrl, feedQuery, perPage).toString();
+    }
+
+    private URLBuilder buildGenericObjectQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, int perPage) {
         URLBuilder queryUrl = new URLBuilder(endpointUrl);
 
         if(feedQuery.queryRepresentsDeletedItems()){
@@ -84,7 +95,7 @@ public class ElementsAPIv4_XURLBuilder extends ElementsAPIURLBuilder.GenericBase
         //hack in a page for testing
         //queryUrl.addParam("page", Integer.toString(feedQuery.page));
 
-        return queryUrl.toString();
+        return queryUrl;
     }
 
     private URLBuilder buildGenericRelationshipQuery(String endpointUrl, ElementsAPIFeedRelationshipQuery feedQuery, int perPage){
@@ -34,7 +34,7 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
      * @return GeneralAPIv4XOr55_URLBuilder
      */
     public static GeneralAPIv4XOr55_URLBuilder get4XBuilder(){
-        return new GeneralAPIv4XOr55_URLBuilder(true, false);
+        return new GeneralAPIv4XOr55_URLBuilder(true, false, false);
     }
 
     /**
@@ -44,22 +44,29 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
      * @return GeneralAPIv4XOr55_URLBuilder
      */
     public static GeneralAPIv4XOr55_URLBuilder get55Builder(boolean useAffectedWhen){
-        return new GeneralAPIv4XOr55_URLBuilder(false, useAffectedWhen);
+        return new GeneralAPIv4XOr55_URLBuilder(false, useAffectedWhen, true);
     }
 
     private final boolean useOrderBy;
     private final boolean useAffectedWhen;
+    private final boolean supportsAffectedRelationships;
 
     /**
      * Private constructor, use static members (get4XBuilder, get55Builder) to construct a builder for a given API type
      * @param useOrderBy whether the "order-by" parameter should be provided for resources that support it (only relevant to 4.X API endpoints)
      * @param useAffectedWhen whether to use "modified-when" or "affected-when" in timestamped queries (only relevant to 5.X API endpoint)
+     * @param supportsAffectedRelationships whether relationship queries that ask to include affected items can use "affected-when"
+     *                                      (only relevant to 5.X API endpoint)
      */
-    private GeneralAPIv4XOr55_URLBuilder(boolean useOrderBy, boolean useAffectedWhen){
+    private GeneralAPIv4XOr55_URLBuilder(boolean useOrderBy, boolean useAffectedWhen, boolean supportsAffectedRelationships){
         this.useOrderBy = useOrderBy;
         this.useAffectedWhen = useAffectedWhen;
+        this.supportsAffectedRelationships = supportsAffectedRelationships;
     }
 
+    @Override
+    public boolean supportsAffectedRelationshipDeltas(){ return supportsAffectedRelationships; }
+
 
     private String getDateTypeString(ElementsFeedQuery.DeltaCapable feedQuery){
         //if deleting it deleted-since
@@ -68,12 +75,27 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
         //if using affected and its a cats query then affected-since
         if(useAffectedWhen && feedQuery instanceof ElementsAPIFeedObjectQuery)
             return "affected-since";
+        //if it is a rels query that has asked for affected items, and we can give them, then affected-since
+        if(supportsAffectedRelationships && feedQuery instanceof ElementsAPIFeedRelationshipQuery && ((ElementsAPIFeedRelationshipQuery) feedQuery).getIncludeAffected())
+            return "affected-since";
         //otherwise just return modified-since
         return "modified-since";
     }
 
+    @Override
+    public String buildObjectFeedQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, Set<Integer> objectIds) {
+        if(objectIds == null || objectIds.size() == 0) throw new IllegalArgumentException("objectIds must not be null or empty");
+        URLBuilder queryUrl = buildGenericObjectQuery(endpointUrl, feedQuery, objectIds.size());
+        queryUrl.addParam("ids", convertIntegerArrayToQueryString(objectIds));
+        return queryUrl.toString();
+    }
+
     @Override
     public String buildObjectFeedQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, int perPage) {
+        return buildGenericObjectQuery(endpointUrl, feedQuery, perPage).toString();
+    }
+
+    private URLBuilder buildGenericObjectQuery(String endpointUrl, ElementsAPIFeedObjectQuery feedQuery, int perPage) {
         URLBuilder queryUrl = new URLBuilder(endpointUrl);
 
         if(feedQuery.queryRepresentsDeletedItems()){
@@ -121,7 +143,7 @@ public class GeneralAPIv4XOr55_URLBuilder extends ElementsAPIURLBuilder.GenericB
         //hack in a page for testing
         //queryUrl.addParam("page", Integer.toString(feedQuery.page));
 
-        return queryUrl.toString();
+        return queryUrl;
     }
 
     private URLBuilder buildGenericRelationshipQuery(String endpointUrl, ElementsAPIFeedRelationshipQuery feedQuery, int perPage){
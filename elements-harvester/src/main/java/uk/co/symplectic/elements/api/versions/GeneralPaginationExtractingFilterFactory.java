@@ -37,6 +37,10 @@ public class GeneralPaginationExtractingFilterFactory extends PaginationExtracti
         private static final String apiNS = ElementsAPI.apiNS;
         private static final String atomNS = ElementsAPI.atomNS;
 
+        //names of the elements of interest (created once rather than for every event)
+        private static final QName paginationElement = new QName(apiNS, "pagination");
+        private static final QName pageElement = new QName(apiNS, "page");
+
         ElementsFeedPagination workspace = null;
 
         GeneralPaginationExtractingFilter(){
@@ -52,12 +56,12 @@ public class GeneralPaginationExtractingFilterFactory extends PaginationExtracti
         protected void processEvent(XMLEventProcessor.WrappedXmlEvent event, List<QName> relativeLocation) {
             if (event.isRelevantForExtraction()) {
                 QName name = event.getName();
-                if (name.equals(new QName(apiNS, "pagination"))) {
+                if (name.equals(paginationElement)) {
                     if(event.hasAttribute("items-per-page")) {
                         workspace.setItemsPerPage(Integer.parseInt(event.getAttribute("items-per-page")));
                     }
                 }
-                if (name.equals(new QName(apiNS, "page"))) {
+                if (name.equals(pageElement)) {
                     if (event.hasAttribute("position") && event.hasAttribute("href")) {
                         String posValue = event.getAttribute("position");
                         String hrefValue = event.getAttribute("href");
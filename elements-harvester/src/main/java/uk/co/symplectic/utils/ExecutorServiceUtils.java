@@ -61,6 +61,21 @@ public final class ExecutorServiceUtils {
         return  new ExecutorServiceWrapper<T>(poolName, getThreadPoolSizeForPool(requestedPoolSize));
     }
 
+    /**
+     * Create a pool for tasks that spend most of their time waiting on the network rather than using the CPU.
+     * Unlike newFixedThreadPool the size is not capped at the number of processors, and as these pools are expected to be
+     * short lived (and explicitly shut down by their owner) no shutdown hook is registered, and nothing is reported
+     * when they are shut down (many may be created and shut down during a run).
+     * @param poolName name of the pool (used in logging)
+     * @param poolSize number of threads in the pool (must be at least 1)
+     * @param <T> type returned by tasks submitted to the pool
+     * @return a new ExecutorServiceWrapper
+     */
+    public static <T> ExecutorServiceWrapper<T> newIOBoundThreadPool(String poolName, int poolSize) {
+        if(poolSize < 1) throw new IllegalArgumentException("poolSize must be at least 1");
+        return new ExecutorServiceWrapper<T>(poolName, poolSize, 30, 300, false, false);
+    }
+
 
     /**
      * Inner class that exists to be hooked into the Runtime's shutdown event when a new ExecutorServiceWrapper is
@@ -115,15 +130,19 @@ public final class ExecutorServiceUtils {
         //state tracking flag
         private long maxQueueCount = -1;
 
+        //whether to report the maxQueueCount on shutdown
+        private boolean reportOnShutdown = true;
+
 
         //Base constructor to create Wrapper with appropriate defaults for timeouts, etc.
         ExecutorServiceWrapper(String poolName, int poolSize) {
-            this(poolName, poolSize, 30, 300, true);
+            this(poolName, poolSize, 30, 300, true, true);
         }
 
         //Main constructor for the service wrapper
-        ExecutorServiceWrapper(String poolName, int poolSize, int shutdownWaitCycleInSecs, int shutdownStalledWaitTimeInSecs, boolean shutdownOnExit) {
+        ExecutorServiceWrapper(String poolName, int poolSize, int shutdownWaitCycleInSecs, int shutdownStalledWaitTimeInSecs, boolean shutdownOnExit, boolean reportOnShutdown) {
             this.poolName = poolName;
+            this.reportOnShutdown = reportOnShutdown;
             this.shutdownWaitCycleInSecs = shutdownWaitCycleInSecs;
             this.shutdownStalledWaitTimeInSecs = shutdownStalledWaitTimeInSecs;
 
@@ -214,7 +233,7 @@ public final class ExecutorServiceUtils {
                 } catch (InterruptedException e) {
                     e.printStackTrace();
                 } finally {
-                    System.out.println("[" + poolName + "] Queue had max size of: " + maxQueueCount);
+                    if(reportOnShutdown) System.out.println("[" + poolName + "] Queue had max size of: " + maxQueueCount);
                 }
             }
         }
@@ -0,0 +1,269 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.utils;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import java.text.MessageFormat;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A stage of a processing pipeline.
+ * Items put into the stage are held in a bounded queue until one of the stage's own threads hands them to the stage's
+ * Handler. When the queue is full put blocks, so a slow stage holds back the stage feeding it (backpressure) rather
+ * than letting work pile up in memory.
+ *
+ * Items are handled in the order they were put by each thread, so a stage with a single thread handles them strictly
+ * in order. If the handler throws, the stage is failed: anything still queued is discarded and the failure is
+ * re-thrown (as an IllegalStateException) to anyone putting items into, or waiting on, the stage.
+ *
+ * Each stage records Metrics (throughput, how busy it is, its queue depth and how long it has held up the stage
+ * feeding it) so that the bottleneck of a pipeline can be identified.
+ * @param <T> the type of item handled by the stage.
+ */
+@SuppressWarnings("WeakerAccess")
+public class PipelineStage<T> {
+
+    /**
+     * Interface for the work done by a stage on each item.
+     */
+    public interface Handler<T>{
+        void handle(T item) throws Exception;
+    }
+
+    /**
+     * Statistics about a stage of a pipeline. Also usable on its own for a stage that runs on the thread feeding the
+     * pipeline (and so has no queue).
+     */
+    public static class Metrics{
+        private final String name;
+        private final int capacity;
+        private final long startTime = System.nanoTime();
+        private final AtomicLong itemCount = new AtomicLong(0);
+        private final AtomicLong busyNanos = new AtomicLong(0);
+        private final AtomicLong waitingNanos = new AtomicLong(0);
+        private final AtomicInteger queueDepth = new AtomicInteger(0);
+        private final AtomicInteger maxQueueDepth = new AtomicInteger(0);
+
+        /**
+         * @param name the name of the stage (used in logging)
+         * @param capacity the capacity of the stage's queue (0 if it does not have one).
+         */
+        public Metrics(String name, int capacity){
+            if(name == null) throw new NullArgumentException("name");
+            this.name = name;
+            this.capacity = capacity;
+        }
+
+        public void itemHandled(long nanosTaken){
+            itemCount.incrementAndGet();
+            busyNanos.addAndGet(nanosTaken);
+        }
+
+        public void waited(long nanosTaken){ waitingNanos.addAndGet(nanosTaken); }
+
+        void queueDepthChanged(int delta){
+            int depth = queueDepth.addAndGet(delta);
+            int max = maxQueueDepth.get();
+            while(depth > max && !maxQueueDepth.compareAndSet(max, depth)) max = maxQueueDepth.get();
+        }
+
+        public String getName(){ return name; }
+        public long getItemCount(){ return itemCount.get(); }
+        public long getBusyMillis(){ return TimeUnit.NANOSECONDS.toMillis(busyNanos.get()); }
+        public long getWaitingMillis(){ return TimeUnit.NANOSECONDS.toMillis(waitingNanos.get()); }
+        public int getQueueDepth(){ return queueDepth.get(); }
+        public int getMaxQueueDepth(){ return maxQueueDepth.get(); }
+
+        /**
+         * @return items handled per second since the stage was created.
+         */
+        public double getThroughput(){
+            long elapsed = System.nanoTime() - startTime;
+            return elapsed <= 0 ? 0 : itemCount.get() * 1e9 / elapsed;
+        }
+
+        @Override
+        public String toString(){
+            long elapsed = System.nanoTime() - startTime;
+            int busyPercent = elapsed <= 0 ? 0 : (int) Math.min(100, Math.round(100.0 * busyNanos.get() / elapsed));
+            String description = MessageFormat.format("{0}: {1} items ({2,number,#.##}/s), busy {3}%, waited {4}ms",
+                    name, getItemCount(), getThroughput(), busyPercent, getWaitingMillis());
+            if(capacity > 0) description += MessageFormat.format(", queue depth {0}/{1} (max {2})", getQueueDepth(), capacity, getMaxQueueDepth());
+            return description;
+        }
+    }
+
+    private final Handler<T> handler;
+    private final BlockingQueue<T> queue;
+    private final ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> workers;
+    private final Metrics metrics;
+
+    //items that have been put but not yet handled (or discarded).
+    private final Object outstandingLock = new Object();
+    private int outstanding = 0;
+
+    private volatile boolean closed = false;
+    private volatile boolean aborted = false;
+    private volatile Throwable failure = null;
+
+    /**
+     * @param name the name of the stage (used for its threads and in logging)
+     * @param threads the number of threads handling items
+     * @param capacity the number of items that can be queued before put blocks.
+     * @param handler the work to do on each item.
+     */
+    public PipelineStage(String name, int threads, int capacity, Handler<T> handler){
+        if(handler == null) throw new NullArgumentException("handler");
+        if(threads < 1) throw new IllegalArgumentException("threads must be at least 1");
+        if(capacity < 1) throw new IllegalArgumentException("capacity must be at least 1");
+        this.handler = handler;
+        this.queue = new ArrayBlockingQueue<T>(capacity);
+        this.metrics = new Metrics(name, capacity);
+        this.workers = ExecutorServiceUtils.newIOBoundThreadPool(name, threads);
+        for(int i = 0; i < threads; i++){
+            workers.submit(new Worker(), false);
+        }
+    }
+
+    public Metrics getMetrics(){ return metrics; }
+
+    /**
+     * Queue an item to be handled, waiting for space in the queue if necessary.
+     * The time spent waiting is recorded against this stage (it is the stage holding things up).
+     * @param item the item to be handled.
+     */
+    public void put(T item){
+        if(item == null) throw new NullArgumentException("item");
+        checkForFailure();
+        if(closed) throw new IllegalStateException(MessageFormat.format("Pipeline stage {0} has been closed", metrics.getName()));
+        synchronized (outstandingLock) { outstanding++; }
+        long startTime = System.nanoTime();
+        try {
+            queue.put(item);
+            metrics.queueDepthChanged(1);
+        }
+        catch(InterruptedException e){
+            itemDone();
+            throw new IllegalStateException(MessageFormat.format("Interrupted whilst waiting to queue an item for {0}", metrics.getName()), e);
+        }
+        finally {
+            metrics.waited(System.nanoTime() - startTime);
+        }
+    }
+
+    /**
+     * Wait until every item put so far has been handled.
+     * @throws IllegalStateException if the stage has failed.
+     */
+    public void awaitDrained(){
+        synchronized (outstandingLock) {
+            while (outstanding > 0 && failure == null) {
+                try {
+                    outstandingLock.wait();
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException(MessageFormat.format("Interrupted whilst waiting for {0} to finish", metrics.getName()), e);
+                }
+            }
+        }
+        checkForFailure();
+    }
+
+    /**
+     * Handle everything queued, then stop the stage's threads.
+     * @throws IllegalStateException if the stage has failed.
+     */
+    public void close(){
+        try {
+            awaitDrained();
+        }
+        finally {
+            abort();
+        }
+    }
+
+    /**
+     * Stop the stage's threads, discarding anything still queued. Intended for cleaning up after errors elsewhere in
+     * a pipeline (has no effect if the stage has already been closed).
+     */
+    public void abort(){
+        if(!closed) {
+            aborted = true;
+            closed = true;
+            workers.awaitShutdown();
+            while (queue.poll() != null) {
+                metrics.queueDepthChanged(-1);
+                itemDone();
+            }
+        }
+    }
+
+    public boolean hasFailed(){ return failure != null; }
+
+    /**
+     * @throws IllegalStateException if the stage has failed.
+     */
+    public void checkForFailure(){
+        Throwable cause = failure;
+        if(cause != null) throw new IllegalStateException(MessageFormat.format("Pipeline stage {0} failed", metrics.getName()), cause);
+    }
+
+    private void itemDone(){
+        synchronized (outstandingLock) {
+            outstanding--;
+            outstandingLock.notifyAll();
+        }
+    }
+
+    private void fail(Throwable cause){
+        synchronized (outstandingLock) {
+            if(failure == null) failure = cause;
+            outstandingLock.notifyAll();
+        }
+    }
+
+    /**
+     * The loop run by each of the stage's threads.
+     */
+    private class Worker implements Callable<Boolean> {
+        @Override
+        public Boolean call() throws Exception {
+            while(true) {
+                T item = queue.poll(100, TimeUnit.MILLISECONDS);
+                if (item == null) {
+                    if (closed) return true;
+                    continue;
+                }
+                metrics.queueDepthChanged(-1);
+                try {
+                    //once failed (or aborted) anything else queued is just discarded, so that nothing feeding the stage is left blocked.
+                    if (failure == null && !aborted) {
+                        long startTime = System.nanoTime();
+                        try {
+                            handler.handle(item);
+                        }
+                        finally {
+                            metrics.itemHandled(System.nanoTime() - startTime);
+                        }
+                    }
+                }
+                catch (Throwable e) {
+                    fail(e);
+                }
+                finally {
+                    itemDone();
+                }
+            }
+        }
+    }
+}
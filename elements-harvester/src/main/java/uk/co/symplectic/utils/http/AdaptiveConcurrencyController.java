@@ -0,0 +1,192 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.http;
+
+import java.text.MessageFormat;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Thread safe AIMD (additive increase, multiplicative decrease) controller used to decide how many requests may be
+ * in flight against a server at any one time, and how long to back off when the server indicates it is overloaded.
+ *
+ * Callers must call acquire() before making a request and release() once they have finished with the response, and
+ * should report the outcome of each request via onSuccess, onOverload or onFailure.
+ *
+ * - Each success with a "normal" latency raises the limit by 1/limit (i.e. by roughly one per round trip).
+ * - A success that is much slower than the recent median, or an overload response (e.g. 429 or 503), cuts the limit
+ *   (by 10% or 50% respectively). Cuts are applied at most once per "round" of requests, so a burst of slow responses
+ *   that were all in flight together only counts once.
+ * - An overload response also stops any new requests starting until the server's Retry-After time has passed
+ *   (or an exponentially increasing delay if the server did not send one).
+ */
+@SuppressWarnings("WeakerAccess")
+public class AdaptiveConcurrencyController {
+
+    //number of recent latencies kept for calculating percentiles
+    private static final int LATENCY_WINDOW_SIZE = 200;
+    //number of samples needed before latency is used to reduce the limit
+    private static final int MIN_LATENCY_SAMPLES = 20;
+    //a response slower than this multiple of the recent median is treated as a sign the server is under load
+    private static final double LATENCY_TOLERANCE = 2.0;
+    private static final double LATENCY_DECREASE_FACTOR = 0.9;
+    private static final double OVERLOAD_DECREASE_FACTOR = 0.5;
+    //cap on any single backoff period
+    private static final long MAX_BACKOFF_MILLIS = 5 * 60 * 1000;
+
+    private final Random jitter = new Random();
+
+    private final long baseBackoffMillis;
+    private int maxLimit;
+    private double limit = 1;
+    private int inFlight = 0;
+
+    //time (in millis) before which no new requests should be started
+    private long backoffUntil = 0;
+    private int consecutiveOverloads = 0;
+    //number of requests completed since the limit was last cut
+    private int completedSinceDecrease = 0;
+
+    private final long[] latencies = new long[LATENCY_WINDOW_SIZE];
+    private int latencyCount = 0;
+    private int latencyIndex = 0;
+
+    /**
+     * Constructor
+     * @param maxLimit the maximum number of requests that can be in flight at once (minimum 1)
+     * @param baseBackoffMillis the starting delay used when backing off after failures with no Retry-After guidance
+     */
+    public AdaptiveConcurrencyController(int maxLimit, long baseBackoffMillis) {
+        this.maxLimit = Math.max(1, maxLimit);
+        this.baseBackoffMillis = Math.max(1, baseBackoffMillis);
+    }
+
+    public synchronized void setMaxLimit(int maxLimit){
+        this.maxLimit = Math.max(1, maxLimit);
+        limit = Math.min(limit, this.maxLimit);
+        notifyAll();
+    }
+
+    public synchronized int getMaxLimit(){ return maxLimit; }
+
+    /**
+     * @return the current limit on the number of requests in flight.
+     */
+    public synchronized int getLimit(){ return (int) Math.max(1, Math.floor(limit)); }
+
+    public synchronized int getInFlight(){ return inFlight; }
+
+    /**
+     * Block until a request may be started (i.e. we are under the current limit and not backing off).
+     * @throws InterruptedException if interrupted whilst waiting.
+     */
+    public synchronized void acquire() throws InterruptedException {
+        while(true){
+            long waitFor = backoffUntil - System.currentTimeMillis();
+            if(waitFor > 0) wait(waitFor);
+            else if(inFlight >= getLimit()) wait();
+            else break;
+        }
+        inFlight++;
+    }
+
+    /**
+     * Indicate that a request started with acquire() has finished.
+     */
+    public synchronized void release(){
+        if(inFlight > 0) inFlight--;
+        notifyAll();
+    }
+
+    /**
+     * Record a successful request.
+     * @param latencyMillis how long the server took to respond.
+     */
+    public synchronized void onSuccess(long latencyMillis){
+        consecutiveOverloads = 0;
+        completedSinceDecrease++;
+        boolean slow = latencyCount >= MIN_LATENCY_SAMPLES && latencyMillis > LATENCY_TOLERANCE * getLatencyPercentileInternal(50);
+        recordLatency(latencyMillis);
+        if(slow) decrease(LATENCY_DECREASE_FACTOR);
+        else limit = Math.min(maxLimit, limit + 1 / limit);
+        notifyAll();
+    }
+
+    /**
+     * Record a response indicating the server is overloaded (e.g. 429 or 503).
+     * @param retryAfterMillis how long the server asked us to wait, or -1 if it did not say.
+     * @return how long the caller should wait before retrying.
+     */
+    public synchronized long onOverload(long retryAfterMillis){
+        completedSinceDecrease++;
+        decrease(OVERLOAD_DECREASE_FACTOR);
+        consecutiveOverloads++;
+        long backoff = retryAfterMillis > 0 ? Math.min(retryAfterMillis, MAX_BACKOFF_MILLIS) : getBackoff(consecutiveOverloads);
+        backoffUntil = Math.max(backoffUntil, System.currentTimeMillis() + backoff);
+        notifyAll();
+        return backoff;
+    }
+
+    /**
+     * Record a request that failed for some other reason (e.g. an IO error).
+     * The limit is not changed, but the caller is given an exponentially increasing delay before retrying.
+     * @param attempt how many times this request has now failed (starting at 1).
+     * @return how long the caller should wait before retrying.
+     */
+    public synchronized long onFailure(int attempt){
+        completedSinceDecrease++;
+        return getBackoff(attempt);
+    }
+
+    /**
+     * @param percentile the percentile required (0-100).
+     * @return the latency at that percentile over the recent window of successful requests, or -1 if none recorded.
+     */
+    public synchronized long getLatencyPercentile(double percentile){
+        return getLatencyPercentileInternal(percentile);
+    }
+
+    @Override
+    public synchronized String toString(){
+        return MessageFormat.format("limit: {0}/{1}, in-flight: {2}, latency p50/p90/p99: {3}/{4}/{5}ms",
+                getLimit(), maxLimit, inFlight, getLatencyPercentileInternal(50), getLatencyPercentileInternal(90), getLatencyPercentileInternal(99));
+    }
+
+    private void decrease(double factor){
+        //only cut once per "round" of requests - the others in flight at the time were probably affected by the same load.
+        if(completedSinceDecrease >= getLimit()) {
+            limit = Math.max(1, limit * factor);
+            completedSinceDecrease = 0;
+        }
+    }
+
+    private long getBackoff(int attempt){
+        int exponent = Math.min(Math.max(0, attempt - 1), 16);
+        long backoff = Math.min(MAX_BACKOFF_MILLIS, baseBackoffMillis << exponent);
+        //add up to 20% jitter so that threads that failed together do not all retry together.
+        return backoff + (long) (jitter.nextDouble() * backoff * 0.2);
+    }
+
+    private void recordLatency(long latencyMillis){
+        latencies[latencyIndex] = latencyMillis;
+        latencyIndex = (latencyIndex + 1) % LATENCY_WINDOW_SIZE;
+        if(latencyCount < LATENCY_WINDOW_SIZE) latencyCount++;
+    }
+
+    private long getLatencyPercentileInternal(double percentile){
+        if(latencyCount == 0) return -1;
+        long[] sorted = Arrays.copyOf(latencies, latencyCount);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100 * latencyCount) - 1;
+        return sorted[Math.min(latencyCount - 1, Math.max(0, index))];
+    }
+}
@@ -11,20 +11,31 @@
 
 package uk.co.symplectic.utils.http;
 
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.commons.lang.NullArgumentException;
+import org.apache.commons.lang.StringUtils;
+import org.apache.http.Header;
 import org.apache.http.HttpEntity;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
 import org.apache.http.HttpStatus;
 import org.apache.http.NameValuePair;
 import org.apache.http.auth.AuthScope;
 import org.apache.http.auth.UsernamePasswordCredentials;
 import org.apache.http.client.CredentialsProvider;
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.entity.DeflateInputStream;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.client.utils.URIUtils;
 import org.apache.http.config.Registry;
 import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.socket.ConnectionSocketFactory;
 import org.apache.http.conn.socket.PlainConnectionSocketFactory;
 import org.apache.http.conn.ssl.NoopHostnameVerifier;
@@ -33,8 +44,12 @@ import org.apache.http.conn.ssl.TrustSelfSignedStrategy;
 import org.apache.http.impl.EnglishReasonPhraseCatalog;
 import org.apache.http.impl.client.BasicCredentialsProvider;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.client.IdleConnectionEvictor;
 import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+import org.apache.http.protocol.HttpContext;
 import org.apache.http.ssl.SSLContextBuilder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -42,10 +57,17 @@ import org.slf4j.LoggerFactory;
 import java.io.BufferedInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URI;
 import java.net.URISyntaxException;
+import java.net.URL;
 import java.text.MessageFormat;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 /**
  * Simple HTTPClient class based on apache's http components and core.
@@ -54,6 +76,8 @@ import java.util.List;
  *
  * Class has static components that allow you to configure the behaviour of the instances that are generated and ensure
  * consistency across instances (e.g. ensuring that requests aren't too frequent, etc).
+ * Instances are cheap: all instances targeting the same endpoint share a single long lived apache client, which in turn
+ * uses a shared pool of keep-alive connections (with idle connections being evicted in the background).
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class HttpClient {
@@ -71,19 +95,82 @@ public class HttpClient {
 
     //placeholder for the PoolingHttpClientConnectionManager used by the underlying apache libraries.
     private static PoolingHttpClientConnectionManager connectionManager;
+    //background thread that evicts expired and idle connections from the connectionManager's pool.
+    private static IdleConnectionEvictor connectionEvictor;
+
+    //default pool limits
+    private static int maxTotalConnections = 20;
+    private static int maxConnectionsPerRoute = 20;
+
+    //how long a connection can be kept alive if the server does not say, and how long it can sit idle in the pool.
+    private static final long defaultKeepAliveInMSecs = 30 * 1000; // 30 seconds
+    private static final long maxIdleTimeInSecs = 60;
+
+    //The long lived apache clients, one per endpoint (scheme, host, port and credentials), shared across all instances.
+    //All share the single connectionManager so that connections (and TLS sessions) are re-used across requests.
+    private static final Map<String, CloseableHttpClient> sharedClients = new HashMap<String, CloseableHttpClient>();
+
+    //not defined in the version of httpcore in use (see RFC 6585)
+    public static final int SC_TOO_MANY_REQUESTS = 429;
+
+    //default rate limiting for any host without its own settings: on average 1 request per quarter second, no bursts.
+    private static int defaultIntervalInMSecs = 250;
+    private static int defaultBurstSize = 1;
+
+    //whether GET requests should ask servers to compress their responses (gzip or deflate)
+    private static boolean requestCompression = true;
+
+    /**
+     * Setter method to configure whether GET requests ask the server for a compressed (gzip or deflate) response.
+     * Compressed responses are decompressed transparently as they are read (see ApiResponse).
+     * @param enabled whether to send an Accept-Encoding header.
+     */
+    public static synchronized void setRequestCompression(boolean enabled) {
+        requestCompression = enabled;
+    }
+
+    private static synchronized boolean getRequestCompression(){ return requestCompression; }
+
+    //rate limiters for hosts (scheme://host:port) that have been explicitly configured (see setRequestRate)
+    private static final Map<String, TokenBucketRateLimiter> configuredRateLimiters = new HashMap<String, TokenBucketRateLimiter>();
+    //rate limiters created on demand, using the defaults, for any other hosts.
+    private static final Map<String, TokenBucketRateLimiter> defaultRateLimiters = new HashMap<String, TokenBucketRateLimiter>();
 
-    //default minimum time between requests  = 1 quarter second
-    private static int intervalInMSecs = 250;
     /**
-     * Setter method to configure the minimum delay between successive requests made by HttpClient instances.
+     * Setter method to configure the average delay between successive requests made by HttpClient instances to any
+     * host that has not been given its own settings via setRequestRate.
      * @param millis the value to use in milliseconds.
      */
     public static synchronized void setRequestDelay(int millis) {
-        intervalInMSecs = millis;
+        defaultIntervalInMSecs = millis;
+        defaultRateLimiters.clear();
     }
 
-    //internal variable tracked to ensure that requests aren't too frequent.
-    private static Date lastRequest = null;
+    /**
+     * Setter method to configure the rate at which requests can be made to the host of a particular url.
+     * Requests are limited using a token bucket, allowing short bursts while holding the average rate.
+     * @param url any url on the host being configured.
+     * @param intervalInMSecs the average delay between successive requests to the host in milliseconds (0 for no limit).
+     * @param burstSize how many requests can be made back to back, after a quiet period, before limiting kicks in.
+     */
+    public static synchronized void setRequestRate(String url, int intervalInMSecs, int burstSize) {
+        configuredRateLimiters.put(getHostKey(url), new TokenBucketRateLimiter(intervalInMSecs, burstSize));
+    }
+
+    /**
+     * Method to retrieve the rate limiter that applies to a particular host.
+     * @param hostKey the key representing the host (see getHostKey)
+     * @return the TokenBucketRateLimiter for the host.
+     */
+    private static synchronized TokenBucketRateLimiter getRateLimiter(String hostKey){
+        TokenBucketRateLimiter limiter = configuredRateLimiters.get(hostKey);
+        if(limiter == null) limiter = defaultRateLimiters.get(hostKey);
+        if(limiter == null) {
+            limiter = new TokenBucketRateLimiter(defaultIntervalInMSecs, defaultBurstSize);
+            defaultRateLimiters.put(hostKey, limiter);
+        }
+        return limiter;
+    }
 
 
     /*
@@ -92,11 +179,52 @@ public class HttpClient {
       and that the defaultRequestConfig is set up with the default timeouts values.
      */
     static{
-        connectionManager = new PoolingHttpClientConnectionManager();
-        connectionManager.setMaxTotal(20);
+        setConnectionManager(new PoolingHttpClientConnectionManager());
         defaultRequestConfig = RequestConfig.custom().setConnectTimeout(defaultConnectionTimeout).setSocketTimeout(defaultSoTimeout).build();
     }
 
+    /**
+     * Internal method to swap in a new connectionManager, shutting down any previous one (and the clients using it).
+     * @param newConnectionManager the connection manager to use from now on.
+     */
+    private static synchronized void setConnectionManager(PoolingHttpClientConnectionManager newConnectionManager){
+        if(connectionEvictor != null) connectionEvictor.shutdown();
+        //clients are built with a shared connection manager, so closing them does not affect the manager itself.
+        for(CloseableHttpClient client : sharedClients.values()){
+            try {
+                client.close();
+            } catch (IOException e) {
+                log.warn("Error closing shared http client", e);
+            }
+        }
+        sharedClients.clear();
+        if(connectionManager != null) connectionManager.shutdown();
+
+        connectionManager = newConnectionManager;
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionEvictor = new IdleConnectionEvictor(connectionManager, 5, TimeUnit.SECONDS, maxIdleTimeInSecs, TimeUnit.SECONDS);
+        connectionEvictor.start();
+    }
+
+    /**
+     * Setter method to configure the size of the shared connection pool used by all client instances.
+     * @param maxTotal the maximum number of connections in the pool.
+     * @param maxPerRoute the maximum number of connections in the pool to any one route (host).
+     */
+    public static synchronized void setMaxConnections(int maxTotal, int maxPerRoute) {
+        if(maxTotal < 1 || maxPerRoute < 1) throw new IllegalArgumentException("maxTotal and maxPerRoute must be at least 1");
+        maxTotalConnections = maxTotal;
+        maxConnectionsPerRoute = maxPerRoute;
+        connectionManager.setMaxTotal(maxTotalConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+    }
+
+    /**
+     * Method to retrieve statistics (leased, available, pending and max) about the shared connection pool.
+     * @return a PoolStats object representing the current state of the whole pool.
+     */
+    public static synchronized PoolStats getPoolStats(){ return connectionManager.getTotalStats(); }
 
     /**
      * Setter method to configure the socket timeout for all client instances
@@ -123,8 +251,7 @@ public class HttpClient {
                             .register("https", sslsf)
                             .register("http", new PlainConnectionSocketFactory()).build();
 
-            connectionManager = new PoolingHttpClientConnectionManager(socketFactoryRegistry);
-            connectionManager.setMaxTotal(20);
+            setConnectionManager(new PoolingHttpClientConnectionManager(socketFactoryRegistry));
 
         } catch (Exception e) {
             e.printStackTrace();
@@ -136,28 +263,60 @@ public class HttpClient {
     private static synchronized RequestConfig getDefaultRequestConfig(){return defaultRequestConfig;}
 
     /**
-     * Delay method - instances ensures that requests are not sent too frequently to the Elements API,
-     * by calling this method prior to executing the HttpClient request.
+     * Keep alive strategy that honours any keep-alive timeout sent by the server,
+     * but falls back to defaultKeepAliveInMSecs rather than keeping connections open indefinitely.
      */
-    private static synchronized void regulateRequestFrequency() {
-        try {
-            if (lastRequest != null) {
-                Date current = new Date();
-                if (lastRequest.getTime() + intervalInMSecs > current.getTime()) {
-                    Thread.sleep(intervalInMSecs - (current.getTime() - lastRequest.getTime()));
-                }
+    private static final ConnectionKeepAliveStrategy keepAliveStrategy = new DefaultConnectionKeepAliveStrategy() {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+            long duration = super.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : defaultKeepAliveInMSecs;
+        }
+    };
+
+    /**
+     * Method to retrieve (creating it if necessary) the long lived apache client for a particular endpoint.
+     * The client is thread safe and is shared by every HttpClient instance targeting the same endpoint with the same credentials.
+     * @param endpointKey the key representing the endpoint (scheme, host, port and username)
+     * @param username credentials to use (may be null)
+     * @param password credentials to use (may be null)
+     * @return a CloseableHttpClient
+     */
+    private static synchronized CloseableHttpClient getSharedApacheClient(String endpointKey, String username, String password){
+        CloseableHttpClient client = sharedClients.get(endpointKey);
+        if(client == null) {
+            CredentialsProvider credsProvider = new BasicCredentialsProvider();
+            if (username != null) {
+                credsProvider.setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(username, password));
             }
-        } catch (InterruptedException ie) {
-            // Ignore an interrupt
-        } finally {
-            lastRequest = new Date();
+            //connection state is disabled so that pooled connections (and their TLS sessions) can be re-used by any request to the endpoint.
+            client = HttpClients.custom().setDefaultCredentialsProvider(credsProvider)
+                    .setConnectionManager(connectionManager).setConnectionManagerShared(true)
+                    .setKeepAliveStrategy(keepAliveStrategy).disableConnectionState()
+                    //decompression is handled by ApiResponse so that the bytes actually transferred can be counted.
+                    .disableContentCompression()
+                    .setDefaultRequestConfig(defaultRequestConfig).build();
+            sharedClients.put(endpointKey, client);
         }
+        return client;
+    }
+
+    /**
+     * Delay method - instances ensure that requests are not sent too frequently to any one host,
+     * by calling this method prior to executing the HttpClient request.
+     * The limiter is shared by every instance (and every thread) targeting the same host, but only the calling thread
+     * waits, so requests to different hosts (or several requests within the configured burst) are not serialised.
+     */
+    private void regulateRequestFrequency() {
+        getRateLimiter(hostKey).acquire();
     }
 
     //HTTPClient Instance fields (credentials, url, etc)
     final private String username;
     final private String password;
     final private String url;
+    final private String hostKey;
+    final private String endpointKey;
 
     private String getUsername(){return username;}
     private String getPassword(){return password;}
@@ -201,19 +360,40 @@ public class HttpClient {
             this.username = null;
             this.password = null;
         }
+        this.hostKey = getHostKey(this.url);
+        //the shared apache client is keyed on the host and the credentials being used.
+        this.endpointKey = hostKey + "|" + (this.username == null ? "" : this.username);
     }
 
-    private CloseableHttpClient getNewApacheClient(){
-        // Prepare the HttpClient
-        CredentialsProvider credsProvider = new BasicCredentialsProvider();
-        if (getUsername() != null){
-            credsProvider.setCredentials(new AuthScope(AuthScope.ANY_HOST, AuthScope.ANY_PORT), new UsernamePasswordCredentials(getUsername(), getPassword()));
+    /**
+     * Internal method to calculate the key used to identify the host of a url (used for rate limiting and shared clients)
+     * @param url the url being requested.
+     * @return a key representing the scheme, host and port
+     */
+    private static String getHostKey(String url){
+        try {
+            URL parsedUrl = new URL(url);
+            int port = parsedUrl.getPort() == -1 ? parsedUrl.getDefaultPort() : parsedUrl.getPort();
+            return parsedUrl.getProtocol().toLowerCase() + "://" + parsedUrl.getHost().toLowerCase() + ":" + port;
+        }
+        catch(MalformedURLException e){
+            throw new IllegalArgumentException(MessageFormat.format("Invalid url {0}", url), e);
         }
+    }
 
-        return HttpClients.custom().setDefaultCredentialsProvider(credsProvider)
-                .setConnectionManager(getConnectionManager()).setDefaultRequestConfig(getDefaultRequestConfig()).build();
+    /**
+     * Method to retrieve statistics about the connections in the shared pool to this instance's url's host.
+     * @return a PoolStats object representing the current state of the pool for this route.
+     */
+    public PoolStats getRoutePoolStats(){
+        URI uri = URI.create(getUrl());
+        HttpHost target = URIUtils.extractHost(uri);
+        return getConnectionManager().getStats(new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName())));
     }
 
+    private CloseableHttpClient getApacheClient(){
+        return getSharedApacheClient(endpointKey, getUsername(), getPassword());
+    }
 
     /**
      * Method to execute a get request against the URL specified in this instance's constructor
@@ -221,15 +401,33 @@ public class HttpClient {
      * @throws IOException Failure reading the request stream
      */
     public ApiResponse executeGetRequest() throws IOException {
+        return executeGetRequest(null, null);
+    }
 
-        //note we deliberately don't close these to keep the connection manager alive - this is a bit hacky...
-        CloseableHttpClient httpclient  = getNewApacheClient();
+    /**
+     * Method to execute a conditional get request against the URL specified in this instance's constructor.
+     * If either validator is supplied the server may respond with a 304 (Not Modified) rather than a 200, in which case
+     * the returned ApiResponse will have no body (see ApiResponse.isNotModified).
+     * @param eTag the ETag of the copy of the resource already held (sent as If-None-Match), may be null.
+     * @param lastModified the Last-Modified date of the copy of the resource already held (sent as If-Modified-Since), may be null.
+     * @return an APIResponse object corresponding to the request body
+     * @throws IOException Failure reading the request stream
+     */
+    public ApiResponse executeGetRequest(String eTag, String lastModified) throws IOException {
+
+        //note the client is shared and long lived so must not be closed here.
+        CloseableHttpClient httpclient  = getApacheClient();
 
         // Ensure we do not send request too frequently
         regulateRequestFrequency();
 
         // Issue get request
         HttpGet getMethod = new HttpGet(getUrl());
+        getMethod.setConfig(getDefaultRequestConfig());
+        if(getRequestCompression()) getMethod.setHeader(HttpHeaders.ACCEPT_ENCODING, "gzip,deflate");
+        boolean conditional = eTag != null || lastModified != null;
+        if(eTag != null) getMethod.setHeader(HttpHeaders.IF_NONE_MATCH, eTag);
+        if(lastModified != null) getMethod.setHeader(HttpHeaders.IF_MODIFIED_SINCE, lastModified);
         CloseableHttpResponse response = httpclient.execute(getMethod);
 
         ApiResponse responseToReturn = new ApiResponse(response);
@@ -239,11 +437,15 @@ public class HttpClient {
 
         log.info(MessageFormat.format("GET {0} : {1}", getUrl(), responseCode));
 
+        //a 304 is only a valid response if we asked for it.
+        if(conditional && responseCode == HttpStatus.SC_NOT_MODIFIED) return responseToReturn;
+
         if(responseCode != HttpStatus.SC_OK){
             String codeDescription = EnglishReasonPhraseCatalog.INSTANCE.getReason(responseCode, null);
             String message = MessageFormat.format("Invalid Http response code received: {0} ({1})", responseCode, codeDescription);
+            long retryAfterMillis = getRetryAfterMillis(response);
             responseToReturn.dispose();
-            throw new InvalidResponseException(message, responseCode);
+            throw new InvalidResponseException(message, responseCode, retryAfterMillis);
         }
         return new ApiResponse(response);
     }
@@ -280,14 +482,15 @@ public class HttpClient {
      * @throws IOException thrown if errors occur.
      */
     public ApiResponse executePost(List<NameValuePair> nameValuePairs) throws IOException {
-        //note we deliberately don't close these to keep the connection manager alive - this is a bit hacky...
-        CloseableHttpClient httpclient  = getNewApacheClient();
+        //note the client is shared and long lived so must not be closed here.
+        CloseableHttpClient httpclient  = getApacheClient();
 
         // Ensure we do not send request too frequently
         regulateRequestFrequency();
 
         // Issue post request
         HttpPost post = new HttpPost(getUrl());
+        post.setConfig(getDefaultRequestConfig());
         post.setEntity(new UrlEncodedFormEntity(nameValuePairs, "UTF-8"));
 
         CloseableHttpResponse response = httpclient.execute(post);
@@ -299,19 +502,74 @@ public class HttpClient {
         if(responseCode != HttpStatus.SC_OK){
             String codeDescription = EnglishReasonPhraseCatalog.INSTANCE.getReason(responseCode, null);
             String message = MessageFormat.format("Invalid Http response code received: {0} ({1})", responseCode, codeDescription);
+            long retryAfterMillis = getRetryAfterMillis(response);
             responseToReturn.dispose();
-            throw new HttpClient.InvalidResponseException(message, responseCode);
+            throw new HttpClient.InvalidResponseException(message, responseCode, retryAfterMillis);
         }
         return responseToReturn;
     }
 
+    /**
+     * Internal method to extract any Retry-After header (as sent with 429 and 503 responses) from a response.
+     * @param response the response being inspected
+     * @return the delay the server asked for in milliseconds, or -1 if there was no valid Retry-After header.
+     */
+    private static long getRetryAfterMillis(HttpResponse response){
+        Header header = response.getFirstHeader(HttpHeaders.RETRY_AFTER);
+        if(header == null || header.getValue() == null) return -1;
+        String value = header.getValue().trim();
+        try {
+            //either a number of seconds..
+            return TimeUnit.SECONDS.toMillis(Long.parseLong(value));
+        }
+        catch(NumberFormatException e){
+            //..or an http date
+            Date retryDate = DateUtils.parseDate(value);
+            if(retryDate == null) return -1;
+            return Math.max(0, retryDate.getTime() - System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Wrap a response body (as received) so that it is decompressed as it is read.
+     * @param content the response body.
+     * @param contentEncoding the Content-Encoding of the response (null if there was none).
+     * @return a stream of the decompressed body.
+     * @throws IOException if the encoding is not supported.
+     */
+    public static InputStream decodeContent(InputStream content, String contentEncoding) throws IOException{
+        if("gzip".equalsIgnoreCase(contentEncoding) || "x-gzip".equalsIgnoreCase(contentEncoding)) {
+            return new GZIPInputStream(content);
+        }
+        else if("deflate".equalsIgnoreCase(contentEncoding)) {
+            //handles both zlib wrapped and raw deflate streams.
+            return new DeflateInputStream(content);
+        }
+        checkContentEncoding(contentEncoding);
+        return content;
+    }
+
+    private static void checkContentEncoding(String contentEncoding) throws IOException{
+        if(contentEncoding != null && !"identity".equalsIgnoreCase(contentEncoding) && !"gzip".equalsIgnoreCase(contentEncoding)
+                && !"x-gzip".equalsIgnoreCase(contentEncoding) && !"deflate".equalsIgnoreCase(contentEncoding)){
+            throw new IOException(MessageFormat.format("Unsupported Content-Encoding in response: {0}", contentEncoding));
+        }
+    }
+
     /*
     Inner class to represent the response from an API and offer a "dispose" method to close http connections when finished with the stream.
+    If the server compressed the response (gzip or deflate) the stream is decompressed as it is read (unless the encoded
+    stream is requested instead), and the number of bytes received over the wire and after decompression are counted.
      */
     public static class ApiResponse{
         final private CloseableHttpResponse response;
         final private HttpEntity entity;
         private boolean disposed = false;
+        private InputStream responseStream = null;
+        //whether responseStream is the body as received (see getEncodedResponseStream).
+        private boolean encoded = false;
+        private CountingInputStream transferredCounter = null;
+        private CountingInputStream decodedCounter = null;
 
         private ApiResponse(CloseableHttpResponse response){
             if(response == null) throw new NullArgumentException("response");
@@ -321,16 +579,65 @@ public class HttpClient {
         public InputStream getResponseStream() throws IOException{
             if(!disposed) {
                 if(entity != null) {
-                    return new BufferedInputStream(entity.getContent());
+                    if(responseStream == null) {
+                        transferredCounter = new CountingInputStream(entity.getContent());
+                        decodedCounter = new CountingInputStream(decodeContent(transferredCounter, getContentEncoding()));
+                        responseStream = new BufferedInputStream(decodedCounter);
+                    }
+                    else if(encoded) throw new IllegalStateException("The encoded response stream is already in use");
+                    return responseStream;
+                }
+            }
+            throw new IOException("APIResponse object already disposed");
+        }
+
+        /**
+         * As getResponseStream, but the body is not decompressed as it is read, so that it can be held in its compressed
+         * form and decompressed later (see decodeContent and getContentEncoding).
+         * Only one of the two streams can be used for a response.
+         */
+        public InputStream getEncodedResponseStream() throws IOException{
+            if(!disposed) {
+                if(entity != null) {
+                    if(responseStream == null) {
+                        //fail now rather than when the body is eventually decompressed.
+                        checkContentEncoding(getContentEncoding());
+                        transferredCounter = new CountingInputStream(entity.getContent());
+                        responseStream = new BufferedInputStream(transferredCounter);
+                        encoded = true;
+                    }
+                    else if(!encoded) throw new IllegalStateException("The decoded response stream is already in use");
+                    return responseStream;
                 }
             }
             throw new IOException("APIResponse object already disposed");
         }
 
+        /**
+         * @return the Content-Encoding of the response body (null if there is none).
+         */
+        public String getContentEncoding(){
+            Header encoding = entity == null ? null : entity.getContentEncoding();
+            return encoding == null ? null : StringUtils.trimToNull(encoding.getValue());
+        }
+
+        /**
+         * @return the number of bytes of the response body read so far as transferred over the network (i.e. before any decompression).
+         */
+        public long getTransferredBytes(){ return transferredCounter == null ? 0 : transferredCounter.getByteCount(); }
+
+        /**
+         * @return the number of bytes of the response body read so far after any decompression (always 0 if the
+         * encoded stream is being read).
+         */
+        public long getDecodedBytes(){ return decodedCounter == null ? 0 : decodedCounter.getByteCount(); }
+
         public void dispose() throws IOException{
             if(!disposed) {
                 if(entity != null){
-                    getResponseStream().close();
+                    //closing the content stream (via any decompressing stream wrapped around it) releases the connection
+                    if(responseStream != null) responseStream.close();
+                    else entity.getContent().close();
                 }
                 response.close();
                 disposed = true;
@@ -340,6 +647,20 @@ public class HttpClient {
         public int getResponseCode() {
             return response.getStatusLine().getStatusCode();
         }
+
+        /**
+         * @return whether this is a 304 response to a conditional request (i.e. the copy already held is still current).
+         */
+        public boolean isNotModified(){ return getResponseCode() == HttpStatus.SC_NOT_MODIFIED; }
+
+        /**
+         * @param name the name of the response header required.
+         * @return the value of the first header with the given name, or null if there is none.
+         */
+        public String getHeaderValue(String name){
+            Header header = response.getFirstHeader(name);
+            return header == null ? null : header.getValue();
+        }
     }
 
     /**
@@ -348,11 +669,23 @@ public class HttpClient {
      */
     public static class InvalidResponseException extends IOException{
         final int responseCode;
+        final long retryAfterMillis;
         public int getResponseCode(){ return responseCode; }
 
-        private InvalidResponseException(String message, int responseCode){
+        /**
+         * @return the delay requested by the server's Retry-After header in milliseconds, or -1 if none was sent.
+         */
+        public long getRetryAfterMillis(){ return retryAfterMillis; }
+
+        /**
+         * @return whether the response indicates the server is overloaded (429 Too Many Requests or 503 Service Unavailable).
+         */
+        public boolean isOverloaded(){ return responseCode == SC_TOO_MANY_REQUESTS || responseCode == HttpStatus.SC_SERVICE_UNAVAILABLE; }
+
+        private InvalidResponseException(String message, int responseCode, long retryAfterMillis){
             super(message);
             this.responseCode = responseCode;
+            this.retryAfterMillis = retryAfterMillis;
         }
     }
 }
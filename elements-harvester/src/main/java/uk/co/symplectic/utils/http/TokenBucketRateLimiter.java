@@ -0,0 +1,80 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.http;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simple thread safe token bucket used to limit the rate at which requests are made to a particular host.
+ *
+ * The bucket is refilled at a constant rate (one token every intervalInMSecs) up to a maximum of burstSize tokens.
+ * Each request takes one token; if no token is available the request "reserves" the next token to be added and waits
+ * until it is due. The wait happens outside any lock, so several threads can be waiting for (or making) requests
+ * at the same time while the average rate is still held at one request per interval.
+ *
+ * An interval of 0 (or less) means requests are not limited at all.
+ */
+@SuppressWarnings("WeakerAccess")
+public class TokenBucketRateLimiter {
+
+    private final long intervalInNanos;
+    private final int burstSize;
+
+    //current number of available tokens - can go negative when callers have reserved tokens that are not yet due.
+    private double tokens;
+    private long lastRefill;
+
+    /**
+     * Constructor
+     * @param intervalInMSecs the average time between requests (0 or less disables limiting)
+     * @param burstSize the maximum number of requests that can be made back to back after a quiet period (minimum 1)
+     */
+    public TokenBucketRateLimiter(int intervalInMSecs, int burstSize) {
+        this.intervalInNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, intervalInMSecs));
+        this.burstSize = Math.max(1, burstSize);
+        //start with a single token so that a newly created limiter does not allow an initial burst.
+        this.tokens = 1;
+        this.lastRefill = System.nanoTime();
+    }
+
+    public int getIntervalInMSecs(){ return (int) TimeUnit.NANOSECONDS.toMillis(intervalInNanos); }
+
+    public int getBurstSize(){ return burstSize; }
+
+    /**
+     * Take a token, blocking until one is available.
+     */
+    public void acquire() {
+        if(intervalInNanos == 0) return;
+        long waitInNanos = reserve();
+        if(waitInNanos > 0) {
+            try {
+                TimeUnit.NANOSECONDS.sleep(waitInNanos);
+            } catch (InterruptedException e) {
+                //preserve the interrupt for the caller, the token has been consumed regardless.
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Take (or reserve) a token and work out how long the caller must wait before using it.
+     * @return the wait in nanoseconds (0 if a token was available immediately).
+     */
+    private synchronized long reserve(){
+        long now = System.nanoTime();
+        tokens = Math.min(burstSize, tokens + ((double) (now - lastRefill)) / intervalInNanos);
+        lastRefill = now;
+        tokens -= 1;
+        return tokens >= 0 ? 0 : (long) (-tokens * intervalInNanos);
+    }
+}
@@ -38,7 +38,7 @@ public class TDBLoadUtility {
 
     private static final Logger log = LoggerFactory.getLogger(TDBLoadUtility.class);
 
-    public static void load(TDBConnect jc, Iterator<StoredData.InFile> iterator){
+    public static void load(TDBConnect jc, Iterator<StoredData> iterator){
         //GraphTDB graph = (GraphTDB) new ModTDBDataset().getDataset().getDefaultModel().getGraph();
         GraphTDB graph = (GraphTDB) jc.getJenaModel().getGraph();
 
@@ -47,19 +47,19 @@ public class TDBLoadUtility {
         dest.start();
         int processCount = 0;
         while(iterator.hasNext()){
-            StoredData.InFile current = iterator.next();
+            StoredData current = iterator.next();
             if(processCount % 1000 == 0) {
-                log.info(MessageFormat.format("{0} records processed : current record = {1}", processCount, current.getFile().getAbsolutePath()));
+                log.info(MessageFormat.format("{0} records processed : current record = {1}", processCount, current.getAddress()));
             }
             try {
                 RiotReader.parseTriples(current.getInputStream(), Lang.RDFXML, null, dest);
             }
             catch(IOException e) {
-                log.warn(MessageFormat.format("Item : {0} is corrupt.", current.getFile().getAbsolutePath()));
+                log.warn(MessageFormat.format("Item : {0} is corrupt.", current.getAddress()));
                 e.printStackTrace();
             }
             catch(RiotException e) {
-                log.warn(MessageFormat.format("Item : {0} is corrupt.", current.getFile().getAbsolutePath()));
+                log.warn(MessageFormat.format("Item : {0} is corrupt.", current.getAddress()));
                 e.printStackTrace();
             }
             processCount++;
@@ -0,0 +1,71 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.xml;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import javax.xml.namespace.QName;
+import java.util.*;
+
+/**
+ * A trie of document locations (paths of element QNames), each node holding the values registered at that location.
+ * Allows something walking a document to find what is registered at the location of each element by stepping down
+ * one level from the node for the element's parent, rather than comparing the whole path from the document root
+ * against every registered location.
+ *
+ * Each distinct QName is stored once, on the node it leads to, so looking up a child only needs the QName's hash.
+ * Package private, as this is not part of the public API (see XMLEventProcessor).
+ * @param <T> the type of value registered at each location.
+ */
+class DocumentLocationTrie<T> {
+
+    /**
+     * A node of the trie, representing a single document location.
+     */
+    static class Node<T>{
+        private final Map<QName, Node<T>> children = new HashMap<QName, Node<T>>();
+        private final List<T> values = new ArrayList<T>();
+        private final List<T> valuesView = Collections.unmodifiableList(values);
+
+        /**
+         * @return the node for the child element called name, or null if nothing is registered at or below it.
+         */
+        Node<T> getChild(QName name){ return children.get(name); }
+
+        /**
+         * @return the values registered at exactly this location (unmodifiable, never null).
+         */
+        List<T> getValues(){ return valuesView; }
+    }
+
+    private final Node<T> root = new Node<T>();
+
+    /**
+     * @return the node representing the document itself (i.e. the parent of the document element).
+     */
+    Node<T> getRoot(){ return root; }
+
+    void add(List<QName> location, T value){
+        if(location == null) throw new NullArgumentException("location");
+        if(value == null) throw new NullArgumentException("value");
+        Node<T> node = root;
+        for(QName name : location){
+            Node<T> child = node.children.get(name);
+            if(child == null){
+                child = new Node<T>();
+                node.children.put(name, child);
+            }
+            node = child;
+        }
+        node.values.add(value);
+    }
+}
@@ -17,12 +17,15 @@ import javax.xml.stream.XMLOutputFactory;
 
 /**
  * Class to simplify use of StAX Factories in the application by wrapping them as thread safe singletons
+ * The factories are configured once, when created, and are then safe to use from several threads at once; each call
+ * to create a reader or writer returns a new instance belonging to the calling thread.
  */
 
 public final class StAXUtils {
-    private static XMLEventFactory xmlEventFactory = null;
-    private static XMLInputFactory xmlInputFactory = null;
-    private static XMLOutputFactory xmlOutputFactory = null;
+    //volatile so that the lazily created factories are safely published to other threads.
+    private static volatile XMLEventFactory xmlEventFactory = null;
+    private static volatile XMLInputFactory xmlInputFactory = null;
+    private static volatile XMLOutputFactory xmlOutputFactory = null;
 
 
     public static XMLEventFactory getXMLEventFactory() {
@@ -14,8 +14,12 @@ package uk.co.symplectic.utils.xml;
 import org.apache.commons.lang.NullArgumentException;
 
 import javax.xml.namespace.QName;
+import javax.xml.stream.Location;
+import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventReader;
+import javax.xml.stream.XMLStreamConstants;
 import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.*;
 import java.text.MessageFormat;
 import java.util.*;
@@ -24,15 +28,19 @@ import java.util.*;
  * Processor class for dealing with XMLEventStreams.
  * Filters registered either on construction or using the addFilter method are invoked if the document location specified in the filter is encountered.
  * Filters then receive all events from the stream until that location scope is exited.
+ *
+ * Documents can be processed either from an XMLEventReader or from an XMLStreamReader (cursor). Filters see the same
+ * WrappedXmlEvent interface either way, but the cursor engine does not create an event object for each event in the
+ * document, so should be preferred for large documents.
  **/
 public class XMLEventProcessor {
 
     /*
     Storage for filters that will be invoked by this processor when parsing an XML stream.
-    The Hash map linking a given Filter document location (expressed as a QName list) to the set of filters that should be activated if that location is found in the document.
-    This makes it much easier to retrieve the relevant filters when needed.
+    A trie of Filter document locations (expressed as QName lists), each node holding the set of filters that should be activated if that location is found in the document.
+    As the document is processed the node for each element is found by stepping down from the node for its parent, so retrieving the relevant filters is cheap however many filters are registered.
      */
-    private HashMap<List<QName>, List<EventFilter>> filters = new HashMap<List<QName>, List<EventFilter>>();
+    private final DocumentLocationTrie<EventFilter> filters = new DocumentLocationTrie<EventFilter>();
 
     /*
     Constructor allowing the easy addition of filters to run on this processor
@@ -48,9 +56,7 @@ public class XMLEventProcessor {
      */
     public void addFilter(EventFilter filter) {
         if (filter != null) {
-            List<QName> key = filter.getFilterLocation();
-            if (this.filters.get(key) == null) this.filters.put(key, new ArrayList<EventFilter>());
-            this.filters.get(key).add(filter);
+            this.filters.add(filter.getFilterLocation(), filter);
         }
     }
 
@@ -69,82 +75,135 @@ public class XMLEventProcessor {
     Note : ONLY this method must ever advance the stream - which is why it only ever hands out events and proxies when invoking external events
      */
     public void process(XMLEventReader reader) throws XMLStreamException{
+        process(reader, null);
+    }
+
+    /*
+    As above, but also makes the raw text of the document available to filters (see WrappedXmlEvent.getSourceCapture)
+    sourceCapture must be capturing the text being read by the reader (and may be null).
+     */
+    public void process(XMLEventReader reader, XMLSourceCapture sourceCapture) throws XMLStreamException{
         if (reader != null) {
             //Proxied access to the underlying stream,
             //Allows us to grant access to the next-event to filters, etc without allowing them to advance the stream.
-            ReaderProxy proxy = new ReaderProxy(reader);
+            ReaderProxy proxy = new ReaderProxy(reader, sourceCapture);
 
             //Test that incoming reader is in a sensible state to start processing
             checkInitialState(proxy);
 
-            //initialise scope tracking stack
-            Stack<ProcessScope> stack = new Stack<ProcessScope>();
+            ScopeTracker tracker = new ScopeTracker();
 
             //MAIN LOOP this is the only thing that should ever advance the reader stream.
             while (reader.hasNext()) {
                 XMLEvent event = reader.nextEvent();
-                WrappedXmlEvent wrappedEvent = new WrappedXmlEvent(event, proxy);
-
-                //work out the new scope's document location based on the existing scope stack and the name of the element we just encountered
-                List<QName> currentDocumentLocation = new ArrayList<QName>();
-                for (ProcessScope scope : stack) {
-                    currentDocumentLocation.add(scope.getName());
-                }
+                tracker.processEvent(new EventBackedXmlEvent(event, proxy));
+            }
+        }
+    }
 
-                //if we have encountered a StartElement we have a new scope
-                if (event.isStartElement()) {
-                    StartElement eventAsStartElement = event.asStartElement();
-                    //get the new scope's name
-                    QName eventQName = eventAsStartElement.getName();
+    /*
+    Cursor based equivalent of process(XMLEventReader) - filters are passed a single re-used view of the reader's
+    current position rather than a new event object for every event in the document.
+     */
+    public void process(XMLStreamReader reader) throws XMLStreamException{
+        process(reader, null);
+    }
 
-                    //update the current location
-                    currentDocumentLocation.add(eventQName);
+    /*
+    As above, but also makes the raw text of the document available to filters (see WrappedXmlEvent.getSourceCapture)
+    sourceCapture must be capturing the text being read by the reader (and may be null).
+     */
+    public void process(XMLStreamReader reader, XMLSourceCapture sourceCapture) throws XMLStreamException{
+        if (reader != null) {
+            //Test that incoming reader is in a sensible state to start processing
+            int initialEventType = reader.getEventType();
+            if (initialEventType != XMLStreamConstants.START_DOCUMENT && initialEventType != XMLStreamConstants.START_ELEMENT)
+                throw new IllegalStateException("Must enter process with the XMLStreamReader currently on a StartElements or StartDocument event");
+
+            ScopeTracker tracker = new ScopeTracker();
+            CursorXmlEvent cursorEvent = new CursorXmlEvent(reader, sourceCapture);
+
+            //MAIN LOOP this (and the cursorEvent, when asked about the following event) is the only thing that should
+            //ever advance the reader. Unlike an XMLEventReader the stream reader starts out positioned on the first event.
+            while (true) {
+                cursorEvent.reset();
+                tracker.processEvent(cursorEvent);
+                //if the cursorEvent has already moved the reader on, the reader is on the next event to process.
+                if (!cursorEvent.hasAdvanced()) {
+                    if (!reader.hasNext()) break;
+                    reader.next();
+                }
+            }
+        }
+    }
 
-                    //retrieve any filters associated with the new scope's document location  and create a ProcessScope object to track the new scope.
-                    ProcessScope newScope = new ProcessScope(eventQName, filters.get(currentDocumentLocation));
+    /*
+    Helper class that does the work of tracking scope, invoking filters when relevant and handing out events to any
+    filters in scope, for each event of a document in turn, whichever reader the events come from.
+     */
+    private class ScopeTracker {
+        //scope tracking stack
+        private final Stack<ProcessScope> stack = new Stack<ProcessScope>();
+        //the document location of the current scope (the names of the scopes in the stack)
+        private final List<QName> currentDocumentLocation = new ArrayList<QName>();
+
+        void processEvent(WrappedXmlEvent event) throws XMLStreamException {
+            //if we have encountered a StartElement we have a new scope
+            if (event.isStartElement()) {
+                //get the new scope's name
+                QName eventQName = event.getName();
+
+                //update the current location
+                currentDocumentLocation.add(eventQName);
+
+                //retrieve the filters trie node for the new scope's document location (there is none once we are below all the registered locations)
+                DocumentLocationTrie.Node<EventFilter> parentNode = stack.empty() ? filters.getRoot() : stack.peek().getNode();
+                DocumentLocationTrie.Node<EventFilter> node = parentNode == null ? null : parentNode.getChild(eventQName);
+
+                //create a ProcessScope object to track the new scope, along with any filters associated with it.
+                ProcessScope newScope = new ProcessScope(eventQName, node);
+
+                //Inform all the filters activated in our new scope that we are about to start sending them events
+                for (EventFilter filter : newScope.getFiltersInScope()) {
+                    filter.itemStart(event);
+                }
 
-                    //Inform all the filters activated in our new scope that we are about to start sending them events
-                    for (EventFilter filter : newScope.getFiltersInScope()) {
-                        filter.itemStart(wrappedEvent);
-                    }
+                //put the ProcessScope object representing our new scope into the tracking stack
+                stack.push(newScope);
+            }
 
-                    //put the ProcessScope object representing our new scope into the tracking stack
-                    stack.push(newScope);
+            //for all events work through all the filters in all the currently active scopes and pass them the details of the current event
+            //Note: this will include the "StartElement" from a scope that has only just been activated and the EndElements from a scope that is about to close
+            for (ProcessScope scope : stack) {
+                for (EventFilter filter : scope.getFiltersInScope()) {
+                    List<QName> relativeLocation = currentDocumentLocation.subList(filter.getFilterLocation().size(), currentDocumentLocation.size());
+                    filter.processEvent(event, relativeLocation);
                 }
+            }
 
-                //for all events work through all the filters in all the currently active scopes and pass them the details of the current event
-                //Note: this will include the "StartElement" from a scope that has only just been activated and the EndElements from a scope that is about to close
-                for (ProcessScope scope : stack) {
-                    for (EventFilter filter : scope.getFiltersInScope()) {
-                        List<QName> relativeLocation = currentDocumentLocation.subList(filter.getFilterLocation().size(), currentDocumentLocation.size());
-                        filter.processEvent(wrappedEvent, relativeLocation);
-                    }
-                }
+            //if we have encountered an EndElement then we are exiting a scope.
+            if (event.isEndElement()) {
+                //get the name of the scope that is closing.
+                QName eventQName = event.getName();
 
-                //if we have encountered an EndElement then we are exiting a scope.
-                if (event.isEndElement()) {
-                    EndElement eventAsEndElement = event.asEndElement();
-                    //get the name of the scope that is closing.
-                    QName eventQName = eventAsEndElement.getName();
-
-                    //Get the name of the scope that we thing we are currently in from our scope tracking stack.
-                    ProcessScope currentScope = stack.empty() ? null : stack.peek();
-
-                    //Test that the scope we are exiting in the stream is what we were expecting from our tracking.
-                    //Error out if there is a discrepancy
-                    if (currentScope == null) throw new XMLStreamException("Invalid XML structure detected");
-                    QName expectedName = currentScope.getName();
-                    if (!eventQName.equals(expectedName))
-                        throw new XMLStreamException("Invalid XML structure detected");
-
-                    //Inform all the filters in the scope we are about to exit that we are about to stop sending them events.
-                    for (EventFilter filter : currentScope.getFiltersInScope()) {
-                        filter.itemEnd(wrappedEvent);
-                    }
+                //Get the name of the scope that we thing we are currently in from our scope tracking stack.
+                ProcessScope currentScope = stack.empty() ? null : stack.peek();
+
+                //Test that the scope we are exiting in the stream is what we were expecting from our tracking.
+                //Error out if there is a discrepancy
+                if (currentScope == null) throw new XMLStreamException("Invalid XML structure detected");
+                QName expectedName = currentScope.getName();
+                if (!eventQName.equals(expectedName))
+                    throw new XMLStreamException("Invalid XML structure detected");
 
-                    //remove the current scope from the tracking stack.
-                    stack.pop();
+                //Inform all the filters in the scope we are about to exit that we are about to stop sending them events.
+                for (EventFilter filter : currentScope.getFiltersInScope()) {
+                    filter.itemEnd(event);
                 }
+
+                //remove the current scope from the tracking stack.
+                stack.pop();
+                currentDocumentLocation.remove(currentDocumentLocation.size() - 1);
             }
         }
     }
@@ -152,65 +211,89 @@ public class XMLEventProcessor {
     /*
         Immutable Helper class to track XML document scopes as we process the file.
         Each represents the Scope associated with processing an Element of name "name"
-        And any filters that were newly activated at this scope
+        And any filters that were newly activated at this scope (those registered at the scope's node of the filters trie)
      */
     private class ProcessScope {
         private final QName name;
-        private final List<EventFilter> filtersInScope = new ArrayList<EventFilter>();
+        private final DocumentLocationTrie.Node<EventFilter> node;
 
-        ProcessScope(QName name, List<EventFilter> filters) {
+        ProcessScope(QName name, DocumentLocationTrie.Node<EventFilter> node) {
             this.name = name;
-            if (filters != null) {
-                for (EventFilter filter : filters) {
-                    if (filter != null) this.filtersInScope.add(filter);
-                }
-            }
+            this.node = node;
         }
 
         QName getName() { return name; }
-        List<EventFilter> getFiltersInScope() { return filtersInScope; }
+        DocumentLocationTrie.Node<EventFilter> getNode() { return node; }
+        List<EventFilter> getFiltersInScope() { return node == null ? Collections.<EventFilter>emptyList() : node.getValues(); }
     }
 
     /**
-     * A wrapping class around a raw XMLEvent which exposes methods to ease extraction of values and attributes from the
+     * A wrapping class around a raw XML event which exposes methods to ease extraction of values and attributes from the
      * underlying events.
      *
      * The XMLEventProcessor only ever passes WrappedXmlEvent objects out (e.g. to EventFilters, etc), so you can rely on
      * having one of these if you are using this framework to parse XML.
+     *
+     * There are two implementations, one per processing engine: one wrapping the XMLEvent objects produced by an
+     * XMLEventReader, and one that is a (re-used) view of the current position of an XMLStreamReader.
+     * Filters should not hold on to WrappedXmlEvents beyond the call they were passed in.
      */
     @SuppressWarnings({"WeakerAccess", "unused"})
-    public static class WrappedXmlEvent{
-        private final XMLEvent innerEvent;
-        private final ReaderProxy reader;
+    public abstract static class WrappedXmlEvent{
 
         //package access as should only be created by these processes..
-        WrappedXmlEvent(XMLEvent event, ReaderProxy reader){
-            if(event == null) throw new NullArgumentException("event");
-            if(reader == null) throw new NullArgumentException("reader");
-            this.innerEvent = event;
-            this.reader = reader;
-        }
+        WrappedXmlEvent(){}
 
-        public XMLEvent getRawEvent(){ return innerEvent; }
-        private XMLEvent getNextEvent() throws XMLStreamException { return reader.peek(); }
+        /**
+         * @return the underlying event. Note that when processing with an XMLStreamReader this is created on demand,
+         * so should be avoided where the other methods of this class will do.
+         */
+        public abstract XMLEvent getRawEvent();
 
-        public boolean isRelevantForExtraction(){
-            return innerEvent.isStartElement();
-        }
+        public abstract int getEventType();
 
         //if the wrapped event is a start or end Element we respond with the name, otherwise we respond with null
-        public QName getName(){
-            if(innerEvent.isStartElement()) return innerEvent.asStartElement().getName();
-            if(innerEvent.isEndElement()) return innerEvent.asEndElement().getName();
-            return null;
+        public abstract QName getName();
+
+        //namespaces declared on a start or end Element (none for any other type of event)
+        public abstract int getNamespaceCount();
+        public abstract String getNamespacePrefix(int index);
+
+        //attributes of a start Element (none for any other type of event)
+        public abstract int getAttributeCount();
+        public abstract QName getAttributeName(int index);
+
+        //value of the named attribute of a start Element (null if not present)
+        abstract String getAttributeValue(QName name);
+
+        //text of the following event if it is character data (null otherwise)
+        abstract String getNextText() throws XMLStreamException;
+
+        /**
+         * @return the raw text of the document being processed, or null if it is not available.
+         */
+        public abstract XMLSourceCapture getSourceCapture();
+
+        /**
+         * @return the character offset in the document at which this event starts, or -1 if not known.
+         */
+        public abstract int getSourceOffset();
+
+        /**
+         * @return the character offset in the document at which the event following this one starts
+         * (i.e. just after the end of this event), or -1 if not known.
+         */
+        public abstract int getNextSourceOffset();
+
+        public boolean isStartElement(){ return getEventType() == XMLStreamConstants.START_ELEMENT; }
+        public boolean isEndElement(){ return getEventType() == XMLStreamConstants.END_ELEMENT; }
+
+        public boolean isRelevantForExtraction(){
+            return isStartElement();
         }
 
         public boolean hasAttribute(QName name){
-            if(isRelevantForExtraction()){
-                Attribute att = innerEvent.asStartElement().getAttributeByName(name);
-                return att != null;
-            }
-            return false;
+            return isRelevantForExtraction() && getAttributeValue(name) != null;
         }
 
         public boolean hasAttribute(String name){
@@ -219,8 +302,8 @@ public class XMLEventProcessor {
 
         private  String innerGetAttribute(QName name, boolean required){
             if(isRelevantForExtraction()){
-                Attribute att = innerEvent.asStartElement().getAttributeByName(name);
-                if(att != null) return att.getValue();
+                String value = getAttributeValue(name);
+                if(value != null) return value;
                 if(required) throw new IllegalStateException(MessageFormat.format("Missing attribute ({0}) attempting extraction at [{1}]", name.toString(), getName().toString()));
                 return null;
             }
@@ -246,23 +329,15 @@ public class XMLEventProcessor {
         //This is naive extraction logic. It should really be calculated across the entire "scope" of the current Element.
         //this works for all our use cases though...
         public boolean hasValue() throws XMLStreamException{
-            if(isRelevantForExtraction()){
-                XMLEvent nextEvent = getNextEvent();
-                if (nextEvent != null && nextEvent.isCharacters()){
-                    return true;
-                }
-            }
-            return false;
+            return isRelevantForExtraction() && getNextText() != null;
         }
 
         //This is naive extraction logic. It should really be calculated across the entire "scope" of the current Element.
         //this works for all our use cases though...
         private String innerGetValue(boolean required) throws XMLStreamException{
             if(isRelevantForExtraction()){
-                XMLEvent nextEvent = getNextEvent();
-                if (nextEvent != null && nextEvent.isCharacters()){
-                    return nextEvent.asCharacters().getData();
-                }
+                String value = getNextText();
+                if (value != null) return value;
                 if(required) throw new IllegalStateException(MessageFormat.format("Missing value attempting extraction at [{0}]", getName().toString()));
                 return null;
             }
@@ -278,7 +353,7 @@ public class XMLEventProcessor {
 
         //helper method to expose underlying event type as a string... for logging/exceptions
         private String getEventTypeString() {
-            int eventType = getRawEvent().getEventType();
+            int eventType = getEventType();
             switch (eventType) {
                 case XMLEvent.START_ELEMENT: return "START_ELEMENT";
                 case XMLEvent.END_ELEMENT: return "END_ELEMENT";
@@ -296,6 +371,283 @@ public class XMLEventProcessor {
             return "UNKNOWN_EVENT_TYPE," + eventType;
         }
 
+        static boolean isCharacterData(int eventType){
+            return eventType == XMLStreamConstants.CHARACTERS || eventType == XMLStreamConstants.CDATA || eventType == XMLStreamConstants.SPACE;
+        }
+    }
+
+    /*
+    WrappedXmlEvent implementation used by the XMLEventReader based engine - wraps an individual XMLEvent object.
+     */
+    private static class EventBackedXmlEvent extends WrappedXmlEvent{
+        private final XMLEvent innerEvent;
+        private final ReaderProxy reader;
+        //lazily populated lists of the namespaces/attributes of the event
+        private List<Namespace> namespaces = null;
+        private List<Attribute> attributes = null;
+
+        EventBackedXmlEvent(XMLEvent event, ReaderProxy reader){
+            if(event == null) throw new NullArgumentException("event");
+            if(reader == null) throw new NullArgumentException("reader");
+            this.innerEvent = event;
+            this.reader = reader;
+        }
+
+        @Override
+        public XMLEvent getRawEvent(){ return innerEvent; }
+
+        @Override
+        public int getEventType(){ return innerEvent.getEventType(); }
+
+        @Override
+        public QName getName(){
+            if(innerEvent.isStartElement()) return innerEvent.asStartElement().getName();
+            if(innerEvent.isEndElement()) return innerEvent.asEndElement().getName();
+            return null;
+        }
+
+        private List<Namespace> getNamespaces(){
+            if(namespaces == null) {
+                namespaces = new ArrayList<Namespace>();
+                Iterator<?> iterator = innerEvent.isStartElement() ? innerEvent.asStartElement().getNamespaces() :
+                        innerEvent.isEndElement() ? innerEvent.asEndElement().getNamespaces() : null;
+                while(iterator != null && iterator.hasNext()) namespaces.add((Namespace) iterator.next());
+            }
+            return namespaces;
+        }
+
+        @Override
+        public int getNamespaceCount(){ return getNamespaces().size(); }
+
+        @Override
+        public String getNamespacePrefix(int index){ return getNamespaces().get(index).getPrefix(); }
+
+        private List<Attribute> getAttributes(){
+            if(attributes == null) {
+                attributes = new ArrayList<Attribute>();
+                Iterator<?> iterator = innerEvent.isStartElement() ? innerEvent.asStartElement().getAttributes() : null;
+                while(iterator != null && iterator.hasNext()) attributes.add((Attribute) iterator.next());
+            }
+            return attributes;
+        }
+
+        @Override
+        public int getAttributeCount(){ return getAttributes().size(); }
+
+        @Override
+        public QName getAttributeName(int index){ return getAttributes().get(index).getName(); }
+
+        @Override
+        String getAttributeValue(QName name){
+            if(!innerEvent.isStartElement()) return null;
+            Attribute att = innerEvent.asStartElement().getAttributeByName(name);
+            return att == null ? null : att.getValue();
+        }
+
+        @Override
+        String getNextText(){
+            XMLEvent nextEvent = reader.peek();
+            return nextEvent != null && nextEvent.isCharacters() ? nextEvent.asCharacters().getData() : null;
+        }
+
+        @Override
+        public XMLSourceCapture getSourceCapture(){ return reader.getSourceCapture(); }
+
+        @Override
+        public int getSourceOffset(){
+            return getOffset(innerEvent.getLocation());
+        }
+
+        @Override
+        public int getNextSourceOffset(){
+            XMLEvent nextEvent = reader.peek();
+            return nextEvent == null ? -1 : getOffset(nextEvent.getLocation());
+        }
+    }
+
+    /*
+    WrappedXmlEvent implementation used by the XMLStreamReader based engine.
+    A single instance is re-used for every event in the document - it reads from the stream reader's current position.
+    The only things that cannot be answered from the current position are those about the following event (its text
+    or offset), so if a filter asks about those the view first takes a copy of the current event's details and then
+    advances the stream reader itself (the processor then carries on from the stream reader's new position).
+     */
+    private static class CursorXmlEvent extends WrappedXmlEvent{
+        private final XMLStreamReader reader;
+        private final XMLSourceCapture sourceCapture;
+        private final XMLEventFactory eventFactory = StAXUtils.getXMLEventFactory();
+
+        private int eventType;
+        private boolean advanced = false;
+        //copy of the current event, taken when the stream reader is advanced early
+        private QName name = null;
+        private int sourceOffset = -1;
+        private final List<QName> attributeNames = new ArrayList<QName>();
+        private final List<String> attributeValues = new ArrayList<String>();
+        private final List<String> namespacePrefixes = new ArrayList<String>();
+        private final List<String> namespaceUris = new ArrayList<String>();
+        //details of the following event, once advanced
+        private String nextText = null;
+        private int nextSourceOffset = -1;
+
+        CursorXmlEvent(XMLStreamReader reader, XMLSourceCapture sourceCapture){
+            if(reader == null) throw new NullArgumentException("reader");
+            this.reader = reader;
+            this.sourceCapture = sourceCapture;
+        }
+
+        //point the view at the stream reader's current event
+        void reset(){
+            eventType = reader.getEventType();
+            advanced = false;
+        }
+
+        //whether the stream reader has already been moved on to the next event
+        boolean hasAdvanced(){ return advanced; }
+
+        private void advance() throws XMLStreamException{
+            //at the end of the document there is no following event - nothing to do.
+            if(advanced || !reader.hasNext()) return;
+            name = reader.hasName() ? reader.getName() : null;
+            sourceOffset = getOffset(reader.getLocation());
+            attributeNames.clear();
+            attributeValues.clear();
+            namespacePrefixes.clear();
+            namespaceUris.clear();
+            if(eventType == XMLStreamConstants.START_ELEMENT){
+                for(int i = 0; i < reader.getAttributeCount(); i++){
+                    attributeNames.add(reader.getAttributeName(i));
+                    attributeValues.add(reader.getAttributeValue(i));
+                }
+            }
+            if(eventType == XMLStreamConstants.START_ELEMENT || eventType == XMLStreamConstants.END_ELEMENT){
+                for(int i = 0; i < reader.getNamespaceCount(); i++){
+                    namespacePrefixes.add(reader.getNamespacePrefix(i) == null ? "" : reader.getNamespacePrefix(i));
+                    namespaceUris.add(reader.getNamespaceURI(i) == null ? "" : reader.getNamespaceURI(i));
+                }
+            }
+            reader.next();
+            nextText = isCharacterData(reader.getEventType()) ? reader.getText() : null;
+            nextSourceOffset = getOffset(reader.getLocation());
+            advanced = true;
+        }
+
+        @Override
+        public XMLEvent getRawEvent(){
+            switch(eventType){
+                case XMLStreamConstants.START_ELEMENT:
+                    List<Attribute> attributes = new ArrayList<Attribute>();
+                    List<Namespace> namespaces = new ArrayList<Namespace>();
+                    for(int i = 0; i < getAttributeCount(); i++){
+                        QName attributeName = getAttributeName(i);
+                        attributes.add(eventFactory.createAttribute(attributeName, advanced ? attributeValues.get(i) : reader.getAttributeValue(i)));
+                    }
+                    for(int i = 0; i < getNamespaceCount(); i++){
+                        String uri = advanced ? namespaceUris.get(i) : reader.getNamespaceURI(i);
+                        namespaces.add(getNamespacePrefix(i).length() == 0 ? eventFactory.createNamespace(uri) : eventFactory.createNamespace(getNamespacePrefix(i), uri));
+                    }
+                    QName startName = getName();
+                    return eventFactory.createStartElement(startName.getPrefix(), startName.getNamespaceURI(), startName.getLocalPart(), attributes.iterator(), namespaces.iterator());
+                case XMLStreamConstants.END_ELEMENT:
+                    QName endName = getName();
+                    return eventFactory.createEndElement(endName.getPrefix(), endName.getNamespaceURI(), endName.getLocalPart());
+                case XMLStreamConstants.START_DOCUMENT:
+                    return eventFactory.createStartDocument();
+                case XMLStreamConstants.END_DOCUMENT:
+                    return eventFactory.createEndDocument();
+            }
+            //anything else needs the stream reader to still be on the event.
+            if(advanced) throw new IllegalStateException("Raw event is no longer available");
+            switch(eventType){
+                case XMLStreamConstants.CHARACTERS: return eventFactory.createCharacters(reader.getText());
+                case XMLStreamConstants.SPACE: return eventFactory.createSpace(reader.getText());
+                case XMLStreamConstants.CDATA: return eventFactory.createCData(reader.getText());
+                case XMLStreamConstants.COMMENT: return eventFactory.createComment(reader.getText());
+                case XMLStreamConstants.PROCESSING_INSTRUCTION: return eventFactory.createProcessingInstruction(reader.getPITarget(), reader.getPIData());
+                case XMLStreamConstants.ENTITY_REFERENCE: return eventFactory.createEntityReference(reader.getLocalName(), null);
+                case XMLStreamConstants.DTD: return eventFactory.createDTD(reader.getText());
+            }
+            throw new IllegalStateException("Unsupported event type: " + eventType);
+        }
+
+        @Override
+        public int getEventType(){ return eventType; }
+
+        @Override
+        public QName getName(){
+            if(eventType != XMLStreamConstants.START_ELEMENT && eventType != XMLStreamConstants.END_ELEMENT) return null;
+            return advanced ? name : reader.getName();
+        }
+
+        @Override
+        public int getNamespaceCount(){
+            if(eventType != XMLStreamConstants.START_ELEMENT && eventType != XMLStreamConstants.END_ELEMENT) return 0;
+            return advanced ? namespacePrefixes.size() : reader.getNamespaceCount();
+        }
+
+        @Override
+        public String getNamespacePrefix(int index){
+            if(advanced) return namespacePrefixes.get(index);
+            String prefix = reader.getNamespacePrefix(index);
+            return prefix == null ? "" : prefix;
+        }
+
+        @Override
+        public int getAttributeCount(){
+            if(eventType != XMLStreamConstants.START_ELEMENT) return 0;
+            return advanced ? attributeNames.size() : reader.getAttributeCount();
+        }
+
+        @Override
+        public QName getAttributeName(int index){
+            return advanced ? attributeNames.get(index) : reader.getAttributeName(index);
+        }
+
+        @Override
+        String getAttributeValue(QName name){
+            if(eventType != XMLStreamConstants.START_ELEMENT) return null;
+            if(!advanced) {
+                //compare the parts of the name directly to avoid creating a QName for each attribute.
+                for(int i = 0; i < reader.getAttributeCount(); i++){
+                    String uri = reader.getAttributeNamespace(i);
+                    if(name.getLocalPart().equals(reader.getAttributeLocalName(i)) && name.getNamespaceURI().equals(uri == null ? "" : uri))
+                        return reader.getAttributeValue(i);
+                }
+                return null;
+            }
+            int index = attributeNames.indexOf(name);
+            return index == -1 ? null : attributeValues.get(index);
+        }
+
+        @Override
+        String getNextText() throws XMLStreamException{
+            advance();
+            return advanced ? nextText : null;
+        }
+
+        @Override
+        public XMLSourceCapture getSourceCapture(){ return sourceCapture; }
+
+        @Override
+        public int getSourceOffset(){
+            return advanced ? sourceOffset : getOffset(reader.getLocation());
+        }
+
+        @Override
+        public int getNextSourceOffset(){
+            try {
+                advance();
+            }
+            catch(XMLStreamException e){
+                //as with peeking an event stream - let the processor complain when it actually processes the event.
+                return -1;
+            }
+            return advanced ? nextSourceOffset : -1;
+        }
+    }
+
+    private static int getOffset(Location location){
+        return location == null ? -1 : location.getCharacterOffset();
     }
 
     /*
@@ -304,8 +656,14 @@ public class XMLEventProcessor {
      */
     class ReaderProxy {
         private final XMLEventReader reader;
+        private final XMLSourceCapture sourceCapture;
+
+        ReaderProxy(XMLEventReader reader, XMLSourceCapture sourceCapture) {
+            this.reader = reader;
+            this.sourceCapture = sourceCapture;
+        }
 
-        ReaderProxy(XMLEventReader reader) { this.reader = reader; }
+        XMLSourceCapture getSourceCapture() { return sourceCapture; }
 
         XMLEvent peek() {
             try {
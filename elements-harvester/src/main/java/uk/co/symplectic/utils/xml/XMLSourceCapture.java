@@ -0,0 +1,104 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.xml;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.text.MessageFormat;
+import java.util.Arrays;
+
+/**
+ * Reader that keeps a copy of all the text that has been read through it, so that the raw text of sections of an XML
+ * document can be retrieved (by character offset) after they have been parsed, rather than re-serialising the
+ * parsed events.
+ *
+ * Intended to sit between a source of XML and a StAX reader whose event Locations report character offsets.
+ * Holds the whole document in memory, so is only suitable for documents of a sensible size (e.g. a page of API results).
+ */
+@SuppressWarnings("WeakerAccess")
+public class XMLSourceCapture extends FilterReader {
+
+    private char[] buffer = new char[64 * 1024];
+    private int length = 0;
+
+    public XMLSourceCapture(Reader in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if(value != -1) {
+            ensureCapacity(length + 1);
+            buffer[length++] = (char) value;
+        }
+        return value;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int count) throws IOException {
+        int read = super.read(chars, offset, count);
+        if(read > 0) {
+            ensureCapacity(length + read);
+            System.arraycopy(chars, offset, buffer, length, read);
+            length += read;
+        }
+        return read;
+    }
+
+    @Override
+    public long skip(long count) throws IOException {
+        //skipped text still needs to be captured for offsets to line up.
+        char[] skipBuffer = new char[(int) Math.min(count, 8192)];
+        long skipped = 0;
+        while(skipped < count){
+            int read = read(skipBuffer, 0, (int) Math.min(count - skipped, skipBuffer.length));
+            if(read == -1) break;
+            skipped += read;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean markSupported() { return false; }
+
+    /**
+     * @return the number of characters read (and captured) so far.
+     */
+    public int getLength(){ return length; }
+
+    public char charAt(int offset){
+        if(offset < 0 || offset >= length) throw new IndexOutOfBoundsException(Integer.toString(offset));
+        return buffer[offset];
+    }
+
+    /**
+     * Retrieve a section of the captured text.
+     * The returned CharSequence is a view over the capture buffer (no copy is made). Captured text is never changed (the
+     * buffer is only ever appended to, or replaced by a larger copy), so the view remains valid after more has been read,
+     * but it keeps the buffer it was taken from in memory for as long as it is held.
+     * @param start offset of the first character required.
+     * @param end offset after the last character required.
+     * @return the captured text between start and end.
+     */
+    public CharSequence getText(int start, int end){
+        if(start < 0 || end > length || start > end)
+            throw new IndexOutOfBoundsException(MessageFormat.format("{0}-{1} of {2}", start, end, length));
+        return CharBuffer.wrap(buffer, start, end - start);
+    }
+
+    private void ensureCapacity(int required){
+        if(required > buffer.length) buffer = Arrays.copyOf(buffer, Math.max(required, buffer.length * 2));
+    }
+}
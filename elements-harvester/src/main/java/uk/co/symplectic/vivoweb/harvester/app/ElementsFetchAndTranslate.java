@@ -30,6 +30,8 @@ import uk.co.symplectic.vivoweb.harvester.config.EligibilityFilter;
 import uk.co.symplectic.vivoweb.harvester.config.StateManagement;
 import uk.co.symplectic.vivoweb.harvester.config.Configuration;
 import uk.co.symplectic.vivoweb.harvester.fetch.*;
+import uk.co.symplectic.vivoweb.harvester.fetch.resources.ResourceFetchService;
+import uk.co.symplectic.vivoweb.harvester.fetch.resources.ResourceValidatorCache;
 import uk.co.symplectic.vivoweb.harvester.model.*;
 import uk.co.symplectic.vivoweb.harvester.store.*;
 import uk.co.symplectic.vivoweb.harvester.translate.*;
@@ -47,6 +49,7 @@ import javax.xml.transform.stream.StreamResult;
 import java.io.*;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 
 //import org.vivoweb.harvester.util.args.UsageException;
@@ -61,6 +64,8 @@ public class ElementsFetchAndTranslate {
     final private static String subtractionsFileName = "subtractions.n3";
     final private static String fragmentsDirName = "fragments";
     final private static String groupCacheFileName = "group-membership-cache.xml";
+    final private static String feedCheckpointDirName = "feed-checkpoints";
+    final private static String photoValidatorCacheFileName = "photo-validator-cache.properties";
 
     /**
      * Main entry method for ElementsFetchAndTranslate
@@ -91,6 +96,12 @@ public class ElementsFetchAndTranslate {
             Configuration.parse("elementsfetch.properties");
             log.info(Configuration.getConfiguredValues());
 
+            //converting the caches is done on its own, without touching the state file.
+            if(ArrayUtils.contains(args, "--migrateStores")){
+                migrateStores();
+                return;
+            }
+
             //only one of these will be true, both can be false
             boolean forceFullPull = args.length != 0 && args[0].equals("--full");
             boolean reprocessTranslations = args.length != 0 && args[0].equals("--reprocess");
@@ -175,6 +186,21 @@ public class ElementsFetchAndTranslate {
                 }
             }
 
+            //on a full pull record each feed's progress, so that if this run fails the next attempt can resume rather than restart.
+            FeedCheckpointStore feedCheckpoints = null;
+            Date dataFetchStartedAt = null;
+            if(currentRunClassification == StateManagement.RunClassification.FORCED_FULL || currentRunClassification == StateManagement.RunClassification.INITIAL) {
+                feedCheckpoints = new FeedCheckpointStore(new File(Configuration.getOtherOutputDir(), feedCheckpointDirName));
+                Date previousAttemptStartedAt = feedCheckpoints.getAttemptStartedAt();
+                if(state.getPreviousRunClassification() == StateManagement.PriorRunClassification.FAILED_FULL && previousAttemptStartedAt != null && feedCheckpoints.hasCheckpoints()) {
+                    dataFetchStartedAt = previousAttemptStartedAt;
+                    log.info(MessageFormat.format("Resuming feeds from the checkpoints of the failed full harvest started at {0}", previousAttemptStartedAt));
+                }
+                else {
+                    feedCheckpoints.reset(state.getCurrentRunStartedAt());
+                }
+            }
+
             //TODO: should we ensure that other configured directories are valid (either already exist or can be created at this point?
             File interimTdbDirectory = Configuration.getTdbOutputDir();
             //noinspection ResultOfMethodCallIgnored
@@ -191,12 +217,15 @@ public class ElementsFetchAndTranslate {
                 //Set up the services that will be used to do asynchronous work
                 //TODO: move these elsewhere, or remove entirely?
                 setExecutorServiceMaxThreadsForPool("TranslationService", Configuration.getMaxThreadsXsl());
-                setExecutorServiceMaxThreadsForPool("ResourceFetchService", Configuration.getMaxThreadsResource());
+                //resource fetches wait on the network in their own pool - maxResourceThreads limits the threads that store them.
+                setExecutorServiceMaxThreadsForPool("ResourceStoreService", Configuration.getMaxThreadsResource());
+                if(Configuration.getMaxResourceRequestsInFlight() > 0)
+                    ResourceFetchService.setMaxRequestsInFlight(Configuration.getMaxResourceRequestsInFlight());
 
                 Set<String> relationshipTypesNeedingObjectsForTranslation = Configuration.getRelTypesToReprocess();
 
                 //Set up a fetcher that uses the Elements API.
-                ElementsFetch elementsFetcher = currentRunClassification != StateManagement.RunClassification.REPROCESSING ? new ElementsFetch(elementsAPI) : null;
+                ElementsFetch elementsFetcher = currentRunClassification != StateManagement.RunClassification.REPROCESSING ? new ElementsFetch(elementsAPI, Configuration.getMaxConcurrentFeeds(), Configuration.getMaxConcurrentRepullBatches()) : null;
 
                 //Configure extraction of extra data that can be used to establish if users should be included.
                 if(eligibilityFilter instanceof EligibilityFilter.LabelSchemeFilter){
@@ -223,8 +252,11 @@ public class ElementsFetchAndTranslate {
                 //TODO: work out how to marshall user photos into a web accessible area in a sensible manner based on included user set...
                 //Hook a photo retrieval observer onto the rdf store so that photos will be fetched and dropped in the object store for any translated users.
                 ElementsUserPhotoRetrievalObserver photoRetrievalObserver;
+                ResourceValidatorCache photoValidatorCache = null;
                 if(currentRunClassification != StateManagement.RunClassification.REPROCESSING) {
-                    photoRetrievalObserver = new ElementsUserPhotoRetrievalObserver.FetchingObserver(elementsAPI, Configuration.getImageType(), objectStore);
+                    //photos we already hold are fetched conditionally, and not re-stored (or re-scaled) if unchanged.
+                    photoValidatorCache = new ResourceValidatorCache(new File(Configuration.getOtherOutputDir(), photoValidatorCacheFileName));
+                    photoRetrievalObserver = new ElementsUserPhotoRetrievalObserver.FetchingObserver(elementsAPI, Configuration.getImageType(), objectStore, photoValidatorCache);
                 }
                 else{
                     photoRetrievalObserver = new ElementsUserPhotoRetrievalObserver.ReprocessingObserver(Configuration.getImageType(), objectStore);
@@ -262,10 +294,12 @@ public class ElementsFetchAndTranslate {
                     //building the in memory relationship cache does not affect our disk caches so...
                     begunProcessing = true;
 
-                    processObjects(objectStore, elementsFetcher, pullNewDataSinceDate);
+                    processObjects(objectStore, elementsFetcher, pullNewDataSinceDate, feedCheckpoints);
                     //fetch relationships.
                     boolean repullRelsForVis = Configuration.getShouldRepullRelsToCorrectVisibility();
-                    processRelationships(objectStore, elementsFetcher, pullNewDataSinceDate, relationshipTypesToInclude, repullRelsForVis, relationshipTypesNeedingObjectsForTranslation);
+                    //if the API can tell us which relationships were affected by changes to their objects we let it do so.
+                    boolean useAffectedRelDeltas = Configuration.getUseAffectedRelationshipDeltas() && Configuration.getApiVersion().supportsAffectedRelationshipDeltas();
+                    processRelationships(objectStore, elementsFetcher, pullNewDataSinceDate, feedCheckpoints, relationshipTypesToInclude, useAffectedRelDeltas, repullRelsForVis, relationshipTypesNeedingObjectsForTranslation);
                 }
                 else{
                     begunProcessing = true; //not sure we need to flag this..
@@ -275,11 +309,14 @@ public class ElementsFetchAndTranslate {
 
                 //load the user cache from the now up to date full cache of user definitions on disk ..(they MUST be present)..
                 ElementsItemKeyedCollection.ItemRestrictor restrictToUsers = new ElementsItemKeyedCollection.RestrictToSubTypes(ElementsObjectCategory.USER);
-                ElementsItemKeyedCollection.ItemInfo userInfoCache = new ElementsItemKeyedCollection.ItemInfo(restrictToUsers);
-                for (StoredData.InFile userData : objectStore.getAllExistingFilesOfType(StorableResourceType.RAW_OBJECT, ElementsObjectCategory.USER)) {
-                    ElementsStoredItemInfo userItem = ElementsStoredItemInfo.loadStoredResource(userData, StorableResourceType.RAW_OBJECT);
-                    userInfoCache.put(userItem.getItemInfo().getItemId(), userItem.getItemInfo());
-                }
+                final ElementsItemKeyedCollection.ItemInfo userInfoCache = new ElementsItemKeyedCollection.ItemInfo(restrictToUsers);
+                objectStore.processAllExistingItemsOfType(StorableResourceType.RAW_OBJECT, ElementsObjectCategory.USER, new IElementsStoredItemProcessor() {
+                    @Override
+                    public boolean process(ElementsStoredItemInfo userItem) {
+                        userInfoCache.put(userItem.getItemInfo().getItemId(), userItem.getItemInfo());
+                        return true;
+                    }
+                }, 1);
 
                 //Now query the groups, post processing to build a group hierarchy containing users.
                 ElementsGroupCollection groupCache;
@@ -327,6 +364,12 @@ public class ElementsFetchAndTranslate {
                 //Note all "enqueueing" should have been done on this thread - only the translations and retrievals of photos should be off main thread
                 //so we can happily remove observers like this..
                 objectStore.removeItemObserver(photoRetrievalObserver);
+                if(photoValidatorCache != null) {
+                    //wait for any outstanding photo fetches so that the validators of everything fetched are saved.
+                    ResourceFetchService.awaitShutdown();
+                    photoValidatorCache.save();
+                    log.info(MessageFormat.format("ElementsFetchAndTranslate: User photos - {0}", photoValidatorCache.getSummary()));
+                }
 
                 ElementsGroupMembershipTranslateObserver groupMembershipTranslateObserver =
                         new ElementsGroupMembershipTranslateObserver(rdfStore, xslFilename, groupCache, includedGroups);
@@ -355,9 +398,8 @@ public class ElementsFetchAndTranslate {
                 //TODO: test performance against spinning rust...
 
                 boolean visibleLinksOnly = Configuration.getVisibleLinksOnly();
-                ElementsVivoIncludeMonitor monitor = new ElementsVivoIncludeMonitor(includedUsers.keySet(), includedGroups.getIncludedGroups().keySet(), Configuration.getCategoriesToHarvest(), rdfStore, visibleLinksOnly);
+                final ElementsVivoIncludeMonitor monitor = new ElementsVivoIncludeMonitor(includedUsers.keySet(), includedGroups.getIncludedGroups().keySet(), Configuration.getCategoriesToHarvest(), rdfStore, visibleLinksOnly);
 
-                counter = 0;
                 BufferedWriter relWriter = null;
                 BufferedWriter incRelWriter = null;
                 try {
@@ -367,21 +409,28 @@ public class ElementsFetchAndTranslate {
                     File incRelationshipListFile = new File(interimTdbDirectory, "includedRelationships.txt");
                     incRelWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(incRelationshipListFile), "utf-8"));
 
-                    for (StoredData.InFile relData : objectStore.getAllExistingFilesOfType(StorableResourceType.RAW_RELATIONSHIP)) {
-                        ElementsStoredItemInfo relItem = ElementsStoredItemInfo.loadStoredResource(relData, StorableResourceType.RAW_RELATIONSHIP);
-                        monitor.observe(relItem);
+                    final BufferedWriter finalRelWriter = relWriter;
+                    final BufferedWriter finalIncRelWriter = incRelWriter;
+                    counter = objectStore.processAllExistingItemsOfType(StorableResourceType.RAW_RELATIONSHIP, null, new IElementsStoredItemProcessor() {
+                        private int counter = 0;
 
-                        relWriter.write(relItem.getItemInfo().toString());
-                        relWriter.newLine();
-                        if(monitor.getIncludedItems().get(ElementsItemType.RELATIONSHIP).contains(relItem.getItemInfo().getItemId())){
-                            incRelWriter.write(relItem.getItemInfo().toString());
-                            incRelWriter.newLine();
-                        }
+                        @Override
+                        public boolean process(ElementsStoredItemInfo relItem) throws IOException {
+                            monitor.observe(relItem);
 
-                        counter++;
-                        if (counter % 10000 == 0)
-                            log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} relationships processed from cache", counter));
-                    }
+                            finalRelWriter.write(relItem.getItemInfo().toString());
+                            finalRelWriter.newLine();
+                            if(monitor.getIncludedItems().get(ElementsItemType.RELATIONSHIP).contains(relItem.getItemInfo().getItemId())){
+                                finalIncRelWriter.write(relItem.getItemInfo().toString());
+                                finalIncRelWriter.newLine();
+                            }
+
+                            counter++;
+                            if (counter % 10000 == 0)
+                                log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} relationships processed from cache", counter));
+                            return true;
+                        }
+                    }, 1);
                     log.info(MessageFormat.format("ElementsFetchAndTranslate: finished processing relationships from cache, {0} items processed in total", counter));
                 }
                 finally{
@@ -427,7 +476,7 @@ public class ElementsFetchAndTranslate {
                     log.info(MessageFormat.format("ElementsFetchAndTranslate: {0} non-user objects being sent to vivo", includedObjectCount));
 
                 log.info("ElementsFetchAndTranslate: Calculating output files related to included objects");
-                List<StoredData.InFile> filesToProcess = new ArrayList<StoredData.InFile>();
+                List<StoredData> filesToProcess = new ArrayList<StoredData>();
                 BufferedWriter writer = null;
                 try {
                     File transferListFile = new File(interimTdbDirectory, "fileList.txt");
@@ -438,7 +487,7 @@ public class ElementsFetchAndTranslate {
                         for (ElementsItemId includedItem : monitor.getIncludedItems().get(type)) {
                             //TODO: restrict to certain output resource types?
                             for (BasicElementsStoredItem item : rdfStore.retrieveAllRelatedResources(includedItem)) {
-                                filesToProcess.add((StoredData.InFile) item.getStoredData());
+                                filesToProcess.add(item.getStoredData());
                                 writer.write(item.getStoredData().getAddress());
                                 writer.newLine();
                             }
@@ -487,7 +536,9 @@ public class ElementsFetchAndTranslate {
             splitter.split(subtractionsFile, state.getCurrentRunStartedAt(), FileSplitter.Type.Subtractions);
 
             //if completed successfully manage state file..
-            stateManager.manageStateForCompleteRun(state, includedUserCount, includedObjectCount);
+            stateManager.manageStateForCompleteRun(state, includedUserCount, includedObjectCount, dataFetchStartedAt);
+            //the checkpoints are no longer needed once the state file records the successful run.
+            if(feedCheckpoints != null) feedCheckpoints.clear();
 
         }
         catch (ConfigParser.UsageException e) {
@@ -515,6 +566,20 @@ public class ElementsFetchAndTranslate {
             System.exit(1);
         }
         finally {
+            //record that the raw data store's indexes are in step with its files (so they need not be rebuilt next run).
+            try {
+                ElementsStoreFactory.closeObjectStore();
+            }
+            catch(IOException e){
+                log.warn("Unable to close the object store - its indexes will be rebuilt next run", e);
+            }
+            try {
+                ElementsStoreFactory.closeRdfStore();
+            }
+            catch(IOException e){
+                log.warn("Unable to close the rdf store", e);
+            }
+
             //unless our logging is not working then log that we are exiting.
             if (caught == null || !(caught instanceof LoggingUtils.LoggingInitialisationException)) {
                 log.info("ElementsFetch: End");
@@ -534,6 +599,18 @@ public class ElementsFetchAndTranslate {
         }
     }
 
+    /**
+     * Convert the raw and rdf caches so that they hold their data the way the usePackFiles setting asks for.
+     * @throws IOException if errors occur
+     */
+    private static void migrateStores() throws IOException{
+        boolean toPackFiles = Configuration.getUsePackFiles();
+        log.info(MessageFormat.format("ElementsFetchAndTranslate: Converting caches to use {0}", toPackFiles ? "pack files" : "a file per item"));
+        ElementsRawDataStore.migrate(Configuration.getRawOutputDir(), Configuration.getZipFiles(), toPackFiles, Configuration.getShardDirectories());
+        ElementsRdfStore.migrate(Configuration.getRdfOutputDir(), Configuration.getZipFiles(), toPackFiles, Configuration.getShardDirectories());
+        log.info("ElementsFetchAndTranslate: Finished converting caches");
+    }
+
     /**
      * Method to loop through each configured category of objects to be fetched from Elements and bring the local cache
      * of raw data (objectStore) up to date with changes in Elements.
@@ -541,22 +618,50 @@ public class ElementsFetchAndTranslate {
      * @param elementsFetcher an ElementsFetch helper class designed to facilitate fetching data from the Elements API.
      * @param modifiedSince the date time that the cache was last updated, process will run a "delta" if this is
      *                      supplied, and a "full" if it is null.
+     * @param feedCheckpoints where to record (and resume) progress through the feeds on a full pull (may be null).
      * @throws IOException if errors occur
      */
-    private static void processObjects(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince) throws IOException{
+    private static void processObjects(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince, FeedCheckpointStore feedCheckpoints) throws IOException{
         //fetch all configured categories - ensure that users ARE fetched regardless of configuration
         //TODO: decide if not having users in configured categories should result in different behaviour in the monitor
         List<ElementsObjectCategory> categories = new ArrayList<ElementsObjectCategory>();
         categories.addAll(Configuration.getCategoriesToHarvest());
         if(!categories.contains(ElementsObjectCategory.USER)) categories.add(0, ElementsObjectCategory.USER);
 
+        //a verified full pull only fetches the objects that differ from the cache, so needs no cleardown, partitioning or checkpoints.
+        if(modifiedSince == null && Configuration.getVerifyFullPulls()){
+            elementsFetcher.executeVerified(new ElementsFetch.ObjectConfig(true, null, categories), objectStore);
+            return;
+        }
+
+        //on a full pull any configured categories can be fetched as several partitions (see partitionedCategories/partitionGroups)
+        List<ElementsObjectCategory> partitionedCategories = new ArrayList<ElementsObjectCategory>();
+        if(modifiedSince == null && !Configuration.getPartitionGroups().isEmpty()) {
+            for (ElementsObjectCategory category : Configuration.getPartitionedCategories()) {
+                if (categories.remove(category)) partitionedCategories.add(category);
+            }
+        }
+
         if(modifiedSince == null) {
-            log.info("Clearing down object cache (Full pull) - this may take some time..");
-            objectStore.cleardown(StorableResourceType.RAW_OBJECT);
+            //if resuming a failed full pull, the cache was cleared by the failed attempt and holds the data it fetched.
+            if(feedCheckpoints != null && feedCheckpoints.hasCheckpointsFor(ElementsItemType.OBJECT)) {
+                log.info("Retaining object cache (resuming a failed full pull)");
+            }
+            else {
+                log.info("Clearing down object cache (Full pull) - this may take some time..");
+                objectStore.cleardown(StorableResourceType.RAW_OBJECT);
+            }
+        }
+
+        if(!categories.isEmpty()) {
+            ElementsFetch.ObjectConfig objConfig = new ElementsFetch.ObjectConfig(true, modifiedSince, categories);
+            elementsFetcher.execute(objConfig, objectStore, modifiedSince == null ? feedCheckpoints : null);
         }
 
-        ElementsFetch.ObjectConfig objConfig = new ElementsFetch.ObjectConfig(true, modifiedSince, categories);
-        elementsFetcher.execute(objConfig, objectStore);
+        for(ElementsObjectCategory category : partitionedCategories){
+            ElementsFetch.PartitionedObjectConfig partitionedConfig = new ElementsFetch.PartitionedObjectConfig(true, category, Configuration.getPartitionGroups());
+            elementsFetcher.executePartitioned(partitionedConfig, objectStore);
+        }
     }
 
     /**
@@ -566,24 +671,28 @@ public class ElementsFetchAndTranslate {
      * if the typical translate observers are in use.
      * @param objectStore the local cache of raw data.
      * @param type The type of data to reprocess.
+     * @throws IOException if errors occur
      */
-    private static void reprocessCachedItems(ElementsItemFileStore objectStore, StorableResourceType type){
-        String typeNameForLog = type.getKeyItemType().getName();
-        String pluralTypeNameForLog = type.getKeyItemType().getPluralName();
+    private static void reprocessCachedItems(final ElementsItemFileStore objectStore, final StorableResourceType type) throws IOException{
+        final String typeNameForLog = type.getKeyItemType().getName();
+        final String pluralTypeNameForLog = type.getKeyItemType().getPluralName();
         log.info(MessageFormat.format("Reprocessing Elements {0} from cache", pluralTypeNameForLog));
-        int counter = 0;
-        for (StoredData.InFile data : objectStore.getAllExistingFilesOfType(type)) {
-            ElementsStoredItemInfo item = ElementsStoredItemInfo.loadStoredResource(data, type);
-            try {
-                objectStore.touchItem(item.getItemInfo(), type);
-                counter++;
-                if(counter % 1000 == 0) log.info(MessageFormat.format("{0} {1} enqueued for re-processing", counter, pluralTypeNameForLog));
-            }
-            catch(IOException e){
-                log.warn(MessageFormat.format("Error re-processing cached {0} {1}", typeNameForLog, item.getItemInfo().getItemId()));
+        final AtomicInteger counter = new AtomicInteger(0);
+        objectStore.processAllExistingItemsOfType(type, null, new IElementsStoredItemProcessor() {
+            @Override
+            public boolean process(ElementsStoredItemInfo item) {
+                try {
+                    objectStore.touchItem(item.getItemInfo(), type);
+                    int count = counter.incrementAndGet();
+                    if(count % 1000 == 0) log.info(MessageFormat.format("{0} {1} enqueued for re-processing", count, pluralTypeNameForLog));
+                }
+                catch(IOException e){
+                    log.warn(MessageFormat.format("Error re-processing cached {0} {1}", typeNameForLog, item.getItemInfo().getItemId()));
+                }
+                return true;
             }
-        }
-        log.info(MessageFormat.format("Reprocessing complete, {0} {1} enqueued for re-processing in total", counter, pluralTypeNameForLog));
+        }, 1);
+        log.info(MessageFormat.format("Reprocessing complete, {0} {1} enqueued for re-processing in total", counter.get(), pluralTypeNameForLog));
     }
 
 
@@ -595,7 +704,12 @@ public class ElementsFetchAndTranslate {
      * @param elementsFetcher an ElementsFetch helper class designed to facilitate fetching data from the Elements API.
      * @param modifiedSince the date time that the cache was last updated, process will run a "delta" if this is
      *                      supplied, and a "full" if it is null.
+     * @param feedCheckpoints where to record (and resume) progress through the feeds on a full pull (may be null).
      * @param relationshipTypesToInclude the types of Elements relationship type (int) to be processed.
+     * @param useAffectedDeltas whether a delta should ask the API for every relationship "affected" since "modifiedSince"
+     *                          (including those whose linked objects have changed). If so, the API has already returned
+     *                          every relationship that the cache scan below would re-pull, so only those that need
+     *                          re-processing (and were not re-processed when they were fetched) are looked for.
      * @param repullRelsToCorrectVisibility whether unmodified relationships that involve objects modified since "modifiedSince".
      *                                      should be updated to ensure that visibility is correctly updated in Vivo.
      * @param relationshipTypesToReprocess Any types of relationship (string) that should be reprocessed regardless of
@@ -603,19 +717,42 @@ public class ElementsFetchAndTranslate {
      *                                     e.g. when the translation of objects occurs when the relationship is processed.
      * @throws IOException if errors occur
      */
-    private static void processRelationships(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince, Set<ElementsItemId> relationshipTypesToInclude,
-                                             boolean repullRelsToCorrectVisibility, Set<String> relationshipTypesToReprocess) throws IOException{
+    private static void processRelationships(ElementsItemFileStore objectStore, ElementsFetch elementsFetcher, Date modifiedSince, FeedCheckpointStore feedCheckpoints,
+                                             Set<ElementsItemId> relationshipTypesToInclude, boolean useAffectedDeltas, boolean repullRelsToCorrectVisibility,
+                                             Set<String> relationshipTypesToReprocess) throws IOException{
         if(modifiedSince == null) {
-            log.info("Clearing down relationship cache (Full pull) - this may take some time..");
-            objectStore.cleardown(StorableResourceType.RAW_RELATIONSHIP);
+            //if resuming a failed full pull, the cache was cleared by the failed attempt and holds the data it fetched.
+            if(feedCheckpoints != null && feedCheckpoints.hasCheckpointsFor(ElementsItemType.RELATIONSHIP)) {
+                log.info("Retaining relationship cache (resuming a failed full pull)");
+            }
+            else {
+                log.info("Clearing down relationship cache (Full pull) - this may take some time..");
+                objectStore.cleardown(StorableResourceType.RAW_RELATIONSHIP);
+            }
         }
 
         //bring relationship cache up to date
-        ElementsFetch.RelationshipConfig relConfig = new ElementsFetch.RelationshipConfig(modifiedSince, relationshipTypesToInclude);
-        elementsFetcher.execute(relConfig, objectStore);
-
+        ElementsFetch.RelationshipConfig relConfig = new ElementsFetch.RelationshipConfig(modifiedSince, useAffectedDeltas, relationshipTypesToInclude);
+        elementsFetcher.execute(relConfig, objectStore, modifiedSince == null ? feedCheckpoints : null);
+
+        if(modifiedSince != null && useAffectedDeltas){
+            //every relationship linked to a changed object was "affected" and so has already been re-pulled above. A re-pulled
+            //relationship is only re-processed if its data changed though (unchanged data is not re-stored when skipUnchangedItems
+            //is on), so those of the types translated along with their objects must still be re-processed explicitly.
+            log.info("ElementsFetchAndTranslate: Relationships affected by modified objects were fetched by the delta, so no need to repull any others");
+            Set<ElementsItemId> modifiedObjects = objectStore.getAffectedItems(StorableResourceType.RAW_OBJECT);
+            if(!modifiedObjects.isEmpty() && relationshipTypesToReprocess != null && !relationshipTypesToReprocess.isEmpty()) {
+                Set<ElementsItemId> modifiedRelationships = objectStore.getAffectedItems(StorableResourceType.RAW_RELATIONSHIP);
+                Set<ElementsItemInfo> relationshipsToReprocess = new HashSet<ElementsItemInfo>();
+                for (ElementsStoredItemInfo relItem : objectStore.getRelationshipsInvolving(modifiedObjects)) {
+                    if (!modifiedRelationships.contains(relItem.getItemInfo().getItemId()) && isTypeToReprocess(relItem.getItemInfo(), relationshipTypesToReprocess))
+                        relationshipsToReprocess.add(relItem.getItemInfo());
+                }
+                reprocessRelationships(objectStore, relationshipsToReprocess);
+            }
+        }
         //handle issues with simple update of relationships not being enough
-        if(modifiedSince != null){
+        else if(modifiedSince != null){
             //Work out if we need to do any re-processing
             Set<ElementsItemId> modifiedObjects = objectStore.getAffectedItems(StorableResourceType.RAW_OBJECT);
 
@@ -627,10 +764,9 @@ public class ElementsFetchAndTranslate {
                 Set<ElementsItemId> relationshipsToRepull = new HashSet<ElementsItemId>();
                 Set<ElementsItemInfo> relationshipsToReprocess = new HashSet<ElementsItemInfo>();
 
-                //loop over the current state of our raw object cache (which is up to date on this thread) to establish which relationships are related to the recently modified objects
+                //look up the relationships in our raw relationship cache (which is up to date on this thread) that are related to the recently modified objects
                 int counter = 0;
-                for (StoredData.InFile relData : objectStore.getAllExistingFilesOfType(StorableResourceType.RAW_RELATIONSHIP)) {
-                    ElementsStoredItemInfo relItem = ElementsStoredItemInfo.loadStoredResource(relData, StorableResourceType.RAW_RELATIONSHIP);
+                for (ElementsStoredItemInfo relItem : objectStore.getRelationshipsInvolving(modifiedObjects)) {
 
                     //check if we have already processed the relationship this run, so then we can ignore it.
                     if(!modifiedRelationships.contains(relItem.getItemInfo().getItemId())) {
@@ -664,11 +800,9 @@ public class ElementsFetchAndTranslate {
                                 //if the unmodified relationship contains any modified objects
                                 // and is of a type that we need to reprocess (i.e. one where the translation of the objects occurs within the relationship)
                                 //then we will need to re-translate the item. we may not need to re-pull it (e.g if that is turned off or if only the user has been changed)
-                                if(relationshipTypesToReprocess != null && !relationshipTypesToReprocess.isEmpty()) {
-                                    if (relationshipTypesToReprocess.contains("all") || relationshipTypesToReprocess.contains(relItem.getItemInfo().asRelationshipInfo().getType())) {
-                                        shouldReprocess = true;
-                                        //deliberately don't break the loop over objects in the link, as the second object could be the one that triggers a repull
-                                    }
+                                if(isTypeToReprocess(relItem.getItemInfo(), relationshipTypesToReprocess)) {
+                                    shouldReprocess = true;
+                                    //deliberately don't break the loop over objects in the link, as the second object could be the one that triggers a repull
                                 }
                             }
                         }
@@ -688,19 +822,10 @@ public class ElementsFetchAndTranslate {
                 //re-pull data for those relationships batched up sensibly.
                 if (!relationshipsToRepull.isEmpty()) {
                     ElementsFetch.RelationshipsListConfig repullForModifiedObjectsConfig = new ElementsFetch.RelationshipsListConfig(relationshipsToRepull);
-                    elementsFetcher.execute(repullForModifiedObjectsConfig, objectStore);
+                    elementsFetcher.executeList(repullForModifiedObjectsConfig, objectStore);
                 }
 
-                if(!relationshipsToReprocess.isEmpty()) {
-                    counter = 0;
-                    //re-process data for relationships that need to be re-processed
-                    for (ElementsItemInfo relInfo : relationshipsToReprocess) {
-                        objectStore.touchItem(relInfo, StorableResourceType.RAW_RELATIONSHIP);
-                        counter++;
-                        if(counter % 1000 == 0) log.info(MessageFormat.format("ElementsFetchAndTranslate: Enqueued {0} relationships for re-processing because of modified objects", counter));
-                    }
-                    log.info(MessageFormat.format("ElementsFetchAndTranslate: Reprocessing complete, {0} relationships enqueued for re-processing in total", counter));
-                }
+                reprocessRelationships(objectStore, relationshipsToReprocess);
             }
             else {
                 log.info("ElementsFetchAndTranslate: No objects modified this run so no need to repull/reprocess any relationships");
@@ -708,6 +833,34 @@ public class ElementsFetchAndTranslate {
         }
     }
 
+    /**
+     * Helper to establish if a relationship is of a type that should be re-processed when its linked objects are modified
+     * @param relInfo the relationship
+     * @param relationshipTypesToReprocess the types of relationship to reprocess ("all" for every type), may be null.
+     * @return boolean
+     */
+    private static boolean isTypeToReprocess(ElementsItemInfo relInfo, Set<String> relationshipTypesToReprocess){
+        if(relationshipTypesToReprocess == null || relationshipTypesToReprocess.isEmpty()) return false;
+        return relationshipTypesToReprocess.contains("all") || relationshipTypesToReprocess.contains(relInfo.asRelationshipInfo().getType());
+    }
+
+    /**
+     * Helper to re-process (i.e. re-translate) the cached data of a set of relationships, without re-pulling them.
+     * @param objectStore the local cache of raw data.
+     * @param relationshipsToReprocess the relationships to be re-processed.
+     * @throws IOException if errors occur
+     */
+    private static void reprocessRelationships(ElementsItemFileStore objectStore, Set<ElementsItemInfo> relationshipsToReprocess) throws IOException{
+        if(relationshipsToReprocess.isEmpty()) return;
+        int counter = 0;
+        for (ElementsItemInfo relInfo : relationshipsToReprocess) {
+            objectStore.touchItem(relInfo, StorableResourceType.RAW_RELATIONSHIP);
+            counter++;
+            if(counter % 1000 == 0) log.info(MessageFormat.format("ElementsFetchAndTranslate: Enqueued {0} relationships for re-processing because of modified objects", counter));
+        }
+        log.info(MessageFormat.format("ElementsFetchAndTranslate: Reprocessing complete, {0} relationships enqueued for re-processing in total", counter));
+    }
+
     /**
      * Helper method to load the previously persisted cache of of user group membership in the source Elements system.
      * Note that any new users that have been created in the source system since the cache of of user group membership
@@ -721,16 +874,20 @@ public class ElementsFetchAndTranslate {
         try {
             log.info("Recreating Groups information from cache");
             StorableResourceType type = StorableResourceType.RAW_GROUP;
-            ElementsGroupCollection groupCache = new ElementsGroupCollection();
-
-            int counter = 0;
-            for (StoredData.InFile data : objectStore.getAllExistingFilesOfType(type)) {
-                ElementsStoredItemInfo item = ElementsStoredItemInfo.loadStoredResource(data, StorableResourceType.RAW_GROUP);
-                ElementsGroupInfo groupInfo = item.getItemInfo().asGroupInfo();
-                groupCache.put(item.getItemInfo().getItemId(), new ElementsGroupInfo.GroupHierarchyWrapper(groupInfo));
-                counter++;
-                if(counter % 1000 == 0) log.info(MessageFormat.format("{0} groups added to cache", counter));
-            }
+            final ElementsGroupCollection groupCache = new ElementsGroupCollection();
+
+            objectStore.processAllExistingItemsOfType(type, null, new IElementsStoredItemProcessor() {
+                private int counter = 0;
+
+                @Override
+                public boolean process(ElementsStoredItemInfo item) {
+                    ElementsGroupInfo groupInfo = item.getItemInfo().asGroupInfo();
+                    groupCache.put(item.getItemInfo().getItemId(), new ElementsGroupInfo.GroupHierarchyWrapper(groupInfo));
+                    counter++;
+                    if(counter % 1000 == 0) log.info(MessageFormat.format("{0} groups added to cache", counter));
+                    return true;
+                }
+            }, 1);
 
             groupCache.constructHierarchy();
 
@@ -1004,16 +1161,25 @@ public class ElementsFetchAndTranslate {
             HttpClient.setSocketTimeout(soTimeout);
         }
 
+        HttpClient.setRequestCompression(Configuration.getApiCompression());
+
+        //requests to the Elements API are rate limited per host - if no delay is configured the HttpClient default is used.
         int requestDelay = Configuration.getApiRequestDelay();
         if (requestDelay > -1 && requestDelay < (5 * 60 * 1000)) {
-            HttpClient.setRequestDelay(requestDelay);
+            HttpClient.setRequestRate(apiEndpoint, requestDelay, Configuration.getApiRequestBurst());
         }
 
         int fullDetailPerPage = Configuration.getFullDetailPerPage();
         int refDetailPerPage = Configuration.getRefDetailPerPage();
         boolean rewriteMismatchedUrls = Configuration.getRewriteMismatchedUrls();
         ElementsAPI.ProcessingDefaults defaults = new ElementsAPI.ProcessingDefaults(true, fullDetailPerPage, refDetailPerPage);
-        return new ElementsAPI(apiVersion, apiEndpoint, apiUsername, apiPassword, rewriteMismatchedUrls, defaults);
+        ElementsAPI api = new ElementsAPI(apiVersion, apiEndpoint, apiUsername, apiPassword, rewriteMismatchedUrls, defaults);
+        //upper bound on how far the API's adaptive concurrency limit may grow when the server is responding well.
+        int maxConcurrency = Configuration.getApiMaxConcurrency();
+        if (maxConcurrency > 0) {
+            api.getConcurrencyController().setMaxLimit(maxConcurrency);
+        }
+        return api;
 
     }
 
@@ -95,6 +95,12 @@ public class FragmentLoader {
             if(vivoUrl.endsWith("/api")) vivoUrl = vivoUrl + "/sparqlUpdate";
             else if(!vivoUrl.endsWith("/api/sparqlUpdate")) vivoUrl = vivoUrl + "/api/sparqlUpdate";
 
+            //posts to vivo are rate limited independently of any other host - if no delay is configured the HttpClient default is used.
+            int requestDelay = FLConfiguration.getApiRequestDelay();
+            if (requestDelay > -1 && requestDelay < (5 * 60 * 1000)) {
+                HttpClient.setRequestRate(vivoUrl, requestDelay, FLConfiguration.getApiRequestBurst());
+            }
+
             String graphUri = FLConfiguration.getSparqlApiGraphUri();
             String username = FLConfiguration.getSparqlApiUsername();
             String password = FLConfiguration.getSparqlApiPassword();
@@ -126,6 +132,8 @@ public class FragmentLoader {
                         try {
                             URI validGraphURI = new URI(graphUri);
                             HttpClient.setSocketTimeout(15 * 60 * 1000); //15 min in milliseconds
+                            //one client for the whole batch - the underlying connection is pooled and kept alive between posts.
+                            SparqlUpdateHttpClient client = new SparqlUpdateHttpClient(vivoUrl, username, password, validGraphURI);
                             for (File file : filesToSort) {
                                 //if (count > 10) break;
                                 //get the content we are sending from the fragment file
@@ -159,7 +167,6 @@ public class FragmentLoader {
 
                                 //if there is content to send to vivo then send it
                                 if (sparqlContent != null) {
-                                    SparqlUpdateHttpClient client = new SparqlUpdateHttpClient(vivoUrl, username, password, validGraphURI);
                                     try {
                                         trySendFragment(client, sparqlContent, shouldDeleteContent);
                                     }
@@ -177,7 +184,7 @@ public class FragmentLoader {
 
                                 System.out.print('.');
                                 if (count % logEveryN == 0) {
-                                    log.info(MessageFormat.format(" {0} fragments processed", count));
+                                    log.info(MessageFormat.format(" {0} fragments processed (connection-pool: {1})", count, HttpClient.getPoolStats()));
                                     System.out.println();
                                 }
                             }
@@ -11,11 +11,13 @@
 package uk.co.symplectic.vivoweb.harvester.config;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.lang.text.StrBuilder;
+import uk.co.symplectic.elements.api.ElementsAPI;
 import uk.co.symplectic.elements.api.ElementsAPIVersion;
 import uk.co.symplectic.utils.ImageUtils;
 import uk.co.symplectic.utils.configuration.ConfigKey;
 import uk.co.symplectic.utils.configuration.ConfigParser;
 import uk.co.symplectic.utils.configuration.ConfigValue;
+import uk.co.symplectic.vivoweb.harvester.fetch.resources.ResourceFetchService;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
 import uk.co.symplectic.vivoweb.harvester.utils.GroupMatcher;
@@ -57,6 +59,8 @@ public class Configuration {
 
         private ConfigKey ARG_VISIBLE_LINKS_ONLY = new ConfigKey("visibleLinksOnly", "false"); //TODO: review this default
         private ConfigKey ARG_REPULL_RELS_TO_CORRECT_VISIBILITY = new ConfigKey("repullRelsToCorrectVis", "true"); //TODO: review this default
+        private ConfigKey ARG_USE_AFFECTED_RELATIONSHIP_DELTAS = new ConfigKey("useAffectedRelationshipDeltas", "true");
+        private ConfigKey ARG_VERIFY_FULL_PULLS = new ConfigKey("verifyFullPulls", "false");
         private ConfigKey ARG_RELATIONSHIP_TYPES_TO_REPROCESS = new ConfigKey("relTypesToReprocess", "activity-user-association, user-teaching-association, publication-user-authorship"); //TODO: review this default
 
         private ConfigKey ARG_USE_FULL_UTF8 = new ConfigKey("useFullUTF8", "false"); //TODO: review this default
@@ -114,13 +118,24 @@ public class Configuration {
 
         private ConfigKey ARG_API_SOCKET_TIMEOUT = new ConfigKey("apiSocketTimeout", "0"); //TODO: review this default
         private ConfigKey ARG_API_REQUEST_DELAY = new ConfigKey("apiRequestDelay", "-1"); //TODO: review this default
+        private ConfigKey ARG_API_REQUEST_BURST = new ConfigKey("apiRequestBurst", "1");
+        private ConfigKey ARG_API_COMPRESSION = new ConfigKey("apiCompression", "true");
+        private ConfigKey ARG_API_MAX_CONCURRENCY = new ConfigKey("apiMaxConcurrency", Integer.toString(ElementsAPI.DEFAULT_MAX_CONCURRENCY));
 
         private ConfigKey ARG_MAX_XSL_THREADS = new ConfigKey("maxXslThreads", "0"); //TODO: review this default
         private ConfigKey ARG_MAX_RESOURCE_THREADS = new ConfigKey("maxResourceThreads", "0"); //TODO: review this default
+        private ConfigKey ARG_MAX_RESOURCE_REQUESTS_IN_FLIGHT = new ConfigKey("maxResourceRequestsInFlight", Integer.toString(ResourceFetchService.DEFAULT_MAX_REQUESTS_IN_FLIGHT));
+        private ConfigKey ARG_MAX_CONCURRENT_FEEDS = new ConfigKey("maxConcurrentFeeds", "1");
+        private ConfigKey ARG_MAX_CONCURRENT_REPULL_BATCHES = new ConfigKey("maxConcurrentRepullBatches", "4");
+        private ConfigKey ARG_PARTITIONED_CATEGORIES = new ConfigKey("partitionedCategories");
+        private ConfigKey ARG_PARTITION_GROUPS = new ConfigKey("partitionGroups");
 
         private ConfigKey ARG_MAX_FRAGMENT_FILE_SIZE = new ConfigKey("maxFragmentFileSize", "1228800"); //TODO: review this default
 
         private ConfigKey ARG_ZIP_FILES = new ConfigKey("zipFiles", "false"); //TODO: review this default
+        private ConfigKey ARG_SKIP_UNCHANGED_ITEMS = new ConfigKey("skipUnchangedItems", "true");
+        private ConfigKey ARG_USE_PACK_FILES = new ConfigKey("usePackFiles", "false");
+        private ConfigKey ARG_SHARD_DIRECTORIES = new ConfigKey("shardDirectories", "false");
 
         private ConfigKey ARG_CHANGE_PROTECTION_ENABLED = new ConfigKey("changeProtectionEnabled", "true"); //TODO: review this default
         private ConfigKey ARG_ALLOWED_USER_CHANGE_FRACTION = new ConfigKey("allowedUserChangeFraction", "0.2"); //TODO: review this default
@@ -129,6 +144,11 @@ public class Configuration {
         //instance fields for storage of values parsed from the Properties
         private int maxThreadsResource = -1;
         private int maxThreadsXsl = -1;
+        private int maxResourceRequestsInFlight = -1;
+        private int maxConcurrentFeeds = 1;
+        private int maxConcurrentRepullBatches = 4;
+        private List<ElementsObjectCategory> partitionedCategories;
+        private List<Integer> partitionGroups;
 
         private int maxFragmentFileSize = -1;
 
@@ -143,6 +163,9 @@ public class Configuration {
 
         private int apiSoTimeout = -1;
         private int apiRequestDelay = -1;
+        private int apiRequestBurst = 1;
+        private int apiMaxConcurrency = -1;
+        private boolean apiCompression = true;
 
         private int fullDetailPerPage = -1;
         private int refDetailPerPage = -1;
@@ -163,6 +186,8 @@ public class Configuration {
 
         private boolean visibleLinksOnly = false;
         private boolean repullRelsToCorrectVisibility = true;
+        private boolean useAffectedRelationshipDeltas = true;
+        private boolean verifyFullPulls = false;
         Set<String> relTypesToReprocess;
 
 
@@ -179,6 +204,9 @@ public class Configuration {
         private File otherOutputDir;
 
         private boolean zipFiles = false;
+        private boolean skipUnchangedItems = true;
+        private boolean usePackFiles = false;
+        private boolean shardDirectories = false;
 
         private boolean changeProtectionEnabled = true;
         private double allowedUserChangeFraction;
@@ -354,6 +382,11 @@ public class Configuration {
         void parse(){
             values.maxThreadsResource = getInt(ARG_MAX_RESOURCE_THREADS);
             values.maxThreadsXsl = getInt(ARG_MAX_XSL_THREADS);
+            values.maxResourceRequestsInFlight = getInt(ARG_MAX_RESOURCE_REQUESTS_IN_FLIGHT);
+            values.maxConcurrentFeeds = getInt(ARG_MAX_CONCURRENT_FEEDS);
+            values.maxConcurrentRepullBatches = getInt(ARG_MAX_CONCURRENT_REPULL_BATCHES);
+            values.partitionedCategories = getCategories(ARG_PARTITIONED_CATEGORIES, true);
+            values.partitionGroups = getIntegers(ARG_PARTITION_GROUPS, true);
 
             values.apiEndpoint = getString(ARG_ELEMENTS_API_ENDPOINT, false);
             values.apiVersion = getApiVersion(ARG_ELEMENTS_API_VERSION);
@@ -363,6 +396,9 @@ public class Configuration {
 
             values.apiSoTimeout = getInt(ARG_API_SOCKET_TIMEOUT);
             values.apiRequestDelay = getInt(ARG_API_REQUEST_DELAY);
+            values.apiRequestBurst = getInt(ARG_API_REQUEST_BURST);
+            values.apiMaxConcurrency = getInt(ARG_API_MAX_CONCURRENCY);
+            values.apiCompression = getBoolean(ARG_API_COMPRESSION);
 
             values.groupsToHarvestMatcher = getGroupMatcher(ARG_PARAMS_GROUPS, ARG_PARAMS_GROUP_REGEXES, ARG_PARAMS_GROUP_DESC_REGEXES);
             values.groupsToIncludeChildrenOfMatcher = getGroupMatcher(ARG_INCLUDE_CHILD_GROUPS, ARG_INCLUDE_CHILD_GROUPS_REGEXES, ARG_INCLUDE_CHILD_GROUPS_DESC_REGEXES);
@@ -383,6 +419,8 @@ public class Configuration {
 
             values.visibleLinksOnly = getBoolean(ARG_VISIBLE_LINKS_ONLY);
             values.repullRelsToCorrectVisibility = getBoolean(ARG_REPULL_RELS_TO_CORRECT_VISIBILITY);
+            values.useAffectedRelationshipDeltas = getBoolean(ARG_USE_AFFECTED_RELATIONSHIP_DELTAS);
+            values.verifyFullPulls = getBoolean(ARG_VERIFY_FULL_PULLS);
             values.relTypesToReprocess = Collections.unmodifiableSet(new HashSet<String>(getStrings(ARG_RELATIONSHIP_TYPES_TO_REPROCESS, true)));
 
             values.useFullUTF8 = getBoolean(ARG_USE_FULL_UTF8);
@@ -400,6 +438,9 @@ public class Configuration {
             values.ignoreSSLErrors = getBoolean(ARG_IGNORE_SSL_ERRORS);
             values.rewriteMismatchedUrls = getBoolean(ARG_REWRITE_MISMATCHED_URLS);
             values.zipFiles = getBoolean(ARG_ZIP_FILES);
+            values.skipUnchangedItems = getBoolean(ARG_SKIP_UNCHANGED_ITEMS);
+            values.usePackFiles = getBoolean(ARG_USE_PACK_FILES);
+            values.shardDirectories = getBoolean(ARG_SHARD_DIRECTORIES);
             values.maxFragmentFileSize = getInt(ARG_MAX_FRAGMENT_FILE_SIZE);
 
             values.eligibilityFilter = getEligibilityScheme();
@@ -434,6 +475,26 @@ public class Configuration {
         return values.maxThreadsXsl;
     }
 
+    public static int getMaxResourceRequestsInFlight() {
+        return values.maxResourceRequestsInFlight;
+    }
+
+    public static int getMaxConcurrentFeeds() {
+        return values.maxConcurrentFeeds;
+    }
+
+    public static int getMaxConcurrentRepullBatches() {
+        return values.maxConcurrentRepullBatches;
+    }
+
+    public static List<ElementsObjectCategory> getPartitionedCategories() {
+        return values.partitionedCategories;
+    }
+
+    public static List<Integer> getPartitionGroups() {
+        return values.partitionGroups;
+    }
+
     public static String getApiEndpoint() {
         return values.apiEndpoint;
     }
@@ -456,6 +517,18 @@ public class Configuration {
         return values.apiRequestDelay;
     }
 
+    public static int getApiRequestBurst() {
+        return values.apiRequestBurst;
+    }
+
+    public static int getApiMaxConcurrency() {
+        return values.apiMaxConcurrency;
+    }
+
+    public static boolean getApiCompression() {
+        return values.apiCompression;
+    }
+
     public static int getFullDetailPerPage() {
         return values.fullDetailPerPage;
     }
@@ -520,6 +593,14 @@ public class Configuration {
         return values.repullRelsToCorrectVisibility;
     }
 
+    public static boolean getUseAffectedRelationshipDeltas() {
+        return values.useAffectedRelationshipDeltas;
+    }
+
+    public static boolean getVerifyFullPulls() {
+        return values.verifyFullPulls;
+    }
+
     public static Set<String> getRelTypesToReprocess() {
         return values.relTypesToReprocess;
     }
@@ -566,6 +647,18 @@ public class Configuration {
         return values.zipFiles;
     }
 
+    public static boolean getSkipUnchangedItems() {
+        return values.skipUnchangedItems;
+    }
+
+    public static boolean getUsePackFiles() {
+        return values.usePackFiles;
+    }
+
+    public static boolean getShardDirectories() {
+        return values.shardDirectories;
+    }
+
     public static boolean getChangeProtectionEnabled() {
         return values.changeProtectionEnabled;
     }
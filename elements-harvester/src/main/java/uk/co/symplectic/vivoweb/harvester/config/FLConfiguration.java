@@ -39,6 +39,8 @@ public class FLConfiguration {
         private ConfigKey ARG_MAX_RETRIES = new ConfigKey("maxRetries", "5");
 
         private ConfigKey ARG_API_SOCKET_TIMEOUT = new ConfigKey("apiSocketTimeout", "300000"); //TODO: review this default
+        private ConfigKey ARG_API_REQUEST_DELAY = new ConfigKey("sparqlApiRequestDelay", "-1");
+        private ConfigKey ARG_API_REQUEST_BURST = new ConfigKey("sparqlApiRequestBurst", "1");
 
         //storage
         private String sparqlApiEndpoint;
@@ -51,6 +53,8 @@ public class FLConfiguration {
         private int retryDelay = -1;
         private int maxRetries = -1;
         private int apiSocketTimeout = -1;
+        private int apiRequestDelay = -1;
+        private int apiRequestBurst = 1;
 
         //Constructor and methods
         Parser(Properties props, List<String> errors) {
@@ -67,6 +71,8 @@ public class FLConfiguration {
             values.retryDelay = getInt(ARG_RETRY_DELAY);
             values.maxRetries = getInt(ARG_MAX_RETRIES);
             values.apiSocketTimeout = getInt(ARG_API_SOCKET_TIMEOUT);
+            values.apiRequestDelay = getInt(ARG_API_REQUEST_DELAY);
+            values.apiRequestBurst = getInt(ARG_API_REQUEST_BURST);
         }
     }
 
@@ -101,6 +107,14 @@ public class FLConfiguration {
         return values.apiSocketTimeout;
     }
 
+    public static int getApiRequestDelay() {
+        return values.apiRequestDelay;
+    }
+
+    public static int getApiRequestBurst() {
+        return values.apiRequestBurst;
+    }
+
     public static int getMaxRetries() {
         return values.maxRetries;
     }
@@ -210,8 +210,18 @@ public class StateManagement {
     }
 
     public boolean manageStateForCompleteRun(State state, int userCount, int objectCount){
+        return manageStateForCompleteRun(state, userCount, objectCount, null);
+    }
+
+    /**
+     * Variant of manageStateForCompleteRun for runs where some of the data in the raw cache was fetched by an earlier
+     * (failed) attempt, and so is only known to be up to date as of when that attempt started.
+     * @param dataFetchStartedAt when fetching of the data in the raw cache started (the current run's start is used if null).
+     */
+    public boolean manageStateForCompleteRun(State state, int userCount, int objectCount, Date dataFetchStartedAt){
         //we don't update the date in the file if we are reprocessing as the data in the raw cache has not been altered..
-        Date dateToWrite = state.getRunClassification() == RunClassification.REPROCESSING ? state.getLastRunDate() : state.getCurrentRunStartedAt();
+        Date dateToWrite = state.getRunClassification() == RunClassification.REPROCESSING ? state.getLastRunDate() :
+                (dataFetchStartedAt != null ? dataFetchStartedAt : state.getCurrentRunStartedAt());
         return writeStateFile(state.getCurrentRunCount(), userCount, objectCount, dateToWrite, null);
     }
 
@@ -10,31 +10,49 @@
  */
 package uk.co.symplectic.vivoweb.harvester.fetch;
 
+import org.apache.commons.io.input.CharSequenceReader;
+import org.apache.commons.io.input.ReaderInputStream;
 import org.apache.commons.lang.NullArgumentException;
+import org.apache.commons.lang.StringEscapeUtils;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import uk.co.symplectic.elements.api.ElementsAPI;
 import uk.co.symplectic.elements.api.ElementsAPIVersion;
+import uk.co.symplectic.elements.api.ElementsFeedCheckpoint;
 import uk.co.symplectic.elements.api.ElementsFeedQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedGroupQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedObjectQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedRelationshipQuery;
 import uk.co.symplectic.elements.api.queries.ElementsAPIFeedRelationshipTypesQuery;
 import uk.co.symplectic.vivoweb.harvester.model.*;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsItemFileStore;
 import uk.co.symplectic.vivoweb.harvester.store.ElementsItemStore;
+import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
 import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+import uk.co.symplectic.utils.PipelineStage;
 import uk.co.symplectic.utils.xml.StAXUtils;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
+import uk.co.symplectic.utils.xml.XMLSourceCapture;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLEventFactory;
 import javax.xml.stream.XMLEventWriter;
 import javax.xml.stream.XMLOutputFactory;
 import javax.xml.stream.XMLStreamException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
 import java.text.MessageFormat;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Classes designed to facilitate fetching of data from an ElementsAPI object and storing them in a ElementsItemStore object.
@@ -47,10 +65,13 @@ public class ElementsFetch {
 
     /**
      * General purpose XMLEventFilterWrapper designed to wrap an ItemExtractingFilter T that extracts an item of type S
-     * For every entry processed by the filter. The Raw XML that was parsed to create the extracted item S is internally
-     * stored (by outputting all the processed events passing through this wrapper to an XMLOutputStream) and then stored
-     * in a byte array. The extracted Item S and the byte array representing the raw data that was parsed to extract S
-     * are then passed to an abstract method (processItem).
+     * For every entry processed by the filter. Where the processor makes the raw text of the document available
+     * (see XMLSourceCapture) the Raw XML that was parsed to create the extracted item S is taken straight from it, using
+     * the offsets of the entry's first and last events, with any namespaces the entry inherits from its ancestors
+     * declared on the wrapping root element. Otherwise it is re-created (by outputting all the processed events passing
+     * through this wrapper to an XMLOutputStream) in a buffer that is reused from entry to entry.
+     * The extracted Item S and a stream over the raw data that was parsed to extract S are then passed to an abstract
+     * method (processItem).
      * @param <S> Type of Item to be extracted.
      * @param <T> Type of Inner Filter that extracts an Item of type S.
      */
@@ -58,8 +79,24 @@ public class ElementsFetch {
 
         private static final int logProgressEveryN = 1000;
 
+        /**
+         * ByteArrayOutputStream that can be read back without first copying its contents (as toByteArray does).
+         */
+        private static class CaptureBuffer extends ByteArrayOutputStream {
+            InputStream toInputStream(){ return new ByteArrayInputStream(buf, 0, count); }
+        }
+
         private XMLEventWriter writer = null;
-        private ByteArrayOutputStream dataStream = null;
+        //a new buffer for each item, so that the data handed to processItem remains valid once the call returns.
+        private CaptureBuffer dataStream = null;
+
+        //the raw text of the current item is taken from here if it is available.
+        private XMLSourceCapture sourceCapture = null;
+        private int sourceStart = -1;
+        //namespaces the current item relies on that are declared outside of it (prefix to uri)
+        private final Map<String, String> inheritedNamespaces = new LinkedHashMap<String, String>();
+        //prefixes declared within the current item, by element depth.
+        private final LinkedList<List<String>> declaredPrefixes = new LinkedList<List<String>>();
         private final XMLEventFactory eventFactory = StAXUtils.getXMLEventFactory();
         private final QName rootElement;
         private final String itemDescriptor;
@@ -81,23 +118,41 @@ public class ElementsFetch {
 
         @Override
         protected void postInnerItemStart(XMLEventProcessor.WrappedXmlEvent initialEvent) throws XMLStreamException {
-            XMLOutputFactory factory = StAXUtils.getXMLOutputFactory();
-            dataStream = new ByteArrayOutputStream();
-            writer = factory.createXMLEventWriter(dataStream, "utf-8");
-            writer.add(eventFactory.createStartDocument());
-            if(rootElement != null) writer.add(eventFactory.createStartElement(rootElement, null, null));
+            sourceCapture = initialEvent.getSourceCapture();
+            sourceStart = initialEvent.getSourceOffset();
+            if(sourceCapture != null && sourceStart >= 0 && sourceStart < sourceCapture.getLength() && sourceCapture.charAt(sourceStart) == '<'){
+                writer = null;
+                inheritedNamespaces.clear();
+                declaredPrefixes.clear();
+            }
+            else {
+                sourceCapture = null;
+                XMLOutputFactory factory = StAXUtils.getXMLOutputFactory();
+                dataStream = new CaptureBuffer();
+                writer = factory.createXMLEventWriter(dataStream, "utf-8");
+                writer.add(eventFactory.createStartDocument());
+                if (rootElement != null) writer.add(eventFactory.createStartElement(rootElement, null, null));
+            }
         }
 
         @Override
         protected void postInnerProcessEvent(XMLEventProcessor.WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException {
-            writer.add(event.getRawEvent());
+            if(writer != null) writer.add(event.getRawEvent());
+            else trackNamespaces(event);
         }
 
         @Override
         protected void postInnerItemEnd(XMLEventProcessor.WrappedXmlEvent finalEvent) throws XMLStreamException {
-            if(rootElement != null) writer.add(eventFactory.createEndElement(rootElement, null));
-            writer.add(eventFactory.createEndDocument());
-            writer.close();
+            InputStream data;
+            if(writer != null) {
+                if (rootElement != null) writer.add(eventFactory.createEndElement(rootElement, null));
+                writer.add(eventFactory.createEndDocument());
+                writer.close();
+                data = dataStream.toInputStream();
+            }
+            else {
+                data = getCapturedItem(finalEvent);
+            }
             try {
                 S item = innerFilter.getExtractedItem();
                 counter++;
@@ -105,7 +160,7 @@ public class ElementsFetch {
                     log.info(MessageFormat.format("{0} {1} processed and stored", counter, itemDescriptor));
                 }
 
-                processItem(item, dataStream.toByteArray());
+                processItem(item, data);
             }
             catch(IOException e){
                 throw new IllegalStateException(e);
@@ -113,13 +168,80 @@ public class ElementsFetch {
         }
 
         /**
-         * The abstract method called by the filter with the extracted item S and a byte array containing the raw XML data
+         * The abstract method called by the filter with the extracted item S and a stream over the raw XML data
          * that S was extracted from wrapped in the the specified rootElement
          * @param item The item (of type S) extracted by the wrapped inner filter.
-         * @param data the raw XML from which the item was extracted.
+         * @param data the raw XML from which the item was extracted. This is a view over text that is never changed or
+         *             reused, so it can be read (once) after the call has returned - e.g. by a pipeline stage.
          * @throws IOException if errors occur during processing.
          */
-        protected abstract void processItem(S item, byte[] data) throws IOException;
+        protected abstract void processItem(S item, InputStream data) throws IOException;
+
+        /**
+         * Keep track of any namespaces used in the current item that are not declared within it.
+         */
+        private void trackNamespaces(XMLEventProcessor.WrappedXmlEvent event){
+            if(event.isStartElement()){
+                List<String> prefixes = new ArrayList<String>();
+                for(int i = 0; i < event.getNamespaceCount(); i++) prefixes.add(event.getNamespacePrefix(i));
+                declaredPrefixes.addLast(prefixes);
+
+                trackNamespace(event.getName());
+                for(int i = 0; i < event.getAttributeCount(); i++){
+                    QName name = event.getAttributeName(i);
+                    //unprefixed attributes are never in a namespace.
+                    if(!StringUtils.isEmpty(name.getPrefix())) trackNamespace(name);
+                }
+            }
+            else if(event.isEndElement() && !declaredPrefixes.isEmpty()){
+                declaredPrefixes.removeLast();
+            }
+        }
+
+        private void trackNamespace(QName name){
+            String prefix = name.getPrefix() == null ? "" : name.getPrefix();
+            if(inheritedNamespaces.containsKey(prefix)) return;
+            for(List<String> prefixes : declaredPrefixes){
+                if(prefixes.contains(prefix)) return;
+            }
+            inheritedNamespaces.put(prefix, name.getNamespaceURI() == null ? "" : name.getNamespaceURI());
+        }
+
+        /**
+         * @return the raw text of the current item, taken from the source capture, wrapped in the rootElement.
+         */
+        private InputStream getCapturedItem(XMLEventProcessor.WrappedXmlEvent finalEvent){
+            int sourceEnd = finalEvent.getNextSourceOffset();
+            if(sourceEnd <= sourceStart || sourceEnd > sourceCapture.getLength() || sourceCapture.charAt(sourceEnd - 1) != '>')
+                throw new IllegalStateException(MessageFormat.format("Unable to locate the end of the {0} starting at offset {1}", itemDescriptor, sourceStart));
+
+            StringBuilder header = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>");
+            String footer = "";
+            if(rootElement != null){
+                Map<String, String> namespaces = new LinkedHashMap<String, String>();
+                String rootPrefix = rootElement.getPrefix();
+                //if the item uses the root's prefix for something else the root needs a prefix of its own.
+                for(int i = 0; inheritedNamespaces.containsKey(rootPrefix) && !inheritedNamespaces.get(rootPrefix).equals(rootElement.getNamespaceURI()); i++){
+                    rootPrefix = "ns" + i;
+                }
+                namespaces.put(rootPrefix, rootElement.getNamespaceURI());
+                namespaces.putAll(inheritedNamespaces);
+
+                String rootName = rootPrefix.length() == 0 ? rootElement.getLocalPart() : rootPrefix + ":" + rootElement.getLocalPart();
+                header.append("<").append(rootName);
+                for(Map.Entry<String, String> namespace : namespaces.entrySet()){
+                    header.append(namespace.getKey().length() == 0 ? " xmlns" : " xmlns:" + namespace.getKey());
+                    header.append("=\"").append(StringEscapeUtils.escapeXml(namespace.getValue())).append("\"");
+                }
+                header.append(">");
+                footer = "</" + rootName + ">";
+            }
+
+            Charset utf8 = Charset.forName("utf-8");
+            InputStream item = new ReaderInputStream(new CharSequenceReader(sourceCapture.getText(sourceStart, sourceEnd)), utf8);
+            return new SequenceInputStream(new SequenceInputStream(new ByteArrayInputStream(header.toString().getBytes(utf8)), item),
+                    new ByteArrayInputStream(footer.getBytes(utf8)));
+        }
     }
 
     /**
@@ -136,6 +258,8 @@ public class ElementsFetch {
         private final StorableResourceType resourceType;
         ElementsItemInfo.ExtractionSource extractionSource;
         private final ElementsItemStore objectStore;
+        //where storing is handed off to, if it is not done on the thread parsing the items (may be null).
+        private final PipelineStage<StoreTask> storeStage;
 
         protected ElementsItemStore getObjectStore(){ return objectStore; }
         protected StorableResourceType getResourceType(){ return resourceType; }
@@ -147,9 +271,11 @@ public class ElementsFetch {
          * @param resourceType The StorableResourceType of the data to be extracted (RAW_XXXX)
          * @param extractionSource Where the data is being extracted from (feed/deleted feed, etc)
          * @param objectStore the store where the extracted data will be stored
+         * @param storeStage the pipeline stage that should store the extracted data, or null to store it straight away.
          */
-        public ItemProcessingFilter(StorableResourceType resourceType, ElementsItemInfo.ExtractionSource extractionSource, ElementsItemStore objectStore) {
-            this(outputRootElement, resourceType, extractionSource, objectStore);
+        public ItemProcessingFilter(StorableResourceType resourceType, ElementsItemInfo.ExtractionSource extractionSource, ElementsItemStore objectStore,
+                                    PipelineStage<StoreTask> storeStage) {
+            this(outputRootElement, resourceType, extractionSource, objectStore, storeStage);
         }
 
         /**
@@ -159,9 +285,11 @@ public class ElementsFetch {
          * @param resourceType The StorableResourceType of the data to be extracted (RAW_XXXX)
          * @param extractionSource Where the data is being extracted from (feed/ deleted feed, etc)
          * @param objectStore the store where the extracted data will be stored
+         * @param storeStage the pipeline stage that should store the extracted data, or null to store it straight away.
          */
         @SuppressWarnings("SameParameterValue")
-        protected ItemProcessingFilter(QName rootElement, StorableResourceType resourceType, ElementsItemInfo.ExtractionSource extractionSource, ElementsItemStore objectStore) {
+        protected ItemProcessingFilter(QName rootElement, StorableResourceType resourceType, ElementsItemInfo.ExtractionSource extractionSource, ElementsItemStore objectStore,
+                                       PipelineStage<StoreTask> storeStage) {
             //Note call to ElementsItemInfo.getExtractor in the super line below..
             super(rootElement, ElementsItemInfo.getExtractor(resourceType.getKeyItemType(), extractionSource, 0), resourceType.getKeyItemType().getPluralName());
             if (objectStore == null) throw new NullArgumentException("objectStore");
@@ -173,18 +301,37 @@ public class ElementsFetch {
             this.objectStore = objectStore;
             this.resourceType = resourceType;
             this.extractionSource = extractionSource;
+            this.storeStage = storeStage;
         }
 
         /**
          * * implementation of superclasses processItem stub that depending on the extraction source will either
          * delete or store the data against the item in the objectStore.
+         * If there is a storeStage this is handed off to it, along with the data (which remains valid after this call, so
+         * is not copied).
          */
         @Override
-        protected void processItem(ElementsItemInfo item, byte[] data) throws IOException {
-            if(extractionSource == ElementsItemInfo.ExtractionSource.DELETED_FEED)
-                ((ElementsItemStore.ElementsDeletableItemStore) getObjectStore()).deleteItem(item.getItemId(), getResourceType());
-            else
-                getObjectStore().storeItem(item, getResourceType(), data);
+        protected void processItem(final ElementsItemInfo item, final InputStream data) throws IOException {
+            if(extractionSource == ElementsItemInfo.ExtractionSource.DELETED_FEED) {
+                if(storeStage == null) deleteItem(item);
+                else storeStage.put(new StoreTask() {
+                    @Override
+                    public void execute() throws IOException { deleteItem(item); }
+                });
+            }
+            else {
+                if(storeStage == null) getObjectStore().storeItem(item, getResourceType(), data);
+                else {
+                    storeStage.put(new StoreTask() {
+                        @Override
+                        public void execute() throws IOException { getObjectStore().storeItem(item, getResourceType(), data); }
+                    });
+                }
+            }
+        }
+
+        private void deleteItem(ElementsItemInfo item) throws IOException {
+            ((ElementsItemStore.ElementsDeletableItemStore) getObjectStore()).deleteItem(item.getItemId(), getResourceType());
         }
     }
 
@@ -208,6 +355,8 @@ public class ElementsFetch {
             this.getFullDetails = getFullDetails;
         }
 
+        protected boolean isFullDetails(){ return getFullDetails; }
+
         /**
          * Call to get the set of Queries to be run to complete this FetchConfig
          * Calls into corresponding abstract stub below, which is implemented by child classes
@@ -223,6 +372,25 @@ public class ElementsFetch {
          */
         protected abstract Collection<DescribedQuery> getQueries(boolean fullDetails);
 
+        /**
+         * Call to get the Queries to be run to complete this FetchConfig, broken up into independent sequences.
+         * Queries within a sequence must be run in order, but separate sequences do not depend on each other and so
+         * may be run concurrently (e.g. by an ElementsFetch configured with maxConcurrentFeeds greater than 1).
+         * Calls into corresponding stub below, which may be overridden by child classes.
+         */
+        public final Collection<List<DescribedQuery>> getIndependentQuerySequences(){return getIndependentQuerySequences(getFullDetails);}
+
+        /**
+         * Stub to specify how the DescribedQueries in this FetchConfig can be broken up into independent sequences.
+         * By default every query is placed in a single sequence, i.e. they must all be run one after the other.
+         * @param fullDetails whether to request "full" or "ref" level detail from the ElementsAPI.
+         * @return The set of independent sequences of Queries to be run to complete this FetchConfig.
+         */
+        protected Collection<List<DescribedQuery>> getIndependentQuerySequences(boolean fullDetails){
+            List<DescribedQuery> sequence = new ArrayList<DescribedQuery>(getQueries(fullDetails));
+            return Collections.singletonList(sequence);
+        }
+
         /**
          * Inner class DescribedQuery represents an ElementsFeedQuery along with a basic description to be used during logging.
          * It also incorporates the ability to generate a new Extractor object to act as the filter to process the data
@@ -265,8 +433,20 @@ public class ElementsFetch {
              * type this query is interested in.
              */
             protected ElementsAPI.APIResponseFilter getExtractor(ElementsItemStore objectStore){
+                return getExtractor(objectStore, null);
+            }
+
+            /**
+             * As getExtractor above, but with the extracted data being stored (or deleted) by a pipeline stage,
+             * rather than on the thread parsing the API responses.
+             * @param objectStore The store where the extracted data will be put
+             * @param storeStage the pipeline stage that should do the storing (may be null to store straight away).
+             * @return an ElementsAPI.APIResponseFilter that can be used to process an XML stream to extract data of the
+             * type this query is interested in.
+             */
+            protected ElementsAPI.APIResponseFilter getExtractor(ElementsItemStore objectStore, PipelineStage<StoreTask> storeStage){
                 ElementsItemInfo.ExtractionSource extractionSource = query.queryRepresentsDeletedItems() ? ElementsItemInfo.ExtractionSource.DELETED_FEED : ElementsItemInfo.ExtractionSource.FEED;
-                return wrapFilterAsApiResponse(new ItemProcessingFilter(getResourceType(), extractionSource, objectStore));
+                return wrapFilterAsApiResponse(new ItemProcessingFilter(getResourceType(), extractionSource, objectStore, storeStage));
             }
         }
     }
@@ -309,6 +489,8 @@ public class ElementsFetch {
             this.categoriesToHarvest.addAll(categoriesToHarvest);
         }
 
+        List<ElementsObjectCategory> getCategories(){ return Collections.unmodifiableList(categoriesToHarvest); }
+
         @Override
         protected Collection<DescribedQuery> getQueries(boolean fullDetails){
             List<DescribedQuery> queries = new ArrayList<DescribedQuery>();
@@ -319,6 +501,22 @@ public class ElementsFetch {
             return queries;
         }
 
+        /**
+         * Each category is independent of the others, so the queries are split into one sequence per category
+         * (the "deleted" query for a category is always run after the main query for that category).
+         */
+        @Override
+        protected Collection<List<DescribedQuery>> getIndependentQuerySequences(boolean fullDetails){
+            List<List<DescribedQuery>> sequences = new ArrayList<List<DescribedQuery>>();
+            for(ElementsObjectCategory category : categoriesToHarvest){
+                List<DescribedQuery> sequence = new ArrayList<DescribedQuery>();
+                sequence.add(getQuery(category, fullDetails));
+                if(getModifiedSince() != null) sequence.add(getDeletedQuery(category));
+                sequences.add(sequence);
+            }
+            return sequences;
+        }
+
         private DescribedQuery getQuery(ElementsObjectCategory category, boolean fullDetails) {
             ElementsFeedQuery currentQuery = new ElementsAPIFeedObjectQuery(category, fullDetails, getModifiedSince());
             return new DescribedQuery(currentQuery, MessageFormat.format("Processing {0}", category.getPlural()));
@@ -330,6 +528,56 @@ public class ElementsFetch {
         }
     }
 
+    /**
+     * A Fetch Config that represents a full pull of a single ElementsObjectCategory, broken up into several "partitions"
+     * (one per group in partitionGroups) that can be fetched independently (and concurrently).
+     * As group based partitions may overlap, and may not cover every item in the category, a PartitionedObjectConfig
+     * should be processed with ElementsFetch.executePartitioned, which de-duplicates items across partitions and fetches
+     * (by id) any item in the category that no partition covered.
+     */
+    @SuppressWarnings("WeakerAccess")
+    public static class PartitionedObjectConfig extends FetchConfig {
+        final private ElementsObjectCategory category;
+        final private List<Integer> partitionGroups = new ArrayList<Integer>();
+
+        public PartitionedObjectConfig(boolean getFullDetails, ElementsObjectCategory category, Collection<Integer> partitionGroups){
+            super(getFullDetails);
+            if (category == null)  throw new NullArgumentException("category");
+            if (partitionGroups == null)  throw new NullArgumentException("partitionGroups");
+            if (partitionGroups.isEmpty())  throw new IllegalArgumentException("partitionGroups should not be empty for a PartitionedObjectConfig");
+            this.category = category;
+            this.partitionGroups.addAll(new LinkedHashSet<Integer>(partitionGroups));
+        }
+
+        public ElementsObjectCategory getCategory(){ return category; }
+
+        @Override
+        protected Collection<DescribedQuery> getQueries(boolean fullDetails){
+            List<DescribedQuery> queries = new ArrayList<DescribedQuery>();
+            for(Integer groupId : partitionGroups){
+                ElementsFeedQuery currentQuery = new ElementsAPIFeedObjectQuery.GroupPartition(category, fullDetails, groupId);
+                queries.add(new DescribedQuery(currentQuery, MessageFormat.format("Processing {0} (partition for group {1})", category.getPlural(), groupId)));
+            }
+            return queries;
+        }
+
+        //every partition is independent of the others.
+        @Override
+        protected Collection<List<DescribedQuery>> getIndependentQuerySequences(boolean fullDetails){
+            List<List<DescribedQuery>> sequences = new ArrayList<List<DescribedQuery>>();
+            for(DescribedQuery query : getQueries(fullDetails)) sequences.add(Collections.singletonList(query));
+            return sequences;
+        }
+
+        /**
+         * @return a "ref" detail query for the whole (un-partitioned) category, used to check partition coverage.
+         */
+        DescribedQuery getCoverageQuery(){
+            ElementsFeedQuery currentQuery = new ElementsAPIFeedObjectQuery(category, false, null);
+            return new DescribedQuery(currentQuery, MessageFormat.format("Checking partition coverage of {0}", category.getPlural()));
+        }
+    }
+
     /**
      * A Fetch Config that represents querying all the relationships of a certain set of types
      * either in full or in a delta manner (if modified-since is not null)
@@ -339,9 +587,16 @@ public class ElementsFetch {
     public static class RelationshipConfig extends DeltaCapableFeedConfig{
 
         final Set<ElementsItemId.RelationshipTypeId> relationshipTypesToInclude = new HashSet<ElementsItemId.RelationshipTypeId>();
+        //whether a delta should also fetch relationships affected by changes to their linked objects.
+        final boolean includeAffected;
 
         public RelationshipConfig(Date modifiedSince, Set<ElementsItemId> relationshipTypesToInclude){
+            this(modifiedSince, false, relationshipTypesToInclude);
+        }
+
+        public RelationshipConfig(Date modifiedSince, boolean includeAffected, Set<ElementsItemId> relationshipTypesToInclude){
             super(false, modifiedSince);
+            this.includeAffected = includeAffected;
             if(relationshipTypesToInclude != null) {
                 for (ElementsItemId relationshipId : relationshipTypesToInclude) {
                     if (!(relationshipId instanceof ElementsItemId.RelationshipTypeId))
@@ -360,7 +615,7 @@ public class ElementsFetch {
         }
 
         private DescribedQuery getQuery(boolean fullDetails){
-            ElementsFeedQuery currentQuery = new ElementsAPIFeedRelationshipQuery(fullDetails, getModifiedSince(), relationshipTypesToInclude);
+            ElementsFeedQuery currentQuery = new ElementsAPIFeedRelationshipQuery(fullDetails, getModifiedSince(), includeAffected, relationshipTypesToInclude);
             return new DescribedQuery(currentQuery, "Processing relationships");
         }
 
@@ -370,13 +625,75 @@ public class ElementsFetch {
         }
     }
 
+    /**
+     * A Fetch Config that represents querying a set of specific items (see ElementsFetch.executeList)
+     */
+    public abstract static class ItemListConfig extends FetchConfig{
+        public ItemListConfig(boolean getFullDetails){ super(getFullDetails); }
+
+        /**
+         * @return the items to be fetched.
+         */
+        abstract Set<ElementsItemId> getRequestedItems();
+
+        /**
+         * @return a name for the requested items (used in logging).
+         */
+        abstract String getItemDescriptor();
+    }
+
+    /**
+     * A Fetch Config that represents querying a set of specific objects (which may be of several categories).
+     */
+    public static class ObjectsListConfig extends ItemListConfig{
+
+        private final Map<ElementsObjectCategory, List<Integer>> objectsToProcess = new LinkedHashMap<ElementsObjectCategory, List<Integer>>();
+        private final Set<ElementsItemId> requestedItems = new HashSet<ElementsItemId>();
+
+        public ObjectsListConfig(boolean getFullDetails, Set<ElementsItemId> objectsToProcess){
+            super(getFullDetails);
+            if(objectsToProcess == null) throw new NullArgumentException("objectsToProcess");
+            for(ElementsItemId objectId : objectsToProcess) {
+                if(!(objectId instanceof ElementsItemId.ObjectId))
+                    throw new IllegalArgumentException("objectsToProcess must only contain item ids representing objects");
+                ElementsObjectCategory category = (ElementsObjectCategory) objectId.getItemSubType();
+                if(!this.objectsToProcess.containsKey(category)) this.objectsToProcess.put(category, new ArrayList<Integer>());
+                this.objectsToProcess.get(category).add(objectId.getId());
+                requestedItems.add(objectId);
+            }
+        }
+
+        @Override
+        Set<ElementsItemId> getRequestedItems(){ return requestedItems; }
+
+        @Override
+        String getItemDescriptor(){ return "objects"; }
+
+        @Override
+        protected Collection<DescribedQuery> getQueries(boolean fullDetails){
+            List<DescribedQuery> queries = new ArrayList<DescribedQuery>();
+            for(Map.Entry<ElementsObjectCategory, List<Integer>> entry : objectsToProcess.entrySet()){
+                ElementsObjectCategory category = entry.getKey();
+                String description = MessageFormat.format("Fetching {0} listed {1}", entry.getValue().size(), category.getPlural());
+                queries.add(new DescribedQuery(new ElementsAPIFeedObjectQuery.IdList(category, fullDetails, entry.getValue()), description));
+            }
+            return queries;
+        }
+    }
+
     /**
      * A Fetch Config that represents querying a set of specific relationships
      */
-    public static class RelationshipsListConfig extends FetchConfig{
+    public static class RelationshipsListConfig extends ItemListConfig{
 
         private final List<ElementsItemId.RelationshipId> relationshipsToProcess = new ArrayList<ElementsItemId.RelationshipId>();
 
+        @Override
+        Set<ElementsItemId> getRequestedItems(){ return new HashSet<ElementsItemId>(relationshipsToProcess); }
+
+        @Override
+        String getItemDescriptor(){ return "relationships"; }
+
         public RelationshipsListConfig(Set<ElementsItemId> relationshipsToProcess){
             super(false);
             if(relationshipsToProcess == null) throw new NullArgumentException("relationshipsToProcess");
@@ -444,6 +761,98 @@ public class ElementsFetch {
         }
     }
 
+    /**
+     * A piece of work handed off to the pipeline stage that stores the items extracted from a feed (see executeQuery).
+     */
+    interface StoreTask{
+        void execute() throws IOException;
+    }
+
+    /**
+     * ElementsItemStore wrapper used when merging the output of several (possibly overlapping) partitions into one store.
+     * Only the first copy of each item is passed on to the wrapped store, later copies are counted and ignored.
+     * Thread safe, as partitions may be processed concurrently.
+     */
+    private static class DeduplicatingItemStore implements ElementsItemStore {
+        private final ElementsItemStore innerStore;
+        private final Set<ElementsItemId> storedItems = Collections.synchronizedSet(new HashSet<ElementsItemId>());
+        private final AtomicInteger duplicateCount = new AtomicInteger(0);
+
+        DeduplicatingItemStore(ElementsItemStore innerStore){
+            if(innerStore == null) throw new NullArgumentException("innerStore");
+            this.innerStore = innerStore;
+        }
+
+        Set<ElementsItemId> getStoredItems(){ return storedItems; }
+        int getDuplicateCount(){ return duplicateCount.get(); }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            if(storedItems.add(itemInfo.getItemId())) return innerStore.storeItem(itemInfo, resourceType, data);
+            duplicateCount.incrementAndGet();
+            return null;
+        }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) throws IOException {
+            if(storedItems.add(itemInfo.getItemId())) return innerStore.storeItem(itemInfo, resourceType, data);
+            duplicateCount.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * ElementsItemStore wrapper that keeps track of which of a known set of requested items have been passed on to the
+     * wrapped store, periodically logging how many have been resolved so far.
+     * Thread safe, as the requests for the items may be made concurrently.
+     */
+    private static class ResolvingItemStore implements ElementsItemStore {
+        private static final int logProgressEveryN = 1000;
+
+        private final ElementsItemStore innerStore;
+        private final Set<ElementsItemId> requestedItems;
+        private final Set<ElementsItemId> resolvedItems = Collections.synchronizedSet(new HashSet<ElementsItemId>());
+        private final String itemDescriptor;
+
+        ResolvingItemStore(ElementsItemStore innerStore, Set<ElementsItemId> requestedItems, String itemDescriptor){
+            if(innerStore == null) throw new NullArgumentException("innerStore");
+            if(requestedItems == null) throw new NullArgumentException("requestedItems");
+            this.innerStore = innerStore;
+            this.requestedItems = requestedItems;
+            this.itemDescriptor = itemDescriptor;
+        }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException {
+            ElementsStoredItemInfo storedItem = innerStore.storeItem(itemInfo, resourceType, data);
+            resolved(itemInfo.getItemId());
+            return storedItem;
+        }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) throws IOException {
+            ElementsStoredItemInfo storedItem = innerStore.storeItem(itemInfo, resourceType, data);
+            resolved(itemInfo.getItemId());
+            return storedItem;
+        }
+
+        private void resolved(ElementsItemId itemId){
+            if(requestedItems.contains(itemId) && resolvedItems.add(itemId)){
+                int resolvedCount = resolvedItems.size();
+                if(resolvedCount % logProgressEveryN == 0)
+                    log.info(MessageFormat.format("{0} of {1} requested {2} resolved", resolvedCount, requestedItems.size(), itemDescriptor));
+            }
+        }
+
+        int getResolvedCount(){ return resolvedItems.size(); }
+
+        Set<ElementsItemId> getMissingItems(){
+            Set<ElementsItemId> missingItems = new HashSet<ElementsItemId>(requestedItems);
+            missingItems.removeAll(resolvedItems);
+            return missingItems;
+        }
+    }
+
     //**********************************************************
     //Implementation of ElementsFetch class proper, begins here:
     //**********************************************************
@@ -454,33 +863,360 @@ public class ElementsFetch {
     private static Logger log = LoggerFactory.getLogger(ElementsFetch.class);
     //the api to fetch data from
     final private ElementsAPI elementsAPI;
+    //the maximum number of independent feeds that will be processed at the same time
+    final private int maxConcurrentFeeds;
+    //the maximum number of batches of a query made up of independent batches (e.g. a list of ids) fetched at the same time
+    final private int maxConcurrentBatches;
+    //the number of extracted items of a feed that can be waiting to be stored.
+    private static final int ITEMS_AWAITING_STORAGE = 250;
 
     /**
      * ElementsFetch constructor accepting the ElementsAPI object that will be the source of all data fetched.
+     * Queries will be processed one at a time.
      * @param api the ElementsAPI from which data will be fetched
      */
     public ElementsFetch(ElementsAPI api) {
+        this(api, 1);
+    }
+
+    /**
+     * ElementsFetch constructor accepting the ElementsAPI object that will be the source of all data fetched
+     * and the maximum number of independent feeds (see FetchConfig.getIndependentQuerySequences) that may be
+     * processed concurrently. Note that all requests still pass through the shared request rate limiting in HttpClient.
+     * @param api the ElementsAPI from which data will be fetched
+     * @param maxConcurrentFeeds the maximum number of feeds to process at once (values below 1 are treated as 1).
+     */
+    public ElementsFetch(ElementsAPI api, int maxConcurrentFeeds) {
+        this(api, maxConcurrentFeeds, 1);
+    }
+
+    /**
+     * ElementsFetch constructor as above, additionally accepting the maximum number of batches of a query made up of
+     * independent batches (see ElementsFeedQuery.IndependentQueries, e.g. a list of relationship ids) that may be
+     * fetched concurrently. Again all requests pass through the shared request rate limiting.
+     * @param api the ElementsAPI from which data will be fetched
+     * @param maxConcurrentFeeds the maximum number of feeds to process at once (values below 1 are treated as 1).
+     * @param maxConcurrentBatches the maximum number of batches to fetch at once (values below 1 are treated as 1).
+     */
+    public ElementsFetch(ElementsAPI api, int maxConcurrentFeeds, int maxConcurrentBatches) {
         if (api == null) throw new NullArgumentException("api");
         this.elementsAPI = api;
+        this.maxConcurrentFeeds = Math.max(1, maxConcurrentFeeds);
+        this.maxConcurrentBatches = Math.max(1, maxConcurrentBatches);
     }
 
     /**
      * execute call to process the provided FetchConfig, which will retrieve the specified data from the configured
      * ElementsAPI and store (or delete) it in the provided ElementsItemStore
+     * If this ElementsFetch allows concurrent feeds and the config contains more than one independent sequence of queries
+     * then the sequences will be processed in parallel.
+     * In either case this call will not return until every query in the config has been processed
+     * (so anything fetched is guaranteed to be in the objectStore when it returns).
      * @param config the "FetchConfig" to process
      * @param objectStore where the fetched data should be stored (or deleted).
      * @throws IOException if errors occur.
      */
     @SuppressWarnings("RedundantThrows")
     public void execute(FetchConfig config, ElementsItemStore objectStore)throws IOException {
+        execute(config, objectStore, null);
+    }
+
+    /**
+     * As execute above, but recording each query's progress in the provided FeedCheckpointStore as each page is stored.
+     * Any query the store records as complete is skipped, and any query it records as partially processed is resumed
+     * from the next unprocessed page.
+     * @param config the "FetchConfig" to process
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @param checkpoints where progress through each query should be recorded (may be null for no checkpointing).
+     * @throws IOException if errors occur.
+     */
+    @SuppressWarnings("RedundantThrows")
+    public void execute(FetchConfig config, ElementsItemStore objectStore, FeedCheckpointStore checkpoints)throws IOException {
         if(config == null) throw new NullArgumentException("config");
         if (objectStore == null) throw new NullArgumentException("objectStore");
-        for (FetchConfig.DescribedQuery describedQuery : config.getQueries()) {
-            if (describedQuery != null) {
-                log.info(describedQuery.description);
-                elementsAPI.executeQuery(describedQuery.query, describedQuery.getExtractor(objectStore));
+        Collection<List<FetchConfig.DescribedQuery>> sequences = config.getIndependentQuerySequences();
+        if(maxConcurrentFeeds == 1 || sequences.size() < 2) {
+            for (FetchConfig.DescribedQuery describedQuery : config.getQueries()) {
+                executeQuery(describedQuery, objectStore, checkpoints);
             }
         }
+        else{
+            executeConcurrently(sequences, objectStore, checkpoints);
+        }
     }
-}
 
+    /**
+     * execute call to process the provided ItemListConfig (e.g. a RelationshipsListConfig), fetching the listed items
+     * in batches (concurrently if this ElementsFetch allows it) into the objectStore.
+     * Progress is logged as the number of requested items resolved so far, and any requested items that the API did
+     * not return (e.g. because they have since been deleted) are logged once the fetch is complete.
+     * @param config the "ItemListConfig" to process
+     * @param objectStore where the fetched data should be stored.
+     * @return the ids of any requested items that were not returned.
+     * @throws IOException if errors occur.
+     */
+    public Set<ElementsItemId> executeList(ItemListConfig config, ElementsItemStore objectStore) throws IOException {
+        if(config == null) throw new NullArgumentException("config");
+        if (objectStore == null) throw new NullArgumentException("objectStore");
+
+        Set<ElementsItemId> requestedItems = config.getRequestedItems();
+        String descriptor = config.getItemDescriptor();
+        ResolvingItemStore resolvingStore = new ResolvingItemStore(objectStore, requestedItems, descriptor);
+        execute(config, resolvingStore);
+
+        Set<ElementsItemId> missingItems = resolvingStore.getMissingItems();
+        log.info(MessageFormat.format("{0} of {1} requested {2} resolved", resolvingStore.getResolvedCount(), requestedItems.size(), descriptor));
+        if(!missingItems.isEmpty()){
+            log.warn(MessageFormat.format("{0} requested {1} were not returned by the API (they may have been deleted during the run): {2}",
+                    missingItems.size(), descriptor, missingItems));
+        }
+        return missingItems;
+    }
+
+    /**
+     * execute call to bring the objects of the categories in the provided (full pull) ObjectConfig that are held in the
+     * objectStore up to date with Elements - with the same outcome as clearing them down and fetching them all again,
+     * but only fetching the objects that have changed.
+     * For each category a "ref" level listing (which is much cheaper to fetch than "full" detail) is compared against
+     * the store: objects that are new, or whose last-modified-when differs from the stored copy, are then fetched by id,
+     * and stored objects that are no longer listed are deleted. Objects whose last modified time is not known (e.g. if
+     * the API does not report it) are always fetched.
+     * Unlike a normal full pull this does not need checkpointing, as it can simply be run again if interrupted.
+     * @param config the "ObjectConfig" to process (must not be a delta).
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @throws IOException if errors occur.
+     */
+    public void executeVerified(ObjectConfig config, ElementsItemFileStore objectStore) throws IOException {
+        if(config == null) throw new NullArgumentException("config");
+        if (objectStore == null) throw new NullArgumentException("objectStore");
+        if(config.getModifiedSince() != null) throw new IllegalArgumentException("config must represent a full pull to be verified");
+
+        for(ElementsObjectCategory category : config.getCategories()){
+            //the last-modified-when of every listed object - only the ids and timestamps are kept as a category may be very large.
+            final Map<ElementsItemId, String> listedItems = new HashMap<ElementsItemId, String>();
+            ElementsFeedQuery listingQuery = new ElementsAPIFeedObjectQuery(category, false, null);
+            executeQuery(new FetchConfig.DescribedQuery(listingQuery, MessageFormat.format("Listing {0} to verify against the cache", category.getPlural())),
+                new ElementsItemStore() {
+                    @Override
+                    public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) {
+                        listedItems.put(itemInfo.getItemId(), itemInfo.asObjectInfo().getLastModifiedWhen());
+                        return null;
+                    }
+
+                    @Override
+                    public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) {
+                        listedItems.put(itemInfo.getItemId(), itemInfo.asObjectInfo().getLastModifiedWhen());
+                        return null;
+                    }
+                });
+            int listedCount = listedItems.size();
+
+            //anything left in listedItems after comparing with the store is new or changed.
+            Set<ElementsItemId> itemsToDelete = new HashSet<ElementsItemId>();
+            for(ElementsStoredItemInfo storedItem : objectStore.getAllExistingItemsOfType(StorableResourceType.RAW_OBJECT, category)){
+                ElementsItemId itemId = storedItem.getItemInfo().getItemId();
+                if(!listedItems.containsKey(itemId)) {
+                    itemsToDelete.add(itemId);
+                }
+                else {
+                    String listedLastModified = listedItems.get(itemId);
+                    if(listedLastModified != null && listedLastModified.equals(storedItem.getItemInfo().asObjectInfo().getLastModifiedWhen()))
+                        listedItems.remove(itemId);
+                }
+            }
+            Set<ElementsItemId> itemsToFetch = new HashSet<ElementsItemId>(listedItems.keySet());
+            log.info(MessageFormat.format("Verified {0} against the cache: {1} listed, {2} unchanged, {3} new or changed, {4} no longer present",
+                    category.getPlural(), listedCount, listedCount - itemsToFetch.size(), itemsToFetch.size(), itemsToDelete.size()));
+
+            if(!itemsToFetch.isEmpty()) {
+                //anything that has gone since it was listed must not be left in the store.
+                itemsToDelete.addAll(executeList(new ObjectsListConfig(config.isFullDetails(), itemsToFetch), objectStore));
+            }
+            for(ElementsItemId itemId : itemsToDelete){
+                objectStore.deleteItem(itemId, StorableResourceType.RAW_OBJECT);
+            }
+        }
+    }
+
+    /**
+     * execute call to process the provided PartitionedObjectConfig.
+     * The partitions are processed (concurrently if this ElementsFetch allows it) into the objectStore, with any item
+     * that appears in more than one partition only being stored once.
+     * A "ref" level pass over the whole category is then made to check that every item has been fetched, and any items
+     * not covered by the partitions (e.g. users outside every partition group) are then fetched by id. Any of those
+     * that the API no longer returns are treated as having been deleted during the run.
+     * @param config the "PartitionedObjectConfig" to process
+     * @param objectStore where the fetched data should be stored.
+     * @throws IOException if errors occur.
+     */
+    public void executePartitioned(PartitionedObjectConfig config, ElementsItemStore objectStore) throws IOException {
+        if(config == null) throw new NullArgumentException("config");
+        if (objectStore == null) throw new NullArgumentException("objectStore");
+
+        DeduplicatingItemStore partitionStore = new DeduplicatingItemStore(objectStore);
+        execute(config, partitionStore);
+        log.info(MessageFormat.format("Partitioned fetch of {0} complete: {1} distinct items stored, {2} duplicates across partitions ignored",
+                config.getCategory().getPlural(), partitionStore.getStoredItems().size(), partitionStore.getDuplicateCount()));
+
+        //coverage check - only the ids are kept as the whole category may be very large.
+        final Set<ElementsItemId> allItems = new HashSet<ElementsItemId>();
+        executeQuery(config.getCoverageQuery(), new ElementsItemStore() {
+            @Override
+            public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) {
+                allItems.add(itemInfo.getItemId());
+                return null;
+            }
+
+            @Override
+            public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) {
+                allItems.add(itemInfo.getItemId());
+                return null;
+            }
+        });
+        Set<ElementsItemId> missingItems = new HashSet<ElementsItemId>(allItems);
+        missingItems.removeAll(partitionStore.getStoredItems());
+
+        if(missingItems.isEmpty()){
+            log.info(MessageFormat.format("All {0} {1} were covered by the configured partitions", allItems.size(), config.getCategory().getPlural()));
+        }
+        else {
+            log.info(MessageFormat.format("{0} of {1} {2} were not covered by the configured partitions, these will now be fetched by id",
+                    missingItems.size(), allItems.size(), config.getCategory().getPlural()));
+            Set<ElementsItemId> deletedItems = executeList(new ObjectsListConfig(config.isFullDetails(), missingItems), partitionStore);
+            //anything that has gone since the coverage check must not be left in the store.
+            if(!deletedItems.isEmpty() && objectStore instanceof ElementsItemStore.ElementsDeletableItemStore){
+                ElementsItemStore.ElementsDeletableItemStore deletableStore = (ElementsItemStore.ElementsDeletableItemStore) objectStore;
+                for(ElementsItemId itemId : deletedItems) deletableStore.deleteItem(itemId, StorableResourceType.RAW_OBJECT);
+            }
+        }
+    }
+
+    /**
+     * Internal method to process a single DescribedQuery
+     * @param describedQuery the query to process (ignored if null)
+     * @param objectStore where the fetched data should be stored (or deleted).
+     */
+    private void executeQuery(FetchConfig.DescribedQuery describedQuery, ElementsItemStore objectStore){
+        executeQuery(describedQuery, objectStore, null);
+    }
+
+    /**
+     * Internal method to process a single DescribedQuery, checkpointing progress if a FeedCheckpointStore is provided.
+     * The query's description is used as the key for its checkpoint.
+     * @param describedQuery the query to process (ignored if null)
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @param checkpoints where progress through the query should be recorded (may be null).
+     */
+    private void executeQuery(final FetchConfig.DescribedQuery describedQuery, final ElementsItemStore objectStore, final FeedCheckpointStore checkpoints){
+        if (describedQuery != null) {
+            ElementsFeedCheckpoint checkpoint = null;
+            if(checkpoints != null) {
+                checkpoint = checkpoints.load(describedQuery.description);
+                if (checkpoint.isComplete()) {
+                    log.info(MessageFormat.format("{0} - skipped, completed by a previous attempt ({1} items)", describedQuery.description, checkpoint.getItemCount()));
+                    return;
+                }
+            }
+            if(checkpoint != null && checkpoint.isResumable()) {
+                log.info(MessageFormat.format("{0} - resuming after {1} pages ({2} items) processed by a previous attempt",
+                        describedQuery.description, checkpoint.getPageCount(), checkpoint.getItemCount()));
+            }
+            else log.info(describedQuery.description);
+
+            //Items are stored (firing any observers of the store) on a thread of their own, so a slow store does not hold up
+            //the API responses being read (until the stage's queue fills). A single thread is used so that everything
+            //handed to the stage is done in order - in particular each checkpoint is only saved once the items on the pages
+            //it covers are in the store.
+            PipelineStage<StoreTask> storeStage = new PipelineStage<StoreTask>("FeedStore", 1, ITEMS_AWAITING_STORAGE,
+                    new PipelineStage.Handler<StoreTask>() {
+                        @Override
+                        public void handle(StoreTask task) throws IOException {
+                            task.execute();
+                        }
+                    });
+            try {
+                if (checkpoint == null && maxConcurrentBatches > 1 && describedQuery.query instanceof ElementsFeedQuery.IndependentQueries) {
+                    elementsAPI.executeQueryConcurrently(describedQuery.query, maxConcurrentBatches, null, describedQuery.getExtractor(objectStore, storeStage));
+                }
+                else if (checkpoint == null) {
+                    elementsAPI.executeQuery(describedQuery.query, describedQuery.getExtractor(objectStore, storeStage));
+                }
+                else {
+                    final PipelineStage<StoreTask> checkpointStage = storeStage;
+                    elementsAPI.executeQuery(describedQuery.query, checkpoint, new ElementsFeedCheckpoint.Listener() {
+                        @Override
+                        public void checkpointUpdated(ElementsFeedCheckpoint checkpoint) {
+                            //the checkpoint will have moved on by the time its turn comes.
+                            final ElementsFeedCheckpoint snapshot = checkpoint.copy();
+                            checkpointStage.put(new StoreTask() {
+                                @Override
+                                public void execute() throws IOException {
+                                    //the items on the pages the checkpoint covers must not be lost if the process dies once it is saved.
+                                    if(objectStore instanceof ElementsItemFileStore) ((ElementsItemFileStore) objectStore).flush();
+                                    checkpoints.save(describedQuery.description, describedQuery.query.getItemType(), snapshot);
+                                }
+                            });
+                        }
+                    }, null, describedQuery.getExtractor(objectStore, storeStage));
+                }
+                //everything fetched must be in the store before returning.
+                storeStage.close();
+            }
+            finally {
+                storeStage.abort();
+            }
+            log.info(MessageFormat.format("{0} - {1}", describedQuery.description, storeStage.getMetrics()));
+        }
+    }
+
+    /**
+     * Internal method to process a set of independent sequences of queries in parallel (up to maxConcurrentFeeds at once).
+     * Blocks until all sequences have completed, if any sequence fails no further queries will be started and
+     * the failure will be re-thrown on the calling thread.
+     * @param sequences the independent sequences of queries to process
+     * @param objectStore where the fetched data should be stored (or deleted).
+     * @param checkpoints where progress through each query should be recorded (may be null).
+     */
+    private void executeConcurrently(Collection<List<FetchConfig.DescribedQuery>> sequences, final ElementsItemStore objectStore, final FeedCheckpointStore checkpoints){
+        int poolSize = Math.min(maxConcurrentFeeds, sequences.size());
+        log.info(MessageFormat.format("Processing {0} independent feeds using up to {1} concurrent feeds", sequences.size(), poolSize));
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> wrapper = ExecutorServiceUtils.newIOBoundThreadPool("ElementsFetch", poolSize);
+        final AtomicBoolean failed = new AtomicBoolean(false);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        try {
+            for (final List<FetchConfig.DescribedQuery> sequence : sequences) {
+                results.add(wrapper.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws Exception {
+                        try {
+                            for (FetchConfig.DescribedQuery describedQuery : sequence) {
+                                if (failed.get()) return false;
+                                executeQuery(describedQuery, objectStore, checkpoints);
+                            }
+                            return true;
+                        } catch (RuntimeException e) {
+                            failed.set(true);
+                            throw e;
+                        }
+                    }
+                }, false));
+            }
+
+            //wait for each feed in turn, marshalling any errors back onto this thread.
+            for (Future<Boolean> result : results) {
+                try {
+                    result.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IllegalStateException("Error processing concurrent feed", cause);
+                } catch (InterruptedException e) {
+                    throw new IllegalStateException("Interrupted whilst processing concurrent feeds", e);
+                }
+            }
+        }
+        finally {
+            wrapper.awaitShutdown();
+        }
+    }
+}
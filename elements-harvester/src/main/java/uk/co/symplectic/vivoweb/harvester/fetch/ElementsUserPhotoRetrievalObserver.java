@@ -15,6 +15,7 @@ import org.apache.commons.lang.StringUtils;
 import uk.co.symplectic.elements.api.ElementsAPI;
 import uk.co.symplectic.utils.ImageUtils;
 import uk.co.symplectic.vivoweb.harvester.fetch.resources.ResourceFetchService;
+import uk.co.symplectic.vivoweb.harvester.fetch.resources.ResourceValidatorCache;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectInfo;
@@ -61,11 +62,20 @@ public abstract class ElementsUserPhotoRetrievalObserver extends ElementsStoreOu
         //TODO: Sort out static as object behaviour here
         private final ResourceFetchService fetchService = new ResourceFetchService();
         private final ElementsAPI elementsApi;
+        private final ResourceValidatorCache validatorCache;
 
         public FetchingObserver(ElementsAPI elementsApi, ImageUtils.PhotoType photoType, ElementsItemFileStore objectStore) {
+            this(elementsApi, photoType, objectStore, null);
+        }
+
+        /**
+         * @param validatorCache cache of the validators of previously fetched photos, used to make conditional requests (may be null).
+         */
+        public FetchingObserver(ElementsAPI elementsApi, ImageUtils.PhotoType photoType, ElementsItemFileStore objectStore, ResourceValidatorCache validatorCache) {
             super(photoType, objectStore);
             if(elementsApi == null) throw new NullArgumentException("elementsApi");
             this.elementsApi  = elementsApi;
+            this.validatorCache = validatorCache;
         }
 
         @Override
@@ -75,7 +85,7 @@ public abstract class ElementsUserPhotoRetrievalObserver extends ElementsStoreOu
                 //will do nothing for a photoType of NONE..
                 if (!StringUtils.isEmpty(userInfo.getPhotoUrl(getPhotoType()))) {
                     try {
-                        fetchService.fetchUserPhoto(elementsApi, getPhotoType(), userInfo, getStore());
+                        fetchService.fetchUserPhoto(elementsApi, getPhotoType(), userInfo, getStore(), validatorCache);
                     } catch (MalformedURLException mue) {
                         // TODO: Log error
                     }
@@ -0,0 +1,213 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.vivoweb.harvester.fetch;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.elements.api.ElementsFeedCheckpoint;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Class to persist ElementsFeedCheckpoints to disk (one small properties file per feed query) so that a full harvest
+ * that fails part way through can resume each feed from where it got to, rather than starting again from scratch.
+ *
+ * The store also records when the current harvest attempt (i.e. the first attempt since the store was last reset)
+ * started, as data fetched by earlier attempts is only known to be up to date as of that time.
+ *
+ * Checkpoint files are written to a temporary file, synced, and then renamed into place, so a crash part way through
+ * writing a checkpoint leaves the previous checkpoint intact.
+ */
+@SuppressWarnings("WeakerAccess")
+public class FeedCheckpointStore {
+
+    private static final Logger log = LoggerFactory.getLogger(FeedCheckpointStore.class);
+
+    private static final String checkpointSuffix = ".checkpoint";
+    private static final String attemptFileName = "attempt-started";
+
+    private final File directory;
+
+    public FeedCheckpointStore(File directory){
+        if(directory == null) throw new NullArgumentException("directory");
+        this.directory = directory;
+    }
+
+    /**
+     * Discard any existing checkpoints and record the start of a new harvest attempt.
+     * @param attemptStartedAt when the new attempt started.
+     */
+    public synchronized void reset(Date attemptStartedAt){
+        if(attemptStartedAt == null) throw new NullArgumentException("attemptStartedAt");
+        clear();
+        Properties props = new Properties();
+        props.setProperty("startedAt", Long.toString(attemptStartedAt.getTime()));
+        write(new File(directory, attemptFileName), props);
+    }
+
+    /**
+     * Discard any existing checkpoints (e.g. once a harvest has completed successfully).
+     */
+    public synchronized void clear(){
+        try {
+            if(directory.exists()) FileUtils.cleanDirectory(directory);
+        }
+        catch(IOException e){
+            throw new IllegalStateException(MessageFormat.format("Unable to clear feed checkpoints in {0}", directory.getAbsolutePath()), e);
+        }
+    }
+
+    /**
+     * @return when the harvest attempt that created the current checkpoints started, or null if unknown.
+     */
+    public synchronized Date getAttemptStartedAt(){
+        Properties props = read(new File(directory, attemptFileName));
+        if(props == null || props.getProperty("startedAt") == null) return null;
+        return new Date(Long.parseLong(props.getProperty("startedAt")));
+    }
+
+    /**
+     * @return whether any feed query has recorded progress in this store.
+     */
+    public synchronized boolean hasCheckpoints(){
+        return !getCheckpointFiles().isEmpty();
+    }
+
+    /**
+     * @param itemType the type of item of interest
+     * @return whether any feed query for the given type of item has recorded progress in this store.
+     */
+    public synchronized boolean hasCheckpointsFor(ElementsItemType itemType){
+        for(File file : getCheckpointFiles()){
+            Properties props = read(file);
+            if(props != null && itemType.name().equals(props.getProperty("itemType"))) return true;
+        }
+        return false;
+    }
+
+    /**
+     * Load the checkpoint for a particular feed query
+     * @param key a key uniquely identifying the feed query.
+     * @return the stored ElementsFeedCheckpoint, or a new (empty) one if none has been stored.
+     */
+    public synchronized ElementsFeedCheckpoint load(String key){
+        Properties props = read(getCheckpointFile(key));
+        if(props == null) return new ElementsFeedCheckpoint();
+        List<String> completedQueries = new ArrayList<String>();
+        int completedCount = Integer.parseInt(props.getProperty("completedQueries", "0"));
+        for(int i = 0; i < completedCount; i++){
+            completedQueries.add(props.getProperty("completedQuery." + i));
+        }
+        return new ElementsFeedCheckpoint(completedQueries, props.getProperty("currentQuery"), props.getProperty("nextPageUrl"),
+                Integer.parseInt(props.getProperty("pageCount", "0")), Long.parseLong(props.getProperty("itemCount", "0")),
+                Boolean.parseBoolean(props.getProperty("complete", "false")));
+    }
+
+    /**
+     * Store the checkpoint for a particular feed query
+     * @param key a key uniquely identifying the feed query.
+     * @param itemType the type of item the feed query returns.
+     * @param checkpoint the checkpoint to store.
+     */
+    public synchronized void save(String key, ElementsItemType itemType, ElementsFeedCheckpoint checkpoint){
+        if(checkpoint == null) throw new NullArgumentException("checkpoint");
+        Properties props = new Properties();
+        props.setProperty("key", key);
+        props.setProperty("itemType", itemType.name());
+        int index = 0;
+        for(String completedQuery : checkpoint.getCompletedQueries()){
+            props.setProperty("completedQuery." + index++, completedQuery);
+        }
+        props.setProperty("completedQueries", Integer.toString(index));
+        if(checkpoint.getCurrentQuery() != null) props.setProperty("currentQuery", checkpoint.getCurrentQuery());
+        if(checkpoint.getNextPageUrl() != null) props.setProperty("nextPageUrl", checkpoint.getNextPageUrl());
+        props.setProperty("pageCount", Integer.toString(checkpoint.getPageCount()));
+        props.setProperty("itemCount", Long.toString(checkpoint.getItemCount()));
+        props.setProperty("complete", Boolean.toString(checkpoint.isComplete()));
+        write(getCheckpointFile(key), props);
+    }
+
+    private File getCheckpointFile(String key){
+        if(key == null) throw new NullArgumentException("key");
+        String fileName = key.toLowerCase().replaceAll("[^a-z0-9]+", "-");
+        return new File(directory, fileName + checkpointSuffix);
+    }
+
+    private List<File> getCheckpointFiles(){
+        List<File> files = new ArrayList<File>();
+        File[] contents = directory.listFiles();
+        if(contents != null) {
+            for (File file : contents) {
+                if (file.isFile() && file.getName().endsWith(checkpointSuffix)) files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private Properties read(File file){
+        if(!file.exists()) return null;
+        InputStream stream = null;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(file));
+            Properties props = new Properties();
+            props.load(stream);
+            return props;
+        }
+        catch(IOException e){
+            //a checkpoint we cannot read is treated as missing - the feed will just be processed from the start.
+            log.warn(MessageFormat.format("Unable to read feed checkpoint {0}", file.getAbsolutePath()), e);
+            return null;
+        }
+        finally {
+            if(stream != null){
+                try { stream.close(); }
+                catch(IOException ignored){ }
+            }
+        }
+    }
+
+    private void write(File file, Properties props){
+        //noinspection ResultOfMethodCallIgnored
+        directory.mkdirs();
+        File tempFile = new File(directory, file.getName() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tempFile);
+            props.store(stream, null);
+            stream.flush();
+            stream.getFD().sync();
+            stream.close();
+            stream = null;
+            //renameTo will not replace an existing file on all platforms.
+            if((file.exists() && !file.delete()) || !tempFile.renameTo(file)){
+                throw new IOException(MessageFormat.format("Unable to move {0} into place", tempFile.getAbsolutePath()));
+            }
+        }
+        catch(IOException e){
+            throw new IllegalStateException(MessageFormat.format("Unable to write feed checkpoint {0}", file.getAbsolutePath()), e);
+        }
+        finally {
+            if(stream != null){
+                try { stream.close(); }
+                catch(IOException ignored){ }
+            }
+        }
+    }
+}
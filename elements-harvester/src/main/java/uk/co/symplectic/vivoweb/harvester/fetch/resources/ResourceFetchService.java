@@ -27,12 +27,33 @@ import java.net.MalformedURLException;
 public final class ResourceFetchService {
     private static Logger log = LoggerFactory.getLogger(ResourceFetchService.class);
 
+    //default number of resource requests that can be waiting on the network at once.
+    public static final int DEFAULT_MAX_REQUESTS_IN_FLIGHT = 8;
+
     public ResourceFetchService() {
 
     }
 
+    /**
+     * Set how many resource requests can be waiting on the network at once (independent of the number of processors).
+     * Must be called before any resources are fetched.
+     * Note that requests to the Elements API are still subject to its own rate and concurrency limits.
+     */
+    public static void setMaxRequestsInFlight(int maxRequests) {
+        ResourceFetchServiceImpl.setMaxRequestsInFlight(maxRequests);
+    }
+
     public void fetchUserPhoto(ElementsAPI api, ImageUtils.PhotoType photoType, ElementsUserInfo userInfo, ElementsItemFileStore objectStore) throws MalformedURLException {
-        ResourceFetchServiceImpl.fetchUserPhoto(api, photoType, userInfo, objectStore);
+        fetchUserPhoto(api, photoType, userInfo, objectStore, null);
+    }
+
+    /**
+     * Fetch a user's photo, making a conditional request if the validatorCache holds validators for a photo already in the store.
+     * If the photo has not changed it is not re-stored (so no observers of the store are triggered).
+     */
+    public void fetchUserPhoto(ElementsAPI api, ImageUtils.PhotoType photoType, ElementsUserInfo userInfo, ElementsItemFileStore objectStore,
+                               ResourceValidatorCache validatorCache) throws MalformedURLException {
+        ResourceFetchServiceImpl.fetchUserPhoto(api, photoType, userInfo, objectStore, validatorCache);
     }
 
 //    public void fetchExternal(String url, File outputFile) throws MalformedURLException {
@@ -10,6 +10,8 @@
  */
 package uk.co.symplectic.vivoweb.harvester.fetch.resources;
 
+import org.apache.commons.codec.binary.Hex;
+import org.apache.commons.codec.digest.DigestUtils;
 import org.apache.commons.lang.NullArgumentException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -20,15 +22,27 @@ import uk.co.symplectic.vivoweb.harvester.model.ElementsUserInfo;
 import uk.co.symplectic.vivoweb.harvester.store.ElementsItemFileStore;
 import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
 
-import java.io.ByteArrayOutputStream;
+import java.io.*;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
 import java.text.MessageFormat;
 import java.util.concurrent.Callable;
+import java.util.concurrent.Semaphore;
 
 /**
  * Static implementation of an Executor based resource fetch service, which asynchronously fetches resources from
  * an External API and places them in a store. Modelled on the pattern of the TranslationService.
  * Package private, as this is not part of the public API.
  * Users should access via the ResourceFetchService() object.
+ *
+ * Work is split into two stages so that threads blocked on the network are not also needed for CPU bound work:
+ * - a "fetch" pool, sized by the number of requests we want in flight (not by the number of processors), that only
+ *   makes the requests.
+ * - a "store" pool, sized by the number of processors, that checks whether what was fetched has changed and stores it
+ *   (which in turn runs any observers of the store, e.g. photo rescaling).
+ * Requests still go through the ElementsAPI, so they respect its request rate limit and adaptive concurrency limit.
+ * The number of outstanding (queued, in flight or awaiting storage) fetches is bounded, callers are made to wait when
+ * it is reached so that a large harvest cannot queue up an unbounded number of fetches (and downloaded resources).
  */
 
 
@@ -36,12 +50,49 @@ final class ResourceFetchServiceImpl {
 
     private static final Logger log = LoggerFactory.getLogger(ResourceFetchServiceImpl.class);
 
-    private static final ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> wrapper = ExecutorServiceUtils.newFixedThreadPool("ResourceFetchService");
+    //how many fetches can be outstanding for each request allowed in flight.
+    private static final int OUTSTANDING_FETCHES_PER_REQUEST = 4;
+
+    private static int maxRequestsInFlight = ResourceFetchService.DEFAULT_MAX_REQUESTS_IN_FLIGHT;
+
+    //created on first use, so that maxRequestsInFlight can be configured first.
+    private static ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> fetchWrapper = null;
+    private static ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> storeWrapper = null;
+    private static Semaphore outstandingFetches = null;
 
     private ResourceFetchServiceImpl() {}
 
-    static void fetchUserPhoto(ElementsAPI api, ImageUtils.PhotoType photoType, ElementsUserInfo userInfo, ElementsItemFileStore objectStore) {
-        wrapper.submit(new UserPhotoFetchTask(api, photoType, userInfo, objectStore));
+    static synchronized void setMaxRequestsInFlight(int maxRequests) {
+        if(maxRequests < 1) throw new IllegalArgumentException("maxRequests must be at least 1");
+        if(fetchWrapper != null) throw new IllegalStateException("The number of requests in flight cannot be changed once fetching has started");
+        maxRequestsInFlight = maxRequests;
+    }
+
+    private static synchronized void start() {
+        if(fetchWrapper == null) {
+            outstandingFetches = new Semaphore(maxRequestsInFlight * OUTSTANDING_FETCHES_PER_REQUEST);
+            fetchWrapper = ExecutorServiceUtils.newIOBoundThreadPool("ResourceFetchService", maxRequestsInFlight);
+            storeWrapper = ExecutorServiceUtils.newFixedThreadPool("ResourceStoreService");
+        }
+    }
+
+    static void fetchUserPhoto(ElementsAPI api, ImageUtils.PhotoType photoType, ElementsUserInfo userInfo, ElementsItemFileStore objectStore,
+                               ResourceValidatorCache validatorCache) {
+        start();
+        UserPhotoFetchTask task = new UserPhotoFetchTask(api, photoType, userInfo, objectStore, validatorCache);
+        try {
+            outstandingFetches.acquire();
+        }
+        catch(InterruptedException e){
+            throw new IllegalStateException("Interrupted whilst waiting to fetch a resource", e);
+        }
+        try {
+            fetchWrapper.submit(task);
+        }
+        catch(RuntimeException e){
+            outstandingFetches.release();
+            throw e;
+        }
     }
 
 //    static void fetchExternal(String url, File outputFile) throws MalformedURLException {
@@ -49,16 +100,29 @@ final class ResourceFetchServiceImpl {
 //    }
 
     static void awaitShutdown() {
-        wrapper.awaitShutdown();
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> fetches;
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> stores;
+        synchronized (ResourceFetchServiceImpl.class) {
+            fetches = fetchWrapper;
+            stores = storeWrapper;
+        }
+        //fetches hand off to the store pool, so they must all have finished before it is shut down.
+        if(fetches != null) fetches.awaitShutdown();
+        if(stores != null) stores.awaitShutdown();
     }
 
+    /**
+     * Network stage: makes the (possibly conditional) request, then hands the response off to the store stage.
+     */
     private static class UserPhotoFetchTask implements Callable<Boolean> {
         private final ElementsAPI api;
         private final ElementsUserInfo userInfo;
         private final ElementsItemFileStore objectStore;
         private final ImageUtils.PhotoType type;
+        private final ResourceValidatorCache validatorCache;
 
-        UserPhotoFetchTask(ElementsAPI api, ImageUtils.PhotoType photoType, ElementsUserInfo userInfo, ElementsItemFileStore objectStore) {
+        UserPhotoFetchTask(ElementsAPI api, ImageUtils.PhotoType photoType, ElementsUserInfo userInfo, ElementsItemFileStore objectStore,
+                           ResourceValidatorCache validatorCache) {
             if(api == null) throw new NullArgumentException("api");
             if(userInfo == null) throw new NullArgumentException("userInfo");
             if(objectStore == null) throw new NullArgumentException("objectStore");
@@ -67,23 +131,116 @@ final class ResourceFetchServiceImpl {
             this.userInfo = userInfo;
             this.objectStore = objectStore;
             this.type = photoType;
+            this.validatorCache = validatorCache; //may be null - photos are then always fetched and stored.
         }
 
         @Override
         public Boolean call() throws Exception {
-            ByteArrayOutputStream os = new ByteArrayOutputStream();
-            String url = userInfo.getPhotoUrl(type);
-            Boolean retCode = api.fetchResource(url, os);
-            byte[] data = os.toByteArray();
-            if(data == null || data.length == 0)
-                log.warn(MessageFormat.format("Failed to retrieve photo for {0} from url {1}", userInfo.getItemId(), url));
-            else
-                objectStore.storeItem(userInfo, StorableResourceType.RAW_USER_PHOTO, data);
-            //TODO: better error handling here?
-            return retCode;
+            boolean handedOff = false;
+            //photos are spooled to disk (hashing them as they arrive) rather than held in memory until they are stored.
+            File spoolFile = File.createTempFile("photo", ".tmp");
+            try {
+                String url = userInfo.getPhotoUrl(type);
+
+                //only worth asking if the photo has changed if we still hold the photo we were sent last time.
+                ResourceValidatorCache.Entry cached = validatorCache == null ? null : validatorCache.get(userInfo.getItemId());
+                if (cached != null && (!url.equals(cached.getUrl()) || objectStore.retrieveItem(userInfo.getItemId(), StorableResourceType.RAW_USER_PHOTO) == null)) {
+                    cached = null;
+                }
+
+                MessageDigest digest = DigestUtils.getSha1Digest();
+                OutputStream os = new DigestOutputStream(new BufferedOutputStream(new FileOutputStream(spoolFile)), digest);
+                ElementsAPI.ResourceFetchResult result;
+                try {
+                    result = api.fetchResource(url, os, cached == null ? null : cached.getETag(), cached == null ? null : cached.getLastModified());
+                }
+                finally {
+                    os.close();
+                }
+                storeWrapper.submit(new UserPhotoStoreTask(userInfo, objectStore, validatorCache, url, cached, result, spoolFile, Hex.encodeHexString(digest.digest())));
+                handedOff = true;
+            }
+            finally {
+                if(!handedOff) {
+                    deleteSpoolFile(spoolFile);
+                    outstandingFetches.release();
+                }
+            }
+            return true;
         }
     }
 
+    /**
+     * Store stage: works out whether a fetched photo has changed and, if it has, places it in the store.
+     */
+    private static class UserPhotoStoreTask implements Callable<Boolean> {
+        private final ElementsUserInfo userInfo;
+        private final ElementsItemFileStore objectStore;
+        private final ResourceValidatorCache validatorCache;
+        private final String url;
+        private final ResourceValidatorCache.Entry cached;
+        private final ElementsAPI.ResourceFetchResult result;
+        private final File spoolFile;
+        private final String contentHash;
+
+        UserPhotoStoreTask(ElementsUserInfo userInfo, ElementsItemFileStore objectStore, ResourceValidatorCache validatorCache,
+                           String url, ResourceValidatorCache.Entry cached, ElementsAPI.ResourceFetchResult result, File spoolFile, String contentHash) {
+            this.userInfo = userInfo;
+            this.objectStore = objectStore;
+            this.validatorCache = validatorCache;
+            this.url = url;
+            this.cached = cached;
+            this.result = result;
+            this.spoolFile = spoolFile;
+            this.contentHash = contentHash;
+        }
+
+        @Override
+        public Boolean call() throws Exception {
+            try {
+                if (result != null && result.isNotModified()) {
+                    //nothing to store - and so no downstream re-processing of the photo.
+                    validatorCache.put(userInfo.getItemId(), new ResourceValidatorCache.Entry(url, result.getETag(), result.getLastModified(), cached.getContentHash()));
+                    validatorCache.recordNotModified();
+                    return true;
+                }
+
+                //a failure part way through the download may have left a partial photo in the spool file.
+                if (result == null || spoolFile.length() == 0)
+                    log.warn(MessageFormat.format("Failed to retrieve photo for {0} from url {1}", userInfo.getItemId(), url));
+                else {
+                    //servers that do not support conditional requests will send the photo again - don't re-store it if it is identical.
+                    if (cached != null && contentHash.equals(cached.getContentHash())) {
+                        validatorCache.recordUnchangedContent();
+                    } else {
+                        InputStream data = new BufferedInputStream(new FileInputStream(spoolFile));
+                        try {
+                            objectStore.storeItem(userInfo, StorableResourceType.RAW_USER_PHOTO, data);
+                        }
+                        finally {
+                            data.close();
+                        }
+                        if (validatorCache != null) validatorCache.recordChanged();
+                    }
+                    if (validatorCache != null) {
+                        validatorCache.put(userInfo.getItemId(), new ResourceValidatorCache.Entry(url, result.getETag(), result.getLastModified(), contentHash));
+                    }
+                }
+                //TODO: better error handling here?
+                return true;
+            }
+            finally {
+                deleteSpoolFile(spoolFile);
+                outstandingFetches.release();
+            }
+        }
+    }
+
+    private static void deleteSpoolFile(File spoolFile){
+        if(spoolFile.exists() && !spoolFile.delete())
+            log.warn(MessageFormat.format("Unable to delete temporary file {0}", spoolFile.getAbsolutePath()));
+    }
+
 //    private static class ExternalFetchTask implements Callable<Boolean> {
 //        private URL url;
 //        private File outputFile;
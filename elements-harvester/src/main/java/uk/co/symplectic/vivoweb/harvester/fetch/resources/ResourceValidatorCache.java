@@ -0,0 +1,173 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.vivoweb.harvester.fetch.resources;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A persisted cache of the "validators" (ETag, Last-Modified and a hash of the content) of secondary resources
+ * (e.g. user photos) that have been fetched from Elements, keyed by the item they belong to.
+ * Used to make conditional requests for resources we already hold, so that unchanged resources are neither
+ * re-downloaded nor re-stored (which would trigger any downstream processing of the resource).
+ *
+ * The cache is loaded when constructed and written back (atomically) by save().
+ * Thread safe, as resources are fetched on several threads.
+ */
+@SuppressWarnings("WeakerAccess")
+public class ResourceValidatorCache {
+
+    private static final Logger log = LoggerFactory.getLogger(ResourceValidatorCache.class);
+
+    /**
+     * Immutable class representing the validators of a fetched resource.
+     */
+    public static class Entry{
+        private final String url;
+        private final String eTag;
+        private final String lastModified;
+        private final String contentHash;
+
+        public Entry(String url, String eTag, String lastModified, String contentHash){
+            if(url == null) throw new NullArgumentException("url");
+            this.url = url;
+            this.eTag = eTag;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+        }
+
+        public String getUrl(){ return url; }
+        public String getETag(){ return eTag; }
+        public String getLastModified(){ return lastModified; }
+        public String getContentHash(){ return contentHash; }
+    }
+
+    private final File cacheFile;
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+
+    //statistics about how useful the cache has been this run
+    private final AtomicInteger notModifiedCount = new AtomicInteger(0);
+    private final AtomicInteger unchangedContentCount = new AtomicInteger(0);
+    private final AtomicInteger changedCount = new AtomicInteger(0);
+
+    public ResourceValidatorCache(File cacheFile){
+        if(cacheFile == null) throw new NullArgumentException("cacheFile");
+        this.cacheFile = cacheFile;
+        load();
+    }
+
+    /**
+     * @param itemId the item the resource belongs to
+     * @return the validators stored for the item's resource, or null if there are none.
+     */
+    public synchronized Entry get(ElementsItemId itemId){
+        return entries.get(itemId.toString());
+    }
+
+    public synchronized void put(ElementsItemId itemId, Entry entry){
+        if(entry == null) throw new NullArgumentException("entry");
+        entries.put(itemId.toString(), entry);
+    }
+
+    public synchronized void remove(ElementsItemId itemId){
+        entries.remove(itemId.toString());
+    }
+
+    //Methods to track the outcome of each fetch
+    public void recordNotModified(){ notModifiedCount.incrementAndGet(); }
+    public void recordUnchangedContent(){ unchangedContentCount.incrementAndGet(); }
+    public void recordChanged(){ changedCount.incrementAndGet(); }
+
+    public String getSummary(){
+        return MessageFormat.format("{0} not modified (304), {1} re-downloaded but unchanged, {2} new or changed",
+                notModifiedCount.get(), unchangedContentCount.get(), changedCount.get());
+    }
+
+    private void load(){
+        if(!cacheFile.exists()) return;
+        InputStream stream = null;
+        try {
+            stream = new BufferedInputStream(new FileInputStream(cacheFile));
+            Properties props = new Properties();
+            props.load(stream);
+            for(String name : props.stringPropertyNames()){
+                if(name.endsWith(".url")){
+                    String key = name.substring(0, name.length() - ".url".length());
+                    entries.put(key, new Entry(props.getProperty(name), props.getProperty(key + ".etag"),
+                            props.getProperty(key + ".lastModified"), props.getProperty(key + ".hash")));
+                }
+            }
+            log.info(MessageFormat.format("Loaded {0} cached resource validators from {1}", entries.size(), cacheFile.getAbsolutePath()));
+        }
+        catch(IOException e){
+            //not fatal - resources will just be fetched unconditionally.
+            log.warn(MessageFormat.format("Unable to load cached resource validators from {0}", cacheFile.getAbsolutePath()), e);
+            entries.clear();
+        }
+        finally {
+            if(stream != null) {
+                try { stream.close(); }
+                catch(IOException ignored){ }
+            }
+        }
+    }
+
+    /**
+     * Write the cache back to disk (via a temporary file so a failure part way through leaves the previous cache intact).
+     */
+    public synchronized void save(){
+        Properties props = new Properties();
+        for(Map.Entry<String, Entry> mapEntry : entries.entrySet()){
+            String key = mapEntry.getKey();
+            Entry entry = mapEntry.getValue();
+            props.setProperty(key + ".url", entry.getUrl());
+            if(entry.getETag() != null) props.setProperty(key + ".etag", entry.getETag());
+            if(entry.getLastModified() != null) props.setProperty(key + ".lastModified", entry.getLastModified());
+            if(entry.getContentHash() != null) props.setProperty(key + ".hash", entry.getContentHash());
+        }
+
+        File parent = cacheFile.getAbsoluteFile().getParentFile();
+        //noinspection ResultOfMethodCallIgnored
+        parent.mkdirs();
+        File tempFile = new File(parent, cacheFile.getName() + ".tmp");
+        OutputStream stream = null;
+        try {
+            stream = new BufferedOutputStream(new FileOutputStream(tempFile));
+            props.store(stream, "validators of resources fetched from Elements");
+            stream.close();
+            stream = null;
+            //renameTo will not replace an existing file on all platforms.
+            if((cacheFile.exists() && !cacheFile.delete()) || !tempFile.renameTo(cacheFile)){
+                throw new IOException(MessageFormat.format("Unable to move {0} into place", tempFile.getAbsolutePath()));
+            }
+        }
+        catch(IOException e){
+            //not fatal - next run will just fetch resources unconditionally.
+            log.warn(MessageFormat.format("Unable to save cached resource validators to {0}", cacheFile.getAbsolutePath()), e);
+        }
+        finally {
+            if(stream != null) {
+                try { stream.close(); }
+                catch(IOException ignored){ }
+            }
+        }
+    }
+}
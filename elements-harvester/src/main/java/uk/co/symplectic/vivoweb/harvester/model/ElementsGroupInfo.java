@@ -17,6 +17,9 @@ import org.w3c.dom.Element;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
@@ -45,6 +48,12 @@ public class ElementsGroupInfo extends ElementsItemInfo{
         private static DocumentLocation fileEntryLocation = new DocumentLocation(new QName(atomNS, "entry"), new QName(apiNS, "user-group"));
         private static DocumentLocation feedEntryLocation = new DocumentLocation(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "user-group"));
 
+        //names of the elements of interest (created once rather than for every event)
+        private static final QName nameElement = new QName(apiNS, "name");
+        private static final QName groupDescriptionElement = new QName(apiNS, "group-description");
+        private static final QName parentElement = new QName(apiNS, "parent");
+        private static final QName explicitGroupMembersElement = new QName(apiNS, "explicit-group-members");
+
         @SuppressWarnings("WeakerAccess")
         public static Extractor getExtractor(ElementsItemInfo.ExtractionSource source, int maximumExpected){
             switch(source) {
@@ -69,17 +78,17 @@ public class ElementsGroupInfo extends ElementsItemInfo{
         protected void processEvent(XMLEventProcessor.WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException {
             if (event.isRelevantForExtraction()) {
                 QName name = event.getName();
-                if (name.equals(new QName(apiNS, "name"))) {
+                if (name.equals(nameElement)) {
                     workspace.setName(event.getValueOrNull());
                 }
-                if (name.equals(new QName(apiNS, "group-description"))) {
+                if (name.equals(groupDescriptionElement)) {
                     workspace.setDescription(event.getValueOrNull());
                 }
-                else if(name.equals(new QName(apiNS, "parent"))){
+                else if(name.equals(parentElement)){
                     //expect the id to be present if element is - so no "has" check
                     workspace.setParentId(new Integer(event.getAttribute("id")));
                 }
-                else if(name.equals(new QName(apiNS, "explicit-group-members"))){
+                else if(name.equals(explicitGroupMembersElement)){
                     //expect the href to be present if element is - so no "has" check
                     workspace.setMembershipFeedUrl(event.getAttribute("href"));
                 }
@@ -114,6 +123,23 @@ public class ElementsGroupInfo extends ElementsItemInfo{
     public ElementsItemId.GroupId getParentId() { return parentId; }
     private void setParentId(Integer parentId) { this.parentId = parentId == null ? null : ElementsItemId.createGroupId(parentId); }
 
+    @Override
+    void writeData(DataOutput out) throws IOException {
+        writeString(out, name);
+        writeString(out, description);
+        writeString(out, membershipFeedUrl);
+        out.writeBoolean(parentId != null);
+        if(parentId != null) out.writeInt(parentId.getId());
+    }
+
+    @Override
+    void readData(DataInput in) throws IOException {
+        setName(readString(in));
+        setDescription(readString(in));
+        setMembershipFeedUrl(readString(in));
+        if(in.readBoolean()) setParentId(in.readInt());
+    }
+
 
     /**
      * The GroupHierarchyWrapper is a wrapper for the basic ElementsGroupInfo object that represents the fact that an
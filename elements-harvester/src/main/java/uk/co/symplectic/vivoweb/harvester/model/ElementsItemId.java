@@ -33,6 +33,17 @@ public class ElementsItemId{
     public static ElementsItemId.RelationshipId createRelationshipId(int id){ return new RelationshipId(id); }
     public static ElementsItemId.RelationshipTypeId createRelationshipTypeId(int id){ return new RelationshipTypeId(id); }
 
+    public static ElementsItemId createId(ElementsItemType.SubType subType, int id){
+        if (subType == null) throw new NullArgumentException("subType");
+        switch(subType.getMainType()){
+            case OBJECT : return createObjectId((ElementsObjectCategory) subType, id);
+            case RELATIONSHIP : return createRelationshipId(id);
+            case GROUP : return createGroupId(id);
+            case RELATIONSHIP_TYPE : return createRelationshipTypeId(id);
+            default : throw new IllegalStateException("invalid item type");
+        }
+    }
+
     private final ElementsItemType.SubType subType;
     public ElementsItemType.SubType getItemSubType() { return subType; }
     public ElementsItemType getItemType() { return subType.getMainType(); }
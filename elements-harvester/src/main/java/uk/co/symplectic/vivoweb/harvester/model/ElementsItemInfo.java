@@ -14,6 +14,10 @@ package uk.co.symplectic.vivoweb.harvester.model;
 import org.apache.commons.lang.NullArgumentException;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A class to represent the concept of a set of data about an Elements Item (represented by the corresponding itemId).
  * This class primarily acts to provide a static place from which the concrete implementations for different types
@@ -27,6 +31,9 @@ import uk.co.symplectic.utils.xml.XMLEventProcessor;
  * Also exposes "getExtractor" which provides a single place to request an XMLEventProcessor.ItemExtractingFilter
  * That can extract an object if a particular type from a given ExtractionSource.
  * This delegates to the various Extractor inner classes defined within the concrete sub-classes
+ *
+ * Finally offers "writeTo" and "readFrom" to persist an ElementsItemInfo in a compact binary form (e.g. in an index
+ * held alongside a store) so that it can be recreated later without re-parsing the XML it was extracted from.
  */
 
 @SuppressWarnings("WeakerAccess")
@@ -66,6 +73,28 @@ public abstract class ElementsItemInfo {
         }
     }
 
+    /**
+     * Recreate an ElementsItemInfo previously persisted by writeTo.
+     * @param in the source of the data
+     * @return the ElementsItemInfo (of the appropriate concrete type)
+     * @throws IOException if the data cannot be read
+     */
+    public static ElementsItemInfo readFrom(DataInput in) throws IOException {
+        ElementsItemType type = ElementsItemType.valueOf(in.readUTF());
+        String subTypeName = in.readUTF();
+        int id = in.readInt();
+        ElementsItemInfo itemInfo;
+        switch(type){
+            case OBJECT : itemInfo = createObjectItem(ElementsObjectCategory.valueOf(subTypeName), id); break;
+            case RELATIONSHIP: itemInfo = createRelationshipItem(id); break;
+            case GROUP : itemInfo = createGroupItem(id); break;
+            case RELATIONSHIP_TYPE : itemInfo = createRelationshipTypeItem(id); break;
+            default : throw new IllegalStateException("invalid item type read");
+        }
+        itemInfo.readData(in);
+        return itemInfo;
+    }
+
     //Main class definition
     private final ElementsItemId itemId;
 
@@ -77,6 +106,42 @@ public abstract class ElementsItemInfo {
     //methods that may need overriding in concrete subclasses
     public ElementsItemId getItemId() { return itemId; }
 
+    /**
+     * Persist this item (its id and the data extracted about it) in a compact binary form that can be read back by readFrom.
+     * @param out where to write the data
+     * @throws IOException if the data cannot be written
+     */
+    public final void writeTo(DataOutput out) throws IOException {
+        out.writeUTF(itemId.getItemType().name());
+        out.writeUTF(itemId.getItemDescriptor());
+        out.writeInt(itemId.getId());
+        writeData(out);
+    }
+
+    //methods for concrete subclasses to persist any data they hold beyond the itemId (see writeTo/readFrom)
+    void writeData(DataOutput out) throws IOException {}
+    void readData(DataInput in) throws IOException {}
+
+    //strings are written with an explicit length as DataOutput.writeUTF is limited to 64k.
+    static void writeString(DataOutput out, String value) throws IOException {
+        if(value == null){
+            out.writeInt(-1);
+        }
+        else {
+            byte[] bytes = value.getBytes("utf-8");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+
+    static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length < 0) return null;
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, "utf-8");
+    }
+
     //paired is/as methods to simplify access to concrete subtypes in code.
     public boolean isObjectInfo(){
         return this instanceof ElementsObjectInfo;
@@ -16,6 +16,10 @@ import org.slf4j.LoggerFactory;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.text.MessageFormat;
 import java.util.List;
 
 import static uk.co.symplectic.elements.api.ElementsAPI.apiNS;
@@ -23,7 +27,8 @@ import static uk.co.symplectic.elements.api.ElementsAPI.atomNS;
 
 /**
  * Subclass of ElementsItemInfo to store and expose a set of data relating to an Elements Object.
- * Exposes almost nothing more than the base abstract class, although the itemId is exposed as an ObjectId here..
+ * Exposes little more than the base abstract class, the itemId is exposed as an ObjectId here, along with when
+ * Elements reports the object was last modified (which is present at both "ref" and "full" detail).
  * but the general ElementsObjectInfo Extractor (which can handle extraction of both Users and other types)
  * is defined here.
  */
@@ -47,6 +52,13 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
         private static DocumentLocation feedEntryLocation = new DocumentLocation(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "object"));
         private static DocumentLocation feedDeletedEntryLocation = new DocumentLocation(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "deleted-object"));
 
+        //names of the elements of interest (created once rather than for every event)
+        private static final QName isPublicElement = new QName(apiNS, "is-public");
+        private static final QName isCurrentStaffElement = new QName(apiNS, "is-current-staff");
+        private static final QName isAcademicElement = new QName(apiNS, "is-academic");
+        private static final QName photoElement = new QName(apiNS, "photo");
+        private static final QName organisationDefinedDataElement = new QName(apiNS, "organisation-defined-data");
+
         @SuppressWarnings("WeakerAccess")
         public static Extractor getExtractor(ElementsItemInfo.ExtractionSource source, int maximumExpected){
             switch(source) {
@@ -57,25 +69,54 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
             }
         }
 
-        public static void InitialiseGenericFieldExtraction(String aGenericFieldName){
+        public static synchronized void InitialiseGenericFieldExtraction(String aGenericFieldName){
             String trimmedValue = StringUtils.trimToNull(aGenericFieldName);
             if(trimmedValue == null) log.info("Generic field extraction (for inclusion calculations) is disabled.");
-            genericFieldName = trimmedValue;
+            currentSettings = new ExtractionSettings(currentSettings.labelSchemeName, trimmedValue);
         }
 
-        public static void InitialiseLabelSchemeExtraction(String aLabelSchemeName){
+        public static synchronized void InitialiseLabelSchemeExtraction(String aLabelSchemeName){
             String trimmedValue = StringUtils.trimToNull(aLabelSchemeName);
             if(trimmedValue == null) log.info("User Label Scheme extraction (for inclusion calculations) is disabled.");
-            labelSchemeName = trimmedValue;
+            currentSettings = new ExtractionSettings(trimmedValue, currentSettings.genericFieldName);
+        }
+
+        /**
+         * The optional extra data to extract about users. Instances are never modified (the Initialise methods replace
+         * the current one) and each Extractor captures the current one when it is created, so extractions can safely
+         * run concurrently and each one sees a consistent set of settings.
+         */
+        private static class ExtractionSettings{
+            private final String labelSchemeName;
+            private final String genericFieldName;
+
+            private ExtractionSettings(String labelSchemeName, String genericFieldName){
+                this.labelSchemeName = labelSchemeName;
+                this.genericFieldName = genericFieldName;
+            }
+
+            @Override
+            public String toString(){
+                return MessageFormat.format("label-scheme={0};generic-field={1}", labelSchemeName, genericFieldName);
+            }
         }
 
-        private static String labelSchemeName = null;
-        private static String genericFieldName = null;
+        private static volatile ExtractionSettings currentSettings = new ExtractionSettings(null, null);
+
+        /**
+         * @return a description of the optional extra data that is currently being extracted about users, so that
+         * anything holding on to previously extracted ElementsUserInfo can tell if it was extracted differently.
+         */
+        public static String getExtractionSettings(){
+            return currentSettings.toString();
+        }
+
+        private final ExtractionSettings settings = currentSettings;
 
         private ElementsObjectInfo workspace  = null;
         private ElementsUserInfo.UserExtraData additionalUserData = null;
 
-        private DocumentLocation labelLocation = new DocumentLocation(new QName(apiNS, "all-labels"), new QName(apiNS, "keywords"), new QName(apiNS, "keyword"));
+        private static final DocumentLocation labelLocation = new DocumentLocation(new QName(apiNS, "all-labels"), new QName(apiNS, "keywords"), new QName(apiNS, "keyword"));
 
         private Extractor(DocumentLocation location, int maximumAmountExpected){
             super(location, maximumAmountExpected);
@@ -91,6 +132,8 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
             ElementsObjectCategory objectCategory = ElementsObjectCategory.valueOf(initialEvent.getAttribute("category"));
             int objectId = Integer.parseInt(initialEvent.getAttribute("id"));
             workspace = ElementsItemInfo.createObjectItem(objectCategory, objectId);
+            if(initialEvent.hasAttribute("last-modified-when"))
+                workspace.lastModifiedWhen = initialEvent.getAttribute("last-modified-when");
             //reset additional Data..
             additionalUserData = null;
             if(workspace.getItemId().getItemSubType() == ElementsObjectCategory.USER ) {
@@ -105,26 +148,26 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
             if (workspace.getItemId().getItemSubType() == ElementsObjectCategory.USER) {
                 if (event.isRelevantForExtraction()) {
                     QName name = event.getName();
-                    if (name.equals(new QName(apiNS, "is-public"))) {
+                    if (name.equals(isPublicElement)) {
                         //I really want there to be a value here..
                         getAdditionalUserData().setIsPublic(Boolean.parseBoolean(event.getRequiredValue()));
-                    } else if (name.equals(new QName(apiNS, "is-current-staff"))) {
+                    } else if (name.equals(isCurrentStaffElement)) {
                         //I really want there to be a value here..
                         getAdditionalUserData().setIsCurrentStaff(Boolean.parseBoolean(event.getRequiredValue()));
-                    } else if (name.equals(new QName(apiNS, "is-academic"))) {
+                    } else if (name.equals(isAcademicElement)) {
                         getAdditionalUserData().setIsAcademic(Boolean.parseBoolean(event.getRequiredValue()));
-                    } else if (name.equals(new QName(apiNS, "photo"))) {
+                    } else if (name.equals(photoElement)) {
                         getAdditionalUserData().setPhotoUrl(event.getAttribute("href"));
                     }
-                    else if (genericFieldName != null && name.equals(new QName(apiNS, "organisation-defined-data"))) {
-                        if(event.hasAttribute("field-name") && genericFieldName.equals(event.getAttribute("field-name"))){
+                    else if (settings.genericFieldName != null && name.equals(organisationDefinedDataElement)) {
+                        if(event.hasAttribute("field-name") && settings.genericFieldName.equals(event.getAttribute("field-name"))){
                             getAdditionalUserData().setGenericFieldValue(event.getValueOrNull());
                         }
                     }
-                    else if (labelSchemeName != null && labelLocation.matches(relativeLocation)) {
+                    else if (settings.labelSchemeName != null && labelLocation.matches(relativeLocation)) {
                         //if we are at the label location try and extract one
                         if(event.hasAttribute("origin") && event.hasAttribute("scheme")){
-                            if("object-data".equals(event.getAttribute("origin")) && labelSchemeName.equals(event.getAttribute("scheme"))) {
+                            if("object-data".equals(event.getAttribute("origin")) && settings.labelSchemeName.equals(event.getAttribute("scheme"))) {
                                 getAdditionalUserData().addLabelSchemeValue(event.getValueOrNull());
                             }
                         }
@@ -143,6 +186,9 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
         }
     }
 
+    //the raw "last-modified-when" value reported by Elements (null if it was not present)
+    private String lastModifiedWhen = null;
+
     //package private as should only ever be constructed by create calls into superclass
     ElementsObjectInfo(ElementsObjectCategory category, int id) {
         super(ElementsItemId.createObjectId(category, id));
@@ -150,4 +196,16 @@ public abstract class ElementsObjectInfo extends ElementsItemInfo{
 
     public ElementsItemId.ObjectId getObjectId(){return (ElementsItemId.ObjectId) getItemId();}
 
+    public String getLastModifiedWhen(){ return lastModifiedWhen; }
+
+    @Override
+    void writeData(DataOutput out) throws IOException {
+        writeString(out, lastModifiedWhen);
+    }
+
+    @Override
+    void readData(DataInput in) throws IOException {
+        lastModifiedWhen = readString(in);
+    }
+
 }
@@ -13,6 +13,9 @@ package uk.co.symplectic.vivoweb.harvester.model;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -39,6 +42,11 @@ public class ElementsRelationshipInfo extends ElementsItemInfo{
         private static DocumentLocation feedEntryLocation = new DocumentLocation(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "relationship"));
         private static DocumentLocation feedDeletedEntryLocation = new DocumentLocation(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "deleted-relationship"));
 
+        //names of the elements of interest (created once rather than for every event)
+        private static final QName relationshipElement = new QName(apiNS, "relationship");
+        private static final QName objectElement = new QName(apiNS, "object");
+        private static final QName isVisibleElement = new QName(apiNS, "is-visible");
+
         @SuppressWarnings("WeakerAccess")
         public static Extractor getExtractor(ElementsItemInfo.ExtractionSource source, int maximumExpected){
             switch(source) {
@@ -67,10 +75,10 @@ public class ElementsRelationshipInfo extends ElementsItemInfo{
             if (event.isRelevantForExtraction()) {
                 QName name = event.getName();
                 //only pull type id for "relationship" not "deleted-relationship" where it is not present.
-                if(name.equals(new QName(apiNS, "relationship"))){
+                if(name.equals(relationshipElement)){
                     workspace.setType(event.getAttribute("type"));
                 }
-                else if (name.equals(new QName(apiNS, "object"))) {
+                else if (name.equals(objectElement)) {
                     try {
                         ElementsObjectCategory objectCategory = ElementsObjectCategory.valueOf(event.getAttribute("category"));
                         int objectID = Integer.parseInt(event.getAttribute("id"));
@@ -81,7 +89,7 @@ public class ElementsRelationshipInfo extends ElementsItemInfo{
                         //will result in an "incomplete" relationship
                     }
                 }
-                else if(name.equals(new QName(apiNS, "is-visible"))){
+                else if(name.equals(isVisibleElement)){
                     //needs to have a value... true or false.. so no has check
                     workspace.setIsVisible(Boolean.parseBoolean(event.getRequiredValue()));
                 }
@@ -143,6 +151,28 @@ public class ElementsRelationshipInfo extends ElementsItemInfo{
 
     public List<ElementsItemId.ObjectId> getObjectIds() { return Collections.unmodifiableList(objectIds); }
 
+    @Override
+    void writeData(DataOutput out) throws IOException {
+        writeString(out, type);
+        out.writeBoolean(isVisible);
+        out.writeInt(objectIds.size());
+        for(ElementsItemId.ObjectId id : objectIds){
+            out.writeUTF(id.getItemDescriptor());
+            out.writeInt(id.getId());
+        }
+    }
+
+    @Override
+    void readData(DataInput in) throws IOException {
+        setType(readString(in));
+        setIsVisible(in.readBoolean());
+        int objectCount = in.readInt();
+        for(int i = 0; i < objectCount; i++){
+            ElementsObjectCategory category = ElementsObjectCategory.valueOf(in.readUTF());
+            addObjectId(ElementsItemId.createObjectId(category, in.readInt()));
+        }
+    }
+
     @Override
     public String toString(){
         StringBuilder builder = new StringBuilder(this.getItemId().toString());
@@ -14,6 +14,9 @@ import uk.co.symplectic.utils.xml.XMLEventProcessor;
 
 import javax.xml.namespace.QName;
 import javax.xml.stream.XMLStreamException;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.util.List;
 
 import static uk.co.symplectic.elements.api.ElementsAPI.apiNS;
@@ -39,6 +42,10 @@ public class ElementsRelationshipTypeInfo extends ElementsItemInfo{
         private static DocumentLocation fileEntryLocation = new DocumentLocation(new QName(atomNS, "entry"), new QName(apiNS, "relationship-type"));
         private static DocumentLocation feedEntryLocation = new DocumentLocation(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "relationship-type"));
 
+        //names of the elements of interest (created once rather than for every event)
+        private static final QName fromObjectElement = new QName(apiNS, "from-object");
+        private static final QName toObjectElement = new QName(apiNS, "to-object");
+
         @SuppressWarnings("WeakerAccess")
         public static Extractor getExtractor(ElementsItemInfo.ExtractionSource source, int maximumExpected){
             switch(source) {
@@ -64,7 +71,7 @@ public class ElementsRelationshipTypeInfo extends ElementsItemInfo{
         protected void processEvent(XMLEventProcessor.WrappedXmlEvent event, List<QName> relativeLocation) throws XMLStreamException {
             if (event.isRelevantForExtraction()) {
                 QName name = event.getName();
-                if (name.equals(new QName(apiNS, "from-object"))) {
+                if (name.equals(fromObjectElement)) {
                     try {
                         ElementsObjectCategory objectCategory = ElementsObjectCategory.valueOf(event.getAttribute("category"));
                         workspace.setFromCategory(objectCategory);
@@ -74,7 +81,7 @@ public class ElementsRelationshipTypeInfo extends ElementsItemInfo{
                         //will result in an "incomplete" relationship type
                     }
                 }
-                else if(name.equals(new QName(apiNS, "to-object"))){
+                else if(name.equals(toObjectElement)){
                     try {
                         ElementsObjectCategory objectCategory = ElementsObjectCategory.valueOf(event.getAttribute("category"));
                         workspace.setToCategory(objectCategory);
@@ -115,6 +122,20 @@ public class ElementsRelationshipTypeInfo extends ElementsItemInfo{
         this.toCategory = toCategory;
     }
 
+    @Override
+    void writeData(DataOutput out) throws IOException {
+        writeString(out, fromCategory == null ? null : fromCategory.getSingular());
+        writeString(out, toCategory == null ? null : toCategory.getSingular());
+    }
+
+    @Override
+    void readData(DataInput in) throws IOException {
+        String fromCategoryName = readString(in);
+        String toCategoryName = readString(in);
+        if(fromCategoryName != null) setFromCategory(ElementsObjectCategory.valueOf(fromCategoryName));
+        if(toCategoryName != null) setToCategory(ElementsObjectCategory.valueOf(toCategoryName));
+    }
+
     public boolean isComplete(){
         return getFromCategory() != null && getToCategory() != null;
     }
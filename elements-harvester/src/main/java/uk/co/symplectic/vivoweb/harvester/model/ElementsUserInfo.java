@@ -13,6 +13,9 @@ package uk.co.symplectic.vivoweb.harvester.model;
 import org.apache.commons.lang.StringUtils;
 import uk.co.symplectic.utils.ImageUtils;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Collections;
@@ -105,6 +108,41 @@ public class ElementsUserInfo extends ElementsObjectInfo {
         return additionalInfo.genericFieldValue;
     }
 
+    @Override
+    void writeData(DataOutput out) throws IOException {
+        super.writeData(out);
+        out.writeBoolean(!isNotFullyPopulated());
+        if(!isNotFullyPopulated()) {
+            out.writeBoolean(additionalInfo.isPublic);
+            out.writeBoolean(additionalInfo.isCurrentStaff);
+            out.writeBoolean(additionalInfo.isAcademic);
+            writeString(out, additionalInfo.photoUrl);
+            writeString(out, additionalInfo.username);
+            writeString(out, additionalInfo.proprietaryID);
+            out.writeInt(additionalInfo.labelSchemeValues.size());
+            for (String value : additionalInfo.labelSchemeValues) writeString(out, value);
+            writeString(out, additionalInfo.genericFieldValue);
+        }
+    }
+
+    @Override
+    void readData(DataInput in) throws IOException {
+        super.readData(in);
+        if(in.readBoolean()) {
+            UserExtraData data = new UserExtraData();
+            data.setIsPublic(in.readBoolean());
+            data.setIsCurrentStaff(in.readBoolean());
+            data.setIsAcademic(in.readBoolean());
+            data.setPhotoUrl(readString(in));
+            data.setUsername(readString(in));
+            data.setProprietaryID(readString(in));
+            int labelCount = in.readInt();
+            for (int i = 0; i < labelCount; i++) data.addLabelSchemeValue(readString(in));
+            data.setGenericFieldValue(readString(in));
+            addExtraData(data);
+        }
+    }
+
     @SuppressWarnings("UnusedReturnValue")
     static class UserExtraData{
         private boolean isPublic = true;
@@ -0,0 +1,165 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.MessageFormat;
+
+/**
+ * Records a fingerprint (a 64 bit digest) of the data last stored for every item of one StorableResourceType held in
+ * an ElementsItemFileStore, so that the store can recognise when it is handed exactly the data it already holds.
+ *
+ * The fingerprints are held in memory (in an OffsetTable) and written out as a single snapshot by close.
+ * Whilst they are being modified a marker file records that the snapshot may be out of step with the store's files,
+ * and fingerprints found with that marker still present are discarded - which just means that every item is treated
+ * as changed the next time it is stored.
+ */
+class ContentFingerprintIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ContentFingerprintIndex.class);
+
+    private static final int MAGIC_NUMBER = 0x45494650;
+    private static final int FORMAT_VERSION = 1;
+
+    private final StorableResourceType resourceType;
+    private final SnapshotFile snapshot;
+
+    //all null until the fingerprints are loaded.
+    private ItemKeys itemKeys = null;
+    private ElementsItemInfoIndex.OffsetTable fingerprints = null;
+    private boolean modified = false;
+
+    ContentFingerprintIndex(File indexDir, StorableResourceType resourceType){
+        if(indexDir == null) throw new NullArgumentException("indexDir");
+        if(resourceType == null) throw new NullArgumentException("resourceType");
+        this.resourceType = resourceType;
+        this.snapshot = new SnapshotFile(new File(indexDir, resourceType.toString() + ".fp"), new File(indexDir, resourceType.toString() + ".fp.open"));
+    }
+
+    /**
+     * Create a digest suitable for calculating the fingerprint of some data.
+     */
+    static MessageDigest createDigest(){
+        try {
+            return MessageDigest.getInstance("MD5");
+        }
+        catch(NoSuchAlgorithmException e){
+            throw new IllegalStateException("MD5 digests are not available", e);
+        }
+    }
+
+    /**
+     * @return the fingerprint of the data that has been passed through digest.
+     */
+    static long getFingerprint(MessageDigest digest){
+        byte[] hash = digest.digest();
+        long fingerprint = 0;
+        for(int i = 0; i < 8; i++) fingerprint = (fingerprint << 8) | (hash[i] & 0xFF);
+        //-1 is how the OffsetTable reports a missing entry
+        return fingerprint == -1 ? 0 : fingerprint;
+    }
+
+    /**
+     * @return whether the fingerprint recorded for itemId is the given fingerprint.
+     */
+    synchronized boolean matches(ElementsItemId itemId, long fingerprint) throws IOException{
+        load();
+        return fingerprints.get(itemKeys.getKey(itemId)) == fingerprint;
+    }
+
+    /**
+     * Record the fingerprint of the data that has just been stored for an item.
+     */
+    synchronized void put(ElementsItemId itemId, long fingerprint) throws IOException{
+        load();
+        markModified();
+        fingerprints.put(itemKeys.getKey(itemId), fingerprint);
+    }
+
+    /**
+     * Forget the fingerprint of an item that has been removed from the store.
+     */
+    synchronized void remove(ElementsItemId itemId) throws IOException{
+        load();
+        markModified();
+        fingerprints.remove(itemKeys.getKey(itemId));
+    }
+
+    /**
+     * Forget every fingerprint (e.g. when the store has been cleared down).
+     */
+    synchronized void clear() throws IOException{
+        load();
+        markModified();
+        fingerprints = new ElementsItemInfoIndex.OffsetTable();
+        itemKeys.clear();
+    }
+
+    /**
+     * Write the fingerprints to disk and mark them as consistent with the store's files.
+     */
+    synchronized void close() throws IOException{
+        if(!modified) return;
+        snapshot.write(new SnapshotFile.Writer() {
+            @Override
+            public void writeTo(DataOutputStream out) throws IOException {
+                out.writeInt(MAGIC_NUMBER);
+                out.writeInt(FORMAT_VERSION);
+                out.writeUTF(resourceType.toString());
+                itemKeys.writeTo(out);
+                fingerprints.writeTo(out);
+            }
+        });
+        modified = false;
+        if(!snapshot.markClosed())
+            log.warn(MessageFormat.format("Unable to remove {0}, the {1} fingerprints will be discarded next run", snapshot.getOpenMarker().getAbsolutePath(), resourceType));
+    }
+
+    private void markModified() throws IOException{
+        if(modified) return;
+        snapshot.markOpen();
+        modified = true;
+    }
+
+    private void load() throws IOException{
+        if(fingerprints != null) return;
+        itemKeys = new ItemKeys();
+        fingerprints = new ElementsItemInfoIndex.OffsetTable();
+        if(!snapshot.exists()) return;
+        if(snapshot.isOpen()){
+            log.info(MessageFormat.format("The {0} fingerprints were not closed cleanly - all {0} items will be treated as changed", resourceType));
+            return;
+        }
+        DataInputStream in = snapshot.openForReading();
+        try {
+            if(in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION || !resourceType.toString().equals(in.readUTF())) return;
+            ItemKeys loadedKeys = ItemKeys.readFrom(in, resourceType.getKeyItemType());
+            fingerprints = ElementsItemInfoIndex.OffsetTable.readFrom(in);
+            itemKeys = loadedKeys;
+        }
+        catch(IOException e){
+            log.warn(MessageFormat.format("Unable to read the {0} fingerprints ({1})", resourceType, e.getMessage()));
+        }
+        catch(RuntimeException e){
+            log.warn(MessageFormat.format("Unable to read the {0} fingerprints ({1})", resourceType, e.getMessage()));
+        }
+        finally {
+            in.close();
+        }
+    }
+}
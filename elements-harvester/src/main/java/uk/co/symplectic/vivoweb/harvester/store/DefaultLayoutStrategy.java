@@ -17,6 +17,7 @@ import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
 import java.io.File;
 import java.io.FilenameFilter;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * Class that defines the DefaultLayoutStrategy as used by the ElementsItemFileStores used in this project.
@@ -29,6 +30,8 @@ public class DefaultLayoutStrategy implements LayoutStrategy {
 
     private Map<ElementsItemType, StorableResourceType> mainResourceTypes = new HashMap<ElementsItemType, StorableResourceType>();
     private Set<StorableResourceType> resourceTypesWithOwnDirectory = new HashSet<StorableResourceType>();
+    //directories known to exist, so that looking up an item file does not have to check every time.
+    private Set<File> knownDirectories = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
 
     public DefaultLayoutStrategy(){
         this(null, null);
@@ -48,94 +51,137 @@ public class DefaultLayoutStrategy implements LayoutStrategy {
     @Override
     public File getItemFile(File storeDir, ElementsItemId itemId, StorableResourceType resourceType) {
         if(mainResourceTypes.containsValue(resourceType))
-            return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), Integer.toString(itemId.getId()), null);
+            return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), itemId.getId(), null);
         if(resourceTypesWithOwnDirectory.contains(resourceType))
-            return getResourceFile(storeDir, itemId.getItemDescriptor(), resourceType.getName(), Integer.toString(itemId.getId()));
-        return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), Integer.toString(itemId.getId()), resourceType.getName());
+            return getResourceFile(storeDir, itemId.getItemDescriptor(), resourceType.getName(), itemId.getId());
+        return getObjectExtraFile(storeDir, itemId.getItemDescriptor(), itemId.getId(), resourceType.getName());
     }
 
     @Override
-    public Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType) {
-        List<File> filesOfType = new ArrayList<File>();
+    public Iterable<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType) {
+        List<Iterable<File>> filesOfType = new ArrayList<Iterable<File>>();
         for(ElementsItemType.SubType subType : resourceType.getSupportedSubTypes()){
-            filesOfType.addAll(getAllExistingFilesOfType(storeDir, resourceType, subType));
+            filesOfType.add(getAllExistingFilesOfType(storeDir, resourceType, subType));
         }
-        return filesOfType;
+        return concatenate(filesOfType);
     }
 
-    @SuppressWarnings("ConstantConditions")
-    public Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType) {
+    public Iterable<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType) {
         if(subType.getMainType() != resourceType.getKeyItemType()) throw new IllegalStateException("requested subtype must match resource item type");
-        List<File> filesOfType = new ArrayList<File>();
+        List<Iterable<File>> filesOfType = new ArrayList<Iterable<File>>();
         final String resourceTypeDescriptor = resourceType.getName();
         String subTypeDescriptor = subType.getSingular();
         if(resourceTypesWithOwnDirectory.contains(resourceType)){
             File dir = new File(storeDir, subTypeDescriptor + "-" + resourceTypeDescriptor);
-            if(dir.exists())
-                filesOfType.addAll(Arrays.asList(dir.listFiles()));
+            filesOfType.add(listFiles(dir, null));
         }
         if(mainResourceTypes.containsValue(resourceType)){
             File dir = new File(storeDir, subTypeDescriptor);
-            if(dir.exists()) {
-                filesOfType.addAll(Arrays.asList(dir.listFiles(
+            filesOfType.add(listFiles(dir,
                         new FilenameFilter() {
                             @Override
                             public boolean accept(File dir, String name) {
                                 return !name.contains("-");
                             }
                         }
-                )));
-            }
+            ));
         }
         else{
             File dir = new File(storeDir, subTypeDescriptor);
-            if(dir.exists()) {
-                filesOfType.addAll(Arrays.asList(dir.listFiles(
+            filesOfType.add(listFiles(dir,
                         new FilenameFilter() {
                             @Override
                             public boolean accept(File dir, String name) {
                                 return name.endsWith("-" + resourceTypeDescriptor);
                             }
                         }
-                )));
-            }
+            ));
         }
 
-        return filesOfType;
+        return concatenate(filesOfType);
     }
 
-    private File getObjectExtraFile(File storeDir, String categoryDescriptor, String id, String type) {
+    /**
+     * @param typeDir the directory holding the files for a particular type of item.
+     * @param id the id of the item.
+     * @return the directory within typeDir that the item's files are placed in (typeDir itself in this layout).
+     */
+    protected File getItemDirectory(File typeDir, int id){
+        return typeDir;
+    }
+
+    /**
+     * @param typeDir the directory holding the files for a particular type of item (which may not exist).
+     * @param filter restricts the files returned (null for all files).
+     * @return the item files held for that type.
+     */
+    protected Iterable<File> listFiles(File typeDir, FilenameFilter filter){
+        File[] files = typeDir.listFiles(filter);
+        return files == null ? Collections.<File>emptyList() : Arrays.asList(files);
+    }
+
+    protected void ensureDirectoryExists(File dir){
+        if(knownDirectories.contains(dir)) return;
+        if (!dir.exists()) {
+            //noinspection ResultOfMethodCallIgnored
+            dir.mkdirs();
+        }
+        knownDirectories.add(dir);
+    }
+
+    private static Iterable<File> concatenate(final List<Iterable<File>> parts){
+        return new Iterable<File>() {
+            @Override
+            public Iterator<File> iterator() {
+                final Iterator<Iterable<File>> partIterator = parts.iterator();
+                return new Iterator<File>() {
+                    private Iterator<File> current = Collections.<File>emptyList().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while(!current.hasNext() && partIterator.hasNext()) current = partIterator.next().iterator();
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public File next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        return current.next();
+                    }
+
+                    @Override
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    private File getObjectExtraFile(File storeDir, String categoryDescriptor, int id, String type) {
         File file = storeDir;
         if (storeDir == null || categoryDescriptor == null) {
             throw new IllegalStateException();
         }
 
-        file = new File(file, categoryDescriptor);
-        if (!file.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            file.mkdirs();
-        }
+        file = getItemDirectory(new File(file, categoryDescriptor), id);
+        ensureDirectoryExists(file);
 
         if (!StringUtils.isEmpty(type)) {
             return new File(file, id + "-" + type);
         } else {
-            return new File(file, id);
+            return new File(file, Integer.toString(id));
         }
     }
 
 
-    private File getResourceFile(File storeDir, String categoryDescriptor, String resourceLabel, String id) {
+    private File getResourceFile(File storeDir, String categoryDescriptor, String resourceLabel, int id) {
         File file = storeDir;
         if (storeDir == null || categoryDescriptor == null) {
             throw new IllegalStateException();
         }
 
-        file = new File(file, categoryDescriptor + "-" + resourceLabel);
-        if (!file.exists()) {
-            //noinspection ResultOfMethodCallIgnored
-            file.mkdirs();
-        }
+        file = getItemDirectory(new File(file, categoryDescriptor + "-" + resourceLabel), id);
+        ensureDirectoryExists(file);
 
-        return new File(file, id);
+        return new File(file, Integer.toString(id));
     }
 }
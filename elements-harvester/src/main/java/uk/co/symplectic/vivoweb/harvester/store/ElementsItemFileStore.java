@@ -10,14 +10,25 @@
  */
 package uk.co.symplectic.vivoweb.harvester.store;
 
-import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
 import java.io.*;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.text.MessageFormat;
 import java.util.*;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This class allows you to create a generic disk backed store of data for essentially any raw data that corresponds to
@@ -33,32 +44,83 @@ import java.util.zip.GZIPOutputStream;
  *
  *
  * Offers various options for how files are handled: Layout strategy, handling of empty files, zipping of files, etc
+ * The data itself can either be held as a file per item (placed according to the layout strategy) or, to avoid
+ * having millions of tiny files on disk, as records in a few large pack files (see PackFileBackend). Stores can be
+ * converted between the two whilst the harvester is not running (see migrate).
+ *
+ * For any resource types that ElementsStoredItemInfo can load, the store also maintains an ElementsItemInfoIndex so
+ * that getAllExistingItemsOfType can supply the ElementsItemInfo of every stored item without re-parsing their files.
+ * close should be called once the store is no longer being modified to record that the indexes are up to date.
+ *
+ * If the store is created to skip unchanged items it also keeps a fingerprint of the data stored for each item
+ * (see ContentFingerprintIndex). Storing exactly the data that is already held for an item then neither rewrites the
+ * file nor marks the item as affected (so observers are not triggered). touchItem can be used to force processing.
+ * close logs how many items of each type were new, changed and unchanged.
  */
 @SuppressWarnings({"unused", "WeakerAccess"})
 public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletableItemStore {
+    private static final Logger log = LoggerFactory.getLogger(ElementsItemFileStore.class);
+    //the number of items handed to each worker by processAllExistingItemsOfType.
+    private static final int PROCESSING_BATCH_SIZE = 250;
+
     private List<StorableResourceType> supportedTypes = new ArrayList<StorableResourceType>();
     private File dir = null;
-    final private LayoutStrategy layoutStrategy;
-    private List<IElementsStoredItemObserver> itemObservers = new ArrayList<IElementsStoredItemObserver>();
+    //how the data for each item is actually held on disk
+    final private ItemDataBackend backend;
+    //observers and affected items are thread safe as items may be stored from several threads at once (e.g. concurrent feeds)
+    private List<IElementsStoredItemObserver> itemObservers = new CopyOnWriteArrayList<IElementsStoredItemObserver>();
     private final Map<StorableResourceType, Set<ElementsItemId>> affectedItems = new HashMap<StorableResourceType, Set<ElementsItemId>>();
+    private final Map<StorableResourceType, ElementsItemInfoIndex> itemInfoIndexes = new HashMap<StorableResourceType, ElementsItemInfoIndex>();
+    private final Map<StorableResourceType, ContentFingerprintIndex> fingerprintIndexes = new HashMap<StorableResourceType, ContentFingerprintIndex>();
+    private final Map<StorableResourceType, StoreCounts> storeCounts = new HashMap<StorableResourceType, StoreCounts>();
     private boolean keepEmpty = false;
     private boolean zipFiles = true;
 
     public List<StorableResourceType> getSupportedTypes(){return Collections.unmodifiableList(supportedTypes);}
 
     public ElementsItemFileStore(File dir, boolean keepEmpty, boolean zipFiles, LayoutStrategy layoutStrategy, StorableResourceType... supportedTypes) {
+        this(dir, keepEmpty, zipFiles, false, layoutStrategy, supportedTypes);
+    }
+
+    public ElementsItemFileStore(File dir, boolean keepEmpty, boolean zipFiles, boolean skipUnchanged, LayoutStrategy layoutStrategy, StorableResourceType... supportedTypes) {
+        this(dir, keepEmpty, zipFiles, skipUnchanged, false, layoutStrategy, supportedTypes);
+    }
+
+    public ElementsItemFileStore(File dir, boolean keepEmpty, boolean zipFiles, boolean skipUnchanged, boolean usePackFiles, LayoutStrategy layoutStrategy, StorableResourceType... supportedTypes) {
         if(dir == null) throw new NullArgumentException("dir");
         if(supportedTypes == null || supportedTypes.length == 0) throw new IllegalArgumentException("supportedTypes must not be null or empty");
 
         this.dir = dir;
         this.keepEmpty = keepEmpty;
         this.zipFiles = zipFiles;
-
-        this.layoutStrategy = layoutStrategy != null ? layoutStrategy : new DefaultLayoutStrategy();
         this.supportedTypes.addAll(Arrays.asList(supportedTypes));
+
+        //refuse to use a store whose existing data is held the other way, as it would appear to be empty.
+        File packDir = new File(dir, PackFileBackend.PACK_DIRECTORY);
+        if(usePackFiles) {
+            if(!packDir.exists() && holdsUnpackedData(dir))
+                throw new IllegalStateException(MessageFormat.format("{0} holds data that is not in pack files, convert it (elementsfetch --migrateStores) before using it with usePackFiles = true", dir.getAbsolutePath()));
+            this.backend = new PackFileBackend(packDir, zipFiles, this.supportedTypes);
+        }
+        else {
+            if(packDir.exists())
+                throw new IllegalStateException(MessageFormat.format("{0} holds pack files, convert it (elementsfetch --migrateStores) before using it with usePackFiles = false", dir.getAbsolutePath()));
+            checkLayout(dir, layoutStrategy);
+            this.backend = new FileLayoutBackend(dir, layoutStrategy != null ? layoutStrategy : new DefaultLayoutStrategy(), zipFiles);
+        }
+
         //initialise affected item lists for each resource type
         for(StorableResourceType type : supportedTypes){
-            affectedItems.put(type, new HashSet<ElementsItemId>());
+            affectedItems.put(type, Collections.synchronizedSet(new HashSet<ElementsItemId>()));
+            storeCounts.put(type, new StoreCounts());
+        }
+        //initialise (lazily loaded) indexes for each resource type whose stored data describes an ElementsItemInfo
+        File indexDir = new File(dir, ".index");
+        for(StorableResourceType type : supportedTypes){
+            if(ElementsStoredItemInfo.canLoadStoredResource(type))
+                itemInfoIndexes.put(type, new ElementsItemInfoIndex(this, indexDir, type));
+            if(skipUnchanged)
+                fingerprintIndexes.put(type, new ContentFingerprintIndex(indexDir, type));
         }
     }
 
@@ -127,44 +189,246 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
     public BasicElementsStoredItem retrieveItem(ElementsItemId itemId, StorableResourceType resourceType){
         if(!resourceType.isAppropriateForItem(itemId))  throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
-        //return file == null ? null : new ElementsStoredItemInfo.InFile(file, itemInfo, resourceType, shouldZipResourceFile(resourceType));
-        return file == null || !file.exists() ? null : new BasicElementsStoredItem(itemId, resourceType, new StoredData.InFile(file, shouldZipResourceFile(resourceType)));
+        return backend.exists(itemId, resourceType) ? new BasicElementsStoredItem(itemId, resourceType, backend.getData(itemId, resourceType)) : null;
     }
 
     /**
      * Method to retrieve all StoredItem of a particular resourceType that exist in this store.
+     * The items are found as the result is iterated over, so the store should not be modified part way through.
      * @param resourceType The Type of resource you want to retrieve
-     * @return A Collection of StoredData.InFile objects to provide access to the relevant resources
+     * @return An Iterable of StoredData objects to provide access to the relevant resources
+     * @throws IOException if errors occur
      */
-    public Collection<StoredData.InFile> getAllExistingFilesOfType(StorableResourceType resourceType){
-        return getAllExistingFilesOfType(resourceType, null);
+    public Iterable<StoredData> getAllExistingDataOfType(StorableResourceType resourceType) throws IOException{
+        return getAllExistingDataOfType(resourceType, null);
     }
 
     /**
      * Method to retrieve all StoredItem of a particular resourceType that exist in this store.
+     * The items are found as the result is iterated over, so the store should not be modified part way through.
      * @param resourceType The Type of resource you want to retrieve
      * @param subType The subtype of resource you want to retrieve
-     * @return A Collection of StoredData.InFile objects to provide access to the relevant resources
+     * @return An Iterable of StoredData objects to provide access to the relevant resources
+     * @throws IOException if errors occur
      */
-    public Collection<StoredData.InFile> getAllExistingFilesOfType(StorableResourceType resourceType, ElementsItemType.SubType subType){
+    public Iterable<StoredData> getAllExistingDataOfType(StorableResourceType resourceType, ElementsItemType.SubType subType) throws IOException{
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        Collection<File> files = subType == null ? layoutStrategy.getAllExistingFilesOfType(dir,resourceType) : layoutStrategy.getAllExistingFilesOfType(dir, resourceType, subType);
-        boolean isZipped = shouldZipResourceFile(resourceType);
-        Collection<StoredData.InFile> data = new ArrayList<StoredData.InFile>();
-        for(File file : files) data.add(new StoredData.InFile(file, isZipped));
-        return data;
+        final Iterable<BasicElementsStoredItem> items = backend.getAllExistingItems(resourceType, subType);
+        return new Iterable<StoredData>() {
+            @Override
+            public Iterator<StoredData> iterator() {
+                final Iterator<BasicElementsStoredItem> inner = items.iterator();
+                return new Iterator<StoredData>() {
+                    @Override
+                    public boolean hasNext() { return inner.hasNext(); }
+
+                    @Override
+                    public StoredData next() { return inner.next().getStoredData(); }
+
+                    @Override
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    /**
+     * Method to retrieve all the items of a particular resourceType that exist in this store, along with the
+     * ElementsItemInfo describing each of them, which is read from the store's index rather than the items' files.
+     * Items are read lazily, so the store should not be cleared down (or closed) part way through an iteration.
+     * @param resourceType The Type of resource you want to retrieve (must be one the store indexes)
+     * @return An Iterable of ElementsStoredItemInfo objects describing, and providing access to, the relevant resources
+     * @throws IOException if the index cannot be loaded
+     */
+    public Iterable<ElementsStoredItemInfo> getAllExistingItemsOfType(StorableResourceType resourceType) throws IOException{
+        return getAllExistingItemsOfType(resourceType, null);
+    }
+
+    /**
+     * Method to retrieve all the items of a particular resourceType that exist in this store, along with the
+     * ElementsItemInfo describing each of them, which is read from the store's index rather than the items' files.
+     * Items are read lazily, so the store should not be cleared down (or closed) part way through an iteration.
+     * @param resourceType The Type of resource you want to retrieve (must be one the store indexes)
+     * @param subType The subtype of resource you want to retrieve
+     * @return An Iterable of ElementsStoredItemInfo objects describing, and providing access to, the relevant resources
+     * @throws IOException if the index cannot be loaded
+     */
+    public Iterable<ElementsStoredItemInfo> getAllExistingItemsOfType(final StorableResourceType resourceType, ElementsItemType.SubType subType) throws IOException{
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        ElementsItemInfoIndex index = itemInfoIndexes.get(resourceType);
+        if(index == null) throw new IllegalStateException("resourceType is not indexed by store");
+        final Iterable<ElementsItemInfo> itemInfos = index.getItems(subType);
+        return new Iterable<ElementsStoredItemInfo>() {
+            @Override
+            public Iterator<ElementsStoredItemInfo> iterator() {
+                final Iterator<ElementsItemInfo> inner = itemInfos.iterator();
+                return new Iterator<ElementsStoredItemInfo>() {
+                    @Override
+                    public boolean hasNext() { return inner.hasNext(); }
+
+                    @Override
+                    public ElementsStoredItemInfo next() {
+                        ElementsItemInfo itemInfo = inner.next();
+                        return new ElementsStoredItemInfo(itemInfo, resourceType, backend.getData(itemInfo.getItemId(), resourceType));
+                    }
+
+                    @Override
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    /**
+     * Method to pass every item of a particular resourceType that exists in this store to a processor, as the store's
+     * index is walked (so the items are never all held in memory at once).
+     * Processing stops early if the processor returns false (or throws an IOException).
+     * @param resourceType The Type of resource you want to process (must be one the store indexes)
+     * @param subType The subtype of resource you want to process (null for all subtypes)
+     * @param processor the processor to pass the items to
+     * @param threads the number of threads to process with. If more than one the items are split into batches that are
+     *                processed concurrently, so the processor must be thread safe and will not see the items in order.
+     * @return the number of items passed to the processor
+     * @throws IOException if the index cannot be loaded, or the processor fails
+     */
+    public int processAllExistingItemsOfType(StorableResourceType resourceType, ElementsItemType.SubType subType, final IElementsStoredItemProcessor processor, int threads) throws IOException{
+        if(processor == null) throw new NullArgumentException("processor");
+        Iterator<ElementsStoredItemInfo> items = getAllExistingItemsOfType(resourceType, subType).iterator();
+        if(threads <= 1){
+            int counter = 0;
+            while(items.hasNext()){
+                counter++;
+                if(!processor.process(items.next())) break;
+            }
+            return counter;
+        }
+
+        final AtomicBoolean stopped = new AtomicBoolean(false);
+        final AtomicInteger counter = new AtomicInteger(0);
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> workers = ExecutorServiceUtils.newIOBoundThreadPool("StoredItemProcessor", threads);
+        LinkedList<Future<Boolean>> outstandingBatches = new LinkedList<Future<Boolean>>();
+        try {
+            while(items.hasNext() && !stopped.get()){
+                final List<ElementsStoredItemInfo> batch = new ArrayList<ElementsStoredItemInfo>(PROCESSING_BATCH_SIZE);
+                while(items.hasNext() && batch.size() < PROCESSING_BATCH_SIZE) batch.add(items.next());
+                outstandingBatches.add(workers.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() throws IOException {
+                        for(ElementsStoredItemInfo item : batch){
+                            if(stopped.get()) break;
+                            counter.incrementAndGet();
+                            if(!processor.process(item)) stopped.set(true);
+                        }
+                        return true;
+                    }
+                }, false));
+                //only read a few batches ahead of the workers.
+                while(outstandingBatches.size() > threads * 2) outstandingBatches.removeFirst().get();
+            }
+            for(Future<Boolean> batch : outstandingBatches) batch.get();
+        }
+        catch(InterruptedException e){
+            throw new IllegalStateException("Interrupted whilst processing stored items", e);
+        }
+        catch(ExecutionException e){
+            if(e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IllegalStateException("Unexpected failure whilst processing stored items", e.getCause());
+        }
+        finally {
+            //stop any remaining batches if something has gone wrong.
+            stopped.set(true);
+            workers.awaitShutdown();
+        }
+        return counter.get();
+    }
+
+    /**
+     * Method to retrieve the stored relationships that involve any of a set of objects. The store's index is used to
+     * find them directly, so the cost depends on the number of objects rather than on the size of the store.
+     * @param objectIds the objects of interest
+     * @return ElementsStoredItemInfo objects describing, and providing access to, each relationship involving one or more of the objects
+     * @throws IOException if the index cannot be read
+     */
+    public List<ElementsStoredItemInfo> getRelationshipsInvolving(Set<? extends ElementsItemId> objectIds) throws IOException{
+        StorableResourceType resourceType = StorableResourceType.RAW_RELATIONSHIP;
+        ElementsItemInfoIndex index = itemInfoIndexes.get(resourceType);
+        if(index == null) throw new IllegalStateException("store does not index relationships");
+        List<ElementsStoredItemInfo> relationships = new ArrayList<ElementsStoredItemInfo>();
+        for(ElementsItemInfo itemInfo : index.getRelationshipsInvolving(objectIds)){
+            relationships.add(new ElementsStoredItemInfo(itemInfo, resourceType, backend.getData(itemInfo.getItemId(), resourceType)));
+        }
+        return relationships;
+    }
+
+    /**
+     * Make sure the data of every item stored so far will survive the process dying (pack files only commit their
+     * appends in batches). Unlike close this does not flush the indexes, which are rebuilt from the data if needed.
+     * @throws IOException if errors occur
+     */
+    public void flush() throws IOException{
+        backend.flush();
+    }
+
+    /**
+     * Flush the store's indexes (and any pack files) to disk, recording that they are consistent with the store's data.
+     * If this is not called (e.g. the process dies) the indexes are rebuilt from the data when next used.
+     * @throws IOException if errors occur
+     */
+    public void close() throws IOException{
+        backend.close();
+        for(ElementsItemInfoIndex index : itemInfoIndexes.values()){
+            index.close();
+        }
+        for(ContentFingerprintIndex fingerprintIndex : fingerprintIndexes.values()){
+            fingerprintIndex.close();
+        }
+        for(StorableResourceType resourceType : supportedTypes){
+            StoreCounts counts = storeCounts.get(resourceType);
+            if(counts.getTotal() > 0) {
+                log.info(MessageFormat.format("Stored {0} items: {1} new, {2} changed, {3} unchanged", resourceType,
+                        counts.newItems.get(), counts.changedItems.get(), counts.unchangedItems.get()));
+            }
+        }
     }
 
     //See interface for javadoc
     @Override
     public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException{
+        if(data == null) data = new byte[0];
+        //if the data is already in memory we can tell if it is unchanged without writing anything at all
+        ContentFingerprintIndex fingerprintIndex = fingerprintIndexes.get(resourceType);
+        if(fingerprintIndex != null && resourceType.isAppropriateForItem(itemInfo.getItemId())){
+            MessageDigest digest = ContentFingerprintIndex.createDigest();
+            digest.update(data);
+            if(backend.exists(itemInfo.getItemId(), resourceType) && fingerprintIndex.matches(itemInfo.getItemId(), ContentFingerprintIndex.getFingerprint(digest))){
+                storeCounts.get(resourceType).unchangedItems.incrementAndGet();
+                return new ElementsStoredItemInfo(itemInfo, resourceType, backend.getData(itemInfo.getItemId(), resourceType));
+            }
+        }
+        return storeItem(itemInfo, resourceType, new ByteArrayInputStream(data));
+    }
+
+    //See interface for javadoc
+    @Override
+    public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) throws IOException{
         //TODO: do something better here with error message?
         if(!resourceType.isAppropriateForItem(itemInfo.getItemId())) throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemInfo.getItemId(), resourceType);
-        ElementsStoredItemInfo storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, new StoredData.InFile(file, shouldZipResourceFile(resourceType)));
-        store(file, data, zipFiles && resourceType.shouldZip());
+        if(data == null) throw new NullArgumentException("data");
+        ElementsStoredItemInfo storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, backend.getData(itemInfo.getItemId(), resourceType));
+        boolean existed = backend.exists(itemInfo.getItemId(), resourceType);
+        StoreOutcome outcome = store(itemInfo.getItemId(), resourceType, data, fingerprintIndexes.get(resourceType));
+        StoreCounts counts = storeCounts.get(resourceType);
+        if(outcome == StoreOutcome.UNCHANGED){
+            counts.unchangedItems.incrementAndGet();
+            return storedItem;
+        }
+        (existed ? counts.changedItems : counts.newItems).incrementAndGet();
+        ElementsItemInfoIndex index = itemInfoIndexes.get(resourceType);
+        if(index != null){
+            if(outcome == StoreOutcome.KEPT) index.put(itemInfo);
+            else index.remove(itemInfo.getItemId());
+        }
 
         //flag the item as having been affected during this run
         //if it is a newly affected item, or if the data is actually being updated during this processing run then process any observers
@@ -182,9 +446,8 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         //TODO: do something better here with error message?
         if(!resourceType.isAppropriateForItem(itemInfo.getItemId())) throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemInfo.getItemId(), resourceType);
-        ElementsStoredItemInfo storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, new StoredData.InFile(file, shouldZipResourceFile(resourceType)));
-        if(!file.exists()){ throw new FileNotFoundException(file.getAbsolutePath()); }
+        ElementsStoredItemInfo storedItem = new ElementsStoredItemInfo(itemInfo, resourceType, backend.getData(itemInfo.getItemId(), resourceType));
+        if(!backend.exists(itemInfo.getItemId(), resourceType)){ throw new FileNotFoundException(storedItem.getAddress()); }
 
 
         if(explicitObservers != null && explicitObservers.length != 0) {
@@ -210,11 +473,12 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         //TODO: do something better here with error message?
         if(!resourceType.isAppropriateForItem(itemId)) throw new IllegalStateException("resourceType is incompatible with item");
         if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
-        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
         //TODO: should this log if there is nothing to delete?, note that file would not always be present, e.g. for a translated prof-activity?
-        if(file.exists())
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
+        backend.delete(itemId, resourceType);
+        ElementsItemInfoIndex index = itemInfoIndexes.get(resourceType);
+        if(index != null) index.remove(itemId);
+        ContentFingerprintIndex fingerprintIndex = fingerprintIndexes.get(resourceType);
+        if(fingerprintIndex != null) fingerprintIndex.remove(itemId);
         //TODO: should this use markAsAffected?
         for(IElementsStoredItemObserver observer : itemObservers) {
             observer.observeDeletion(itemId, resourceType);
@@ -228,9 +492,12 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
     //See interface for javadoc
     @Override
     public void cleardown(StorableResourceType resourceType, boolean followObservers) throws IOException {
-        for (StoredData.InFile data : getAllExistingFilesOfType(resourceType)) {
-            data.delete();
-        }
+        if(!supportedTypes.contains(resourceType)) throw new IllegalStateException("resourceType is incompatible with store");
+        backend.cleardown(resourceType);
+        ElementsItemInfoIndex index = itemInfoIndexes.get(resourceType);
+        if(index != null) index.clear();
+        ContentFingerprintIndex fingerprintIndex = fingerprintIndexes.get(resourceType);
+        if(fingerprintIndex != null) fingerprintIndex.clear();
         if (followObservers){
             for (IElementsStoredItemObserver observer : itemObservers) {
                 observer.observeCleardown(resourceType, this);
@@ -238,26 +505,159 @@ public class ElementsItemFileStore implements ElementsItemStore.ElementsDeletabl
         }
     }
 
-    private boolean shouldZipResourceFile(StorableResourceType resourceType) {return zipFiles && resourceType.shouldZip();}
-
-    private void store(File file, byte[] data, boolean shouldZip) throws IOException{
-        byte[] dataToStore = data == null ? new byte[0] : data;
-        if (keepEmpty || dataToStore.length > 0) {
-            OutputStream outputStream = null;
-            try {
-                outputStream = (new BufferedOutputStream(new FileOutputStream(file)));
-                if(shouldZip) outputStream = new GZIPOutputStream(outputStream);
-                IOUtils.copy(new ByteArrayInputStream(dataToStore), outputStream);
-            } finally {
-                if (outputStream != null) {
-                    outputStream.close();
+    private enum StoreOutcome { KEPT, EMPTY, UNCHANGED }
+
+    private static class StoreCounts {
+        final AtomicInteger newItems = new AtomicInteger();
+        final AtomicInteger changedItems = new AtomicInteger();
+        final AtomicInteger unchangedItems = new AtomicInteger();
+
+        int getTotal(){ return newItems.get() + changedItems.get() + unchangedItems.get(); }
+    }
+
+    /**
+     * Stage the data with the backend and then commit it, so that anything reading the store never sees partially
+     * written data (and a failure part way through leaves any previous version intact).
+     * If a fingerprintIndex is supplied the data is fingerprinted as it is staged, and the existing data is left alone
+     * if it is the same.
+     * @return whether the data was kept (it is not if it is empty and the store does not keep empty files), or was unchanged.
+     */
+    private StoreOutcome store(ElementsItemId itemId, StorableResourceType resourceType, InputStream data, ContentFingerprintIndex fingerprintIndex) throws IOException{
+        MessageDigest digest = null;
+        if(fingerprintIndex != null){
+            digest = ContentFingerprintIndex.createDigest();
+            data = new DigestInputStream(data, digest);
+        }
+        ItemDataBackend.StagedData stagedData = backend.stage(itemId, resourceType, data);
+        try {
+            if (keepEmpty || stagedData.getLength() > 0) {
+                if(fingerprintIndex != null){
+                    long fingerprint = ContentFingerprintIndex.getFingerprint(digest);
+                    if(backend.exists(itemId, resourceType) && fingerprintIndex.matches(itemId, fingerprint)) return StoreOutcome.UNCHANGED;
+                    stagedData.commit();
+                    fingerprintIndex.put(itemId, fingerprint);
+                }
+                else stagedData.commit();
+                return StoreOutcome.KEPT;
+            }
+            //if not keeping empties and the data is empty
+            backend.delete(itemId, resourceType);
+            if(fingerprintIndex != null) fingerprintIndex.remove(itemId);
+            return StoreOutcome.EMPTY;
+        }
+        finally {
+            stagedData.discard();
+        }
+    }
+
+    /**
+     * @return whether dir holds any data stored as a file per item (which is always in non hidden sub directories).
+     */
+    /**
+     * Refuse to read a store laid out in sharded sub directories (see ShardedLayoutStrategy) with any other layout, as
+     * the sub directories would be mistaken for items.
+     */
+    private static void checkLayout(File dir, LayoutStrategy layoutStrategy){
+        if(!(layoutStrategy instanceof ShardedLayoutStrategy) && ShardedLayoutStrategy.holdsShardedData(dir))
+            throw new IllegalStateException(MessageFormat.format("{0} holds files in sharded sub directories, it can only be used with shardDirectories = true", dir.getAbsolutePath()));
+    }
+
+    private static boolean holdsUnpackedData(File dir){
+        String[] entries = dir.list();
+        if(entries != null) {
+            for (String entry : entries) {
+                if (!entry.startsWith(".")) return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Convert the data held in a store from a file per item to pack files, or back again.
+     * This must only be used whilst nothing else is using the store. The store's indexes are unaffected.
+     * The converted data is only put in place once everything has been copied, and the original data is then removed.
+     * Does nothing if the data is already held the requested way (other than finishing off an interrupted conversion).
+     * @param dir the store's directory
+     * @param zipFiles whether the store zips its data
+     * @param toPackFiles true to convert to pack files, false to convert from them.
+     * @param layoutStrategy the layout used by the store when holding a file per item
+     * @param supportedTypes the types of data held in the store
+     * @throws IOException if errors occur
+     */
+    protected static void migrate(File dir, boolean zipFiles, boolean toPackFiles, LayoutStrategy layoutStrategy, StorableResourceType... supportedTypes) throws IOException{
+        if(dir == null) throw new NullArgumentException("dir");
+        if(supportedTypes == null || supportedTypes.length == 0) throw new IllegalArgumentException("supportedTypes must not be null or empty");
+        File packDir = new File(dir, PackFileBackend.PACK_DIRECTORY);
+        List<StorableResourceType> types = Arrays.asList(supportedTypes);
+        FileLayoutBackend fileBackend = new FileLayoutBackend(dir, layoutStrategy, zipFiles);
+        if(toPackFiles){
+            checkLayout(dir, layoutStrategy);
+            //built to one side so that a failed conversion never looks like a (partial) store of pack files.
+            File migrationDir = new File(dir, PackFileBackend.PACK_DIRECTORY + ".migrating");
+            FileUtils.deleteDirectory(migrationDir);
+            if(!packDir.exists()) {
+                copyData(fileBackend, new PackFileBackend(migrationDir, zipFiles, types), types, dir);
+                if (!migrationDir.renameTo(packDir))
+                    throw new IOException(MessageFormat.format("Unable to move {0} into place as {1}", migrationDir.getAbsolutePath(), packDir.getAbsolutePath()));
+            }
+            else if(!holdsUnpackedData(dir)) {
+                log.info(MessageFormat.format("{0} already holds pack files", dir.getAbsolutePath()));
+                return;
+            }
+            //any files still present are either converted or left over from an interrupted conversion that had completed.
+            for(StorableResourceType type : types) fileBackend.cleardown(type);
+            //remove the (now empty) directories the files were held in
+            File[] entries = dir.listFiles();
+            if(entries != null) {
+                for (File entry : entries) {
+                    if (!entry.getName().startsWith(".")) FileUtils.deleteDirectory(entry);
                 }
             }
         }
-        //if not keeping empties and the file is empty
-        else if(file.exists()){
-            //noinspection ResultOfMethodCallIgnored
-            file.delete();
+        else{
+            if(!packDir.exists()) {
+                log.info(MessageFormat.format("{0} does not hold pack files", dir.getAbsolutePath()));
+                return;
+            }
+            //rewriting any files left by a previous failed attempt is harmless, so no need to build to one side.
+            copyData(new PackFileBackend(packDir, zipFiles, types), fileBackend, types, dir);
+            FileUtils.deleteDirectory(packDir);
+        }
+    }
+
+    private static void copyData(ItemDataBackend source, ItemDataBackend destination, List<StorableResourceType> types, File dir) throws IOException{
+        for(StorableResourceType type : types){
+            int counter = 0;
+            for(BasicElementsStoredItem item : source.getAllExistingItems(type, null)){
+                InputStream data = item.getStoredData().getInputStream();
+                try {
+                    ItemDataBackend.StagedData stagedData = destination.stage(item.getItemId(), type, data);
+                    try {
+                        stagedData.commit();
+                    }
+                    finally {
+                        stagedData.discard();
+                    }
+                }
+                finally {
+                    data.close();
+                }
+                counter++;
+                if(counter % 10000 == 0) log.info(MessageFormat.format("{0} {1} items converted in {2}", counter, type, dir.getAbsolutePath()));
+            }
+            log.info(MessageFormat.format("Finished converting {0} items in {1}, {2} converted", type, dir.getAbsolutePath(), counter));
+        }
+        destination.close();
+        source.close();
+    }
+
+    static void moveIntoPlace(File tempFile, File file) throws IOException{
+        //renameTo replaces an existing file atomically on posix systems, but will not replace one at all on some platforms.
+        if(!tempFile.renameTo(file)){
+            if(file.exists() && !file.delete())
+                throw new IOException(MessageFormat.format("Unable to replace {0}", file.getAbsolutePath()));
+            if(!tempFile.renameTo(file))
+                throw new IOException(MessageFormat.format("Unable to move {0} into place as {1}", tempFile.getAbsolutePath(), file.getAbsolutePath()));
         }
     }
 }
@@ -0,0 +1,623 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.CountingOutputStream;
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectInfo;
+
+import java.io.*;
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * A compact binary index of the ElementsItemInfo for every item of one StorableResourceType held in an
+ * ElementsItemFileStore. Passes over the whole store can read each item's ElementsItemInfo from here rather than
+ * un-zipping and re-parsing the raw XML it was originally extracted from.
+ *
+ * The index is an append only journal: storing an item appends its ElementsItemInfo (see ElementsItemInfo.writeTo)
+ * and deleting one appends a deletion record. In memory only the position of the latest record for each item is held
+ * (in an OffsetTable). Superseded records are compacted away when the index is next loaded.
+ *
+ * For relationships the index also holds a reverse index from each object to the relationships that involve it,
+ * built from the object ids in the journal's records as they are loaded or written, so that getRelationshipsInvolving
+ * can find the relationships linked to a handful of objects without reading every relationship in the store.
+ *
+ * Whilst the index is open for writing a marker file records that it may be out of step with the store's files
+ * (e.g. if the process dies between storing a file and recording it here), and close removes it. An index found with
+ * that marker still present, or that was written with different user extraction settings, is rebuilt from the files.
+ */
+class ElementsItemInfoIndex {
+
+    private static final Logger log = LoggerFactory.getLogger(ElementsItemInfoIndex.class);
+
+    private static final int MAGIC_NUMBER = 0x45494958;
+    private static final int FORMAT_VERSION = 2;
+    private static final int STORED = 1;
+    private static final int DELETED = 2;
+    //how many superseded records are tolerated before the journal is compacted on load.
+    private static final int COMPACTION_THRESHOLD = 10000;
+    //how many stored files are loaded (in parallel) at a time when rebuilding the index.
+    private static final int REBUILD_BATCH_SIZE = 10000;
+
+    private final ElementsItemFileStore store;
+    private final StorableResourceType resourceType;
+    private final File indexFile;
+    //the journal, along with the marker that is present whilst it is open.
+    private final SnapshotFile markedIndexFile;
+    private final ItemKeys itemKeys = new ItemKeys();
+
+    //all null until the index is opened.
+    private OffsetTable offsets = null;
+    //object key -> ids of relationships that involve (or once involved) the object, stored as [count, id, id, ...]
+    private Map<Long, int[]> relationshipsByObject = null;
+    private DataOutputStream journal = null;
+    private CountingOutputStream journalCounter = null;
+    private long journalStart = 0;
+    private long recordCount = 0;
+    //set if a write fails, so that the marker is left in place and the index rebuilt next time it is opened.
+    private boolean broken = false;
+
+    ElementsItemInfoIndex(ElementsItemFileStore store, File indexDir, StorableResourceType resourceType){
+        if(store == null) throw new NullArgumentException("store");
+        if(indexDir == null) throw new NullArgumentException("indexDir");
+        if(resourceType == null) throw new NullArgumentException("resourceType");
+        this.store = store;
+        this.resourceType = resourceType;
+        this.indexFile = new File(indexDir, resourceType.toString() + ".idx");
+        this.markedIndexFile = new SnapshotFile(indexFile, new File(indexDir, resourceType.toString() + ".open"));
+    }
+
+    /**
+     * Record the ElementsItemInfo of an item that has just been stored (replacing anything previously recorded for it).
+     */
+    synchronized void put(ElementsItemInfo itemInfo) throws IOException{
+        if(itemInfo == null) throw new NullArgumentException("itemInfo");
+        open();
+        long position = getJournalPosition();
+        try {
+            journal.writeByte(STORED);
+            itemInfo.writeTo(journal);
+        }
+        catch(IOException e){
+            broken = true;
+            throw e;
+        }
+        offsets.put(getKey(itemInfo.getItemId()), position);
+        addRelationshipLinks(relationshipsByObject, itemInfo);
+        recordCount++;
+    }
+
+    /**
+     * Record that an item has been removed from the store.
+     */
+    synchronized void remove(ElementsItemId itemId) throws IOException{
+        if(itemId == null) throw new NullArgumentException("itemId");
+        open();
+        if(offsets.remove(getKey(itemId))) {
+            try {
+                journal.writeByte(DELETED);
+                journal.writeUTF(itemId.getItemDescriptor());
+                journal.writeInt(itemId.getId());
+            }
+            catch (IOException e) {
+                broken = true;
+                throw e;
+            }
+            recordCount++;
+        }
+    }
+
+    /**
+     * Discard everything in the index (e.g. when the store has been cleared down).
+     */
+    synchronized void clear() throws IOException{
+        closeJournal();
+        startNewJournal();
+    }
+
+    /**
+     * Flush the index to disk and mark it as consistent with the store's files.
+     * The index is re-opened (and re-loaded) automatically if it is used again.
+     */
+    synchronized void close() throws IOException{
+        if(journal != null) {
+            closeJournal();
+            offsets = null;
+            relationshipsByObject = null;
+            if(!broken && !markedIndexFile.markClosed())
+                log.warn(MessageFormat.format("Unable to remove {0}, the {1} index will be rebuilt next run", markedIndexFile.getOpenMarker().getAbsolutePath(), resourceType));
+        }
+    }
+
+    /**
+     * Iterate over the ElementsItemInfo of every item currently in the index, in the order they were (last) stored.
+     * Items that are stored or deleted whilst the iteration is in progress may or may not be included.
+     * @param subType restrict the iteration to items of this subtype (null for all items).
+     */
+    synchronized Iterable<ElementsItemInfo> getItems(final ElementsItemType.SubType subType) throws IOException{
+        open();
+        journal.flush();
+        final long endPosition = getJournalPosition();
+        return new Iterable<ElementsItemInfo>() {
+            @Override
+            public Iterator<ElementsItemInfo> iterator() {
+                return new JournalIterator(subType, endPosition);
+            }
+        };
+    }
+
+    /**
+     * Find the relationships currently in the index that involve any of the given objects.
+     * @param objectIds the objects of interest
+     * @return the ElementsItemInfo of each relationship involving one or more of the objects (in the order they were stored).
+     */
+    synchronized List<ElementsItemInfo> getRelationshipsInvolving(Set<? extends ElementsItemId> objectIds) throws IOException{
+        if(objectIds == null) throw new NullArgumentException("objectIds");
+        open();
+        journal.flush();
+        //the reverse index can hold links that have since been superseded, so find where the current record of each
+        //candidate is, and then check that it really does involve one of the objects.
+        Set<Long> positions = new TreeSet<Long>();
+        for(ElementsItemId objectId : objectIds){
+            int[] links = relationshipsByObject.get(getKey(objectId));
+            if(links == null) continue;
+            for(int i = 1; i <= links[0]; i++){
+                long position = offsets.get(getKey(ElementsItemId.createRelationshipId(links[i])));
+                if(position >= 0) positions.add(position);
+            }
+        }
+
+        List<ElementsItemInfo> relationships = new ArrayList<ElementsItemInfo>();
+        RandomAccessFile file = new RandomAccessFile(indexFile, "r");
+        try {
+            for (long position : positions) {
+                file.seek(position);
+                if (file.read() != STORED) throw new IOException(MessageFormat.format("Corrupt {0} index at {1}", resourceType, position));
+                ElementsItemInfo itemInfo = ElementsItemInfo.readFrom(file);
+                if (itemInfo.isRelationshipInfo()) {
+                    for (ElementsItemId.ObjectId objectId : itemInfo.asRelationshipInfo().getObjectIds()) {
+                        if (objectIds.contains(objectId)) {
+                            relationships.add(itemInfo);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        finally {
+            file.close();
+        }
+        return relationships;
+    }
+
+    private synchronized boolean isCurrent(ElementsItemId itemId, long position){
+        return offsets != null && offsets.get(getKey(itemId)) == position;
+    }
+
+    private long getKey(ElementsItemId itemId){
+        return itemKeys.getKey(itemId);
+    }
+
+    private void addRelationshipLinks(Map<Long, int[]> links, ElementsItemInfo itemInfo){
+        if(!itemInfo.isRelationshipInfo()) return;
+        int relationshipId = itemInfo.getItemId().getId();
+        for(ElementsItemId.ObjectId objectId : itemInfo.asRelationshipInfo().getObjectIds()){
+            long objectKey = getKey(objectId);
+            int[] objectLinks = links.get(objectKey);
+            if(objectLinks == null){
+                objectLinks = new int[4];
+                links.put(objectKey, objectLinks);
+            }
+            else if(objectLinks[objectLinks[0]] == relationshipId){
+                //already linked (the relationship has simply been stored again)
+                continue;
+            }
+            else if(objectLinks[0] + 1 == objectLinks.length){
+                objectLinks = Arrays.copyOf(objectLinks, objectLinks.length * 2);
+                links.put(objectKey, objectLinks);
+            }
+            objectLinks[++objectLinks[0]] = relationshipId;
+        }
+    }
+
+    private long getJournalPosition(){
+        return journalStart + journalCounter.getByteCount();
+    }
+
+    private void open() throws IOException{
+        if(journal != null) return;
+        if(!load()) rebuild();
+    }
+
+    /**
+     * Load the journal from disk (compacting it if it holds a lot of superseded records) and open it for appending.
+     * @return false if there is no usable journal (so the index must be rebuilt).
+     */
+    private boolean load() throws IOException{
+        if(!markedIndexFile.exists() || markedIndexFile.isOpen()) return false;
+        OffsetTable loadedOffsets = new OffsetTable();
+        Map<Long, int[]> loadedLinks = new HashMap<Long, int[]>();
+        long loadedRecords = 0;
+        long endPosition;
+        DataInputStream in = null;
+        try{
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            in = new DataInputStream(counter);
+            if(!readHeader(in)) return false;
+            while(true) {
+                long position = counter.getByteCount();
+                int recordType = in.read();
+                if(recordType == -1) {
+                    endPosition = position;
+                    break;
+                }
+                loadedRecords++;
+                if(recordType == STORED) {
+                    ElementsItemInfo itemInfo = ElementsItemInfo.readFrom(in);
+                    loadedOffsets.put(getKey(itemInfo.getItemId()), position);
+                    addRelationshipLinks(loadedLinks, itemInfo);
+                }
+                else if(recordType == DELETED) {
+                    loadedOffsets.remove(getKey(readDeletedId(in)));
+                }
+                else return false;
+            }
+        }
+        catch(IOException e){
+            log.warn(MessageFormat.format("Unable to read the {0} index ({1})", resourceType, e.getMessage()));
+            return false;
+        }
+        catch(RuntimeException e){
+            log.warn(MessageFormat.format("Unable to read the {0} index ({1})", resourceType, e.getMessage()));
+            return false;
+        }
+        finally{
+            if(in != null) in.close();
+        }
+
+        offsets = loadedOffsets;
+        relationshipsByObject = loadedLinks;
+        recordCount = loadedRecords;
+        if(recordCount - offsets.size() > Math.max(COMPACTION_THRESHOLD, offsets.size())){
+            compact(endPosition);
+        }
+        else {
+            openJournal(endPosition);
+        }
+        return true;
+    }
+
+    /**
+     * Rewrite the journal holding only the current record for each item.
+     */
+    private void compact(long endPosition) throws IOException{
+        log.info(MessageFormat.format("Compacting the {0} index ({1} items, {2} superseded records)", resourceType, offsets.size(), recordCount - offsets.size()));
+        File compactedFile = new File(indexFile.getParentFile(), indexFile.getName() + ".tmp");
+        OffsetTable compactedOffsets = new OffsetTable();
+        DataInputStream in = null;
+        DataOutputStream out = null;
+        try {
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            in = new DataInputStream(counter);
+            readHeader(in);
+            CountingOutputStream outCounter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(compactedFile)));
+            out = new DataOutputStream(outCounter);
+            writeHeader(out);
+            while(counter.getByteCount() < endPosition){
+                long position = counter.getByteCount();
+                if(in.read() == STORED) {
+                    ElementsItemInfo itemInfo = ElementsItemInfo.readFrom(in);
+                    long key = getKey(itemInfo.getItemId());
+                    if (offsets.get(key) == position) {
+                        compactedOffsets.put(key, outCounter.getByteCount());
+                        out.writeByte(STORED);
+                        itemInfo.writeTo(out);
+                    }
+                }
+                else {
+                    readDeletedId(in);
+                }
+            }
+        }
+        finally {
+            if(in != null) in.close();
+            if(out != null) out.close();
+        }
+        ElementsItemFileStore.moveIntoPlace(compactedFile, indexFile);
+        offsets = compactedOffsets;
+        recordCount = compactedOffsets.size();
+        openJournal(indexFile.length());
+    }
+
+    /**
+     * Recreate the index from the ElementsItemInfo held in the store's files (loading them in parallel).
+     */
+    private void rebuild() throws IOException{
+        log.info(MessageFormat.format("Building the {0} index from the stored files - this may take some time..", resourceType));
+        startNewJournal();
+        //the files are found a batch at a time, rather than listing them all up front.
+        Iterator<StoredData> files = store.getAllExistingDataOfType(resourceType).iterator();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int counter = 0;
+        while(files.hasNext()){
+            List<StoredData> batch = new ArrayList<StoredData>(REBUILD_BATCH_SIZE);
+            while(files.hasNext() && batch.size() < REBUILD_BATCH_SIZE) batch.add(files.next());
+            ElementsStoredItemInfo.BulkLoadResult result = ElementsStoredItemInfo.loadStoredResources(batch, resourceType, threads);
+            if(result.hasFailures()){
+                broken = true;
+                for(Map.Entry<StoredData, RuntimeException> failure : result.getFailures().entrySet()){
+                    log.error(MessageFormat.format("Unable to index {0}", failure.getKey().getAddress()), failure.getValue());
+                }
+                throw new IllegalStateException(MessageFormat.format("Unable to build the {0} index, {1} stored files could not be loaded", resourceType, result.getFailures().size()));
+            }
+            for(ElementsStoredItemInfo item : result.getLoadedItems()){
+                put(item.getItemInfo());
+            }
+            counter += batch.size();
+            log.info(MessageFormat.format("{0} {1} indexed", counter, resourceType));
+        }
+        log.info(MessageFormat.format("Finished building the {0} index, {1} items indexed", resourceType, counter));
+    }
+
+    private void startNewJournal() throws IOException{
+        broken = false;
+        offsets = new OffsetTable();
+        relationshipsByObject = new HashMap<Long, int[]>();
+        recordCount = 0;
+        //noinspection ResultOfMethodCallIgnored
+        indexFile.getParentFile().mkdirs();
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile)));
+        long headerLength;
+        try {
+            headerLength = writeHeader(out);
+        }
+        finally {
+            out.close();
+        }
+        openJournal(headerLength);
+    }
+
+    private void openJournal(long position) throws IOException{
+        //the marker goes down before anything is appended, so a crash at any point after this forces a rebuild.
+        markedIndexFile.markOpen();
+        journalStart = position;
+        journalCounter = new CountingOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        journal = new DataOutputStream(journalCounter);
+    }
+
+    private void closeJournal() throws IOException{
+        if(journal != null) {
+            try {
+                journal.close();
+            }
+            finally {
+                journal = null;
+                journalCounter = null;
+            }
+        }
+    }
+
+    private long writeHeader(DataOutputStream out) throws IOException{
+        out.writeInt(MAGIC_NUMBER);
+        out.writeInt(FORMAT_VERSION);
+        out.writeUTF(resourceType.toString());
+        out.writeUTF(ElementsObjectInfo.Extractor.getExtractionSettings());
+        return out.size();
+    }
+
+    private boolean readHeader(DataInputStream in) throws IOException{
+        if(in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION) return false;
+        if(!resourceType.toString().equals(in.readUTF())) return false;
+        String extractionSettings = in.readUTF();
+        if(!ElementsObjectInfo.Extractor.getExtractionSettings().equals(extractionSettings)){
+            log.info(MessageFormat.format("The {0} index was built with different extraction settings ({1})", resourceType, extractionSettings));
+            return false;
+        }
+        return true;
+    }
+
+    private ElementsItemId readDeletedId(DataInputStream in) throws IOException{
+        ElementsItemType.SubType subType = ElementsItemType.getSubType(resourceType.getKeyItemType(), in.readUTF());
+        return ElementsItemId.createId(subType, in.readInt());
+    }
+
+    /**
+     * Reads the current records from the journal (up to the point it had reached when the iteration was requested).
+     */
+    private class JournalIterator implements Iterator<ElementsItemInfo> {
+        private final ElementsItemType.SubType subType;
+        private final long endPosition;
+        private CountingInputStream counter = null;
+        private DataInputStream in = null;
+        private ElementsItemInfo next = null;
+
+        JournalIterator(ElementsItemType.SubType subType, long endPosition){
+            this.subType = subType;
+            this.endPosition = endPosition;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if(next == null) next = readNext();
+            return next != null;
+        }
+
+        @Override
+        public ElementsItemInfo next() {
+            if(!hasNext()) throw new NoSuchElementException();
+            ElementsItemInfo item = next;
+            next = null;
+            return item;
+        }
+
+        @Override
+        public void remove() { throw new UnsupportedOperationException(); }
+
+        private ElementsItemInfo readNext(){
+            try {
+                if (counter == null) {
+                    counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+                    in = new DataInputStream(counter);
+                    readHeader(in);
+                }
+                while (in != null && counter.getByteCount() < endPosition) {
+                    long position = counter.getByteCount();
+                    if (in.read() == STORED) {
+                        ElementsItemInfo itemInfo = ElementsItemInfo.readFrom(in);
+                        if ((subType == null || itemInfo.getItemId().getItemSubType() == subType) && isCurrent(itemInfo.getItemId(), position))
+                            return itemInfo;
+                    } else {
+                        readDeletedId(in);
+                    }
+                }
+                close();
+                return null;
+            }
+            catch(IOException e){
+                close();
+                throw new IllegalStateException("Catastrophic failure reading index - abandoning", e);
+            }
+        }
+
+        private void close(){
+            try {
+                if (in != null) in.close();
+            }
+            catch(IOException ignored){
+                // no sensible way to report this without hiding things - all sensible paths exit
+            }
+            in = null;
+        }
+    }
+
+    /**
+     * A minimal open addressing hash map from long keys to long values (neither boxed), so that the position of every
+     * item in a large store can be held without the overhead of a HashMap entry per item.
+     * Zero is not a valid key (ItemKeys never produces one).
+     */
+    static class OffsetTable {
+        private long[] keys = new long[1024];
+        private long[] values = new long[1024];
+        private int size = 0;
+
+        int size(){ return size; }
+
+        /**
+         * @return the value held for key, or -1 if there is none.
+         */
+        long get(long key){
+            int slot = find(key);
+            return keys[slot] == 0 ? -1 : values[slot];
+        }
+
+        void put(long key, long value){
+            int slot = find(key);
+            if(keys[slot] == 0){
+                keys[slot] = key;
+                size++;
+            }
+            values[slot] = value;
+            if(size * 4 > keys.length * 3) resize();
+        }
+
+        boolean remove(long key){
+            int slot = find(key);
+            if(keys[slot] == 0) return false;
+            keys[slot] = 0;
+            size--;
+            //shift back any later entries in the same run that can no longer be found past the gap.
+            int mask = keys.length - 1;
+            int gap = slot;
+            for(int i = (gap + 1) & mask; keys[i] != 0; i = (i + 1) & mask){
+                int home = home(keys[i]);
+                boolean reachable = gap <= i ? (gap < home && home <= i) : (gap < home || home <= i);
+                if(!reachable){
+                    keys[gap] = keys[i];
+                    values[gap] = values[i];
+                    keys[i] = 0;
+                    gap = i;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * @return every key in the table (in no particular order).
+         */
+        long[] getKeys(){
+            long[] result = new long[size];
+            int count = 0;
+            for(long key : keys){
+                if(key != 0) result[count++] = key;
+            }
+            return result;
+        }
+
+        /**
+         * Write the table's entries (see readFrom).
+         */
+        void writeTo(DataOutputStream out) throws IOException{
+            out.writeInt(size);
+            for(int i = 0; i < keys.length; i++){
+                if(keys[i] != 0){
+                    out.writeLong(keys[i]);
+                    out.writeLong(values[i]);
+                }
+            }
+        }
+
+        /**
+         * Read a table written by writeTo.
+         */
+        static OffsetTable readFrom(DataInputStream in) throws IOException{
+            OffsetTable table = new OffsetTable();
+            int count = in.readInt();
+            for(int i = 0; i < count; i++){
+                long key = in.readLong();
+                table.put(key, in.readLong());
+            }
+            return table;
+        }
+
+        private int home(long key){
+            long hash = key * 0x9E3779B97F4A7C15L;
+            return (int) (hash ^ (hash >>> 32)) & (keys.length - 1);
+        }
+
+        private int find(long key){
+            int mask = keys.length - 1;
+            int slot = home(key);
+            while(keys[slot] != 0 && keys[slot] != key) slot = (slot + 1) & mask;
+            return slot;
+        }
+
+        private void resize(){
+            long[] oldKeys = keys;
+            long[] oldValues = values;
+            keys = new long[oldKeys.length * 2];
+            values = new long[oldValues.length * 2];
+            for(int i = 0; i < oldKeys.length; i++){
+                if(oldKeys[i] != 0){
+                    int slot = find(oldKeys[i]);
+                    keys[slot] = oldKeys[i];
+                    values[slot] = oldValues[i];
+                }
+            }
+        }
+    }
+}
@@ -15,6 +15,7 @@ import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
 
 import java.io.IOException;
+import java.io.InputStream;
 
 /**
  * Interfaces representing the concept of a "Store" for ElementsItem related resources.
@@ -34,6 +35,18 @@ public interface ElementsItemStore {
     @SuppressWarnings("UnusedReturnValue")
     ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, byte[] data) throws IOException;
 
+    /**
+     * Streaming equivalent of storeItem(ElementsItemInfo, StorableResourceType, byte[]) for data that should not have
+     * to be held in memory in its entirety (e.g. large photos).
+     * @param itemInfo An ElementsItemInfo object representing the item to be stored (this includes the item id).
+     * @param resourceType The "type" of the resource being stored.
+     * @param data A stream of the raw data that should be stored, read to its end but not closed by this call.
+     * @return an ElementsStoredItemInfo object that provides access to the newly stored item.
+     * @throws IOException if the item cannot be stored for some reason
+     */
+    @SuppressWarnings("UnusedReturnValue")
+    ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) throws IOException;
+
 
 //    class MultiStore implements ElementsItemStore {
 //        List<ElementsItemStore> stores = new ArrayList<ElementsItemStore>();
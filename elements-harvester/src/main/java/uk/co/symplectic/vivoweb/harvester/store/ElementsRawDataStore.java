@@ -12,6 +12,7 @@
 package uk.co.symplectic.vivoweb.harvester.store;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * An ElementsItemFileStore, specifically configured (in terms of accepted types, layout strategy, etc)
@@ -19,17 +20,44 @@ import java.io.File;
  */
 @SuppressWarnings({"WeakerAccess", "unused"})
 public class ElementsRawDataStore extends ElementsItemFileStore {
-    private static LayoutStrategy layoutStrategy = new DefaultLayoutStrategy(
-            new StorableResourceType[]{StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP},
-            new StorableResourceType[]{StorableResourceType.RAW_USER_PHOTO}
-    );
+    private static StorableResourceType[] mainResourceTypes = new StorableResourceType[]{
+            StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP
+    };
+    private static StorableResourceType[] resourceTypesWithOwnDirectory = new StorableResourceType[]{StorableResourceType.RAW_USER_PHOTO};
+
+    private static StorableResourceType[] supportedTypes = new StorableResourceType[]{
+            StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_USER_PHOTO, StorableResourceType.RAW_GROUP
+    };
 
     public ElementsRawDataStore(File dir) {
         this(dir, false, false);
     }
 
     public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles){
-        super(dir, keepEmpty, zipFiles, ElementsRawDataStore.layoutStrategy,
-                StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_USER_PHOTO, StorableResourceType.RAW_GROUP);
+        this(dir, keepEmpty, zipFiles, false);
+    }
+
+    public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles, boolean skipUnchanged){
+        this(dir, keepEmpty, zipFiles, skipUnchanged, false);
+    }
+
+    public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles, boolean skipUnchanged, boolean usePackFiles){
+        this(dir, keepEmpty, zipFiles, skipUnchanged, usePackFiles, false);
+    }
+
+    public ElementsRawDataStore(File dir, boolean keepEmpty, boolean zipFiles, boolean skipUnchanged, boolean usePackFiles, boolean shardDirectories){
+        super(dir, keepEmpty, zipFiles, skipUnchanged, usePackFiles, createLayoutStrategy(shardDirectories), ElementsRawDataStore.supportedTypes);
+    }
+
+    private static LayoutStrategy createLayoutStrategy(boolean shardDirectories){
+        return shardDirectories ? new ShardedLayoutStrategy(mainResourceTypes, resourceTypesWithOwnDirectory) :
+                new DefaultLayoutStrategy(mainResourceTypes, resourceTypesWithOwnDirectory);
+    }
+
+    /**
+     * Convert a raw data store to (or from) pack files - see ElementsItemFileStore.migrate
+     */
+    public static void migrate(File dir, boolean zipFiles, boolean toPackFiles, boolean shardDirectories) throws IOException{
+        ElementsItemFileStore.migrate(dir, zipFiles, toPackFiles, createLayoutStrategy(shardDirectories), ElementsRawDataStore.supportedTypes);
     }
 }
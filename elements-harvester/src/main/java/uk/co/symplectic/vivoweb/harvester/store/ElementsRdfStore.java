@@ -11,6 +11,7 @@
 package uk.co.symplectic.vivoweb.harvester.store;
 
 import java.io.File;
+import java.io.IOException;
 
 /**
  * An ElementsItemFileStore, specifically configured (in terms of accepted types, layout strategy, etc)
@@ -19,14 +20,37 @@ import java.io.File;
 @SuppressWarnings("unused")
 public class ElementsRdfStore extends ElementsItemFileStore {
 
-    private static LayoutStrategy layoutStrategy = new DefaultLayoutStrategy(
-            new StorableResourceType[]{StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP}, null);
+    private static StorableResourceType[] mainResourceTypes = new StorableResourceType[]{
+            StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP
+    };
+
+    private static StorableResourceType[] supportedTypes = new StorableResourceType[]{
+            StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP,
+            StorableResourceType.TRANSLATED_USER_PHOTO_DESCRIPTION, StorableResourceType.TRANSLATED_USER_GROUP_MEMBERSHIP
+    };
 
     public ElementsRdfStore(File dir){ this(dir, false, false); }
 
     public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles){
-        super(dir, keepEmpty, zipFiles, ElementsRdfStore.layoutStrategy,
-            StorableResourceType.TRANSLATED_OBJECT, StorableResourceType.TRANSLATED_RELATIONSHIP, StorableResourceType.TRANSLATED_GROUP,
-                StorableResourceType.TRANSLATED_USER_PHOTO_DESCRIPTION, StorableResourceType.TRANSLATED_USER_GROUP_MEMBERSHIP);
+        this(dir, keepEmpty, zipFiles, false);
+    }
+
+    public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles, boolean usePackFiles){
+        this(dir, keepEmpty, zipFiles, usePackFiles, false);
+    }
+
+    public ElementsRdfStore(File dir, boolean keepEmpty, boolean zipFiles, boolean usePackFiles, boolean shardDirectories){
+        super(dir, keepEmpty, zipFiles, false, usePackFiles, createLayoutStrategy(shardDirectories), ElementsRdfStore.supportedTypes);
+    }
+
+    private static LayoutStrategy createLayoutStrategy(boolean shardDirectories){
+        return shardDirectories ? new ShardedLayoutStrategy(mainResourceTypes, null) : new DefaultLayoutStrategy(mainResourceTypes, null);
+    }
+
+    /**
+     * Convert an rdf store to (or from) pack files - see ElementsItemFileStore.migrate
+     */
+    public static void migrate(File dir, boolean zipFiles, boolean toPackFiles, boolean shardDirectories) throws IOException{
+        ElementsItemFileStore.migrate(dir, zipFiles, toPackFiles, createLayoutStrategy(shardDirectories), ElementsRdfStore.supportedTypes);
     }
 }
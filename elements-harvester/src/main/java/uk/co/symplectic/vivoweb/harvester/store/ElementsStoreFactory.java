@@ -12,6 +12,8 @@ package uk.co.symplectic.vivoweb.harvester.store;
 
 import uk.co.symplectic.vivoweb.harvester.config.Configuration;
 
+import java.io.IOException;
+
 /**
  * Class to construct singleton instances of ElementsItemFileStore to represent stores for:
  * RAW data and TRANSLATED data
@@ -27,21 +29,37 @@ public class ElementsStoreFactory {
         } else {
             synchronized (ElementsStoreFactory.class) {
                 if (objectStore == null)
-                    objectStore = new ElementsRawDataStore(Configuration.getRawOutputDir(), false, Configuration.getZipFiles());
+                    objectStore = new ElementsRawDataStore(Configuration.getRawOutputDir(), false, Configuration.getZipFiles(), Configuration.getSkipUnchangedItems(), Configuration.getUsePackFiles(), Configuration.getShardDirectories());
                 return objectStore;
             }
         }
     }
 
+    /**
+     * Close the object store, if it has been created (see ElementsItemFileStore.close).
+     * @throws IOException if errors occur
+     */
+    public static void closeObjectStore() throws IOException {
+        synchronized (ElementsStoreFactory.class) {
+            if (objectStore != null) objectStore.close();
+        }
+    }
+
     public static ElementsRdfStore getRdfStore() {
         if (rdfStore != null) {
             return rdfStore;
         } else {
             synchronized (ElementsStoreFactory.class) {
                 if(rdfStore == null)
-                    rdfStore = new ElementsRdfStore(Configuration.getRdfOutputDir(), false, Configuration.getZipFiles());
+                    rdfStore = new ElementsRdfStore(Configuration.getRdfOutputDir(), false, Configuration.getZipFiles(), Configuration.getUsePackFiles(), Configuration.getShardDirectories());
                 return rdfStore;
             }
         }
     }
+
+    public static void closeRdfStore() throws IOException {
+        synchronized (ElementsStoreFactory.class) {
+            if (rdfStore != null) rdfStore.close();
+        }
+    }
 }
@@ -13,6 +13,7 @@ package uk.co.symplectic.vivoweb.harvester.store;
 
 import org.apache.commons.lang.ArrayUtils;
 import org.apache.commons.lang.NullArgumentException;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
 import uk.co.symplectic.vivoweb.harvester.model.*;
 import uk.co.symplectic.utils.xml.StAXUtils;
 import uk.co.symplectic.utils.xml.XMLEventProcessor;
@@ -23,6 +24,10 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 /**
  * A class to represent data about an Elements item held in a store.
@@ -36,6 +41,8 @@ import java.text.MessageFormat;
  * BasicElementsStoredItem, StoredData/ResourceType pairs
  * These load methods will only work for "RAW-xxx" storable resources types and leverage the relevant Extractors to
  * create the ElementsItemInfo from the underlying data.
+ * Each load uses its own extractor and parser, so loads can run concurrently; "loadStoredResources" loads many items
+ * in parallel, reporting any that fail individually.
  */
 
 @SuppressWarnings("unused")
@@ -68,7 +75,7 @@ public class ElementsStoredItemInfo {
         return innerItem.getStoredData().getAddress();
     }
 
-    private synchronized static <T> T loadFromStoredData(StoredData data, XMLEventProcessor.ItemExtractingFilter<T> extractor) {
+    private static <T> T loadFromStoredData(StoredData data, XMLEventProcessor.ItemExtractingFilter<T> extractor) {
         if (data == null) throw new NullArgumentException("data");
         InputStream inputStream = null;
         try {
@@ -104,31 +111,117 @@ public class ElementsStoredItemInfo {
         }
     }
 
-    public synchronized static ElementsStoredItemInfo loadStoredResource(BasicElementsStoredItem item){
+    /**
+     * @param type a StorableResourceType
+     * @return whether loadStoredResource can create an ElementsStoredItemInfo from data of this type.
+     */
+    public static boolean canLoadStoredResource(StorableResourceType type){
+        return ArrayUtils.contains(loadableTypes, type);
+    }
+
+    private static final StorableResourceType[] loadableTypes = {StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP};
+
+    public static ElementsStoredItemInfo loadStoredResource(BasicElementsStoredItem item){
         return loadStoredResource(item.getStoredData(), item.getResourceType(), item.getItemId());
     }
 
-    public synchronized static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type){
+    public static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type){
         return loadStoredResource(data, type, null);
     }
 
     @SuppressWarnings("WeakerAccess")
-    public synchronized static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type, ElementsItemId idToCompareTo){
+    public static ElementsStoredItemInfo loadStoredResource(StoredData data, StorableResourceType type, ElementsItemId idToCompareTo){
         if(data == null) throw new NullArgumentException("data");
         if(type == null) throw new NullArgumentException("type");
-        StorableResourceType[] validTypes = {StorableResourceType.RAW_OBJECT, StorableResourceType.RAW_RELATIONSHIP, StorableResourceType.RAW_GROUP};
-        if(!ArrayUtils.contains(validTypes, type)) throw new IllegalStateException("Invalid storable resource type passed to loadStoredResource");
+        if(!canLoadStoredResource(type)) throw new IllegalStateException("Invalid storable resource type passed to loadStoredResource");
 
         XMLEventProcessor.ItemExtractingFilter<ElementsItemInfo> extractor = ElementsItemInfo.getExtractor(type.getKeyItemType(), ElementsItemInfo.ExtractionSource.FILE, 1);
         ElementsItemInfo itemInfo = loadFromStoredData(data, extractor);
         checkItem(itemInfo.getItemId(), idToCompareTo, data, type.getKeyItemType().getName());
         return new ElementsStoredItemInfo(itemInfo, type, data);
     }
-}
 
+    //number of items loaded by each task of a bulk load.
+    private static final int BULK_LOAD_BATCH_SIZE = 250;
+
+    /**
+     * Load many stored resources in parallel (see loadStoredResource).
+     * The data is split into batches that are loaded across a pool of threads.
+     * A failure to load one item does not stop the others from being loaded; each failure is reported against the data
+     * it occurred for.
+     * @param data the stored data to load
+     * @param type the type of resource the data represents (one that canLoadStoredResource)
+     * @param threads the number of threads to load with
+     * @return a BulkLoadResult containing the loaded items (in the same order as data) and any failures.
+     */
+    public static BulkLoadResult loadStoredResources(Collection<? extends StoredData> data, final StorableResourceType type, int threads){
+        if(data == null) throw new NullArgumentException("data");
+        if(type == null) throw new NullArgumentException("type");
+        if(!canLoadStoredResource(type)) throw new IllegalStateException("Invalid storable resource type passed to loadStoredResources");
+
+        final List<StoredData> source = new ArrayList<StoredData>(data);
+        final ElementsStoredItemInfo[] loadedItems = new ElementsStoredItemInfo[source.size()];
+        final RuntimeException[] failures = new RuntimeException[source.size()];
 
+        ExecutorServiceUtils.ExecutorServiceWrapper<Boolean> loaders = ExecutorServiceUtils.newIOBoundThreadPool("StoredItemLoader", Math.max(1, threads));
+        try {
+            List<Future<Boolean>> batches = new ArrayList<Future<Boolean>>();
+            for (int start = 0; start < source.size(); start += BULK_LOAD_BATCH_SIZE) {
+                final int batchStart = start;
+                final int batchEnd = Math.min(start + BULK_LOAD_BATCH_SIZE, source.size());
+                batches.add(loaders.submit(new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        for (int i = batchStart; i < batchEnd; i++) {
+                            try {
+                                loadedItems[i] = loadStoredResource(source.get(i), type);
+                            } catch (RuntimeException e) {
+                                failures[i] = e;
+                            }
+                        }
+                        return true;
+                    }
+                }, false));
+            }
+            for (Future<Boolean> batch : batches) {
+                batch.get();
+            }
+        }
+        catch(InterruptedException e){
+            throw new IllegalStateException("Interrupted whilst loading stored resources", e);
+        }
+        catch(ExecutionException e){
+            throw new IllegalStateException("Unexpected failure whilst loading stored resources", e.getCause());
+        }
+        finally {
+            loaders.awaitShutdown();
+        }
 
+        BulkLoadResult result = new BulkLoadResult();
+        for (int i = 0; i < loadedItems.length; i++) {
+            if (loadedItems[i] != null) result.loadedItems.add(loadedItems[i]);
+            else result.failures.put(source.get(i), failures[i]);
+        }
+        return result;
+    }
 
+    /**
+     * The outcome of loadStoredResources.
+     */
+    public static class BulkLoadResult{
+        private final List<ElementsStoredItemInfo> loadedItems = new ArrayList<ElementsStoredItemInfo>();
+        private final Map<StoredData, RuntimeException> failures = new LinkedHashMap<StoredData, RuntimeException>();
 
+        /**
+         * @return the items that were loaded successfully (in the order their data was supplied).
+         */
+        public List<ElementsStoredItemInfo> getLoadedItems(){ return Collections.unmodifiableList(loadedItems); }
 
+        /**
+         * @return the data that could not be loaded, mapped to the reason why (in the order it was supplied).
+         */
+        public Map<StoredData, RuntimeException> getFailures(){ return Collections.unmodifiableMap(failures); }
 
+        public boolean hasFailures(){ return !failures.isEmpty(); }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang.NullArgumentException;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * The original ItemDataBackend: each item's data is held in its own (optionally gzipped) file, placed on disk
+ * according to a LayoutStrategy.
+ */
+class FileLayoutBackend implements ItemDataBackend {
+    private final File dir;
+    //where files are written before being moved into place.
+    private final File tempDir;
+    private final LayoutStrategy layoutStrategy;
+    private final boolean zipFiles;
+
+    FileLayoutBackend(File dir, LayoutStrategy layoutStrategy, boolean zipFiles){
+        if(dir == null) throw new NullArgumentException("dir");
+        if(layoutStrategy == null) throw new NullArgumentException("layoutStrategy");
+        this.dir = dir;
+        this.tempDir = new File(dir, ".tmp");
+        //anything left here was never moved into place (e.g. after a crash), so is not wanted.
+        FileUtils.deleteQuietly(tempDir);
+        this.layoutStrategy = layoutStrategy;
+        this.zipFiles = zipFiles;
+    }
+
+    private boolean shouldZip(StorableResourceType resourceType){ return zipFiles && resourceType.shouldZip(); }
+
+    @Override
+    public StoredData getData(ElementsItemId itemId, StorableResourceType resourceType){
+        return new StoredData.InFile(layoutStrategy.getItemFile(dir, itemId, resourceType), shouldZip(resourceType));
+    }
+
+    @Override
+    public boolean exists(ElementsItemId itemId, StorableResourceType resourceType){
+        return layoutStrategy.getItemFile(dir, itemId, resourceType).exists();
+    }
+
+    @Override
+    public Iterable<BasicElementsStoredItem> getAllExistingItems(final StorableResourceType resourceType, ElementsItemType.SubType subType){
+        final List<ElementsItemType.SubType> subTypes = new ArrayList<ElementsItemType.SubType>();
+        for(ElementsItemType.SubType currentSubType : resourceType.getSupportedSubTypes()){
+            if(subType == null || subType == currentSubType) subTypes.add(currentSubType);
+        }
+        //the layout is only walked as the items are iterated over.
+        return new Iterable<BasicElementsStoredItem>() {
+            @Override
+            public Iterator<BasicElementsStoredItem> iterator() {
+                final Iterator<ElementsItemType.SubType> subTypeIterator = subTypes.iterator();
+                return new Iterator<BasicElementsStoredItem>() {
+                    private ElementsItemType.SubType currentSubType = null;
+                    private Iterator<File> files = Collections.<File>emptyList().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while(!files.hasNext() && subTypeIterator.hasNext()) {
+                            currentSubType = subTypeIterator.next();
+                            files = layoutStrategy.getAllExistingFilesOfType(dir, resourceType, currentSubType).iterator();
+                        }
+                        return files.hasNext();
+                    }
+
+                    @Override
+                    public BasicElementsStoredItem next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        File file = files.next();
+                        //files are named by item id, with an optional suffix
+                        String name = file.getName();
+                        int suffixStart = name.indexOf('-');
+                        int id = Integer.parseInt(suffixStart == -1 ? name : name.substring(0, suffixStart));
+                        return new BasicElementsStoredItem(ElementsItemId.createId(currentSubType, id), resourceType, new StoredData.InFile(file, shouldZip(resourceType)));
+                    }
+
+                    @Override
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    /**
+     * Streams data into a temporary file, which is moved into place on commit, so that anything reading the store
+     * never sees a partially written file (and a failure part way through leaves any previous version intact).
+     * Temporary files are written to a directory within the store so that the move is a simple rename.
+     */
+    @Override
+    public StagedData stage(ElementsItemId itemId, StorableResourceType resourceType, InputStream data) throws IOException{
+        final File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
+        //noinspection ResultOfMethodCallIgnored
+        tempDir.mkdirs();
+        final File tempFile = File.createTempFile("store", ".tmp", tempDir);
+        final long length;
+        try {
+            OutputStream outputStream = null;
+            try {
+                outputStream = new BufferedOutputStream(new FileOutputStream(tempFile));
+                if (shouldZip(resourceType)) outputStream = new GZIPOutputStream(outputStream);
+                length = IOUtils.copyLarge(data, outputStream);
+            } finally {
+                if (outputStream != null) {
+                    outputStream.close();
+                }
+            }
+        }
+        catch(IOException e){
+            //noinspection ResultOfMethodCallIgnored
+            tempFile.delete();
+            throw e;
+        }
+
+        return new StagedData() {
+            @Override
+            public long getLength() { return length; }
+
+            @Override
+            public void commit() throws IOException { ElementsItemFileStore.moveIntoPlace(tempFile, file); }
+
+            @Override
+            public void discard() {
+                if(tempFile.exists()) {
+                    //noinspection ResultOfMethodCallIgnored
+                    tempFile.delete();
+                }
+            }
+        };
+    }
+
+    @Override
+    public void delete(ElementsItemId itemId, StorableResourceType resourceType){
+        File file = layoutStrategy.getItemFile(dir, itemId, resourceType);
+        if(file.exists())
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+    }
+
+    @Override
+    public void cleardown(StorableResourceType resourceType){
+        for(File file : layoutStrategy.getAllExistingFilesOfType(dir, resourceType)){
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    @Override
+    public void flush(){
+        //each item is written straight to its own file
+    }
+
+    @Override
+    public void close(){
+        //nothing is held in memory
+    }
+}
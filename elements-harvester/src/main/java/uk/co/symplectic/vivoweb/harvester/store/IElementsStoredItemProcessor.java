@@ -0,0 +1,29 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import java.io.IOException;
+
+/**
+ * Interface to represent something that processes the items held in a Store as they are walked
+ * (see ElementsItemFileStore.processAllExistingItemsOfType).
+ */
+public interface IElementsStoredItemProcessor {
+
+    /**
+     * Method called for each item in turn.
+     * @param item the item as an ElementsStoredItemInfo object (which includes resource type, and access to the
+     *             underlying data).
+     * @return true to carry on, false to stop processing any further items.
+     * @throws IOException if the item cannot be processed (which stops any further processing).
+     */
+    boolean process(ElementsStoredItemInfo item) throws IOException;
+}
@@ -0,0 +1,80 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Interface to define how an ElementsItemFileStore actually holds the data for each of its items on disk, e.g. as a
+ * file per item (FileLayoutBackend) or as records in a few large pack files (PackFileBackend).
+ * The store itself deals with everything else (indexes, fingerprints, observers, etc).
+ * Data is written in two steps (stage then commit) so that the store can decide whether to keep it once it has
+ * been seen in full.
+ */
+interface ItemDataBackend {
+
+    /**
+     * @return access to the data held for an item (which is not guaranteed to exist - see exists).
+     */
+    StoredData getData(ElementsItemId itemId, StorableResourceType resourceType);
+
+    boolean exists(ElementsItemId itemId, StorableResourceType resourceType);
+
+    /**
+     * @param subType restrict the results to items of this subtype (null for all items).
+     * @return every item of resourceType held by the backend (produced as the result is iterated over).
+     */
+    Iterable<BasicElementsStoredItem> getAllExistingItems(StorableResourceType resourceType, ElementsItemType.SubType subType) throws IOException;
+
+    /**
+     * Read data ready to be stored for an item, without affecting anything currently held for it.
+     * The caller must either commit or discard the result.
+     */
+    StagedData stage(ElementsItemId itemId, StorableResourceType resourceType, InputStream data) throws IOException;
+
+    void delete(ElementsItemId itemId, StorableResourceType resourceType) throws IOException;
+
+    void cleardown(StorableResourceType resourceType) throws IOException;
+
+    /**
+     * Make sure everything committed so far will survive the process dying (e.g. before recording that it is done).
+     */
+    void flush() throws IOException;
+
+    /**
+     * Flush anything held in memory to disk. The backend can still be used after it has been closed.
+     */
+    void close() throws IOException;
+
+    /**
+     * Data that has been read by stage but not yet stored.
+     */
+    interface StagedData {
+        /**
+         * @return the length of the (uncompressed) data.
+         */
+        long getLength();
+
+        /**
+         * Replace whatever is currently held for the item with this data.
+         */
+        void commit() throws IOException;
+
+        /**
+         * Release the data without storing it (does nothing once it has been committed).
+         */
+        void discard();
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts ElementsItemIds to and from the single long keys used in an ElementsItemInfoIndex.OffsetTable.
+ * Subtypes are numbered (in order of first use) and the number is held in the top half of the key, with the item's id
+ * in the bottom half. The numbering is particular to each instance, so it must be saved (see writeTo) alongside any
+ * table of keys that is saved.
+ * Not thread safe - callers are expected to synchronise access along with access to their tables.
+ */
+class ItemKeys {
+    private final List<ElementsItemType.SubType> subTypes = new ArrayList<ElementsItemType.SubType>();
+    private final Map<ElementsItemType.SubType, Integer> subTypeNumbers = new HashMap<ElementsItemType.SubType, Integer>();
+
+    /**
+     * @return the key for itemId (never zero, so always usable in an OffsetTable).
+     */
+    long getKey(ElementsItemId itemId){
+        Integer subTypeNumber = subTypeNumbers.get(itemId.getItemSubType());
+        if(subTypeNumber == null){
+            subTypes.add(itemId.getItemSubType());
+            subTypeNumber = subTypes.size();
+            subTypeNumbers.put(itemId.getItemSubType(), subTypeNumber);
+        }
+        return ((long) subTypeNumber << 32) | (itemId.getId() & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return the id of the item that key was created for.
+     */
+    ElementsItemId getItemId(long key){
+        return ElementsItemId.createId(getSubType(key), (int) key);
+    }
+
+    /**
+     * @return the subtype of the item that key was created for.
+     */
+    ElementsItemType.SubType getSubType(long key){
+        return subTypes.get((int) (key >>> 32) - 1);
+    }
+
+    /**
+     * Forget the numbering (only valid once every key created so far has been discarded).
+     */
+    void clear(){
+        subTypes.clear();
+        subTypeNumbers.clear();
+    }
+
+    /**
+     * Write the numbering (see readFrom).
+     */
+    void writeTo(DataOutputStream out) throws IOException{
+        out.writeInt(subTypes.size());
+        for(ElementsItemType.SubType subType : subTypes) out.writeUTF(subType.getSingular());
+    }
+
+    /**
+     * Read a numbering written by writeTo.
+     * @param itemType the type of the items the keys were created for.
+     */
+    static ItemKeys readFrom(DataInputStream in, ElementsItemType itemType) throws IOException{
+        if(itemType == null) throw new NullArgumentException("itemType");
+        ItemKeys keys = new ItemKeys();
+        int subTypeCount = in.readInt();
+        for(int i = 0; i < subTypeCount; i++){
+            ElementsItemType.SubType subType = ElementsItemType.getSubType(itemType, in.readUTF());
+            keys.subTypes.add(subType);
+            keys.subTypeNumbers.put(subType, keys.subTypes.size());
+        }
+        return keys;
+    }
+}
@@ -14,7 +14,6 @@ import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
 
 import java.io.File;
-import java.util.Collection;
 
 /**
  * Interface to define methods that affect how a Store places data on disk for Elements items assuming a given
@@ -25,8 +24,8 @@ interface LayoutStrategy {
 
     File getItemFile(File storeDir, ElementsItemId itemId, StorableResourceType resourceType);
 
-    Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType);
+    Iterable<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType);
 
-    Collection<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType);
+    Iterable<File> getAllExistingFilesOfType(File storeDir, StorableResourceType resourceType, ElementsItemType.SubType subType);
 
 }
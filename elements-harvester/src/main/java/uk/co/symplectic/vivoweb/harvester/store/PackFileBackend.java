@@ -0,0 +1,831 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.BoundedInputStream;
+import org.apache.commons.io.input.CountingInputStream;
+import org.apache.commons.io.output.DeferredFileOutputStream;
+import org.apache.commons.lang.NullArgumentException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import uk.co.symplectic.utils.ExecutorServiceUtils;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An ItemDataBackend that holds the data for every item of a resource type as records appended to a few large
+ * "segment" files, rather than as a file per item, to avoid having millions of tiny files on disk.
+ *
+ * Each record holds an item's id and its (optionally gzipped) data, or is a "tombstone" recording that the item was
+ * deleted. In memory only the location of the latest record for each item is held (in an OffsetTable). Once the
+ * segment being appended to reaches SEGMENT_SIZE a new one is started, and segments in which most of the records have
+ * been superseded are compacted in the background by copying their live records to the current segment.
+ *
+ * Data being stored is only held in memory if it is small (see STAGED_IN_MEMORY_LIMIT), anything larger (e.g. a photo)
+ * is staged in a temporary file and copied into the pack from there. Likewise larger records are read by streaming them
+ * straight from their segment, rather than being read into memory first.
+ *
+ * Appends are written in transactional batches: records are buffered (so that a run of small items is written out in a
+ * few large writes) and once a batch holds BATCH_SIZE records or BATCH_BYTES bytes it is committed by appending a commit
+ * marker and syncing the segment to disk. Batches are also committed when the pack is closed, before a segment is
+ * finished with, and before compaction deletes a segment. Within the process a record can be read back as soon as it
+ * has been written, but after a crash only whole committed batches survive.
+ *
+ * The locations are written out as a snapshot by close. Whilst a pack is being modified a marker file records that the
+ * snapshot may be out of date, in which case the locations are rebuilt by scanning the segments when next loaded
+ * (discarding anything after the last commit marker in the last segment).
+ */
+class PackFileBackend implements ItemDataBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(PackFileBackend.class);
+
+    static final String PACK_DIRECTORY = ".pack";
+
+    private static final int MAGIC_NUMBER = 0x45495053;
+    private static final int FORMAT_VERSION = 2;
+    //written at the start of every segment.
+    private static final int SEGMENT_MAGIC_NUMBER = 0x45495347;
+    private static final int SEGMENT_HEADER_LENGTH = 8;
+    private static final int STORED = 1;
+    private static final int DELETED = 2;
+    private static final int COMMITTED = 3;
+    private static final long SEGMENT_SIZE = 64L * 1024 * 1024;
+    private static final int APPEND_BUFFER_SIZE = 256 * 1024;
+    //a batch of appends is committed once it holds this many records, or this many bytes.
+    private static final int BATCH_SIZE = 1000;
+    private static final long BATCH_BYTES = 4L * 1024 * 1024;
+    //data larger than this is staged in a temporary file (and records larger than this are streamed when read).
+    private static final int STAGED_IN_MEMORY_LIMIT = 256 * 1024;
+    //a full segment is compacted once less than this fraction of it is still live.
+    private static final double COMPACTION_THRESHOLD = 0.5;
+
+    private final File packDir;
+    private final File tempDir;
+    private final boolean zipFiles;
+    private final Map<StorableResourceType, Pack> packs = new HashMap<StorableResourceType, Pack>();
+    //created when first needed, and shut down (waiting for any outstanding compaction) by close.
+    private ExecutorServiceUtils.ExecutorServiceWrapper<Object> compactionService = null;
+
+    /**
+     * @param packDir the directory to hold the packs (normally PACK_DIRECTORY within a store).
+     */
+    PackFileBackend(File packDir, boolean zipFiles, Collection<StorableResourceType> supportedTypes){
+        if(packDir == null) throw new NullArgumentException("packDir");
+        if(supportedTypes == null) throw new NullArgumentException("supportedTypes");
+        this.packDir = packDir;
+        this.tempDir = new File(packDir, ".tmp");
+        //anything left in the temp directory is from a previous run that failed part way through storing an item.
+        FileUtils.deleteQuietly(tempDir);
+        this.zipFiles = zipFiles;
+        for(StorableResourceType type : supportedTypes){
+            packs.put(type, new Pack(new File(packDir, type.toString()), type));
+        }
+    }
+
+    private boolean shouldZip(StorableResourceType resourceType){ return zipFiles && resourceType.shouldZip(); }
+
+    private Pack getPack(StorableResourceType resourceType){
+        Pack pack = packs.get(resourceType);
+        if(pack == null) throw new IllegalStateException("resourceType is incompatible with backend");
+        return pack;
+    }
+
+    @Override
+    public StoredData getData(ElementsItemId itemId, StorableResourceType resourceType){
+        return new PackedData(itemId, resourceType);
+    }
+
+    @Override
+    public boolean exists(ElementsItemId itemId, StorableResourceType resourceType){
+        try {
+            return getPack(resourceType).contains(itemId);
+        }
+        catch(IOException e){
+            throw new IllegalStateException(MessageFormat.format("Unable to load the {0} pack", resourceType), e);
+        }
+    }
+
+    @Override
+    public Iterable<BasicElementsStoredItem> getAllExistingItems(final StorableResourceType resourceType, ElementsItemType.SubType subType) throws IOException{
+        //only the ids are listed up front, the items (and their data) are produced as they are iterated over.
+        final List<ElementsItemId> itemIds = getPack(resourceType).getItemIds(subType);
+        return new Iterable<BasicElementsStoredItem>() {
+            @Override
+            public Iterator<BasicElementsStoredItem> iterator() {
+                final Iterator<ElementsItemId> inner = itemIds.iterator();
+                return new Iterator<BasicElementsStoredItem>() {
+                    @Override
+                    public boolean hasNext() { return inner.hasNext(); }
+
+                    @Override
+                    public BasicElementsStoredItem next() {
+                        ElementsItemId itemId = inner.next();
+                        return new BasicElementsStoredItem(itemId, resourceType, new PackedData(itemId, resourceType));
+                    }
+
+                    @Override
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    @Override
+    public StagedData stage(final ElementsItemId itemId, StorableResourceType resourceType, InputStream data) throws IOException{
+        final Pack pack = getPack(resourceType);
+        //noinspection ResultOfMethodCallIgnored
+        tempDir.mkdirs();
+        final DeferredFileOutputStream buffer = new DeferredFileOutputStream(STAGED_IN_MEMORY_LIMIT, "pack", ".tmp", tempDir);
+        final long length;
+        try {
+            OutputStream outputStream = buffer;
+            if (shouldZip(resourceType)) outputStream = new GZIPOutputStream(outputStream);
+            try {
+                length = IOUtils.copyLarge(data, outputStream);
+            } finally {
+                outputStream.close();
+            }
+        }
+        catch(IOException e){
+            deleteStagedFile(buffer);
+            throw e;
+        }
+        return new StagedData() {
+            @Override
+            public long getLength() { return length; }
+
+            @Override
+            public void commit() throws IOException {
+                InputStream stagedData = buffer.isInMemory() ? new ByteArrayInputStream(buffer.getData()) : new BufferedInputStream(new FileInputStream(buffer.getFile()));
+                try {
+                    pack.write(itemId, buffer.getByteCount(), stagedData);
+                }
+                finally {
+                    stagedData.close();
+                    deleteStagedFile(buffer);
+                }
+            }
+
+            @Override
+            public void discard() { deleteStagedFile(buffer); }
+        };
+    }
+
+    private static void deleteStagedFile(DeferredFileOutputStream buffer){
+        if(!buffer.isInMemory() && buffer.getFile().exists() && !buffer.getFile().delete())
+            log.warn(MessageFormat.format("Unable to delete temporary file {0}", buffer.getFile().getAbsolutePath()));
+    }
+
+    @Override
+    public void delete(ElementsItemId itemId, StorableResourceType resourceType) throws IOException{
+        getPack(resourceType).delete(itemId);
+    }
+
+    @Override
+    public void cleardown(StorableResourceType resourceType) throws IOException{
+        getPack(resourceType).clear();
+    }
+
+    @Override
+    public void flush() throws IOException{
+        for(Pack pack : packs.values()){
+            pack.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException{
+        //compaction can itself schedule more compaction, so keep going until there is nothing left to wait for.
+        //(not whilst holding this object's lock, as scheduling compaction needs it)
+        while(true){
+            ExecutorServiceUtils.ExecutorServiceWrapper<Object> service;
+            synchronized (this) {
+                service = compactionService;
+                compactionService = null;
+            }
+            if(service == null) break;
+            service.awaitShutdown();
+        }
+        for(Pack pack : packs.values()){
+            pack.close();
+        }
+    }
+
+    private synchronized void scheduleCompaction(final Pack pack, final int segmentNumber){
+        if(compactionService == null) compactionService = ExecutorServiceUtils.newIOBoundThreadPool("pack-compaction", 1);
+        compactionService.submit(new Callable<Object>() {
+            @Override
+            public Object call() {
+                try {
+                    pack.compact(segmentNumber);
+                }
+                catch(IOException e){
+                    log.error(MessageFormat.format("Unable to compact segment {0} of the {1} pack", segmentNumber, pack.resourceType), e);
+                }
+                return null;
+            }
+        });
+    }
+
+    /**
+     * StoredData for an item held in a pack. The item's record is looked up each time the data is read, so this
+     * remains valid if the record is moved by compaction.
+     */
+    private class PackedData implements StoredData {
+        private final ElementsItemId itemId;
+        private final StorableResourceType resourceType;
+
+        PackedData(ElementsItemId itemId, StorableResourceType resourceType){
+            this.itemId = itemId;
+            this.resourceType = resourceType;
+        }
+
+        @Override
+        public String getAddress() {
+            return MessageFormat.format("{0}#{1}-{2}", getPack(resourceType).dir.getAbsolutePath(), itemId.getItemDescriptor(), Integer.toString(itemId.getId()));
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            InputStream stream = getPack(resourceType).read(itemId);
+            if(stream == null) throw new FileNotFoundException(getAddress());
+            if(shouldZip(resourceType)) stream = new GZIPInputStream(stream);
+            return stream;
+        }
+
+        @Override
+        public void delete() {
+            try {
+                PackFileBackend.this.delete(itemId, resourceType);
+            }
+            catch(IOException e){
+                throw new IllegalStateException(MessageFormat.format("Unable to delete {0}", getAddress()), e);
+            }
+        }
+    }
+
+    private static class Segment {
+        final int number;
+        final File file;
+        long length = 0;
+        //the total length of the records in this segment that are the current record for their item.
+        long liveBytes = 0;
+        boolean compactionScheduled = false;
+        //opened when first read from.
+        FileChannel reader = null;
+
+        Segment(int number, File file){
+            this.number = number;
+            this.file = file;
+        }
+
+        void closeReader() throws IOException{
+            if(reader != null){
+                reader.close();
+                reader = null;
+            }
+        }
+    }
+
+    /**
+     * The records for a single resource type.
+     */
+    private class Pack {
+        private final File dir;
+        private final StorableResourceType resourceType;
+        private final SnapshotFile snapshot;
+
+        //all null until the pack is loaded.
+        private ItemKeys itemKeys = null;
+        //item key -> (segment number << 40 | position of the item's record in the segment)
+        private ElementsItemInfoIndex.OffsetTable locations = null;
+        //item key -> length of the item's record
+        private ElementsItemInfoIndex.OffsetTable recordLengths = null;
+        private TreeMap<Integer, Segment> segments = null;
+        private Segment activeSegment = null;
+        private FileOutputStream activeFile = null;
+        private OutputStream activeOutput = null;
+        //the records (and bytes) appended since the last commit marker.
+        private int batchRecords = 0;
+        private long batchBytes = 0;
+        private boolean modified = false;
+        //compaction is not scheduled whilst the segments are being scanned, as their live lengths are incomplete.
+        private boolean scanning = false;
+
+        Pack(File dir, StorableResourceType resourceType){
+            this.dir = dir;
+            this.resourceType = resourceType;
+            this.snapshot = new SnapshotFile(new File(dir, "locations.snapshot"), new File(dir, "locations.open"));
+        }
+
+        synchronized boolean contains(ElementsItemId itemId) throws IOException{
+            load();
+            return locations.get(getKey(itemId)) != -1;
+        }
+
+        synchronized List<ElementsItemId> getItemIds(ElementsItemType.SubType subType) throws IOException{
+            load();
+            //in the order the records are held on disk, so that reading them all back is as sequential as possible.
+            long[] keys = locations.getKeys();
+            long[] sortedLocations = new long[keys.length];
+            ElementsItemInfoIndex.OffsetTable keysByLocation = new ElementsItemInfoIndex.OffsetTable();
+            for(int i = 0; i < keys.length; i++){
+                sortedLocations[i] = locations.get(keys[i]);
+                keysByLocation.put(sortedLocations[i], keys[i]);
+            }
+            Arrays.sort(sortedLocations);
+            List<ElementsItemId> itemIds = new ArrayList<ElementsItemId>();
+            for(long location : sortedLocations){
+                long key = keysByLocation.get(location);
+                if(subType == null || itemKeys.getSubType(key) == subType) itemIds.add(itemKeys.getItemId(key));
+            }
+            return itemIds;
+        }
+
+        /**
+         * @return a stream over the data held for an item (as stored, i.e. possibly gzipped), or null if there is none.
+         * Larger records are streamed from their own handle on the segment, which stays valid whatever happens to the
+         * pack afterwards, as records are never changed once written (and deleted segments stay readable whilst open).
+         */
+        synchronized InputStream read(ElementsItemId itemId) throws IOException{
+            load();
+            long key = getKey(itemId);
+            long location = locations.get(key);
+            if(location == -1) return null;
+            Segment segment = segments.get((int) (location >>> 40));
+            if(segment == activeSegment) activeOutput.flush();
+            long position = location & 0xFFFFFFFFFFL;
+            long recordLength = recordLengths.get(key);
+            if(recordLength > STAGED_IN_MEMORY_LIMIT) {
+                FileInputStream file = new FileInputStream(segment.file);
+                try {
+                    IOUtils.skipFully(file, position);
+                    DataInputStream in = new DataInputStream(new BufferedInputStream(file));
+                    checkRecord(in, itemId, segment, position);
+                    return new BoundedInputStream(in, in.readInt());
+                }
+                catch(IOException e){
+                    file.close();
+                    throw e;
+                }
+            }
+            byte[] record = new byte[(int) recordLength];
+            if(segment.reader == null) segment.reader = new RandomAccessFile(segment.file, "r").getChannel();
+            ByteBuffer buffer = ByteBuffer.wrap(record);
+            while(buffer.hasRemaining()){
+                if(segment.reader.read(buffer, position + buffer.position()) < 0)
+                    throw new IOException(MessageFormat.format("Unexpected end of {0}", segment.file.getAbsolutePath()));
+            }
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+            checkRecord(in, itemId, segment, position);
+            int dataLength = in.readInt();
+            return new ByteArrayInputStream(record, record.length - dataLength, dataLength);
+        }
+
+        private void checkRecord(DataInputStream in, ElementsItemId itemId, Segment segment, long position) throws IOException{
+            if(in.read() != STORED || !itemId.equals(readId(in)))
+                throw new IOException(MessageFormat.format("Corrupt record in {0} at {1}", segment.file.getAbsolutePath(), position));
+        }
+
+        /**
+         * Append a record for an item, holding dataLength bytes (as stored, i.e. possibly gzipped) copied from data.
+         */
+        synchronized void write(ElementsItemId itemId, long dataLength, InputStream data) throws IOException{
+            load();
+            if(dataLength > Integer.MAX_VALUE) throw new IOException(MessageFormat.format("{0} is too large to be held in a pack", itemId));
+            ByteArrayOutputStream header = new ByteArrayOutputStream(32);
+            DataOutputStream out = new DataOutputStream(header);
+            out.writeByte(STORED);
+            writeId(out, itemId);
+            out.writeInt((int) dataLength);
+            out.close();
+            long position = startRecord();
+            activeOutput.write(header.toByteArray());
+            //the data is only ever staged locally, so a short copy means the staged data has been lost or corrupted.
+            if(IOUtils.copyLarge(data, activeOutput, 0, dataLength) != dataLength)
+                throw new IOException(MessageFormat.format("The data staged for {0} was shorter than expected", itemId));
+            endRecord(getKey(itemId), position, header.size() + dataLength, true);
+        }
+
+        synchronized void delete(ElementsItemId itemId) throws IOException{
+            load();
+            long key = getKey(itemId);
+            if(locations.get(key) == -1) return;
+            append(key, createTombstone(itemId), false);
+        }
+
+        synchronized void clear() throws IOException{
+            load();
+            markModified();
+            closeSegments();
+            for(Segment segment : segments.values()){
+                if(!segment.file.delete() && segment.file.exists())
+                    throw new IOException(MessageFormat.format("Unable to delete {0}", segment.file.getAbsolutePath()));
+            }
+            segments.clear();
+            locations = new ElementsItemInfoIndex.OffsetTable();
+            recordLengths = new ElementsItemInfoIndex.OffsetTable();
+            itemKeys.clear();
+        }
+
+        /**
+         * Commit any batch still being built, so that its records are not rolled back if the process dies.
+         */
+        synchronized void flush() throws IOException{
+            if(segments == null) return;
+            commitBatch();
+        }
+
+        synchronized void close() throws IOException{
+            if(segments == null) return;
+            closeSegments();
+            if(modified) {
+                writeSnapshot();
+                modified = false;
+                if(!snapshot.markClosed())
+                    log.warn(MessageFormat.format("Unable to remove {0}, the {1} pack will be scanned next run", snapshot.getOpenMarker().getAbsolutePath(), resourceType));
+            }
+        }
+
+        /**
+         * Copy the live records in a segment to the end of the pack, and then delete the segment.
+         * Tombstones are kept (unless the segment is the oldest) as an older segment may still hold the deleted record.
+         */
+        synchronized void compact(int segmentNumber) throws IOException{
+            if(segments == null) return;
+            Segment segment = segments.get(segmentNumber);
+            if(segment == null || segment == activeSegment) return;
+            boolean isOldest = segments.firstKey() == segmentNumber;
+            long keptBytes = 0;
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            try {
+                IOUtils.skipFully(in, SEGMENT_HEADER_LENGTH);
+                long position = SEGMENT_HEADER_LENGTH;
+                while(position < segment.length){
+                    int recordType = in.read();
+                    if(recordType == COMMITTED) {
+                        position++;
+                        continue;
+                    }
+                    ElementsItemId itemId = readId(in);
+                    long key = getKey(itemId);
+                    if(recordType == STORED) {
+                        int dataLength = in.readInt();
+                        long recordLength = getHeaderLength(itemId) + 4 + dataLength;
+                        if(locations.get(key) == getLocation(segmentNumber, position)) {
+                            write(itemId, dataLength, in);
+                            keptBytes += recordLength;
+                        }
+                        else {
+                            IOUtils.skipFully(in, dataLength);
+                        }
+                        position += recordLength;
+                    }
+                    else {
+                        if(!isOldest && locations.get(key) == -1) {
+                            byte[] tombstone = createTombstone(itemId);
+                            append(key, tombstone, false);
+                            keptBytes += tombstone.length;
+                        }
+                        position += getHeaderLength(itemId);
+                    }
+                }
+            }
+            finally {
+                in.close();
+            }
+            //the copies (and anything that superseded the segment's records) must be committed before it is removed.
+            commitBatch();
+            segment.closeReader();
+            if(!segment.file.delete())
+                throw new IOException(MessageFormat.format("Unable to delete {0}", segment.file.getAbsolutePath()));
+            segments.remove(segmentNumber);
+            log.debug(MessageFormat.format("Compacted segment {0} of the {1} pack ({2} of {3} bytes kept)", segmentNumber, resourceType, keptBytes, segment.length));
+        }
+
+        private void append(long key, byte[] record, boolean isStored) throws IOException{
+            long position = startRecord();
+            activeOutput.write(record);
+            endRecord(key, position, record.length, isStored);
+        }
+
+        /**
+         * @return the position in the active segment (started if need be) at which the next record will be written.
+         */
+        private long startRecord() throws IOException{
+            markModified();
+            if(activeSegment == null) {
+                int number = segments.isEmpty() ? 1 : segments.lastKey() + 1;
+                activeSegment = new Segment(number, new File(dir, String.format("%08d.seg", number)));
+                segments.put(number, activeSegment);
+                activeFile = new FileOutputStream(activeSegment.file, true);
+                activeOutput = new BufferedOutputStream(activeFile, APPEND_BUFFER_SIZE);
+                DataOutputStream header = new DataOutputStream(activeOutput);
+                header.writeInt(SEGMENT_MAGIC_NUMBER);
+                header.writeInt(FORMAT_VERSION);
+                activeSegment.length = SEGMENT_HEADER_LENGTH;
+            }
+            return activeSegment.length;
+        }
+
+        /**
+         * Account for a record of recordLength bytes that has just been written at position in the active segment.
+         */
+        private void endRecord(long key, long position, long recordLength, boolean isStored) throws IOException{
+            activeSegment.length += recordLength;
+            batchRecords++;
+            batchBytes += recordLength;
+            if(isStored) recordStored(key, activeSegment, position, recordLength);
+            else recordDeleted(key);
+            if(activeSegment.length >= SEGMENT_SIZE) {
+                //batches never span segments.
+                commitBatch();
+                activeOutput.close();
+                activeOutput = null;
+                activeFile = null;
+                Segment fullSegment = activeSegment;
+                activeSegment = null;
+                checkForCompaction(fullSegment);
+            }
+            else if(batchRecords >= BATCH_SIZE || batchBytes >= BATCH_BYTES) {
+                commitBatch();
+            }
+        }
+
+        /**
+         * Append a commit marker for the records written since the last one, and make sure they are on disk.
+         */
+        private void commitBatch() throws IOException{
+            if(batchRecords == 0) return;
+            activeOutput.write(COMMITTED);
+            activeSegment.length++;
+            activeOutput.flush();
+            activeFile.getFD().sync();
+            batchRecords = 0;
+            batchBytes = 0;
+        }
+
+        private void recordStored(long key, Segment segment, long position, long recordLength){
+            supersede(key);
+            locations.put(key, getLocation(segment.number, position));
+            recordLengths.put(key, recordLength);
+            segment.liveBytes += recordLength;
+        }
+
+        private void recordDeleted(long key){
+            supersede(key);
+            locations.remove(key);
+            recordLengths.remove(key);
+        }
+
+        private void supersede(long key){
+            long location = locations.get(key);
+            if(location == -1) return;
+            Segment segment = segments.get((int) (location >>> 40));
+            segment.liveBytes -= recordLengths.get(key);
+            checkForCompaction(segment);
+        }
+
+        private void checkForCompaction(Segment segment){
+            if(scanning || segment == activeSegment || segment.compactionScheduled) return;
+            if(segment.liveBytes < segment.length * COMPACTION_THRESHOLD) {
+                segment.compactionScheduled = true;
+                scheduleCompaction(this, segment.number);
+            }
+        }
+
+        private long getLocation(int segmentNumber, long position){
+            return ((long) segmentNumber << 40) | position;
+        }
+
+        private long getKey(ElementsItemId itemId){
+            return itemKeys.getKey(itemId);
+        }
+
+        private void writeId(DataOutputStream out, ElementsItemId itemId) throws IOException{
+            out.writeUTF(itemId.getItemDescriptor());
+            out.writeInt(itemId.getId());
+        }
+
+        private ElementsItemId readId(DataInputStream in) throws IOException{
+            ElementsItemType.SubType subType = ElementsItemType.getSubType(resourceType.getKeyItemType(), in.readUTF());
+            return ElementsItemId.createId(subType, in.readInt());
+        }
+
+        private int getHeaderLength(ElementsItemId itemId) throws IOException{
+            //the record type, the (modified utf-8) descriptor and the id.
+            ByteArrayOutputStream header = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(header);
+            out.writeUTF(itemId.getItemDescriptor());
+            return 1 + out.size() + 4;
+        }
+
+        private byte[] createTombstone(ElementsItemId itemId) throws IOException{
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(record);
+            out.writeByte(DELETED);
+            writeId(out, itemId);
+            out.close();
+            return record.toByteArray();
+        }
+
+        private void markModified() throws IOException{
+            if(modified) return;
+            snapshot.markOpen();
+            modified = true;
+        }
+
+        private void closeSegments() throws IOException{
+            if(activeOutput != null) {
+                commitBatch();
+                activeOutput.close();
+                activeOutput = null;
+                activeFile = null;
+            }
+            //appending resumes in a new segment, so that segments never change once they have been closed.
+            //(the closed segment is considered for compaction when the pack is next loaded)
+            activeSegment = null;
+            for(Segment segment : segments.values()) segment.closeReader();
+        }
+
+        private void load() throws IOException{
+            if(segments != null) return;
+            segments = new TreeMap<Integer, Segment>();
+            File[] segmentFiles = dir.listFiles(new FilenameFilter() {
+                @Override
+                public boolean accept(File dir, String name) { return name.endsWith(".seg"); }
+            });
+            if(segmentFiles != null) {
+                for (File file : segmentFiles) {
+                    int number = Integer.parseInt(file.getName().substring(0, file.getName().length() - 4));
+                    Segment segment = new Segment(number, file);
+                    segment.length = file.length();
+                    segments.put(number, segment);
+                }
+            }
+            if(!loadSnapshot()) scan();
+            for(Segment segment : new ArrayList<Segment>(segments.values())) checkForCompaction(segment);
+        }
+
+        private boolean loadSnapshot(){
+            if(!snapshot.exists() || snapshot.isOpen()) return false;
+            try {
+                DataInputStream in = snapshot.openForReading();
+                try {
+                    if (in.readInt() != MAGIC_NUMBER || in.readInt() != FORMAT_VERSION || !resourceType.toString().equals(in.readUTF()))
+                        return false;
+                    ItemKeys loadedKeys = ItemKeys.readFrom(in, resourceType.getKeyItemType());
+                    int segmentCount = in.readInt();
+                    if (segmentCount != segments.size()) return false;
+                    for (int i = 0; i < segmentCount; i++) {
+                        Segment segment = segments.get(in.readInt());
+                        if (segment == null || segment.length != in.readLong()) return false;
+                        segment.liveBytes = in.readLong();
+                    }
+                    locations = ElementsItemInfoIndex.OffsetTable.readFrom(in);
+                    recordLengths = ElementsItemInfoIndex.OffsetTable.readFrom(in);
+                    itemKeys = loadedKeys;
+                    return true;
+                }
+                finally {
+                    in.close();
+                }
+            }
+            catch(IOException e){
+                log.warn(MessageFormat.format("Unable to read the {0} pack snapshot ({1})", resourceType, e.getMessage()));
+                return false;
+            }
+            catch(RuntimeException e){
+                log.warn(MessageFormat.format("Unable to read the {0} pack snapshot ({1})", resourceType, e.getMessage()));
+                return false;
+            }
+        }
+
+        private void writeSnapshot() throws IOException{
+            snapshot.write(new SnapshotFile.Writer() {
+                @Override
+                public void writeTo(DataOutputStream out) throws IOException {
+                    out.writeInt(MAGIC_NUMBER);
+                    out.writeInt(FORMAT_VERSION);
+                    out.writeUTF(resourceType.toString());
+                    itemKeys.writeTo(out);
+                    out.writeInt(segments.size());
+                    for (Segment segment : segments.values()) {
+                        out.writeInt(segment.number);
+                        out.writeLong(segment.length);
+                        out.writeLong(segment.liveBytes);
+                    }
+                    locations.writeTo(out);
+                    recordLengths.writeTo(out);
+                }
+            });
+        }
+
+        /**
+         * Rebuild the locations by reading every record in every segment (in the order they were written).
+         */
+        private void scan() throws IOException{
+            if(!segments.isEmpty()) log.info(MessageFormat.format("Scanning the {0} pack ({1} segments)", resourceType, segments.size()));
+            locations = new ElementsItemInfoIndex.OffsetTable();
+            recordLengths = new ElementsItemInfoIndex.OffsetTable();
+            itemKeys = new ItemKeys();
+            //a snapshot that failed part way through loading may already have set some of these.
+            for (Segment segment : segments.values()) segment.liveBytes = 0;
+            scanning = true;
+            try {
+                for (Segment segment : segments.values()) scan(segment);
+            }
+            finally {
+                scanning = false;
+            }
+        }
+
+        /**
+         * Apply the records in a segment to the locations, a batch at a time as each commit marker is reached.
+         * Anything after the last commit marker of the last segment was being written when the process died, so is
+         * discarded (and truncated away).
+         */
+        private void scan(Segment segment) throws IOException{
+            //each record of the current batch as {key, position, length}, with a length of -1 for a deletion.
+            List<long[]> batch = new ArrayList<long[]>();
+            long committedLength = 0;
+            CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(segment.file)));
+            DataInputStream in = new DataInputStream(counter);
+            try {
+                if (segment.length > 0) {
+                    if (in.readInt() != SEGMENT_MAGIC_NUMBER || in.readInt() != FORMAT_VERSION)
+                        throw new IOException(MessageFormat.format("{0} was not written by this version of the pack format", segment.file.getAbsolutePath()));
+                    committedLength = SEGMENT_HEADER_LENGTH;
+                }
+                long position = committedLength;
+                while (position < segment.length) {
+                    int recordType = in.read();
+                    if (recordType == COMMITTED) {
+                        for (long[] record : batch) {
+                            if (record[2] == -1) recordDeleted(record[0]);
+                            else recordStored(record[0], segment, record[1], record[2]);
+                        }
+                        batch.clear();
+                        committedLength = counter.getByteCount();
+                    }
+                    else {
+                        ElementsItemId itemId = readId(in);
+                        if (recordType == STORED) {
+                            int dataLength = in.readInt();
+                            IOUtils.skipFully(in, dataLength);
+                            batch.add(new long[]{getKey(itemId), position, counter.getByteCount() - position});
+                        }
+                        else if (recordType == DELETED) {
+                            batch.add(new long[]{getKey(itemId), position, -1});
+                        }
+                        else throw new IOException(MessageFormat.format("Corrupt record in {0} at {1}", segment.file.getAbsolutePath(), position));
+                    }
+                    position = counter.getByteCount();
+                }
+            }
+            catch (EOFException e) {
+                //a record that was being written when the process died (dealt with below).
+            }
+            finally {
+                in.close();
+            }
+            if (committedLength < segment.length) {
+                if (segment != segments.lastEntry().getValue())
+                    throw new IOException(MessageFormat.format("Unexpected end of {0}", segment.file.getAbsolutePath()));
+                log.warn(MessageFormat.format("Discarding an uncommitted batch at the end of {0}", segment.file.getAbsolutePath()));
+                truncate(segment, committedLength);
+            }
+        }
+
+        private void truncate(Segment segment, long length) throws IOException{
+            markModified();
+            RandomAccessFile file = new RandomAccessFile(segment.file, "rw");
+            try {
+                file.setLength(length);
+            }
+            finally {
+                file.close();
+            }
+            segment.length = length;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.text.MessageFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A variant of the DefaultLayoutStrategy that spreads the files for each type of item over SHARD_COUNT sub directories
+ * (chosen by a hash of the item's id), rather than placing them all in one very large directory.
+ * Files are listed a sub directory at a time, as they are iterated over.
+ *
+ * Directories laid out by the DefaultLayoutStrategy are converted the first time they are used (by moving their files
+ * into the appropriate sub directories), so an existing store can be switched to this layout without any other action.
+ * Note that a store cannot be switched back to the DefaultLayoutStrategy (which would mistake the sub directories for
+ * items), so an ElementsItemFileStore refuses to use a sharded store with any other layout (see holdsShardedData).
+ */
+@SuppressWarnings("WeakerAccess")
+public class ShardedLayoutStrategy extends DefaultLayoutStrategy {
+
+    private static final Logger log = LoggerFactory.getLogger(ShardedLayoutStrategy.class);
+
+    private static final int SHARD_COUNT = 256;
+    private static final String[] shardNames = new String[SHARD_COUNT];
+    static {
+        //prefixed so that they can never clash with the (numeric) names of files being converted from the default layout.
+        for(int i = 0; i < SHARD_COUNT; i++) shardNames[i] = String.format("s%02x", i);
+    }
+
+    //type directories that are known not to hold files laid out by the DefaultLayoutStrategy.
+    private Set<File> convertedDirectories = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    public ShardedLayoutStrategy(){
+        this(null, null);
+    }
+
+    public ShardedLayoutStrategy(StorableResourceType[] mainResourceTypes, StorableResourceType[] resourceTypesWithOwnDirectory){
+        super(mainResourceTypes, resourceTypesWithOwnDirectory);
+    }
+
+    private static String getShardName(int id){
+        //multiplicative hash, so that runs of consecutive ids are spread evenly over the shards.
+        return shardNames[(id * 0x9E3779B1) >>> 24];
+    }
+
+    @Override
+    protected File getItemDirectory(File typeDir, int id){
+        ensureConverted(typeDir);
+        return new File(typeDir, getShardName(id));
+    }
+
+    @Override
+    protected Iterable<File> listFiles(final File typeDir, final FilenameFilter filter){
+        ensureConverted(typeDir);
+        return new Iterable<File>() {
+            @Override
+            public Iterator<File> iterator() {
+                return new Iterator<File>() {
+                    private int nextShard = 0;
+                    private Iterator<File> current = Collections.<File>emptyList().iterator();
+
+                    @Override
+                    public boolean hasNext() {
+                        while(!current.hasNext() && nextShard < SHARD_COUNT) {
+                            File[] files = new File(typeDir, shardNames[nextShard++]).listFiles(filter);
+                            if(files != null) current = Arrays.asList(files).iterator();
+                        }
+                        return current.hasNext();
+                    }
+
+                    @Override
+                    public File next() {
+                        if(!hasNext()) throw new NoSuchElementException();
+                        return current.next();
+                    }
+
+                    @Override
+                    public void remove() { throw new UnsupportedOperationException(); }
+                };
+            }
+        };
+    }
+
+    /**
+     * @return whether any of the type directories in storeDir holds the sub directories used by this layout.
+     */
+    static boolean holdsShardedData(File storeDir){
+        File[] typeDirs = storeDir.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(File file) { return file.isDirectory() && !file.getName().startsWith("."); }
+        });
+        if(typeDirs != null) {
+            for (File typeDir : typeDirs) {
+                for (String shardName : shardNames) {
+                    if (new File(typeDir, shardName).isDirectory()) return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Move any files placed directly in typeDir (by the DefaultLayoutStrategy) into the appropriate sub directories.
+     * This is only checked once per directory, as nothing else places files there.
+     */
+    private void ensureConverted(File typeDir){
+        if(convertedDirectories.contains(typeDir)) return;
+        synchronized (this) {
+            if(convertedDirectories.contains(typeDir)) return;
+            File[] files = typeDir.listFiles(new FileFilter() {
+                @Override
+                public boolean accept(File file) { return file.isFile(); }
+            });
+            if(files != null && files.length > 0) {
+                log.info(MessageFormat.format("Moving {0} files in {1} into sub directories", files.length, typeDir.getAbsolutePath()));
+                for (File file : files) {
+                    //files are named by item id, with an optional suffix
+                    String name = file.getName();
+                    int suffixStart = name.indexOf('-');
+                    int id;
+                    try {
+                        id = Integer.parseInt(suffixStart == -1 ? name : name.substring(0, suffixStart));
+                    }
+                    catch(NumberFormatException e){
+                        log.warn(MessageFormat.format("Leaving unexpected file {0} in place", file.getAbsolutePath()));
+                        continue;
+                    }
+                    File shardDir = new File(typeDir, getShardName(id));
+                    ensureDirectoryExists(shardDir);
+                    try {
+                        ElementsItemFileStore.moveIntoPlace(file, new File(shardDir, name));
+                    }
+                    catch(IOException e){
+                        throw new IllegalStateException(MessageFormat.format("Unable to move {0} into {1}", file.getAbsolutePath(), shardDir.getAbsolutePath()), e);
+                    }
+                }
+                log.info(MessageFormat.format("Finished moving files in {0} into sub directories", typeDir.getAbsolutePath()));
+            }
+            convertedDirectories.add(typeDir);
+        }
+    }
+}
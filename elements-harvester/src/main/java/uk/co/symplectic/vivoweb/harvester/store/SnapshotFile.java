@@ -0,0 +1,92 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.lang.NullArgumentException;
+
+import java.io.*;
+import java.text.MessageFormat;
+
+/**
+ * A file holding a snapshot of some state that is otherwise kept in memory, together with a marker file that is present
+ * whilst the state is being modified. A snapshot found with the marker still present may be out of step with whatever
+ * it describes (e.g. if the process died before the state was written out again), so should not be trusted.
+ */
+class SnapshotFile {
+
+    /**
+     * Writes the content of a snapshot.
+     */
+    interface Writer {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private final File file;
+    private final File openMarker;
+
+    SnapshotFile(File file, File openMarker){
+        if(file == null) throw new NullArgumentException("file");
+        if(openMarker == null) throw new NullArgumentException("openMarker");
+        this.file = file;
+        this.openMarker = openMarker;
+    }
+
+    File getFile(){ return file; }
+
+    File getOpenMarker(){ return openMarker; }
+
+    boolean exists(){ return file.exists(); }
+
+    /**
+     * @return whether the state was being modified when the snapshot was last used (i.e. the marker is present).
+     */
+    boolean isOpen(){ return openMarker.exists(); }
+
+    /**
+     * Put down the marker, before the state is modified.
+     */
+    void markOpen() throws IOException{
+        //noinspection ResultOfMethodCallIgnored
+        openMarker.getParentFile().mkdirs();
+        if(!openMarker.exists() && !openMarker.createNewFile())
+            throw new IOException(MessageFormat.format("Unable to create {0}", openMarker.getAbsolutePath()));
+    }
+
+    /**
+     * Remove the marker, once the snapshot is consistent with the state again.
+     * @return false if the marker could not be removed.
+     */
+    boolean markClosed(){
+        return openMarker.delete() || !openMarker.exists();
+    }
+
+    /**
+     * Replace the snapshot (the content is written to a temporary file which is then moved into place).
+     */
+    void write(Writer writer) throws IOException{
+        File tempFile = new File(file.getParentFile(), file.getName() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+        try {
+            writer.writeTo(out);
+        }
+        finally {
+            out.close();
+        }
+        ElementsItemFileStore.moveIntoPlace(tempFile, file);
+    }
+
+    /**
+     * @return a stream over the snapshot's content (which the caller must close).
+     */
+    DataInputStream openForReading() throws IOException{
+        return new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+    }
+}
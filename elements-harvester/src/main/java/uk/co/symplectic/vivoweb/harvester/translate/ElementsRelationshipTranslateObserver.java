@@ -130,10 +130,7 @@ public class ElementsRelationshipTranslateObserver extends ElementsTranslateObse
                             mainDocRootElement.appendChild(importedNode);
                         } catch (FileNotFoundException doh) {
                             //todo: decide if this is desirable or not - needed to avoid failures in relation to data categories you are not really processing at the moment.
-                            if (storedRawData instanceof StoredData.InFile) {
-                                StoredData.InFile fileStoredData = (StoredData.InFile) storedRawData;
-                                log.warn(MessageFormat.format("File {0} for extra object {1} not found when processing {2}", fileStoredData.getFile().getPath(), storedRawObject.getItemId(), context));
-                            }
+                            log.warn(MessageFormat.format("Data {0} for extra object {1} not found when processing {2}", storedRawData.getAddress(), storedRawObject.getItemId(), context));
                         } finally {
                             if (storedItemInputStream != null) {
                                 storedItemInputStream.close();
@@ -19,6 +19,7 @@ import uk.co.symplectic.vivoweb.harvester.store.ElementsStoredItemInfo;
 import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
@@ -255,5 +256,11 @@ public class ElementsGroupCollection extends ElementsItemKeyedCollection<Element
             getUsersGroups(objectInfo.getObjectId()).add((ElementsItemId.GroupId) group.getGroupInfo().getItemId());
             return null;
         }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) throws IOException {
+            //the data itself is not needed.
+            return storeItem(itemInfo, resourceType, (byte[]) null);
+        }
     }
 }
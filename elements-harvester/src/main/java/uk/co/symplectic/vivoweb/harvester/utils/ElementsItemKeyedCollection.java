@@ -11,6 +11,7 @@
 
 package uk.co.symplectic.vivoweb.harvester.utils;
 
+import org.apache.commons.io.IOUtils;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
 import uk.co.symplectic.vivoweb.harvester.model.ElementsItemType;
@@ -20,6 +21,7 @@ import uk.co.symplectic.vivoweb.harvester.store.StorableResourceType;
 import uk.co.symplectic.vivoweb.harvester.store.StoredData;
 
 import java.io.IOException;
+import java.io.InputStream;
 import java.text.MessageFormat;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
@@ -92,6 +94,12 @@ public abstract class ElementsItemKeyedCollection<T> {
             put(itemInfo.getItemId(), getItemToStore(itemInfo, resourceType, data));
             return null;
         }
+
+        @Override
+        public ElementsStoredItemInfo storeItem(ElementsItemInfo itemInfo, StorableResourceType resourceType, InputStream data) throws IOException {
+            //collections are held in memory anyway.
+            return storeItem(itemInfo, resourceType, IOUtils.toByteArray(data));
+        }
     }
 
     /**
@@ -0,0 +1,223 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.utils.xml;
+
+import org.apache.commons.io.FileUtils;
+
+import javax.xml.namespace.QName;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.text.MessageFormat;
+import java.util.*;
+
+/**
+ * Command line microbenchmark comparing the cost of finding the filters to activate for each event of a document
+ * using the DocumentLocationTrie (as XMLEventProcessor now does) against the previous approach of building the
+ * document location of every event as a list and looking it up in a map keyed on whole locations.
+ *
+ * Usage: DocumentLocationDispatchBenchmark [page.xml]
+ * where page.xml is a saved API response, e.g. of /users?detail=full&per-page=100. If no file is supplied a
+ * synthetic 100 entry full detail users page is generated instead.
+ * Filters are registered at the locations the harvester uses when processing a feed of objects.
+ */
+public class DocumentLocationDispatchBenchmark {
+
+    private static final String atomNS = "http://www.w3.org/2005/Atom";
+    private static final String apiNS = "http://www.symplectic.co.uk/publications/api";
+
+    private static final int WARM_UP_ITERATIONS = 200;
+    private static final int TIMED_ITERATIONS = 1000;
+
+    public static void main(String[] args) throws IOException, XMLStreamException {
+        String page = args.length > 0 ? FileUtils.readFileToString(new File(args[0]), "utf-8") : createUsersPage(100);
+
+        List<List<QName>> locations = new ArrayList<List<QName>>();
+        locations.add(Arrays.asList(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "object")));
+        locations.add(Arrays.asList(new QName(atomNS, "feed"), new QName(atomNS, "entry"), new QName(apiNS, "deleted-object")));
+        locations.add(Arrays.asList(new QName(atomNS, "feed"), new QName(apiNS, "pagination")));
+        locations.add(Arrays.asList(new QName(atomNS, "feed"), new QName(apiNS, "schema-version")));
+
+        //the events of the page, as the processor sees them (event type and element name).
+        List<Integer> eventTypes = new ArrayList<Integer>();
+        List<QName> eventNames = new ArrayList<QName>();
+        XMLStreamReader reader = StAXUtils.getXMLInputFactory().createXMLStreamReader(new StringReader(page));
+        while(reader.hasNext()){
+            int eventType = reader.next();
+            eventTypes.add(eventType);
+            eventNames.add(reader.hasName() ? reader.getName() : null);
+        }
+        reader.close();
+
+        Dispatcher previous = new LocationMapDispatcher(locations);
+        Dispatcher trie = new TrieDispatcher(locations);
+
+        System.out.println(MessageFormat.format("Page of {0} characters, {1} events", page.length(), eventTypes.size()));
+        run(previous, eventTypes, eventNames, WARM_UP_ITERATIONS);
+        run(trie, eventTypes, eventNames, WARM_UP_ITERATIONS);
+        report("location map (previous)", run(previous, eventTypes, eventNames, TIMED_ITERATIONS), eventTypes.size());
+        report("location trie", run(trie, eventTypes, eventNames, TIMED_ITERATIONS), eventTypes.size());
+    }
+
+    private static void report(String name, long nanos, int eventCount){
+        double perPage = (double) nanos / TIMED_ITERATIONS;
+        System.out.println(MessageFormat.format("{0}: {1,number,#.0} microseconds per page, {2,number,#.0} nanoseconds per event",
+                name, perPage / 1000, perPage / eventCount));
+    }
+
+    private static long run(Dispatcher dispatcher, List<Integer> eventTypes, List<QName> eventNames, int iterations){
+        long matches = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < iterations; i++){
+            dispatcher.reset();
+            for(int j = 0; j < eventTypes.size(); j++) matches += dispatcher.dispatch(eventTypes.get(j), eventNames.get(j));
+        }
+        long elapsed = System.nanoTime() - start;
+        //use the result so that the work cannot be optimised away.
+        if(matches < 0) System.out.println(matches);
+        return elapsed;
+    }
+
+    /*
+    Something that tracks the location of each event in the document and finds the filters registered there.
+     */
+    private interface Dispatcher{
+        void reset();
+        //returns the number of filters activated by the event.
+        int dispatch(int eventType, QName name);
+    }
+
+    /*
+    The dispatch XMLEventProcessor used previously - rebuilds the location of every event from the scope stack and looks
+    it up in a map keyed on whole locations (hashing and comparing every QName of the location).
+     */
+    private static class LocationMapDispatcher implements Dispatcher{
+        private final Map<List<QName>, List<String>> filters = new HashMap<List<QName>, List<String>>();
+        private final Stack<QName> stack = new Stack<QName>();
+
+        LocationMapDispatcher(List<List<QName>> locations){
+            for(List<QName> location : locations) filters.put(location, Collections.singletonList(location.toString()));
+        }
+
+        public void reset(){ stack.clear(); }
+
+        public int dispatch(int eventType, QName name){
+            List<QName> currentDocumentLocation = new ArrayList<QName>();
+            for(QName scope : stack) currentDocumentLocation.add(scope);
+            int count = 0;
+            if(eventType == XMLStreamConstants.START_ELEMENT){
+                currentDocumentLocation.add(name);
+                List<String> activated = filters.get(currentDocumentLocation);
+                if(activated != null) count = activated.size();
+                stack.push(name);
+            }
+            else if(eventType == XMLStreamConstants.END_ELEMENT){
+                stack.pop();
+            }
+            return count;
+        }
+    }
+
+    /*
+    The dispatch XMLEventProcessor now uses - steps down the trie from the parent's node on each start element.
+     */
+    private static class TrieDispatcher implements Dispatcher{
+        private final DocumentLocationTrie<String> filters = new DocumentLocationTrie<String>();
+        private final Stack<DocumentLocationTrie.Node<String>> stack = new Stack<DocumentLocationTrie.Node<String>>();
+
+        TrieDispatcher(List<List<QName>> locations){
+            for(List<QName> location : locations) filters.add(location, location.toString());
+        }
+
+        public void reset(){ stack.clear(); }
+
+        public int dispatch(int eventType, QName name){
+            int count = 0;
+            if(eventType == XMLStreamConstants.START_ELEMENT){
+                DocumentLocationTrie.Node<String> parent = stack.empty() ? filters.getRoot() : stack.peek();
+                DocumentLocationTrie.Node<String> node = parent == null ? null : parent.getChild(name);
+                if(node != null) count = node.getValues().size();
+                stack.push(node);
+            }
+            else if(eventType == XMLStreamConstants.END_ELEMENT){
+                stack.pop();
+            }
+            return count;
+        }
+    }
+
+    /*
+    Generate a page resembling a response to /users?detail=full with the requested number of entries.
+     */
+    private static String createUsersPage(int entries){
+        StringBuilder page = new StringBuilder("<?xml version=\"1.0\" encoding=\"utf-8\"?>\n");
+        page.append("<feed xmlns=\"").append(atomNS).append("\" xmlns:api=\"").append(apiNS).append("\">\n");
+        page.append("  <api:schema-version>5.5</api:schema-version>\n");
+        page.append("  <api:pagination results-count=\"").append(entries).append("\" items-per-page=\"").append(entries).append("\">\n");
+        page.append("    <api:page position=\"this\" href=\"https://elements/api/users?detail=full\"/>\n");
+        page.append("  </api:pagination>\n");
+        for(int i = 1; i <= entries; i++){
+            page.append("  <entry>\n");
+            page.append("    <title>User ").append(i).append("</title>\n");
+            page.append("    <id>tag:elements,user:").append(i).append("</id>\n");
+            page.append("    <updated>2019-01-01T00:00:00Z</updated>\n");
+            page.append("    <api:object category=\"user\" id=\"").append(i).append("\" proprietary-id=\"P").append(i)
+                    .append("\" username=\"user").append(i).append("\" type=\"person\">\n");
+            page.append("      <api:ever-approved>true</api:ever-approved>\n");
+            page.append("      <api:is-public>true</api:is-public>\n");
+            page.append("      <api:is-login-allowed>true</api:is-login-allowed>\n");
+            page.append("      <api:title>Dr</api:title>\n");
+            page.append("      <api:initials>A</api:initials>\n");
+            page.append("      <api:last-name>Surname").append(i).append("</api:last-name>\n");
+            page.append("      <api:first-name>Forename</api:first-name>\n");
+            page.append("      <api:email-address>user").append(i).append("@example.org</api:email-address>\n");
+            page.append("      <api:primary-group-descriptor>Department</api:primary-group-descriptor>\n");
+            page.append("      <api:is-current-staff>true</api:is-current-staff>\n");
+            page.append("      <api:is-academic>true</api:is-academic>\n");
+            page.append("      <api:photo href=\"https://elements/api/users/").append(i).append("/photo\"/>\n");
+            for(int j = 0; j < 3; j++) {
+                page.append("      <api:organisation-defined-data field-number=\"").append(j).append("\" field-name=\"Field ").append(j).append("\">Value</api:organisation-defined-data>\n");
+            }
+            page.append("      <api:user-search-settings><api:default><api:keywords><api:keyword>research</api:keyword></api:keywords></api:default></api:user-search-settings>\n");
+            page.append("      <api:records>\n");
+            for(String source : new String[]{"manual", "hr"}) {
+                page.append("        <api:record format=\"native\" source-name=\"").append(source).append("\">\n");
+                page.append("          <api:native>\n");
+                for(int j = 0; j < 8; j++) {
+                    page.append("            <api:field name=\"field-").append(j).append("\" type=\"text\" display-name=\"Field ").append(j).append("\">\n");
+                    page.append("              <api:text>Some text for field ").append(j).append("</api:text>\n");
+                    page.append("            </api:field>\n");
+                }
+                page.append("            <api:field name=\"addresses\" type=\"address-list\" display-name=\"Addresses\">\n");
+                page.append("              <api:addresses><api:address privacy=\"public\"><api:line type=\"organisation\">University</api:line>")
+                        .append("<api:line type=\"city\">City</api:line><api:line type=\"country\">Country</api:line></api:address></api:addresses>\n");
+                page.append("            </api:field>\n");
+                page.append("          </api:native>\n");
+                page.append("        </api:record>\n");
+            }
+            page.append("      </api:records>\n");
+            page.append("      <api:all-labels type=\"keyword-list\"><api:keywords>\n");
+            for(int j = 0; j < 5; j++) {
+                page.append("        <api:keyword origin=\"object-data\" scheme=\"research-areas\">Label ").append(j).append("</api:keyword>\n");
+            }
+            page.append("      </api:keywords></api:all-labels>\n");
+            page.append("      <api:relationships href=\"https://elements/api/users/").append(i).append("/relationships\"/>\n");
+            page.append("    </api:object>\n");
+            page.append("  </entry>\n");
+        }
+        page.append("</feed>\n");
+        return page.toString();
+    }
+}
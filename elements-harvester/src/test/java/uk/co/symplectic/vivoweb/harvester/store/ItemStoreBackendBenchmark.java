@@ -0,0 +1,109 @@
+/*
+ * ******************************************************************************
+ *   Copyright (c) 2019 Symplectic. All rights reserved.
+ *   This Source Code Form is subject to the terms of the Mozilla Public
+ *   License, v. 2.0. If a copy of the MPL was not distributed with this
+ *   file, You can obtain one at http://mozilla.org/MPL/2.0/.
+ * ******************************************************************************
+ *   Version :  ${git.branch}:${git.commit.id}
+ * ******************************************************************************
+ */
+
+package uk.co.symplectic.vivoweb.harvester.store;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemId;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsItemInfo;
+import uk.co.symplectic.vivoweb.harvester.model.ElementsObjectCategory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Command line benchmark comparing the raw data store's file per item layouts (flat and sharded) against its pack
+ * files, for storing items, retrieving them in a random order, and reading every item back in a full scan.
+ *
+ * Usage: ItemStoreBackendBenchmark [directory] [item count] [item size]
+ * The stores are created in (and removed from) the given directory, by default a directory in java.io.tmpdir.
+ * Defaults to 50000 items of 2000 characters each. Each store is reopened before the full scan, so that it is read
+ * from disk (although the operating system's cache will still hold much of it).
+ */
+public class ItemStoreBackendBenchmark {
+
+    private static final StorableResourceType TYPE = StorableResourceType.RAW_USER_PHOTO;
+
+    public static void main(String[] args) throws IOException {
+        File baseDir = args.length > 0 ? new File(args[0]) : new File(System.getProperty("java.io.tmpdir"), "item-store-benchmark");
+        int itemCount = args.length > 1 ? Integer.parseInt(args[1]) : 50000;
+        int itemSize = args.length > 2 ? Integer.parseInt(args[2]) : 2000;
+
+        StringBuilder body = new StringBuilder();
+        Random random = new Random(1);
+        for(int i = 0; i < itemSize; i++) body.append((char) ('a' + random.nextInt(26)));
+
+        System.out.println(MessageFormat.format("{0} items of {1} characters, in {2}", itemCount, itemSize, baseDir.getAbsolutePath()));
+        run("file layout", new File(baseDir, "files"), false, false, itemCount, body.toString());
+        run("sharded file layout", new File(baseDir, "sharded"), false, true, itemCount, body.toString());
+        run("pack files", new File(baseDir, "packs"), true, false, itemCount, body.toString());
+        FileUtils.deleteQuietly(baseDir);
+    }
+
+    private static void run(String name, File dir, boolean usePackFiles, boolean shardDirectories, int itemCount, String body) throws IOException {
+        FileUtils.deleteQuietly(dir);
+
+        ElementsRawDataStore store = new ElementsRawDataStore(dir, false, false, false, usePackFiles, shardDirectories);
+        long start = System.nanoTime();
+        for(int id = 1; id <= itemCount; id++){
+            ElementsItemInfo info = ElementsItemInfo.createObjectItem(ElementsObjectCategory.USER, id);
+            store.storeItem(info, TYPE, MessageFormat.format("<item id=\"{0}\">{1}</item>", Integer.toString(id), body).getBytes("utf-8"));
+        }
+        store.close();
+        long stored = System.nanoTime();
+
+        List<Integer> ids = new ArrayList<Integer>();
+        for(int id = 1; id <= itemCount; id++) ids.add(id);
+        Collections.shuffle(ids, new Random(2));
+        long bytes = 0;
+        for(int id : ids){
+            BasicElementsStoredItem item = store.retrieveItem(ElementsItemId.createObjectId(ElementsObjectCategory.USER, id), TYPE);
+            bytes += read(item.getStoredData());
+        }
+        long retrieved = System.nanoTime();
+
+        store = new ElementsRawDataStore(dir, false, false, false, usePackFiles, shardDirectories);
+        long scanStart = System.nanoTime();
+        int scanned = 0;
+        for(StoredData data : store.getAllExistingDataOfType(TYPE)){
+            bytes += read(data);
+            scanned++;
+        }
+        long finished = System.nanoTime();
+        store.close();
+        FileUtils.deleteQuietly(dir);
+
+        if(scanned != itemCount) throw new IllegalStateException(MessageFormat.format("{0} items were scanned, expected {1}", scanned, itemCount));
+        System.out.println(MessageFormat.format("{0}: store {1,number,#} items/s, retrieve {2,number,#} items/s, full scan {3,number,#} items/s ({4} bytes read)",
+                name, perSecond(itemCount, stored - start), perSecond(itemCount, retrieved - stored), perSecond(itemCount, finished - scanStart), bytes));
+    }
+
+    private static long read(StoredData data) throws IOException {
+        InputStream stream = data.getInputStream();
+        try {
+            return IOUtils.toByteArray(stream).length;
+        }
+        finally {
+            stream.close();
+        }
+    }
+
+    private static double perSecond(int count, long nanos){
+        return count / (nanos / 1e9);
+    }
+}